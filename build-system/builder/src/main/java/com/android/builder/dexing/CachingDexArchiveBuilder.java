@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.utils.FileCache;
+import com.android.utils.PathUtils;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * A {@link DexArchiveBuilder} that caches the dex file of each class in a {@link FileCache}, keyed
+ * by the content of the class file and by a key identifying the rest of the dexing configuration.
+ * Only the classes missing from the cache are converted by the delegate builder, so that changing
+ * a few classes of a large jar only re-dexes those classes.
+ *
+ * <p>The delegate builder is always invoked in incremental mode, so that it produces one dex file
+ * per class file, which is the unit of caching.
+ */
+class CachingDexArchiveBuilder extends DexArchiveBuilder {
+
+    private enum FileCacheInputParams {
+
+        /** Key of the dexer and dex options used to dex the class. */
+        CONFIGURATION,
+
+        /** Hash of the content of the class file. */
+        CLASS_FILE_HASH,
+    }
+
+    @NonNull private final DexArchiveBuilder delegate;
+    @NonNull private final FileCache cache;
+    @NonNull private final String configurationKey;
+
+    CachingDexArchiveBuilder(
+            @NonNull DexArchiveBuilder delegate,
+            @NonNull FileCache cache,
+            @NonNull String configurationKey) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.configurationKey = configurationKey;
+    }
+
+    @Override
+    public void convert(
+            @NonNull Stream<ClassFileEntry> input, @NonNull Path output, boolean isIncremental)
+            throws DexArchiveBuilderException {
+        List<ClassFileEntry> missingEntries = new ArrayList<>();
+        Map<String, FileCache.Inputs> missingInputs = new HashMap<>();
+        Path convertedDir = null;
+        try {
+            Iterator<ClassFileEntry> iterator = input.iterator();
+            if (!iterator.hasNext()) {
+                return;
+            }
+
+            try (DexArchive outputDexArchive = DexArchives.fromInput(output)) {
+                while (iterator.hasNext()) {
+                    ClassFileEntry entry = iterator.next();
+                    FileCache.Inputs inputs = getCacheInputs(entry.readAllBytes());
+                    String dexPath = ClassFileEntry.withDexExtension(entry.getRelativePath());
+                    byte[] dex = readCachedDexFile(inputs);
+                    if (dex != null) {
+                        outputDexArchive.addFile(dexPath, dex, 0, dex.length);
+                    } else {
+                        missingEntries.add(entry);
+                        missingInputs.put(dexPath, inputs);
+                    }
+                }
+
+                if (missingEntries.isEmpty()) {
+                    return;
+                }
+
+                convertedDir = Files.createTempDirectory("dex-archive");
+                delegate.convert(missingEntries.stream(), convertedDir, true);
+                try (DexArchive convertedDexArchive = DexArchives.fromInput(convertedDir)) {
+                    for (DexArchiveEntry entry : convertedDexArchive.getFiles()) {
+                        String dexPath = entry.getRelativePathInArchive();
+                        byte[] dex = entry.getDexFileContent();
+                        outputDexArchive.addFile(dexPath, dex, 0, dex.length);
+
+                        // Dex files that do not correspond to one of the input classes are still
+                        // copied to the output, but they are not cached.
+                        FileCache.Inputs inputs = missingInputs.get(dexPath);
+                        if (inputs != null) {
+                            cache.createFileInCacheIfAbsent(
+                                    inputs, dexFile -> Files.write(dexFile.toPath(), dex));
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ExecutionException e) {
+            throw new DexArchiveBuilderException(e);
+        } finally {
+            deleteIfExists(convertedDir);
+        }
+    }
+
+    /**
+     * Returns the cached dex file for the given inputs, or {@code null} if it is not cached. The
+     * file is read without holding the cache lock, so it may be deleted by another build evicting
+     * old cache entries in the meantime, in which case the class is dexed again.
+     */
+    @Nullable
+    private byte[] readCachedDexFile(@NonNull FileCache.Inputs inputs) throws IOException {
+        if (!cache.cacheEntryExists(inputs)) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(cache.getFileInCache(inputs).toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private FileCache.Inputs getCacheInputs(@NonNull byte[] classFile) {
+        return new FileCache.Inputs.Builder(FileCache.Command.PREDEX_CLASS_TO_DEX)
+                .putString(FileCacheInputParams.CONFIGURATION.name(), configurationKey)
+                .putString(
+                        FileCacheInputParams.CLASS_FILE_HASH.name(),
+                        Hashing.sha256().hashBytes(classFile).toString())
+                .build();
+    }
+
+    private static void deleteIfExists(@Nullable Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            PathUtils.deleteIfExists(dir);
+        } catch (IOException e) {
+            throw new DexArchiveBuilderException(e);
+        }
+    }
+}
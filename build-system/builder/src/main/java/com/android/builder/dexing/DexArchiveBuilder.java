@@ -18,6 +18,7 @@ package com.android.builder.dexing;
 
 import com.android.annotations.NonNull;
 import com.android.builder.dexing.r8.ClassFileProviderFactory;
+import com.android.builder.utils.FileCache;
 import com.android.ide.common.blame.MessageReceiver;
 import java.nio.file.Path;
 import java.util.List;
@@ -59,6 +60,20 @@ public abstract class DexArchiveBuilder {
                 messageReceiver);
     }
 
+    /**
+     * Creates an instance that caches the dex file of each class in {@code cache}, and only uses
+     * {@code delegate} to convert the classes missing from the cache. The {@code
+     * configurationKey} must identify everything other than the class content that affects the
+     * dex output, e.g. the dexer, its options and the desugaring classpath.
+     */
+    @NonNull
+    public static DexArchiveBuilder createCachingDexBuilder(
+            @NonNull DexArchiveBuilder delegate,
+            @NonNull FileCache cache,
+            @NonNull String configurationKey) {
+        return new CachingDexArchiveBuilder(delegate, cache, configurationKey);
+    }
+
     /**
      * Converts the specified input, and writes it to the output dex archive. If dex archive does
      * not exist, it will be created. If it exists, entries will be added or replaced.
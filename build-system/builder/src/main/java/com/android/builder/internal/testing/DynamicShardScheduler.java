@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.utils.ILogger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the test classes of a test APK to the devices running them, one at a time, as the
+ * devices become idle, so that a slow device or a slow test class only delays the tests it runs.
+ *
+ * <p>The tests are listed once, by the first device ready to do it. The test classes are then
+ * handed out from the longest to the shortest, according to their durations in the previous
+ * runs, so that the last ones to run are the shortest ones. The durations are kept in a file
+ * updated at the end of each run.
+ *
+ * <p>When all the devices are done, a timeline of the run, giving which device ran which test
+ * class and when, is written next to the test results.
+ */
+public class DynamicShardScheduler {
+
+    public static final String TIMELINE_FILE = "sharding-timeline.txt";
+
+    /** Lists the tests to run on a device. */
+    public interface TestLister {
+        @NonNull
+        List<TestIdentifier> listTests() throws Exception;
+    }
+
+    /** A test class, or the part of it selected by the instrumentation arguments. */
+    public static final class TestUnit {
+
+        private final int index;
+        @NonNull private final String className;
+        @NonNull private final List<String> methodNames;
+        private final long estimatedDurationMs;
+        private int attempts;
+
+        private TestUnit(
+                int index,
+                @NonNull String className,
+                @NonNull List<String> methodNames,
+                long estimatedDurationMs) {
+            this.index = index;
+            this.className = className;
+            this.methodNames = methodNames;
+            this.estimatedDurationMs = estimatedDurationMs;
+        }
+
+        /** Returns a number identifying the unit in the run. */
+        public int getIndex() {
+            return index;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return className;
+        }
+
+        /** Returns the methods of the class that were listed, in the order of the listing. */
+        @NonNull
+        public List<String> getMethodNames() {
+            return methodNames;
+        }
+
+        public long getEstimatedDurationMs() {
+            return estimatedDurationMs;
+        }
+
+        @Override
+        public String toString() {
+            return className;
+        }
+    }
+
+    /** The run of a {@link TestUnit} on a device. */
+    @VisibleForTesting
+    static final class TimelineEntry {
+        @NonNull final String deviceName;
+        @NonNull final TestUnit unit;
+        final long startMs;
+        long endMs = -1;
+        @Nullable String result;
+
+        private TimelineEntry(@NonNull String deviceName, @NonNull TestUnit unit, long startMs) {
+            this.deviceName = deviceName;
+            this.unit = unit;
+            this.startMs = startMs;
+        }
+    }
+
+    /** Number of times a unit is handed out, when the devices running it fail. */
+    private static final int MAX_ATTEMPTS = 2;
+
+    private final int deviceCount;
+    @Nullable private final File durationsFile;
+    @NonNull private final File resultsDir;
+    @NonNull private final ILogger logger;
+    private final long startNanos = System.nanoTime();
+
+    @GuardedBy("this")
+    @NonNull
+    private final Properties durations = new Properties();
+
+    @GuardedBy("this")
+    @Nullable
+    private Deque<TestUnit> pendingUnits;
+
+    @GuardedBy("this")
+    private int totalTestCount;
+
+    @GuardedBy("this")
+    private boolean listing;
+
+    @GuardedBy("this")
+    private final Map<TestUnit, TimelineEntry> runningUnits = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    private final List<TimelineEntry> timeline = new ArrayList<>();
+
+    @GuardedBy("this")
+    private int finishedDeviceCount;
+
+    /**
+     * @param deviceCount the number of devices running the tests, which must all call {@link
+     *     #deviceFinished(String)} when they are done.
+     * @param durationsFile the file keeping the durations of the test classes between runs, or
+     *     null to hand out the test classes in the order in which they are listed.
+     * @param resultsDir the directory where the timeline of the run is written.
+     */
+    public DynamicShardScheduler(
+            int deviceCount,
+            @Nullable File durationsFile,
+            @NonNull File resultsDir,
+            @NonNull ILogger logger) {
+        this.deviceCount = deviceCount;
+        this.durationsFile = durationsFile;
+        this.resultsDir = resultsDir;
+        this.logger = logger;
+        if (durationsFile != null && durationsFile.isFile()) {
+            try (Reader reader =
+                    Files.newBufferedReader(durationsFile.toPath(), StandardCharsets.UTF_8)) {
+                durations.load(reader);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.warning("Unable to read test durations from %s: %s", durationsFile, e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the tests are listed, listing them with the given lister if no other device is
+     * doing it. If the lister fails, another device lists the tests.
+     *
+     * @return the number of tests to run.
+     * @throws Exception if the lister fails.
+     */
+    public int awaitTests(@NonNull TestLister lister) throws Exception {
+        synchronized (this) {
+            while (pendingUnits == null && listing) {
+                wait();
+            }
+            if (pendingUnits != null) {
+                return totalTestCount;
+            }
+            listing = true;
+        }
+
+        List<TestIdentifier> tests = null;
+        try {
+            tests = lister.listTests();
+        } finally {
+            synchronized (this) {
+                listing = false;
+                if (tests != null) {
+                    setTests(tests);
+                }
+                notifyAll();
+            }
+        }
+        synchronized (this) {
+            return totalTestCount;
+        }
+    }
+
+    /**
+     * Returns the next test unit to run on a device, or null if there is none left. The device
+     * must then call {@link #unitFinished} or {@link #unitAborted}.
+     */
+    @Nullable
+    public synchronized TestUnit nextUnit(@NonNull String deviceName) {
+        if (pendingUnits == null || pendingUnits.isEmpty()) {
+            return null;
+        }
+        TestUnit unit = pendingUnits.removeFirst();
+        unit.attempts++;
+        TimelineEntry entry = new TimelineEntry(deviceName, unit, elapsedMs());
+        runningUnits.put(unit, entry);
+        timeline.add(entry);
+        return unit;
+    }
+
+    /** Records that a device ran a test unit. */
+    public synchronized void unitFinished(@NonNull TestUnit unit, boolean success) {
+        TimelineEntry entry = runningUnits.remove(unit);
+        if (entry == null) {
+            return;
+        }
+        entry.endMs = elapsedMs();
+        entry.result = success ? "passed" : "failed";
+        durations.setProperty(unit.getClassName(), Long.toString(entry.endMs - entry.startMs));
+    }
+
+    /**
+     * Records that a device could not run a test unit, which is handed out again to another
+     * device, unless it was already attempted too many times.
+     */
+    public synchronized void unitAborted(@NonNull TestUnit unit) {
+        TimelineEntry entry = runningUnits.remove(unit);
+        if (entry == null) {
+            return;
+        }
+        entry.endMs = elapsedMs();
+        entry.result = "aborted";
+        if (unit.attempts < MAX_ATTEMPTS && pendingUnits != null) {
+            pendingUnits.addFirst(unit);
+        }
+    }
+
+    /**
+     * Records that a device is done. When all devices are done, the durations of the test classes
+     * and the timeline of the run are written.
+     */
+    public synchronized void deviceFinished(@NonNull String deviceName) {
+        logger.verbose("Device '%s' is done running tests", deviceName);
+        if (++finishedDeviceCount < deviceCount) {
+            return;
+        }
+        if (pendingUnits != null && !pendingUnits.isEmpty()) {
+            logger.warning(
+                    "%d test classes were not run: %s",
+                    pendingUnits.size(),
+                    Joiner.on(", ").join(pendingUnits));
+        }
+        writeDurations();
+        writeTimeline();
+    }
+
+    @VisibleForTesting
+    @NonNull
+    synchronized List<TimelineEntry> getTimeline() {
+        return ImmutableList.copyOf(timeline);
+    }
+
+    @GuardedBy("this")
+    private void setTests(@NonNull List<TestIdentifier> tests) {
+        Map<String, List<String>> methodsByClass = new LinkedHashMap<>();
+        for (TestIdentifier test : tests) {
+            methodsByClass
+                    .computeIfAbsent(test.getClassName(), k -> new ArrayList<>())
+                    .add(test.getTestName());
+        }
+
+        // The test classes that never ran are assumed to take the average time.
+        long knownTotal = 0;
+        int knownCount = 0;
+        for (String className : methodsByClass.keySet()) {
+            long duration = getDuration(className);
+            if (duration >= 0) {
+                knownTotal += duration;
+                knownCount++;
+            }
+        }
+        long defaultDuration = knownCount > 0 ? knownTotal / knownCount : 0;
+
+        List<TestUnit> units = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : methodsByClass.entrySet()) {
+            long duration = getDuration(entry.getKey());
+            units.add(
+                    new TestUnit(
+                            units.size(),
+                            entry.getKey(),
+                            ImmutableList.copyOf(entry.getValue()),
+                            duration >= 0 ? duration : defaultDuration));
+        }
+        // The sort is stable, so units without durations keep the order of the listing.
+        units.sort(Comparator.comparingLong(TestUnit::getEstimatedDurationMs).reversed());
+
+        pendingUnits = new ArrayDeque<>(units);
+        totalTestCount = tests.size();
+        logger.info(
+                "will run %d tests in %d classes on %d devices",
+                tests.size(),
+                units.size(),
+                deviceCount);
+    }
+
+    @GuardedBy("this")
+    private long getDuration(@NonNull String className) {
+        String value = durations.getProperty(className);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @GuardedBy("this")
+    private void writeDurations() {
+        if (durationsFile == null) {
+            return;
+        }
+        try {
+            File parent = durationsFile.getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            try (Writer writer =
+                    Files.newBufferedWriter(durationsFile.toPath(), StandardCharsets.UTF_8)) {
+                durations.store(writer, "Durations of the test classes, in ms");
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to write test durations to %s: %s", durationsFile, e);
+        }
+    }
+
+    @GuardedBy("this")
+    private void writeTimeline() {
+        long totalMs = elapsedMs();
+        Map<String, Long> busyMsByDevice = new TreeMap<>();
+        for (TimelineEntry entry : timeline) {
+            long end = entry.endMs >= 0 ? entry.endMs : totalMs;
+            busyMsByDevice.merge(entry.deviceName, end - entry.startMs, Long::sum);
+        }
+        for (Map.Entry<String, Long> device : busyMsByDevice.entrySet()) {
+            logger.info(
+                    "Device '%s' ran tests for %d of %d ms (%.0f%%)",
+                    device.getKey(),
+                    device.getValue(),
+                    totalMs,
+                    totalMs == 0 ? 0f : 100f * device.getValue() / totalMs);
+        }
+
+        File timelineFile = new File(resultsDir, TIMELINE_FILE);
+        try {
+            Files.createDirectories(resultsDir.toPath());
+            try (PrintWriter writer =
+                    new PrintWriter(
+                            Files.newBufferedWriter(
+                                    timelineFile.toPath(), StandardCharsets.UTF_8))) {
+                writer.println("# start (ms)\tend (ms)\tdevice\ttest class\tresult");
+                for (TimelineEntry entry : timeline) {
+                    writer.printf(
+                            "%d\t%d\t%s\t%s\t%s%n",
+                            entry.startMs,
+                            entry.endMs >= 0 ? entry.endMs : totalMs,
+                            entry.deviceName,
+                            entry.unit.getClassName(),
+                            entry.result != null ? entry.result : "unfinished");
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to write the sharding timeline to %s: %s", timelineFile, e);
+        }
+    }
+
+    private long elapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
@@ -23,6 +23,7 @@ import com.android.builder.testing.api.DeviceConnector;
 import com.android.builder.testing.api.DeviceException;
 import com.android.ddmlib.InstallException;
 import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.ddmlib.testrunner.TestRunResult;
@@ -44,6 +45,9 @@ import java.util.concurrent.TimeUnit;
  * Basic Callable to distribute and run tests on a given {@link DeviceConnector} using {@link
  * RemoteAndroidTestRunner}.
  * The boolean return value is true if success.
+ *
+ * <p>The tests are either split into a fixed number of shards, handed out by a {@link
+ * ShardProvider}, or handed out one test class at a time by a {@link DynamicShardScheduler}.
  */
 public class ShardedTestCallable implements Callable<Boolean> {
 
@@ -73,9 +77,12 @@ public class ShardedTestCallable implements Callable<Boolean> {
     @NonNull
     private final ILogger logger;
 
-    @NonNull
+    @Nullable
     private final ShardProvider shardProvider;
 
+    @Nullable
+    private final DynamicShardScheduler scheduler;
+
     private final int timeoutInMs;
 
     private ProgressListener progressListener;
@@ -91,6 +98,37 @@ public class ShardedTestCallable implements Callable<Boolean> {
             int timeoutInMs,
             @NonNull ILogger logger,
             @NonNull ShardProvider shardProvider) {
+        this(device, projectName, flavorName, testedApks, testData, resultsDir, coverageDir,
+                timeoutInMs, logger, shardProvider, null);
+    }
+
+    public ShardedTestCallable(
+            @NonNull DeviceConnector device,
+            @NonNull String projectName,
+            @NonNull String flavorName,
+            @NonNull List<File> testedApks,
+            @NonNull TestData testData,
+            @NonNull File resultsDir,
+            @NonNull File coverageDir,
+            int timeoutInMs,
+            @NonNull ILogger logger,
+            @NonNull DynamicShardScheduler scheduler) {
+        this(device, projectName, flavorName, testedApks, testData, resultsDir, coverageDir,
+                timeoutInMs, logger, null, scheduler);
+    }
+
+    private ShardedTestCallable(
+            @NonNull DeviceConnector device,
+            @NonNull String projectName,
+            @NonNull String flavorName,
+            @NonNull List<File> testedApks,
+            @NonNull TestData testData,
+            @NonNull File resultsDir,
+            @NonNull File coverageDir,
+            int timeoutInMs,
+            @NonNull ILogger logger,
+            @Nullable ShardProvider shardProvider,
+            @Nullable DynamicShardScheduler scheduler) {
         this.projectName = projectName;
         this.device = device;
         this.flavorName = flavorName;
@@ -101,6 +139,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
         this.timeoutInMs = timeoutInMs;
         this.logger = logger;
         this.shardProvider = shardProvider;
+        this.scheduler = scheduler;
     }
 
     public void setProgressListener(
@@ -108,6 +147,10 @@ public class ShardedTestCallable implements Callable<Boolean> {
         this.progressListener = progressListener;
     }
 
+    private String getCoverageFileLocation() {
+        return "/data/data/" + testData.getTestedApplicationId() + "/";
+    }
+
     private String createCoverageFileName(int shard) {
         return "shard_" + shard + FILE_COVERAGE_EC_SUFFIX;
     }
@@ -120,7 +163,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
         long time = System.currentTimeMillis();
         boolean failed = false;
         List<String> coverageFiles = new ArrayList<String>();
-        String coverageFileLocation = "/data/data/" + testData.getTestedApplicationId() + "/";
+        String coverageFileLocation = getCoverageFileLocation();
         CustomTestRunListener runListener = null;
         try {
             device.connect(timeoutInMs, logger);
@@ -163,33 +206,58 @@ public class ShardedTestCallable implements Callable<Boolean> {
                 logger.verbose("Installed test apk on %s", deviceName);
             }
             isInstalled = true;
-            Integer shard;
 
-            while ((shard = shardProvider.getNextShard()) != null) {
-                logger.verbose("Running shard %d on %s", shard, deviceName);
-                RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
-                        testData.getApplicationId(),
-                        testData.getInstrumentationRunner(),
-                        device);
-
-                for (Map.Entry<String, String> argument :
-                        testData.getInstrumentationRunnerArguments().entrySet()) {
-                    runner.addInstrumentationArg(argument.getKey(), argument.getValue());
+            if (scheduler != null) {
+                int testCount = scheduler.awaitTests(() -> listTests(deviceName));
+                if (progressListener != null) {
+                    progressListener.setTotalTestCount(testCount);
                 }
 
-                if (testData.isTestCoverageEnabled()) {
-                    runner.addInstrumentationArg("coverage", "true");
-                    String coverageFileName = createCoverageFileName(shard);
-                    coverageFiles.add(coverageFileName);
-                    runner.addInstrumentationArg("coverageFile",
-                            coverageFileLocation + coverageFileName);
+                DynamicShardScheduler.TestUnit unit;
+                while ((unit = scheduler.nextUnit(deviceName)) != null) {
+                    logger.verbose("Running %s on %s", unit.getClassName(), deviceName);
+                    RemoteAndroidTestRunner runner =
+                            createRunner(deviceName, unit.getIndex(), coverageFiles);
+                    if (testData.getInstrumentationRunnerArguments().containsKey("class")) {
+                        // Only run the methods selected by the arguments, which were listed.
+                        List<String> methods = new ArrayList<>();
+                        for (String method : unit.getMethodNames()) {
+                            methods.add(unit.getClassName() + "#" + method);
+                        }
+                        runner.setClassNames(methods.toArray(new String[methods.size()]));
+                    } else {
+                        runner.setClassName(unit.getClassName());
+                    }
+
+                    runListener = new ShardedTestListener(
+                            unit.getIndex(), deviceName, projectName, flavorName, logger);
+                    runListener.setReportDir(resultsDir);
+                    ((ShardedTestListener) runListener).setProgressListener(progressListener);
+                    try {
+                        runner.run(runListener);
+                    } catch (Exception e) {
+                        scheduler.unitAborted(unit);
+                        throw e;
+                    }
+
+                    TestRunResult testRunResult = runListener.getRunResult();
+                    boolean unitFailed =
+                            testRunResult.hasFailedTests() || testRunResult.isRunFailure();
+                    scheduler.unitFinished(unit, !unitFailed);
+                    failed |= unitFailed;
+                    logger.verbose("done running %s on %s", unit.getClassName(), deviceName);
                 }
+                return !failed;
+            }
+
+            Integer shard;
+            while ((shard = shardProvider.getNextShard()) != null) {
+                logger.verbose("Running shard %d on %s", shard, deviceName);
+                RemoteAndroidTestRunner runner = createRunner(deviceName, shard, coverageFiles);
                 runner.addInstrumentationArg("shardIndex", String.valueOf(shard));
                 runner.addInstrumentationArg("numShards",
                         String.valueOf(shardProvider.getTotalShards()));
 
-                runner.setRunName(deviceName);
-                runner.setMaxtimeToOutputResponse(timeoutInMs);
                 runListener = new ShardedTestListener(
                         shard, deviceName, projectName, flavorName, logger);
                 runListener.setReportDir(resultsDir);
@@ -225,6 +293,9 @@ public class ShardedTestCallable implements Callable<Boolean> {
             // and throw
             throw e;
         } finally {
+            if (scheduler != null) {
+                scheduler.deviceFinished(deviceName);
+            }
             if (isInstalled) {
                 // Get the coverage if needed.
                 if (testData.isTestCoverageEnabled()) {
@@ -278,6 +349,93 @@ public class ShardedTestCallable implements Callable<Boolean> {
         }
     }
 
+    /**
+     * Creates a runner with the instrumentation arguments of the test data, and the coverage
+     * arguments of a shard, whose coverage file is added to a list.
+     */
+    @NonNull
+    private RemoteAndroidTestRunner createRunner(
+            @NonNull String deviceName, int shard, @NonNull List<String> coverageFiles) {
+        RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
+                testData.getApplicationId(),
+                testData.getInstrumentationRunner(),
+                device);
+
+        for (Map.Entry<String, String> argument :
+                testData.getInstrumentationRunnerArguments().entrySet()) {
+            runner.addInstrumentationArg(argument.getKey(), argument.getValue());
+        }
+
+        if (testData.isTestCoverageEnabled()) {
+            runner.addInstrumentationArg("coverage", "true");
+            String coverageFileName = createCoverageFileName(shard);
+            coverageFiles.add(coverageFileName);
+            runner.addInstrumentationArg("coverageFile",
+                    getCoverageFileLocation() + coverageFileName);
+        }
+
+        runner.setRunName(deviceName);
+        runner.setMaxtimeToOutputResponse(timeoutInMs);
+        return runner;
+    }
+
+    /** Lists the tests selected by the instrumentation arguments, without running them. */
+    @NonNull
+    private List<TestIdentifier> listTests(@NonNull String deviceName) throws Exception {
+        logger.verbose("Listing tests on %s", deviceName);
+        RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
+                testData.getApplicationId(),
+                testData.getInstrumentationRunner(),
+                device);
+        for (Map.Entry<String, String> argument :
+                testData.getInstrumentationRunnerArguments().entrySet()) {
+            runner.addInstrumentationArg(argument.getKey(), argument.getValue());
+        }
+        runner.setRunName(deviceName);
+        runner.setTestCollection(true);
+
+        List<TestIdentifier> tests = new ArrayList<>();
+        String[] runFailure = new String[1];
+        runner.run(
+                new ITestRunListener() {
+                    @Override
+                    public void testRunStarted(String runName, int testCount) {}
+
+                    @Override
+                    public void testStarted(TestIdentifier test) {
+                        tests.add(test);
+                    }
+
+                    @Override
+                    public void testFailed(TestIdentifier test, String trace) {}
+
+                    @Override
+                    public void testAssumptionFailure(TestIdentifier test, String trace) {}
+
+                    @Override
+                    public void testIgnored(TestIdentifier test) {}
+
+                    @Override
+                    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {}
+
+                    @Override
+                    public void testRunFailed(String errorMessage) {
+                        runFailure[0] = errorMessage;
+                    }
+
+                    @Override
+                    public void testRunStopped(long elapsedTime) {}
+
+                    @Override
+                    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {}
+                });
+        if (runFailure[0] != null) {
+            throw new IOException(
+                    String.format("Unable to list the tests on %s: %s", deviceName, runFailure[0]));
+        }
+        return tests;
+    }
+
     private void uninstall(@NonNull File apkFile, @Nullable String packageName,
             @NonNull String deviceName)
             throws DeviceException {
@@ -351,6 +509,8 @@ public class ShardedTestCallable implements Callable<Boolean> {
 
         int knownTestCount;
 
+        boolean totalTestCountKnown;
+
         ILogger logger;
 
         public ProgressListener(int shardCount, ILogger logger) {
@@ -359,12 +519,21 @@ public class ShardedTestCallable implements Callable<Boolean> {
         }
 
         public synchronized void setTestCountForOneShard(int testCount) {
+            if (totalTestCountKnown) {
+                return;
+            }
             knownShardCounts++;
             knownTestCount += testCount;
             estimatedTestCount = shardCount * (int) Math
                     .ceil((float) knownTestCount / knownShardCounts);
         }
 
+        /** Sets the number of tests of all the shards, when it is known before running them. */
+        public synchronized void setTotalTestCount(int testCount) {
+            totalTestCountKnown = true;
+            estimatedTestCount = testCount;
+        }
+
         public synchronized void onTestFinished() {
             finishedTestCount++;
             logger.verbose("finished %d of estimated %d tests. %.2f%%", finishedTestCount,
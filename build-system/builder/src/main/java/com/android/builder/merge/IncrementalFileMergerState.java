@@ -16,15 +16,34 @@
 
 package com.android.builder.merge;
 
+import static com.android.ide.common.util.CompactBinaryFormat.readFile;
+import static com.android.ide.common.util.CompactBinaryFormat.readHeader;
+import static com.android.ide.common.util.CompactBinaryFormat.readVarInt;
+import static com.android.ide.common.util.CompactBinaryFormat.writeHeader;
+import static com.android.ide.common.util.CompactBinaryFormat.writeStrings;
+import static com.android.ide.common.util.CompactBinaryFormat.writeVarInt;
+
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.util.CompactBinaryFormat.StringTable;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,8 +53,10 @@ import java.util.Set;
  * incremental merge can be performed afterwards. An initial state (for a full merge) can be
  * build using {@link #IncrementalFileMergerState()}.
  *
- * <p>States are serializable so they can be persisted across invocations of merge operations. They
- * are also immutable. The incremental merger will build new instances using {@link Builder}.
+ * <p>States can be persisted across invocations of merge operations using {@link #save(File)} and
+ * {@link #load(File)}, which use a compact binary format. They are also immutable. The incremental
+ * merger will build new instances using {@link Builder}. If a merge does not change anything, the
+ * merger returns the state it was given, so callers can skip saving it.
  *
  * <p>Users of the incremental merger will generally not need to use anything from the state,
  * except providing it to invocations of
@@ -47,7 +68,13 @@ public final class IncrementalFileMergerState implements Serializable {
     /**
      * Version for serialization.
      */
-    private static final long serialVersionUID = 1;
+    private static final long serialVersionUID = 2;
+
+    /** Magic number at the start of files written by {@link #save(File)}. */
+    private static final int MAGIC = 0x49464d53;
+
+    /** Version of the format written by {@link #save(File)}. */
+    private static final int FORMAT_VERSION = 1;
 
     /**
      * Names of all inputs to merge, in order.
@@ -55,20 +82,26 @@ public final class IncrementalFileMergerState implements Serializable {
     @NonNull
     private final ImmutableList<String> inputNames;
 
+    /** All OS-independent paths of the merged output, sorted. */
+    @NonNull private final String[] paths;
+
     /**
-     * Maps OS-independent paths to the names of the input sets that were used to construct the
-     * merged output.
+     * Maps OS-independent paths to the input sets that were used to construct the merged output.
+     * The indices, in {@link #inputNames}, of the inputs of {@code paths[i]} are stored in {@link
+     * #origin} from {@code originOffsets[i]} (inclusive) to {@code originOffsets[i + 1]}
+     * (exclusive).
      */
-    @NonNull
-    private final ImmutableMap<String, ImmutableList<String>> origin;
+    @NonNull private final int[] originOffsets;
+
+    /** Input indices of all paths, see {@link #originOffsets}. */
+    @NonNull private final int[] origin;
 
     /**
      * Maps an input set name to all OS-independent paths to whom it contributed inputs for. This
-     * map can be build from {@link #origin}: its key are all different values of all lists in the
-     * value set of {@link #origin}. For each key in {@link #byInput}, its values are all keys
-     * in {@link #origin} whose value contains the key.
+     * map can be build from {@link #origin}: its key are all different inputs of all paths. For
+     * each key in {@link #byInput}, its values are all paths whose inputs contain the key.
      *
-     * <p>However, for performance reasons, this is precomputed.
+     * <p>It is only computed when needed, as no-op merges do not use it.
      *
      * <p>For example, if we have a structure of:
      * <pre>
@@ -94,45 +127,34 @@ public final class IncrementalFileMergerState implements Serializable {
      * input2 -> path1, path3
      * </pre>
      */
-    @NonNull
-    private final ImmutableMap<String, ImmutableSet<String>> byInput;
+    @Nullable private transient ImmutableMap<String, ImmutableSet<String>> byInput;
 
     /**
      * Creates a new, empty, state. This is useful to create a full build as a full build is an
      * incremental build from zero.
      */
     public IncrementalFileMergerState() {
-        inputNames = ImmutableList.of();
-        origin = ImmutableMap.of();
-        byInput = ImmutableMap.of();
+        this(ImmutableList.of(), new String[0], new int[] {0}, new int[0]);
     }
 
     /**
-     * Creates a new state copying provided data. This is invoked from the {@link Builder}.
+     * Creates a new state from its internal representation. This is invoked from the {@link
+     * Builder} and from {@link #load(File)}.
      *
      * @param inputNames the names of the inputs for the merge
-     * @param origin maps OS-independent paths to the names of the inputs that contributed to the
-     *     merged output path
-     * @param byInput maps input names to all OS-independent paths that it contains
+     * @param paths the sorted OS-independent paths of the merged output
+     * @param originOffsets offsets in {@code origin} of the inputs of each path
+     * @param origin indices in {@code inputNames} of the inputs of all paths
      */
-    IncrementalFileMergerState(
-            @NonNull List<String> inputNames,
-            @NonNull Map<String, List<String>> origin,
-            @NonNull Map<String, Set<String>> byInput) {
-
-        ImmutableMap.Builder<String, ImmutableList<String>> originBuilder = ImmutableMap.builder();
-        for (Map.Entry<String, List<String>> e : origin.entrySet()) {
-            originBuilder.put(e.getKey(), ImmutableList.copyOf(e.getValue()));
-        }
-
-        ImmutableMap.Builder<String, ImmutableSet<String>> byInputBuilder = ImmutableMap.builder();
-        for (Map.Entry<String, Set<String>> e : byInput.entrySet()) {
-            byInputBuilder.put(e.getKey(), ImmutableSet.copyOf(e.getValue()));
-        }
-
-        this.inputNames = ImmutableList.copyOf(inputNames);
-        this.origin = originBuilder.build();
-        this.byInput = byInputBuilder.build();
+    private IncrementalFileMergerState(
+            @NonNull ImmutableList<String> inputNames,
+            @NonNull String[] paths,
+            @NonNull int[] originOffsets,
+            @NonNull int[] origin) {
+        this.inputNames = inputNames;
+        this.paths = paths;
+        this.originOffsets = originOffsets;
+        this.origin = origin;
     }
 
     /**
@@ -154,12 +176,27 @@ public final class IncrementalFileMergerState implements Serializable {
      */
     @NonNull
     ImmutableList<String> inputsFor(@NonNull String path) {
-        ImmutableList<String> names = origin.get(path);
-        if (names == null) {
+        int index = Arrays.binarySearch(paths, path);
+        if (index < 0) {
             return ImmutableList.of();
         } else {
-            return names;
+            return inputsAt(index);
+        }
+    }
+
+    /**
+     * Obtains the names of the inputs of {@code paths[index]}.
+     *
+     * @param index the index of the path
+     * @return the list of names of inputs
+     */
+    @NonNull
+    private ImmutableList<String> inputsAt(int index) {
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        for (int i = originOffsets[index]; i < originOffsets[index + 1]; i++) {
+            names.add(inputNames.get(origin[i]));
         }
+        return names.build();
     }
 
     /**
@@ -170,6 +207,27 @@ public final class IncrementalFileMergerState implements Serializable {
      */
     @NonNull
     ImmutableSet<String> filesOf(@NonNull String name) {
+        if (byInput == null) {
+            List<Set<String>> files = new ArrayList<>(inputNames.size());
+            for (int i = 0; i < inputNames.size(); i++) {
+                files.add(new LinkedHashSet<>());
+            }
+            for (int i = 0; i < paths.length; i++) {
+                for (int j = originOffsets[i]; j < originOffsets[i + 1]; j++) {
+                    files.get(origin[j]).add(paths[i]);
+                }
+            }
+
+            ImmutableMap.Builder<String, ImmutableSet<String>> byInputBuilder =
+                    ImmutableMap.builder();
+            for (int i = 0; i < inputNames.size(); i++) {
+                if (!files.get(i).isEmpty()) {
+                    byInputBuilder.put(inputNames.get(i), ImmutableSet.copyOf(files.get(i)));
+                }
+            }
+            byInput = byInputBuilder.build();
+        }
+
         ImmutableSet<String> files = byInput.get(name);
         if (files == null) {
             return ImmutableSet.of();
@@ -179,41 +237,168 @@ public final class IncrementalFileMergerState implements Serializable {
     }
 
     /**
-     * Builder used to create a {@link IncrementalFileMergerState}.
+     * Saves this state to a file, replacing its contents.
+     *
+     * <p>The format stores the input names once and refers to them by index. Paths are sorted and
+     * each path only stores the suffix that differs from the previous one, as the paths of
+     * resources share long package prefixes.
+     *
+     * @param file the file to write
+     * @throws IOException failed to write the file
+     */
+    public void save(@NonNull File file) throws IOException {
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            writeHeader(out, MAGIC, FORMAT_VERSION);
+            writeStrings(out, inputNames);
+
+            writeVarInt(out, paths.length);
+            byte[] previous = new byte[0];
+            for (int i = 0; i < paths.length; i++) {
+                byte[] bytes = paths[i].getBytes(StandardCharsets.UTF_8);
+                int prefix = 0;
+                int maxPrefix = Math.min(previous.length, bytes.length);
+                while (prefix < maxPrefix && previous[prefix] == bytes[prefix]) {
+                    prefix++;
+                }
+                writeVarInt(out, prefix);
+                writeVarInt(out, bytes.length - prefix);
+                out.write(bytes, prefix, bytes.length - prefix);
+
+                writeVarInt(out, originOffsets[i + 1] - originOffsets[i]);
+                for (int j = originOffsets[i]; j < originOffsets[i + 1]; j++) {
+                    writeVarInt(out, origin[j]);
+                }
+                previous = bytes;
+            }
+        }
+    }
+
+    /**
+     * Loads a state saved with {@link #save(File)}.
+     *
+     * @param file the file to read
+     * @return the state, or {@code null} if the file is not in the format written by {@link
+     *     #save(File)}, e.g. because it was written by an older version
+     * @throws IOException failed to read the file
+     */
+    @Nullable
+    public static IncrementalFileMergerState load(@NonNull File file) throws IOException {
+        ByteBuffer in = readFile(file.toPath());
+        try {
+            if (!readHeader(in, MAGIC, FORMAT_VERSION)) {
+                return null;
+            }
+
+            StringTable names = StringTable.read(in);
+            int inputCount = names.size();
+            ImmutableList.Builder<String> inputNames = ImmutableList.builder();
+            for (int i = 0; i < inputCount; i++) {
+                inputNames.add(names.get(i));
+            }
+
+            int pathCount = readVarInt(in);
+            String[] paths = new String[pathCount];
+            int[] originOffsets = new int[pathCount + 1];
+            int[] origin = new int[pathCount];
+            byte[] path = new byte[256];
+            for (int i = 0; i < pathCount; i++) {
+                int prefix = readVarInt(in);
+                int suffix = readVarInt(in);
+                if (prefix + suffix > path.length) {
+                    path = Arrays.copyOf(path, Math.max(prefix + suffix, path.length * 2));
+                }
+                in.get(path, prefix, suffix);
+                paths[i] = new String(path, 0, prefix + suffix, StandardCharsets.UTF_8);
+
+                int count = readVarInt(in);
+                int offset = originOffsets[i];
+                origin = ensureCapacity(origin, offset + count);
+                for (int j = 0; j < count; j++) {
+                    int input = readVarInt(in);
+                    Preconditions.checkState(input < inputCount, "Invalid input index");
+                    origin[offset + j] = input;
+                }
+                originOffsets[i + 1] = offset + count;
+            }
+
+            return new IncrementalFileMergerState(
+                    inputNames.build(),
+                    paths,
+                    originOffsets,
+                    Arrays.copyOf(origin, originOffsets[pathCount]));
+        } catch (BufferUnderflowException
+                | IndexOutOfBoundsException
+                | IllegalArgumentException
+                | IllegalStateException e) {
+            throw new IOException("Corrupted merge state file: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @NonNull
+    private static int[] ensureCapacity(@NonNull int[] array, int size) {
+        if (size <= array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(size, array.length * 2));
+    }
+
+    /**
+     * Builder used to create a {@link IncrementalFileMergerState}. The builder only records the
+     * paths whose inputs changed with respect to the state it was created from, so that building a
+     * state after a merge with few changes does not copy the whole state twice.
      */
     static class Builder {
 
+        /** The state this builder was created from. */
+        @NonNull private final IncrementalFileMergerState base;
+
         /**
          * Mutable version of {@link IncrementalFileMergerState#inputNames}.
          */
         @NonNull
         private List<String> inputNames;
 
-        /** Mutable version of {@link IncrementalFileMergerState#origin}. */
-        @NonNull private Map<String, List<String>> origin;
-
         /**
-         * Mutable version of {@link IncrementalFileMergerState#byInput}.
+         * Maps the OS-independent paths whose inputs differ from {@link #base} to the names of
+         * their inputs. Removed paths have no inputs.
          */
-        @NonNull
-        private Map<String, Set<String>> byInput;
+        @NonNull private final Map<String, ImmutableList<String>> changed = new HashMap<>();
 
         /**
-         * Creates a new builder, cloning an existing state as a starting point.
+         * Creates a new builder, using an existing state as a starting point.
          *
-         * @param state the state to clone
+         * @param state the starting state
          */
         Builder(@NonNull IncrementalFileMergerState state) {
+            base = state;
             inputNames = new ArrayList<>(state.inputNames);
+        }
 
-            origin = new HashMap<>();
-            for (Map.Entry<String, ImmutableList<String>> e : state.origin.entrySet()) {
-                origin.put(e.getKey(), new ArrayList<>(e.getValue()));
-            }
+        /**
+         * Obtains the names of the inputs currently set for a path.
+         *
+         * @param path the OS-independent path
+         * @return the names of the inputs, empty if the path is not known
+         */
+        @NonNull
+        private ImmutableList<String> inputsFor(@NonNull String path) {
+            ImmutableList<String> names = changed.get(path);
+            return names != null ? names : base.inputsFor(path);
+        }
 
-            byInput = new HashMap<>();
-            for (Map.Entry<String, ImmutableSet<String>> e : state.byInput.entrySet()) {
-                byInput.put(e.getKey(), new HashSet<>(e.getValue()));
+        /**
+         * Records the names of the inputs of a path.
+         *
+         * @param path the OS-independent path
+         * @param names the names of the inputs, empty to remove the path
+         */
+        private void put(@NonNull String path, @NonNull List<String> names) {
+            ImmutableList<String> baseNames = base.inputsFor(path);
+            if (baseNames.equals(names)) {
+                changed.remove(path);
+            } else {
+                changed.put(path, ImmutableList.copyOf(names));
             }
         }
 
@@ -224,27 +409,27 @@ public final class IncrementalFileMergerState implements Serializable {
          * @param inputNames the list of input names
          */
         void setInputNames(@NonNull List<String> inputNames) {
+            Set<String> removed = new HashSet<>(base.inputNames);
+            removed.addAll(this.inputNames);
+            removed.removeAll(inputNames);
             this.inputNames = new ArrayList<>(inputNames);
 
             /*
-             * Search for removed input names and remove all known files associated with them.
+             * Remove all known files associated with the removed input names.
              */
-            for (Iterator<String> it = byInput.keySet().iterator(); it.hasNext(); ) {
-                String in = it.next();
-                if (!inputNames.contains(in)) {
-                    Set<String> paths = byInput.get(in);
-                    for (String p : paths) {
-                        List<String> inputs = origin.get(p);
-                        int idx = inputs.indexOf(in);
-                        assert idx >= 0;
-                        if (inputs.size() == 1) {
-                            origin.remove(p);
-                        } else {
-                            inputs.remove(idx);
-                        }
+            for (String in : removed) {
+                Set<String> paths = new HashSet<>(base.filesOf(in));
+                for (Map.Entry<String, ImmutableList<String>> e : changed.entrySet()) {
+                    if (e.getValue().contains(in)) {
+                        paths.add(e.getKey());
                     }
+                }
 
-                    it.remove();
+                for (String p : paths) {
+                    List<String> inputs = new ArrayList<>(inputsFor(p));
+                    if (inputs.remove(in)) {
+                        put(p, inputs);
+                    }
                 }
             }
         }
@@ -255,18 +440,7 @@ public final class IncrementalFileMergerState implements Serializable {
          * @param path the path to remove; it may not exist in the state
          */
         void remove(@NonNull String path) {
-            List<String> names = origin.get(path);
-            if (names == null) {
-                return;
-            }
-
-            for (String n : names) {
-                Set<String> files = byInput.get(n);
-                assert files != null;
-                files.remove(path);
-            }
-
-            origin.remove(path);
+            put(path, ImmutableList.of());
         }
 
         /**
@@ -276,25 +450,88 @@ public final class IncrementalFileMergerState implements Serializable {
          * @param names the names of the inputs used to build the output
          */
         void set(@NonNull String path, @NonNull List<String> names) {
-            remove(path);
-
             assert inputNames.containsAll(names);
 
-            origin.put(path, new ArrayList<>(names));
-            for (String n : names) {
-                Set<String> files = byInput.computeIfAbsent(n, k -> new HashSet<>());
-                files.add(path);
-            }
+            put(path, names);
         }
 
         /**
          * Creates a new {@link IncrementalFileMergerState} from the current state.
          *
-         * @return the new state
+         * @return the new state, which is the state the builder was created from if nothing
+         *     changed
          */
         @NonNull
         IncrementalFileMergerState build() {
-            return new IncrementalFileMergerState(inputNames, origin, byInput);
+            if (changed.isEmpty() && inputNames.equals(base.inputNames)) {
+                return base;
+            }
+
+            Map<String, Integer> nameIndices = new HashMap<>();
+            for (int i = 0; i < inputNames.size(); i++) {
+                nameIndices.put(inputNames.get(i), i);
+            }
+            int[] baseIndices = new int[base.inputNames.size()];
+            for (int i = 0; i < baseIndices.length; i++) {
+                Integer index = nameIndices.get(base.inputNames.get(i));
+                baseIndices[i] = index == null ? -1 : index;
+            }
+
+            String[] changedPaths = changed.keySet().toArray(new String[0]);
+            Arrays.sort(changedPaths);
+
+            // Merge the sorted paths of the base state with the sorted changed paths.
+            List<String> paths = new ArrayList<>(base.paths.length + changedPaths.length);
+            int[] originOffsets = new int[base.paths.length + changedPaths.length + 1];
+            int[] origin = new int[base.origin.length + changedPaths.length];
+            int originSize = 0;
+            int b = 0;
+            int c = 0;
+            while (b < base.paths.length || c < changedPaths.length) {
+                int cmp;
+                if (b == base.paths.length) {
+                    cmp = 1;
+                } else if (c == changedPaths.length) {
+                    cmp = -1;
+                } else {
+                    cmp = base.paths[b].compareTo(changedPaths[c]);
+                }
+
+                if (cmp < 0) {
+                    int count = base.originOffsets[b + 1] - base.originOffsets[b];
+                    origin = ensureCapacity(origin, originSize + count);
+                    for (int i = base.originOffsets[b]; i < base.originOffsets[b + 1]; i++) {
+                        int index = baseIndices[base.origin[i]];
+                        assert index >= 0;
+                        origin[originSize++] = index;
+                    }
+                    paths.add(base.paths[b]);
+                    originOffsets[paths.size()] = originSize;
+                    b++;
+                } else {
+                    if (cmp == 0) {
+                        b++;
+                    }
+
+                    String path = changedPaths[c++];
+                    List<String> names = changed.get(path);
+                    if (names.isEmpty()) {
+                        continue;
+                    }
+                    origin = ensureCapacity(origin, originSize + names.size());
+                    for (String name : names) {
+                        origin[originSize++] = nameIndices.get(name);
+                    }
+                    paths.add(path);
+                    originOffsets[paths.size()] = originSize;
+                }
+            }
+
+            return new IncrementalFileMergerState(
+                    ImmutableList.copyOf(inputNames),
+                    paths.toArray(new String[paths.size()]),
+                    Arrays.copyOf(originOffsets, paths.size() + 1),
+                    Arrays.copyOf(origin, originSize));
         }
     }
 }
@@ -18,11 +18,15 @@ package com.android.builder.symbols
 
 import com.android.SdkConstants
 import com.android.annotations.VisibleForTesting
+import com.android.apkzlib.zip.ZFile
+import com.android.ide.common.internal.WaitableExecutor
+import com.android.ide.common.symbols.SymbolIo
 import com.android.ide.common.symbols.SymbolJavaType.INT
 import com.android.ide.common.symbols.SymbolJavaType.INT_LIST
 import com.android.ide.common.symbols.SymbolTable
 import com.android.ide.common.symbols.SymbolUtils
 import com.android.resources.ResourceType
+import com.android.utils.PathUtils
 import com.google.common.base.Splitter
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.ClassWriter.COMPUTE_MAXS
@@ -42,37 +46,181 @@ import org.objectweb.asm.Opcodes.PUTSTATIC
 import org.objectweb.asm.Opcodes.RETURN
 import org.objectweb.asm.Opcodes.T_INT
 import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
 import java.io.IOException
+import java.io.UncheckedIOException
 import java.nio.file.Files
 import java.nio.file.Path
 import java.util.EnumSet
+import java.util.concurrent.Callable
 import java.util.jar.JarOutputStream
 import java.util.zip.ZipEntry
+import kotlin.streams.toList
 
 private val VALUE_ID_SPLITTER = Splitter.on(',').trimResults()
 
+private const val STATE_FILE_EXTENSION = ".bin"
+
 @Throws(IOException::class)
 fun exportToCompiledJava(tables: Iterable<SymbolTable>, outJar: Path) {
+    val classesByTable = generateInParallel(tables) { generateRClasses(it) }
     JarOutputStream(BufferedOutputStream(Files.newOutputStream(outJar))).use { jarOutputStream ->
-        tables.forEach { table ->
-            val resourceTypes = EnumSet.noneOf(ResourceType::class.java)
-            for (resType in ResourceType.values()) {
-                // Don't write empty R$ classes.
-                val bytes = generateResourceTypeClass(table, resType) ?: continue
-                resourceTypes.add(resType)
-                val innerR = internalName(table, resType)
-                jarOutputStream.putNextEntry(ZipEntry(innerR + SdkConstants.DOT_CLASS))
+        for (classes in classesByTable) {
+            for ((path, bytes) in classes) {
+                jarOutputStream.putNextEntry(ZipEntry(path))
                 jarOutputStream.write(bytes)
             }
+        }
+    }
+}
+
+/**
+ * Exports the tables to [outJar] like [exportToCompiledJava], but updates the jar written by the
+ * previous call instead of writing it again when possible.
+ *
+ * The tables are saved in [stateDir] along with the jar. When both exist, only the R classes whose
+ * symbols changed since they were saved are generated, see [updateCompiledJava].
+ */
+@Throws(IOException::class)
+fun exportToCompiledJavaIncrementally(
+        tables: List<SymbolTable>,
+        outJar: Path,
+        stateDir: Path) {
+    val previousTables = if (Files.isRegularFile(outJar)) loadTables(stateDir) else null
+
+    // The saved tables no longer match the jar once it starts being updated.
+    PathUtils.deleteIfExists(stateDir)
+    if (previousTables != null) {
+        updateCompiledJava(previousTables, tables, outJar)
+    } else {
+        Files.deleteIfExists(outJar)
+        exportToCompiledJava(tables, outJar)
+    }
 
-            // Generate and write the main R class file.
-            val packageR = internalName(table, null)
-            jarOutputStream.putNextEntry(ZipEntry(packageR + SdkConstants.DOT_CLASS))
-            jarOutputStream.write(generateOuterRClass(resourceTypes, packageR))
+    Files.createDirectories(stateDir)
+    for ((i, table) in tables.withIndex()) {
+        SymbolIo.writeBinaryTableWithPackage(table, stateDir.resolve("$i$STATE_FILE_EXTENSION"))
+    }
+}
+
+/**
+ * Updates [outJar], written by [exportToCompiledJava] for [previousTables], so that it contains
+ * the R classes of [tables].
+ *
+ * The tables are compared with the previous tables of the same package, and only the `R$<type>`
+ * classes whose symbols changed are generated. They are replaced in the jar in place, and the
+ * classes that no longer have any symbol are removed from it.
+ */
+@Throws(IOException::class)
+fun updateCompiledJava(
+        previousTables: Iterable<SymbolTable>,
+        tables: Iterable<SymbolTable>,
+        outJar: Path) {
+    val previousByPackage = previousTables.associateBy { it.tablePackage }
+    val changesByTable = generateInParallel(tables) {
+        generateChangedRClasses(previousByPackage[it.tablePackage], it)
+    }
+
+    ZFile(outJar.toFile()).use { jar ->
+        for (changes in changesByTable) {
+            for ((path, bytes) in changes) {
+                if (bytes != null) {
+                    jar.add(path, ByteArrayInputStream(bytes))
+                } else {
+                    jar.get(path)?.delete()
+                }
+            }
+        }
+
+        // Remove the classes of the packages that are gone.
+        val packages = tables.mapTo(HashSet()) { it.tablePackage }
+        for (previousTable in previousByPackage.values) {
+            if (!packages.contains(previousTable.tablePackage)) {
+                for (resType in previousTable.symbols.rowKeySet()) {
+                    jar.get(entryName(previousTable, resType))?.delete()
+                }
+                jar.get(entryName(previousTable, null))?.delete()
+            }
         }
     }
 }
 
+/** Generates the R classes of a table, as pairs of jar entry names and class bytes. */
+private fun generateRClasses(table: SymbolTable): List<Pair<String, ByteArray>> {
+    val classes = ArrayList<Pair<String, ByteArray>>()
+    val resourceTypes = EnumSet.noneOf(ResourceType::class.java)
+    for (resType in ResourceType.values()) {
+        // Don't write empty R$ classes.
+        val bytes = generateResourceTypeClass(table, resType) ?: continue
+        resourceTypes.add(resType)
+        classes.add(Pair(entryName(table, resType), bytes))
+    }
+
+    // Generate the main R class file.
+    val packageR = internalName(table, null)
+    classes.add(Pair(entryName(table, null), generateOuterRClass(resourceTypes, packageR)))
+    return classes
+}
+
+/**
+ * Generates the R classes of a table that differ from the ones of the previous table of the same
+ * package, as pairs of jar entry names and class bytes. The bytes are `null` for the classes to
+ * remove.
+ */
+private fun generateChangedRClasses(
+        previousTable: SymbolTable?,
+        table: SymbolTable): List<Pair<String, ByteArray?>> {
+    if (previousTable == null) {
+        return generateRClasses(table)
+    }
+
+    val changes = ArrayList<Pair<String, ByteArray?>>()
+    for (resType in ResourceType.values()) {
+        val symbols = table.symbols.row(resType)
+        if (symbols == previousTable.symbols.row(resType)) {
+            continue
+        }
+        changes.add(Pair(entryName(table, resType), generateResourceTypeClass(table, resType)))
+    }
+
+    // The main R class only lists the resource types.
+    if (table.symbols.rowKeySet() != previousTable.symbols.rowKeySet()) {
+        val resourceTypes = EnumSet.noneOf(ResourceType::class.java)
+        resourceTypes.addAll(table.symbols.rowKeySet())
+        val packageR = internalName(table, null)
+        changes.add(Pair(entryName(table, null), generateOuterRClass(resourceTypes, packageR)))
+    }
+    return changes
+}
+
+/** Applies [generate] to each of the tables in parallel, and returns the results in order. */
+private fun <T> generateInParallel(
+        tables: Iterable<SymbolTable>,
+        generate: (SymbolTable) -> T): List<T> {
+    val executor = WaitableExecutor.useGlobalSharedThreadPool()
+    val tasks = tables.map { table -> executor.execute(Callable { generate(table) }) }
+    executor.waitForTasksWithQuickFail<T>(true)
+    return tasks.map { it.join() }
+}
+
+/** Loads the tables saved by [exportToCompiledJavaIncrementally], or `null` if there are none. */
+private fun loadTables(stateDir: Path): List<SymbolTable>? {
+    if (!Files.isDirectory(stateDir)) {
+        return null
+    }
+    return try {
+        Files.list(stateDir).use { files ->
+            files.filter { it.toString().endsWith(STATE_FILE_EXTENSION) }
+                    .map { SymbolIo.readTableWithPackage(it) }
+                    .toList()
+        }
+    } catch (e: IOException) {
+        null
+    } catch (e: UncheckedIOException) {
+        null
+    }
+}
+
 private fun generateOuterRClass(resourceTypes: EnumSet<ResourceType>, packageR: String): ByteArray {
     val cw = ClassWriter(COMPUTE_MAXS)
     cw.visit(
@@ -183,6 +331,9 @@ private fun generateResourceTypeClass(table: SymbolTable, resType: ResourceType)
     return cw.toByteArray()
 }
 
+private fun entryName(table: SymbolTable, type: ResourceType?) =
+        internalName(table, type) + SdkConstants.DOT_CLASS
+
 private fun internalName(table: SymbolTable, type: ResourceType?): String {
     val className = if (type == null) "R" else "R$${type.getName()}"
 
@@ -40,6 +40,8 @@ import java.nio.file.Files
  * @param symbolFileOut R.txt file location
  * @param proguardOut directory to contain proguard rules
  * @param mergedResources directory containing merged resources
+ * @param incrementalDir directory where the state needed to update R.jar incrementally is saved,
+ *     or `null` to always write R.jar from scratch
  */
 @Throws(IOException::class)
 fun processLibraryMainSymbolTable(
@@ -53,7 +55,8 @@ fun processLibraryMainSymbolTable(
         proguardOut: File?,
         mergedResources: File?,
         platformSymbols: SymbolTable,
-        disableMergeInLib: Boolean) {
+        disableMergeInLib: Boolean,
+        incrementalDir: File? = null) {
 
     // Parse the manifest only when necessary.
     val finalPackageName = if (mainPackageName == null || proguardOut != null) {
@@ -97,8 +100,15 @@ fun processLibraryMainSymbolTable(
     }
 
     if (rClassOutputJar != null) {
-        FileUtils.deleteIfExists(rClassOutputJar)
-        exportToCompiledJava(tablesToWrite, rClassOutputJar.toPath())
+        if (incrementalDir != null) {
+            exportToCompiledJavaIncrementally(
+                    tablesToWrite,
+                    rClassOutputJar.toPath(),
+                    File(incrementalDir, "r-class-symbols").toPath())
+        } else {
+            FileUtils.deleteIfExists(rClassOutputJar)
+            exportToCompiledJava(tablesToWrite, rClassOutputJar.toPath())
+        }
     }
 }
 
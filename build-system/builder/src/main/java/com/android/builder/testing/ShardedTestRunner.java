@@ -18,6 +18,7 @@ package com.android.builder.testing;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.builder.internal.testing.DynamicShardScheduler;
 import com.android.builder.internal.testing.ShardedTestCallable;
 import com.android.builder.testing.api.DeviceConnector;
 import com.android.ide.common.internal.WaitableExecutor;
@@ -30,17 +31,44 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
-/** A {@link TestRunner} that uses all connected devices to execute tests in parallel. */
+/**
+ * A {@link TestRunner} that uses all connected devices to execute tests in parallel.
+ *
+ * <p>The tests are either split into a fixed number of shards, or, with dynamic sharding, handed
+ * out one test class at a time to the devices as they become idle, by a {@link
+ * DynamicShardScheduler}.
+ */
 public class ShardedTestRunner extends BaseTestRunner {
 
     @Nullable private final Integer numShards;
+    private final boolean dynamicSharding;
+    @Nullable private final File testDurationsFile;
 
     public ShardedTestRunner(
             @Nullable File splitSelectExec,
             @NonNull ProcessExecutor processExecutor,
             @Nullable Integer numShards) {
+        this(splitSelectExec, processExecutor, numShards, false, null);
+    }
+
+    /**
+     * @param numShards the number of shards, or null for one per device. Ignored with dynamic
+     *     sharding.
+     * @param dynamicSharding whether to hand out the test classes to the devices as they become
+     *     idle, instead of splitting the tests into a fixed number of shards.
+     * @param testDurationsFile the file keeping the durations of the test classes between runs,
+     *     used with dynamic sharding to run the longest ones first, or null.
+     */
+    public ShardedTestRunner(
+            @Nullable File splitSelectExec,
+            @NonNull ProcessExecutor processExecutor,
+            @Nullable Integer numShards,
+            boolean dynamicSharding,
+            @Nullable File testDurationsFile) {
         super(splitSelectExec, processExecutor);
         this.numShards = numShards;
+        this.dynamicSharding = dynamicSharding;
+        this.testDurationsFile = testDurationsFile;
     }
 
     @Override
@@ -59,6 +87,33 @@ public class ShardedTestRunner extends BaseTestRunner {
         WaitableExecutor executor =
                 WaitableExecutor.useNewFixedSizeThreadPool(apksForDevice.keySet().size());
 
+        if (dynamicSharding) {
+            DynamicShardScheduler scheduler =
+                    new DynamicShardScheduler(
+                            apksForDevice.size(), testDurationsFile, resultsDir, logger);
+            ShardedTestCallable.ProgressListener progressListener =
+                    new ShardedTestCallable.ProgressListener(1, logger);
+            logger.info("will shard tests dynamically between %d devices", apksForDevice.size());
+            for (Map.Entry<DeviceConnector, ImmutableList<File>> runners :
+                    apksForDevice.entrySet()) {
+                ShardedTestCallable shardedTestCallable =
+                        new ShardedTestCallable(
+                                runners.getKey(),
+                                projectName,
+                                variantName,
+                                runners.getValue(),
+                                testData,
+                                resultsDir,
+                                coverageDir,
+                                timeoutInMs,
+                                logger,
+                                scheduler);
+                shardedTestCallable.setProgressListener(progressListener);
+                executor.execute(shardedTestCallable);
+            }
+            return executor;
+        }
+
         int numShards;
         if (this.numShards == null) {
             numShards = apksForDevice.size();
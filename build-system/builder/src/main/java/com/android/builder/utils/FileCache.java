@@ -35,11 +35,16 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 /**
@@ -79,6 +84,15 @@ import java.util.stream.Stream;
  * <p>If a cache entry exists but is found to be corrupted, the cache entry will be deleted and
  * recreated.
  *
+ * <p>The cache records the size and last access time of its cache entries in an index file placed
+ * next to the cache directory, which allows the client to bound the size of the cache by evicting
+ * the least recently used cache entries (see {@link #evictLeastRecentlyUsedEntries(long)}). The
+ * accesses are buffered in memory and recorded in batches (see {@link #flushAccesses()}).
+ *
+ * <p>Optionally, the cache can remember in memory the cache entries that it knows to be valid (see
+ * {@link #withInProcessIndex()}), so that repeated hits on the same cache entry do not need to lock
+ * the cache entry or read its inputs file.
+ *
  * <p>This class is thread-safe.
  */
 @Immutable
@@ -104,13 +118,36 @@ public class FileCache {
 
     @NonNull private final LockingScope lockingScope;
 
-    // Additional fields used for testing only
+    /** The in-process index of valid cache entries, or null if it is not used. */
+    @Nullable private final FileCacheMemoryIndex memoryIndex;
+
+    /** The extension of the index file, which is placed next to the cache directory. */
+    @NonNull private static final String INDEX_FILE_EXTENSION = ".index";
+
+    /** The number of buffered accesses to cache entries that triggers recording them. */
+    private static final int MAX_PENDING_ACCESSES = 256;
+
+    /** The time in milliseconds after which buffered accesses to cache entries are recorded. */
+    private static final long MAX_PENDING_ACCESS_AGE_MS = 10_000;
+
+    /** The accesses to cache entries not yet recorded in the index file. */
+    @NonNull private final PendingAccesses pendingAccesses;
+
+    // Statistics of the operations performed through this instance
     @NonNull private final AtomicInteger missCount = new AtomicInteger(0);
     @NonNull private final AtomicInteger hitCount = new AtomicInteger(0);
-
-    private FileCache(@NonNull File cacheDirectory, @NonNull LockingScope lockingScope) {
+    @NonNull private final AtomicInteger evictedEntryCount = new AtomicInteger(0);
+    @NonNull private final AtomicLong evictedBytes = new AtomicLong(0);
+
+    private FileCache(
+            @NonNull File cacheDirectory,
+            @NonNull LockingScope lockingScope,
+            @Nullable FileCacheMemoryIndex memoryIndex,
+            @NonNull PendingAccesses pendingAccesses) {
         this.cacheDirectory = cacheDirectory;
         this.lockingScope = lockingScope;
+        this.memoryIndex = memoryIndex;
+        this.pendingAccesses = pendingAccesses;
     }
 
     /**
@@ -118,11 +155,11 @@ public class FileCache {
      * within the same process and across different processes.
      *
      * <p>Inter-process synchronization is provided via {@link SynchronizedFile}, which requires
-     * lock files to be created. One lock file will be placed next to the cache directory and the
-     * other lock files will be placed next to the cache entry directories (inside the cache
-     * directory). Note that currently it is not possible for the underlying locking mechanism to
-     * delete these lock files. The lock files should only be deleted together with the entire cache
-     * directory.
+     * lock files to be created. Two lock files will be placed next to the cache directory (for the
+     * cache directory and its index file) and the other lock files will be placed next to the cache
+     * entry directories (inside the cache directory). Note that currently it is not possible for
+     * the underlying locking mechanism to delete these lock files. The lock files should only be
+     * deleted together with the entire cache directory.
      *
      * <p>The given cache directory may or may not already exist. If it does not yet exist, this
      * method will not create the cache directory here (the cache directory will be created when the
@@ -137,7 +174,8 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithMultiProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS);
+        return new FileCache(
+                cacheDirectory, LockingScope.MULTI_PROCESS, null, new PendingAccesses());
     }
 
     /**
@@ -156,7 +194,32 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithSingleProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS);
+        return new FileCache(
+                cacheDirectory, LockingScope.SINGLE_PROCESS, null, new PendingAccesses());
+    }
+
+    /**
+     * Returns a {@code FileCache} instance for the same cache directory and with the same locking
+     * scope as this instance, which remembers in memory the cache entries known to be valid.
+     *
+     * <p>When such a cache entry is queried again, the cache only checks that the timestamp of the
+     * cache entry's inputs file is unchanged, before and after using the cache entry, instead of
+     * locking the cache entry directory and reading the inputs file. This avoids lock contention
+     * and small I/Os when many threads query the same cache entries. The cache directory is still
+     * guarded with a READ lock, so that the cache entry cannot be deleted while it is used. If the
+     * cache entry turns out to have been changed by another thread/process, the query falls back
+     * to locking the cache entry.
+     *
+     * <p>The in-process index is shared by all the {@code FileCache} instances of the same
+     * physical cache directory that use it.
+     */
+    @NonNull
+    public FileCache withInProcessIndex() {
+        return new FileCache(
+                cacheDirectory,
+                lockingScope,
+                FileCacheMemoryIndex.getInstance(cacheDirectory),
+                pendingAccesses);
     }
 
     @NonNull
@@ -395,6 +458,17 @@ public class FileCache {
             // threads/processes can read but cannot write to the same cache entry at the same
             // time.)
             return getSynchronizedFile(cacheDirectory).read(sameCacheDirectory -> {
+                // If the cache entry is known to be valid, try to use it without locking it first.
+                // Cache entries are only deleted under a WRITE lock on the cache directory, so it
+                // cannot be deleted meanwhile.
+                if (memoryIndex != null) {
+                    QueryResult knownEntryResult =
+                            queryKnownCacheEntry(inputs, cacheEntryDir, actionIfCacheHit);
+                    if (knownEntryResult != null) {
+                        return knownEntryResult;
+                    }
+                }
+
                 // Create (or recreate) the cache directory since it may not exist or might have
                 // been deleted. The following method call is thread-safe and process-safe.
                 FileUtils.mkdirs(cacheDirectory);
@@ -408,6 +482,8 @@ public class FileCache {
                             if (result.getQueryEvent().equals(QueryEvent.HIT)) {
                                 hitCount.incrementAndGet();
                                 actionIfCacheHit.call();
+                                recordAccess(inputs, FileCacheIndex.UNKNOWN_SIZE);
+                                rememberCacheEntry(inputs, cacheEntryDir);
                             }
                             return result;
                         });
@@ -427,6 +503,8 @@ public class FileCache {
                     if (result.getQueryEvent().equals(QueryEvent.HIT)) {
                         hitCount.incrementAndGet();
                         actionIfCacheHit.call();
+                        recordAccess(inputs, FileCacheIndex.UNKNOWN_SIZE);
+                        rememberCacheEntry(inputs, cacheEntryDir);
                         return result;
                     }
 
@@ -453,6 +531,8 @@ public class FileCache {
                     Files.asCharSink(getInputsFile(cacheEntryDir), StandardCharsets.UTF_8)
                             .write(inputs.toString());
 
+                    recordAccess(inputs, getSize(cacheEntryDir));
+                    rememberCacheEntry(inputs, cacheEntryDir);
                     return result;
                 });
             });
@@ -475,6 +555,79 @@ public class FileCache {
         }
     }
 
+    /**
+     * Runs the given action without locking the cache entry if the cache entry is known to be valid
+     * by the in-process index, and its inputs file is unchanged on disk before and after the
+     * action. The cache directory must be guarded with a READ lock when this method is called.
+     *
+     * @return the result of this query, or null if the cache entry is not known to be valid or has
+     *     been changed by another thread/process, in which case the query must be done with
+     *     locking the cache entry
+     */
+    @Nullable
+    private QueryResult queryKnownCacheEntry(
+            @NonNull Inputs inputs,
+            @NonNull File cacheEntryDir,
+            @NonNull Callable<Void> actionIfCacheHit)
+            throws ExecutionException {
+        FileCacheMemoryIndex index = Preconditions.checkNotNull(memoryIndex);
+        String key = inputs.getKey();
+        File inputsFile = getInputsFile(cacheEntryDir);
+        long inputsTimestamp = index.getInputsTimestamp(key);
+        if (inputsTimestamp == FileCacheMemoryIndex.UNKNOWN_TIMESTAMP
+                || inputsFile.lastModified() != inputsTimestamp) {
+            return null;
+        }
+
+        // The cache entry may still be recreated by another thread/process that found it corrupted
+        // while the action is running. If this makes the action fail or changes the inputs file,
+        // retry with locking.
+        try {
+            actionIfCacheHit.call();
+        } catch (Exception exception) {
+            index.remove(key);
+            return null;
+        }
+        if (inputsFile.lastModified() != inputsTimestamp) {
+            index.remove(key);
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        // Record the access in the index file from time to time only, to avoid taking its lock
+        long accessTime = System.currentTimeMillis();
+        if (index.shouldRecordAccess(key, accessTime)) {
+            recordAccess(inputs, FileCacheIndex.UNKNOWN_SIZE);
+        }
+        return new QueryResult(QueryEvent.HIT);
+    }
+
+    /**
+     * Returns {@code true} if the cache entry for the given list of inputs is in the in-process
+     * index and its inputs file is unchanged. The cache directory must be guarded with a READ lock
+     * when this method is called.
+     */
+    private boolean isKnownCacheEntry(@NonNull Inputs inputs) {
+        long inputsTimestamp =
+                Preconditions.checkNotNull(memoryIndex).getInputsTimestamp(inputs.getKey());
+        return inputsTimestamp != FileCacheMemoryIndex.UNKNOWN_TIMESTAMP
+                && getInputsFile(getCacheEntryDir(inputs)).lastModified() == inputsTimestamp;
+    }
+
+    /**
+     * Adds the cache entry for the given list of inputs to the in-process index, if used. The cache
+     * entry directory must be guarded with a lock and the cache entry must be valid when this
+     * method is called.
+     */
+    private void rememberCacheEntry(@NonNull Inputs inputs, @NonNull File cacheEntryDir) {
+        if (memoryIndex != null) {
+            memoryIndex.put(
+                    inputs.getKey(),
+                    getInputsFile(cacheEntryDir).lastModified(),
+                    System.currentTimeMillis());
+        }
+    }
+
     /**
      * Returns {@code true} if the cache entry for the given list of inputs exists and is not
      * corrupted, and {@code false} otherwise. This method will block if the cache/cache entry is
@@ -496,6 +649,9 @@ public class FileCache {
             QueryResult queryResult =
                     getSynchronizedFile(cacheDirectory).read(
                             sameCacheDirectory -> {
+                                if (memoryIndex != null && isKnownCacheEntry(inputs)) {
+                                    return new QueryResult(QueryEvent.HIT);
+                                }
                                 FileUtils.mkdirs(cacheDirectory);
                                 return getSynchronizedFile(getCacheEntryDir(inputs)).read(
                                         (cacheEntryDir) -> checkCacheEntry(inputs, cacheEntryDir));
@@ -592,6 +748,80 @@ public class FileCache {
         return new File(cacheEntryDir, "inputs");
     }
 
+    /**
+     * Returns the path of the index file recording the size and last access time of the cache
+     * entries, which is placed next to the cache directory.
+     */
+    @NonNull
+    @VisibleForTesting
+    File getIndexFile() {
+        File absoluteCacheDirectory = cacheDirectory.getAbsoluteFile();
+        return new File(
+                absoluteCacheDirectory.getParentFile(),
+                absoluteCacheDirectory.getName() + INDEX_FILE_EXTENSION);
+    }
+
+    /**
+     * Buffers an access to the cache entry for the given list of inputs, and records the buffered
+     * accesses in the index file once there are enough of them or they are old enough.
+     *
+     * @param inputs all the inputs that affect the creation of the output file/directory
+     * @param size the size of the cache entry if it was just created, or {@link
+     *     FileCacheIndex#UNKNOWN_SIZE}
+     */
+    private void recordAccess(@NonNull Inputs inputs, long size) throws ExecutionException {
+        if (pendingAccesses.add(inputs.getKey(), size, System.currentTimeMillis())) {
+            recordPendingAccesses();
+        }
+    }
+
+    /** Records the buffered accesses to cache entries in the index file. */
+    private void recordPendingAccesses() throws ExecutionException {
+        // Guard the index file with a WRITE lock, as other threads/processes may be recording
+        // their accesses at the same time
+        getSynchronizedFile(getIndexFile())
+                .write(
+                        indexFile -> {
+                            FileCacheIndex.recordAccesses(indexFile, pendingAccesses.drain());
+                            return null;
+                        });
+    }
+
+    /**
+     * Records in the index file the accesses to cache entries that are still buffered in memory.
+     * The client should call this method when it is done with the cache (e.g., at the end of a
+     * build), otherwise the last accesses may not be taken into account by {@link
+     * #evictLeastRecentlyUsedEntries(long)} in other processes.
+     *
+     * <p>This method may block if the index file is being accessed by another thread/process.
+     */
+    public void flushAccesses() {
+        if (pendingAccesses.isEmpty()) {
+            return;
+        }
+        // Check the parent directory of the cache directory, similarly to FileCache.delete()
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return;
+            }
+        }
+
+        try {
+            recordPendingAccesses();
+        } catch (ExecutionException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /** Returns the total size in bytes of the regular files in the given file/directory. */
+    private static long getSize(@NonNull File file) throws IOException {
+        try (Stream<Path> entries = java.nio.file.Files.walk(file.toPath())) {
+            return entries.filter(java.nio.file.Files::isRegularFile)
+                    .mapToLong(entry -> entry.toFile().length())
+                    .sum();
+        }
+    }
+
     /**
      * Returns the path of the cached output file/directory that is unique to the given list of
      * inputs (different lists of inputs correspond to different cached files/directories).
@@ -640,12 +870,7 @@ public class FileCache {
                         File cacheEntryDir = fileInDir;
 
                         if (cacheEntryDir.lastModified() <= lastTimestamp) {
-                            FileUtils.deletePath(cacheEntryDir);
-                            // Also delete the lock file in the case of MULTI_PROCESS locking
-                            if (lockingScope == LockingScope.MULTI_PROCESS) {
-                                FileUtils.deleteIfExists(
-                                        SynchronizedFile.getLockFile(cacheEntryDir));
-                            }
+                            deleteCacheEntry(cacheEntryDir);
                         }
                     }
                 }
@@ -656,6 +881,110 @@ public class FileCache {
         }
     }
 
+    /**
+     * Deletes the least recently used cache entries until the total size of the cache entries is
+     * at most the given size.
+     *
+     * <p>The size and last access time of the cache entries are read from the index file. Cache
+     * entries missing from the index file (e.g., created by a previous version of this class) are
+     * measured, and considered last accessed when they were created.
+     *
+     * <p>This method may block if the cache is being accessed by another thread/process.
+     *
+     * @param maxSizeInBytes the maximum total size in bytes of the cache entries to keep
+     */
+    public void evictLeastRecentlyUsedEntries(long maxSizeInBytes) {
+        Preconditions.checkArgument(maxSizeInBytes >= 0, "Size must not be negative");
+
+        // Check the parent directory of the cache directory, similarly to FileCache.delete()
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return;
+            }
+        }
+
+        try {
+            // Guard the cache directory with a WRITE lock, and the index file with a WRITE lock as
+            // accesses to known cache entries may be recorded without locking the cache directory
+            getSynchronizedFile(cacheDirectory).write(sameCacheDirectory -> {
+                if (!cacheDirectory.exists()) {
+                    return null;
+                }
+                return getSynchronizedFile(getIndexFile())
+                        .write(
+                                indexFile -> {
+                                    evictLeastRecentlyUsedEntries(indexFile, maxSizeInBytes);
+                                    return null;
+                                });
+            });
+        } catch (ExecutionException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Deletes the least recently used cache entries until the total size of the cache entries is
+     * at most the given size. The cache directory and the index file must be guarded with WRITE
+     * locks when this method is called.
+     */
+    private void evictLeastRecentlyUsedEntries(@NonNull File indexFile, long maxSizeInBytes)
+            throws IOException {
+        FileCacheIndex.recordAccesses(indexFile, pendingAccesses.drain());
+        Map<String, FileCacheIndex.Entry> indexEntries = FileCacheIndex.read(indexFile);
+
+        List<FileCacheIndex.Entry> entries = new ArrayList<>();
+        long totalSize = 0;
+        for (File fileInDir : Verify.verifyNotNull(cacheDirectory.listFiles())) {
+            if (fileInDir.isDirectory()
+                    && getInputsFile(fileInDir).isFile()
+                    && FileCacheIndex.isKey(fileInDir.getName())) {
+                FileCacheIndex.Entry entry = indexEntries.get(fileInDir.getName());
+                if (entry == null || entry.getSize() == FileCacheIndex.UNKNOWN_SIZE) {
+                    entry =
+                            new FileCacheIndex.Entry(
+                                    fileInDir.getName(),
+                                    getSize(fileInDir),
+                                    entry != null
+                                            ? entry.getLastAccessTime()
+                                            : getInputsFile(fileInDir).lastModified());
+                }
+                entries.add(entry);
+                totalSize += entry.getSize();
+            }
+        }
+
+        entries.sort(Comparator.comparingLong(FileCacheIndex.Entry::getLastAccessTime));
+        List<FileCacheIndex.Entry> keptEntries = new ArrayList<>(entries.size());
+        for (FileCacheIndex.Entry entry : entries) {
+            if (totalSize > maxSizeInBytes) {
+                deleteCacheEntry(new File(cacheDirectory, entry.getKey()));
+                totalSize -= entry.getSize();
+                evictedEntryCount.incrementAndGet();
+                evictedBytes.addAndGet(entry.getSize());
+            } else {
+                keptEntries.add(entry);
+            }
+        }
+
+        // Rewrite the index file, which also drops the records of the cache entries deleted by
+        // other means
+        FileCacheIndex.write(indexFile, keptEntries);
+    }
+
+    /**
+     * Deletes a cache entry directory, its lock file in the case of MULTI_PROCESS locking, and its
+     * in-process index entry if any.
+     */
+    private void deleteCacheEntry(@NonNull File cacheEntryDir) throws IOException {
+        if (memoryIndex != null && FileCacheIndex.isKey(cacheEntryDir.getName())) {
+            memoryIndex.remove(cacheEntryDir.getName());
+        }
+        FileUtils.deletePath(cacheEntryDir);
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            FileUtils.deleteIfExists(SynchronizedFile.getLockFile(cacheEntryDir));
+        }
+    }
+
     /**
      * Deletes the cache directory and its contents.
      *
@@ -677,7 +1006,12 @@ public class FileCache {
             getSynchronizedFile(cacheDirectory)
                     .write(
                             sameCacheDirectory -> {
+                                if (memoryIndex != null) {
+                                    memoryIndex.clear();
+                                }
+                                pendingAccesses.drain();
                                 FileUtils.deletePath(cacheDirectory);
+                                FileUtils.deleteIfExists(getIndexFile());
                                 return null;
                             });
         } catch (ExecutionException exception) {
@@ -715,21 +1049,38 @@ public class FileCache {
         }
     }
 
-    @VisibleForTesting
-    int getMisses() {
+    /** Returns the number of cache entries created by this instance. */
+    public int getMisses() {
         return missCount.get();
     }
 
-    @VisibleForTesting
-    int getHits() {
+    /** Returns the number of cache entries reused by this instance. */
+    public int getHits() {
         return hitCount.get();
     }
 
+    /**
+     * Returns the number of cache entries deleted by {@link #evictLeastRecentlyUsedEntries(long)}
+     * on this instance.
+     */
+    public int getEvictedEntries() {
+        return evictedEntryCount.get();
+    }
+
+    /**
+     * Returns the total size in bytes of the cache entries deleted by {@link
+     * #evictLeastRecentlyUsedEntries(long)} on this instance.
+     */
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("cacheDirectory", cacheDirectory)
                 .add("lockingScope", lockingScope)
+                .add("inProcessIndex", memoryIndex != null)
                 .toString();
     }
 
@@ -757,6 +1108,49 @@ public class FileCache {
         }
     }
 
+    /**
+     * Accesses to cache entries that are not yet recorded in the index file, so that cache hits do
+     * not each take the WRITE lock of the index file. The buffer is shared with the instances
+     * returned by {@link #withInProcessIndex()}.
+     */
+    private static final class PendingAccesses {
+
+        @NonNull
+        private final Map<String, FileCacheIndex.Entry> accesses = new LinkedHashMap<>();
+
+        private long oldestAccessTime;
+
+        /**
+         * Buffers an access to a cache entry, and returns {@code true} if the buffered accesses
+         * should now be recorded.
+         */
+        synchronized boolean add(@NonNull String key, long size, long accessTime) {
+            if (accesses.isEmpty()) {
+                oldestAccessTime = accessTime;
+            }
+            FileCacheIndex.Entry previousAccess = accesses.get(key);
+            // Keep the size of a cache entry created since the last recording
+            if (previousAccess != null && size == FileCacheIndex.UNKNOWN_SIZE) {
+                size = previousAccess.getSize();
+            }
+            accesses.put(key, new FileCacheIndex.Entry(key, size, accessTime));
+            return accesses.size() >= MAX_PENDING_ACCESSES
+                    || accessTime - oldestAccessTime >= MAX_PENDING_ACCESS_AGE_MS;
+        }
+
+        /** Removes and returns the buffered accesses. */
+        @NonNull
+        synchronized List<FileCacheIndex.Entry> drain() {
+            List<FileCacheIndex.Entry> drainedAccesses = new ArrayList<>(accesses.values());
+            accesses.clear();
+            return drainedAccesses;
+        }
+
+        synchronized boolean isEmpty() {
+            return accesses.isEmpty();
+        }
+    }
+
     /**
      * Checked exception thrown when the file creator callback function aborts due to an {@link
      * Exception}. This class is a private sub-class of {@link ExecutionException} and is used to
@@ -806,6 +1200,8 @@ public class FileCache {
 
         @NonNull private final LinkedHashMap<String, String> parameters;
 
+        @NonNull private final String key;
+
         /** Builder of {@link FileCache.Inputs}. */
         public static final class Builder {
 
@@ -1022,6 +1418,7 @@ public class FileCache {
         private Inputs(@NonNull Builder builder) {
             command = builder.command;
             parameters = Maps.newLinkedHashMap(builder.parameters);
+            key = Hashing.sha256().hashUnencodedChars(this.toString()).toString();
         }
 
         @Override
@@ -1040,7 +1437,7 @@ public class FileCache {
          */
         @NonNull
         public String getKey() {
-            return Hashing.sha256().hashUnencodedChars(this.toString()).toString();
+            return key;
         }
     }
 
@@ -1063,6 +1460,9 @@ public class FileCache {
         /** Pre-dex a library to a dex archive. */
         PREDEX_LIBRARY_TO_DEX_ARCHIVE,
 
+        /** Pre-dex a single class of a library to a dex file. */
+        PREDEX_CLASS_TO_DEX,
+
         /** Desugar a library. */
         DESUGAR_LIBRARY,
 
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.google.common.hash.HashCode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of the entries of a {@link FileCache}, recording the size and last access time of each
+ * cache entry so that the least recently used entries can be evicted.
+ *
+ * <p>The index file is an append-only log of fixed-size binary records: creating or accessing a
+ * cache entry appends a record (with the entry's size in the case of a creation), and later
+ * records of an entry override earlier ones. The log is compacted when it holds about twice as
+ * many records as it had entries after the last compaction.
+ *
+ * <p>The index is only a hint: a missing or corrupted index file is treated as empty, and the
+ * cache falls back to the cache entries' timestamps and actual sizes.
+ *
+ * <p>This class does not synchronize access to the index file, the client must hold a lock on it.
+ */
+final class FileCacheIndex {
+
+    /** The size recorded when a cache entry is accessed but not created. */
+    static final long UNKNOWN_SIZE = -1;
+
+    private static final int MAGIC = 0x46434931;
+
+    /** The length of a cache entry's key, which is a SHA-256 hash. */
+    private static final int KEY_LENGTH = 32;
+
+    /** The length of the header, made of the magic number and the number of compacted records. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** The length of a record, made of a cache entry's key, size, and access time. */
+    private static final int RECORD_LENGTH = KEY_LENGTH + 8 + 8;
+
+    /** The minimum number of records below which the log is never compacted. */
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    /** The size and last access time of a cache entry. */
+    static final class Entry {
+
+        @NonNull private final String key;
+
+        private long size;
+
+        private long lastAccessTime;
+
+        Entry(@NonNull String key, long size, long lastAccessTime) {
+            this.key = key;
+            this.size = size;
+            this.lastAccessTime = lastAccessTime;
+        }
+
+        @NonNull
+        String getKey() {
+            return key;
+        }
+
+        /** Returns the size of the cache entry in bytes, or {@link #UNKNOWN_SIZE}. */
+        long getSize() {
+            return size;
+        }
+
+        long getLastAccessTime() {
+            return lastAccessTime;
+        }
+    }
+
+    private FileCacheIndex() {}
+
+    /** Returns {@code true} if the given name is a valid key of a cache entry. */
+    static boolean isKey(@NonNull String name) {
+        if (name.length() != KEY_LENGTH * 2) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that a cache entry was accessed at the given time, creating the index file if it
+     * does not yet exist.
+     *
+     * @param indexFile the index file
+     * @param key the key of the cache entry
+     * @param size the size of the cache entry if it was just created, or {@link #UNKNOWN_SIZE}
+     * @param accessTime the time of the access, in milliseconds since the epoch
+     */
+    static void recordAccess(
+            @NonNull File indexFile, @NonNull String key, long size, long accessTime)
+            throws IOException {
+        recordAccesses(indexFile, Collections.singletonList(new Entry(key, size, accessTime)));
+    }
+
+    /**
+     * Records a batch of accesses to cache entries in one write, creating the index file if it does
+     * not yet exist. The size of an entry is {@link #UNKNOWN_SIZE} if the cache entry was accessed
+     * but not created.
+     */
+    static void recordAccesses(@NonNull File indexFile, @NonNull Collection<Entry> accesses)
+            throws IOException {
+        if (accesses.isEmpty()) {
+            return;
+        }
+        try (FileChannel channel =
+                FileChannel.open(
+                        indexFile.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+            int compactedRecords = readHeader(channel);
+            if (compactedRecords < 0) {
+                compactedRecords = 0;
+                writeHeader(channel, compactedRecords);
+            }
+
+            // Drop any partial record left by an interrupted write
+            long records = (channel.size() - HEADER_LENGTH) / RECORD_LENGTH;
+            long end = HEADER_LENGTH + records * RECORD_LENGTH;
+            channel.truncate(end);
+
+            ByteBuffer buffer = ByteBuffer.allocate(accesses.size() * RECORD_LENGTH);
+            for (Entry access : accesses) {
+                putRecord(buffer, access.getKey(), access.getSize(), access.getLastAccessTime());
+            }
+            buffer.flip();
+            writeFully(channel, buffer, end);
+
+            records += accesses.size();
+            if (records > 2 * Math.max(compactedRecords, MIN_COMPACTION_RECORDS)) {
+                write(channel, read(channel).values());
+            }
+        }
+    }
+
+    /**
+     * Returns the entries of the index by key, or an empty map if the index file does not exist or
+     * is corrupted.
+     */
+    @NonNull
+    static Map<String, Entry> read(@NonNull File indexFile) throws IOException {
+        if (!indexFile.isFile()) {
+            return new LinkedHashMap<>();
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /** Replaces the contents of the index file with the given entries. */
+    static void write(@NonNull File indexFile, @NonNull Collection<Entry> entries)
+            throws IOException {
+        try (FileChannel channel =
+                FileChannel.open(
+                        indexFile.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+            write(channel, entries);
+        }
+    }
+
+    @NonNull
+    private static Map<String, Entry> read(@NonNull FileChannel channel) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        if (readHeader(channel) < 0) {
+            return entries;
+        }
+        long records = (channel.size() - HEADER_LENGTH) / RECORD_LENGTH;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(records * RECORD_LENGTH));
+        readFully(channel, buffer, HEADER_LENGTH);
+        buffer.flip();
+
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        while (buffer.remaining() >= RECORD_LENGTH) {
+            buffer.get(keyBytes);
+            String key = HashCode.fromBytes(keyBytes).toString();
+            long size = buffer.getLong();
+            long accessTime = buffer.getLong();
+
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entries.put(key, new Entry(key, size, accessTime));
+            } else {
+                if (size != UNKNOWN_SIZE) {
+                    entry.size = size;
+                }
+                entry.lastAccessTime = Math.max(entry.lastAccessTime, accessTime);
+            }
+        }
+        return entries;
+    }
+
+    private static void write(@NonNull FileChannel channel, @NonNull Collection<Entry> entries)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + entries.size() * RECORD_LENGTH);
+        buffer.putInt(MAGIC);
+        buffer.putInt(entries.size());
+        for (Entry entry : entries) {
+            putRecord(buffer, entry.key, entry.size, entry.lastAccessTime);
+        }
+        buffer.flip();
+        writeFully(channel, buffer, 0);
+        channel.truncate(buffer.limit());
+    }
+
+    /**
+     * Returns the number of records of the index after its last compaction, or -1 if the index
+     * file is empty or corrupted.
+     */
+    private static int readHeader(@NonNull FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_LENGTH) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return -1;
+        }
+        return Math.max(header.getInt(), 0);
+    }
+
+    private static void writeHeader(@NonNull FileChannel channel, int compactedRecords)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(compactedRecords);
+        header.flip();
+        writeFully(channel, header, 0);
+        channel.truncate(HEADER_LENGTH);
+    }
+
+    private static void putRecord(
+            @NonNull ByteBuffer buffer, @NonNull String key, long size, long accessTime) {
+        buffer.put(HashCode.fromString(key).asBytes());
+        buffer.putLong(size);
+        buffer.putLong(accessTime);
+    }
+
+    private static void readFully(
+            @NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of index file");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(
+            @NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
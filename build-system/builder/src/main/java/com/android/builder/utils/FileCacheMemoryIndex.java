@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-process index of the cache entries of a {@link FileCache} that are known to be valid, along
+ * with the timestamps of their inputs files at the time they were validated.
+ *
+ * <p>The index is only a hint: a cache entry may be deleted or recreated by another process at any
+ * time, so the client must check that the timestamp of the cache entry's inputs file is unchanged
+ * before trusting the index.
+ *
+ * <p>The cache entries are distributed among a fixed number of stripes by the prefix of their
+ * keys, each with its own lock, so that threads looking up different cache entries rarely contend.
+ *
+ * <p>There is one index per cache directory (per class loader), shared by all the {@code
+ * FileCache} instances of the same physical cache directory, for as long as any of them is in use.
+ *
+ * <p>This class is thread-safe.
+ */
+final class FileCacheMemoryIndex {
+
+    /** The timestamp returned for cache entries that are not in the index. */
+    static final long UNKNOWN_TIMESTAMP = -1;
+
+    /** The number of stripes, which must be a power of two no greater than 256. */
+    private static final int STRIPE_COUNT = 32;
+
+    /**
+     * The minimum interval in milliseconds between two recordings of accesses to the same cache
+     * entry in the cache's index file.
+     */
+    private static final long ACCESS_RECORDING_INTERVAL_MS = 60_000;
+
+    /**
+     * The indexes by canonical cache directory. The indexes are weakly referenced, so that the
+     * index of a cache directory is dropped once no {@link FileCache} instance uses it.
+     */
+    @NonNull
+    private static final LoadingCache<File, FileCacheMemoryIndex> instances =
+            CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(CacheLoader.from(directory -> new FileCacheMemoryIndex()));
+
+    /** A cache entry known to be valid. */
+    private static final class Entry {
+
+        private final long inputsTimestamp;
+
+        private long lastRecordedAccessTime;
+
+        private Entry(long inputsTimestamp, long lastRecordedAccessTime) {
+            this.inputsTimestamp = inputsTimestamp;
+            this.lastRecordedAccessTime = lastRecordedAccessTime;
+        }
+    }
+
+    /** A subset of the cache entries, guarded by its own lock. */
+    private static final class Stripe {
+
+        @NonNull private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        @NonNull private final Map<String, Entry> entries = new HashMap<>();
+    }
+
+    @NonNull private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    private FileCacheMemoryIndex() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Returns the index of the given cache directory, which may not yet exist. The client does not
+     * need to normalize the cache directory's path.
+     */
+    @NonNull
+    static FileCacheMemoryIndex getInstance(@NonNull File cacheDirectory) {
+        File canonicalCacheDirectory;
+        try {
+            canonicalCacheDirectory = cacheDirectory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return instances.getUnchecked(canonicalCacheDirectory);
+    }
+
+    /**
+     * Returns the timestamp of the inputs file of the given cache entry when it was known to be
+     * valid, or {@link #UNKNOWN_TIMESTAMP} if the cache entry is not in the index.
+     */
+    long getInputsTimestamp(@NonNull String key) {
+        Stripe stripe = getStripe(key);
+        Lock lock = stripe.lock.readLock();
+        lock.lock();
+        try {
+            Entry entry = stripe.entries.get(key);
+            return entry != null ? entry.inputsTimestamp : UNKNOWN_TIMESTAMP;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a cache entry that is known to be valid to the index.
+     *
+     * @param key the key of the cache entry
+     * @param inputsTimestamp the timestamp of the cache entry's inputs file
+     * @param accessTime the time the access to the cache entry was last recorded in the cache's
+     *     index file
+     */
+    void put(@NonNull String key, long inputsTimestamp, long accessTime) {
+        Stripe stripe = getStripe(key);
+        Lock lock = stripe.lock.writeLock();
+        lock.lock();
+        try {
+            stripe.entries.put(key, new Entry(inputsTimestamp, accessTime));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns {@code true} if an access to the given cache entry at the given time should be
+     * recorded in the cache's index file, in which case the access is assumed to be recorded.
+     * Accesses to the same cache entry are recorded at most once per {@link
+     * #ACCESS_RECORDING_INTERVAL_MS}.
+     */
+    boolean shouldRecordAccess(@NonNull String key, long accessTime) {
+        Stripe stripe = getStripe(key);
+        Lock lock = stripe.lock.writeLock();
+        lock.lock();
+        try {
+            Entry entry = stripe.entries.get(key);
+            if (entry == null
+                    || accessTime - entry.lastRecordedAccessTime < ACCESS_RECORDING_INTERVAL_MS) {
+                return false;
+            }
+            entry.lastRecordedAccessTime = accessTime;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes a cache entry from the index, if present. */
+    void remove(@NonNull String key) {
+        Stripe stripe = getStripe(key);
+        Lock lock = stripe.lock.writeLock();
+        lock.lock();
+        try {
+            stripe.entries.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes all the cache entries from the index. */
+    void clear() {
+        for (Stripe stripe : stripes) {
+            Lock lock = stripe.lock.writeLock();
+            lock.lock();
+            try {
+                stripe.entries.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Returns the stripe of a cache entry, from the first two hexadecimal digits of its key. */
+    @NonNull
+    private Stripe getStripe(@NonNull String key) {
+        Preconditions.checkArgument(key.length() >= 2, "Invalid key %s", key);
+        int prefix = Character.digit(key.charAt(0), 16) << 4 | Character.digit(key.charAt(1), 16);
+        return stripes[prefix & (STRIPE_COUNT - 1)];
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.android.builder.utils.FileCache;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for the {@link CachingDexArchiveBuilder}. */
+public class CachingDexArchiveBuilderTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path classes;
+    private FileCache cache;
+    private FakeDexArchiveBuilder delegate;
+
+    @Before
+    public void setUp() throws IOException {
+        classes = temporaryFolder.newFolder("classes").toPath();
+        cache = FileCache.getInstanceWithSingleProcessLocking(temporaryFolder.newFolder("cache"));
+        delegate = new FakeDexArchiveBuilder();
+    }
+
+    @Test
+    public void testOnlyChangedClassesAreDexed() throws IOException {
+        writeClass("A", "a");
+        writeClass("B", "b");
+        writeClass("C", "c");
+
+        assertThat(convert("key", temporaryFolder.newFolder("out1").toPath()))
+                .containsExactly("test/A.dex", "a", "test/B.dex", "b", "test/C.dex", "c");
+        assertThat(delegate.converted)
+                .containsExactly("test/A.class", "test/B.class", "test/C.class");
+
+        delegate.converted.clear();
+        writeClass("B", "b2");
+        assertThat(convert("key", temporaryFolder.newFolder("out2").toPath()))
+                .containsExactly("test/A.dex", "a", "test/B.dex", "b2", "test/C.dex", "c");
+        assertThat(delegate.converted).containsExactly("test/B.class");
+
+        delegate.converted.clear();
+        assertThat(convert("key", temporaryFolder.newFolder("out3").toPath()))
+                .containsExactly("test/A.dex", "a", "test/B.dex", "b2", "test/C.dex", "c");
+        assertThat(delegate.converted).isEmpty();
+    }
+
+    @Test
+    public void testConfigurationIsPartOfTheKey() throws IOException {
+        writeClass("A", "a");
+
+        convert("key", temporaryFolder.newFolder("out1").toPath());
+        assertThat(delegate.converted).containsExactly("test/A.class");
+
+        delegate.converted.clear();
+        convert("otherKey", temporaryFolder.newFolder("out2").toPath());
+        assertThat(delegate.converted).containsExactly("test/A.class");
+    }
+
+    @Test
+    public void testJarOutput() throws IOException {
+        writeClass("A", "a");
+        writeClass("B", "b");
+        convert("key", temporaryFolder.newFolder("out1").toPath());
+
+        delegate.converted.clear();
+        Path jar = temporaryFolder.getRoot().toPath().resolve("out.jar");
+        assertThat(convert("key", jar)).containsExactly("test/A.dex", "a", "test/B.dex", "b");
+        assertThat(delegate.converted).isEmpty();
+    }
+
+    @Test
+    public void testNoTemporaryFilesLeft() throws IOException {
+        writeClass("A", "a");
+        convert("key", temporaryFolder.newFolder("out").toPath());
+        assertThat(delegate.outputs).hasSize(1);
+        assertThat(Files.exists(delegate.outputs.get(0))).isFalse();
+    }
+
+    private void writeClass(@NonNull String name, @NonNull String content) throws IOException {
+        Path classFile = classes.resolve("test").resolve(name + ".class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NonNull
+    private Map<String, String> convert(@NonNull String key, @NonNull Path output)
+            throws IOException {
+        DexArchiveBuilder builder = DexArchiveBuilder.createCachingDexBuilder(delegate, cache, key);
+        try (ClassFileInput input = ClassFileInputs.fromPath(classes)) {
+            builder.convert(input.entries(path -> true), output, false);
+        }
+
+        Map<String, String> dexFiles = new TreeMap<>();
+        for (DexArchiveEntry entry : DexArchives.getEntriesFromSingleArchive(output)) {
+            dexFiles.put(
+                    entry.getRelativePathInArchive(),
+                    new String(entry.getDexFileContent(), StandardCharsets.UTF_8));
+        }
+        return dexFiles;
+    }
+
+    /** Produces a "dex file" per class, whose content is the one of the class file. */
+    private static class FakeDexArchiveBuilder extends DexArchiveBuilder {
+
+        @NonNull private final List<String> converted = new ArrayList<>();
+        @NonNull private final List<Path> outputs = new ArrayList<>();
+
+        @Override
+        public void convert(
+                @NonNull Stream<ClassFileEntry> input, @NonNull Path output, boolean isIncremental)
+                throws DexArchiveBuilderException {
+            outputs.add(output);
+            try (DexArchive dexArchive = DexArchives.fromInput(output)) {
+                Iterator<ClassFileEntry> iterator = input.iterator();
+                while (iterator.hasNext()) {
+                    ClassFileEntry entry = iterator.next();
+                    String relativePath = entry.getRelativePath();
+                    converted.add(relativePath);
+                    byte[] content = entry.readAllBytes();
+                    dexArchive.addFile(
+                            ClassFileEntry.withDexExtension(relativePath),
+                            content,
+                            0,
+                            content.length);
+                }
+            } catch (IOException e) {
+                throw new DexArchiveBuilderException(e);
+            }
+        }
+    }
+}
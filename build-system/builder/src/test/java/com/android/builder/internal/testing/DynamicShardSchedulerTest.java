@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.testutils.MockLog;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DynamicShardSchedulerTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File durationsFile;
+    private File resultsDir;
+
+    @Before
+    public void setUp() throws IOException {
+        durationsFile = new File(temporaryFolder.getRoot(), "durations/debug.properties");
+        resultsDir = temporaryFolder.newFolder("results");
+    }
+
+    @Test
+    public void testUnitsInListingOrderWithoutDurations() throws Exception {
+        DynamicShardScheduler scheduler = newScheduler(1);
+        assertThat(scheduler.awaitTests(() -> listTests("A", "B", "C"))).isEqualTo(6);
+
+        assertThat(runAll(scheduler, "device")).containsExactly("A", "B", "C").inOrder();
+    }
+
+    @Test
+    public void testLongestUnitsFirst() throws Exception {
+        Files.createDirectories(durationsFile.getParentFile().toPath());
+        Files.write(
+                durationsFile.toPath(),
+                ImmutableList.of("A=100", "B=3000", "D=2000"),
+                StandardCharsets.ISO_8859_1);
+
+        DynamicShardScheduler scheduler = newScheduler(1);
+        scheduler.awaitTests(() -> listTests("A", "B", "C", "D"));
+
+        // C never ran, so it is assumed to take the average of the others.
+        assertThat(runAll(scheduler, "device")).containsExactly("B", "D", "C", "A").inOrder();
+    }
+
+    @Test
+    public void testUnitMethods() throws Exception {
+        DynamicShardScheduler scheduler = newScheduler(1);
+        scheduler.awaitTests(() -> listTests("A"));
+
+        DynamicShardScheduler.TestUnit unit = scheduler.nextUnit("device");
+        assertThat(unit.getClassName()).isEqualTo("A");
+        assertThat(unit.getMethodNames()).containsExactly("test1", "test2").inOrder();
+        assertThat(scheduler.nextUnit("device")).isNull();
+    }
+
+    @Test
+    public void testIdleDevicesTakeMoreUnits() throws Exception {
+        String[] classes = new String[40];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = "Test" + i;
+        }
+        DynamicShardScheduler scheduler = newScheduler(3);
+        Map<String, String> deviceByUnit = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> unitCountByDevice = new ConcurrentHashMap<>();
+        AtomicInteger listings = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> devices = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                String deviceName = "device" + i;
+                // The first device is ten times slower than the others.
+                long unitDurationMs = i == 0 ? 50 : 5;
+                devices.add(
+                        executor.submit(
+                                () -> {
+                                    scheduler.awaitTests(
+                                            () -> {
+                                                listings.incrementAndGet();
+                                                Thread.sleep(50);
+                                                return listTests(classes);
+                                            });
+                                    DynamicShardScheduler.TestUnit unit;
+                                    while ((unit = scheduler.nextUnit(deviceName)) != null) {
+                                        Thread.sleep(unitDurationMs);
+                                        String previous =
+                                                deviceByUnit.put(unit.getClassName(), deviceName);
+                                        assertThat(previous).isNull();
+                                        unitCountByDevice
+                                                .computeIfAbsent(
+                                                        deviceName, k -> new AtomicInteger())
+                                                .incrementAndGet();
+                                        scheduler.unitFinished(unit, true);
+                                    }
+                                    scheduler.deviceFinished(deviceName);
+                                    return null;
+                                }));
+            }
+            for (Future<?> device : devices) {
+                device.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(listings.get()).isEqualTo(1);
+        assertThat(deviceByUnit.keySet()).containsExactly((Object[]) classes);
+        assertThat(unitCountByDevice.get("device0").get())
+                .isLessThan(unitCountByDevice.get("device1").get());
+        assertThat(scheduler.getTimeline()).hasSize(classes.length);
+        assertThat(durationsFile.isFile()).isTrue();
+        List<String> timeline =
+                Files.readAllLines(
+                        new File(resultsDir, DynamicShardScheduler.TIMELINE_FILE).toPath(),
+                        StandardCharsets.UTF_8);
+        assertThat(timeline).hasSize(classes.length + 1);
+        assertThat(timeline.get(1)).endsWith("passed");
+    }
+
+    @Test
+    public void testFailedListingIsRetriedByAnotherDevice() throws Exception {
+        DynamicShardScheduler scheduler = newScheduler(2);
+        CountDownLatch listingStarted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> failedListing =
+                    executor.submit(
+                            () ->
+                                    scheduler.awaitTests(
+                                            () -> {
+                                                listingStarted.countDown();
+                                                Thread.sleep(50);
+                                                throw new IOException("device went away");
+                                            }));
+            listingStarted.await();
+            assertThat(scheduler.awaitTests(() -> listTests("A", "B"))).isEqualTo(4);
+            try {
+                failedListing.get();
+                fail("Expected the listing to fail");
+            } catch (Exception e) {
+                assertThat(e.getCause()).hasMessageThat().isEqualTo("device went away");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(runAll(scheduler, "device")).containsExactly("A", "B");
+    }
+
+    @Test
+    public void testAbortedUnitIsRetriedOnce() throws Exception {
+        DynamicShardScheduler scheduler = newScheduler(2);
+        scheduler.awaitTests(() -> listTests("A", "B"));
+
+        DynamicShardScheduler.TestUnit unit = scheduler.nextUnit("device0");
+        scheduler.unitAborted(unit);
+        assertThat(scheduler.nextUnit("device1")).isSameAs(unit);
+        scheduler.unitAborted(unit);
+        assertThat(runAll(scheduler, "device1")).containsExactly("B");
+
+        scheduler.deviceFinished("device0");
+        scheduler.deviceFinished("device1");
+        List<String> results = new ArrayList<>();
+        for (DynamicShardScheduler.TimelineEntry entry : scheduler.getTimeline()) {
+            results.add(entry.deviceName + " " + entry.unit + " " + entry.result);
+        }
+        assertThat(results)
+                .containsExactly("device0 A aborted", "device1 A aborted", "device1 B passed")
+                .inOrder();
+    }
+
+    @Test
+    public void testDurationsAreKeptBetweenRuns() throws Exception {
+        DynamicShardScheduler scheduler = newScheduler(1);
+        scheduler.awaitTests(() -> listTests("A", "B"));
+        DynamicShardScheduler.TestUnit a = scheduler.nextUnit("device");
+        scheduler.unitFinished(a, true);
+        DynamicShardScheduler.TestUnit b = scheduler.nextUnit("device");
+        Thread.sleep(100);
+        scheduler.unitFinished(b, false);
+        scheduler.deviceFinished("device");
+
+        DynamicShardScheduler nextScheduler = newScheduler(1);
+        nextScheduler.awaitTests(() -> listTests("A", "B"));
+        DynamicShardScheduler.TestUnit first = nextScheduler.nextUnit("device");
+        assertThat(first.getClassName()).isEqualTo("B");
+        assertThat(first.getEstimatedDurationMs()).isAtLeast(100L);
+    }
+
+    private DynamicShardScheduler newScheduler(int deviceCount) {
+        return new DynamicShardScheduler(deviceCount, durationsFile, resultsDir, new MockLog());
+    }
+
+    private static List<String> runAll(DynamicShardScheduler scheduler, String deviceName) {
+        List<String> classNames = new ArrayList<>();
+        DynamicShardScheduler.TestUnit unit;
+        while ((unit = scheduler.nextUnit(deviceName)) != null) {
+            classNames.add(unit.getClassName());
+            scheduler.unitFinished(unit, true);
+        }
+        return classNames;
+    }
+
+    /** Returns two test methods for each class. */
+    private static List<TestIdentifier> listTests(String... classNames) {
+        List<TestIdentifier> tests = new ArrayList<>();
+        for (String className : classNames) {
+            tests.add(new TestIdentifier(className, "test1"));
+            tests.add(new TestIdentifier(className, "test2"));
+        }
+        return Collections.unmodifiableList(tests);
+    }
+}
@@ -19,11 +19,20 @@ package com.android.builder.merge;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /** Test cases for {@link IncrementalFileMergerState}. */
 public class IncrementalFileMergerStateTest {
 
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testChangeStates() {
         IncrementalFileMergerState firstState = new IncrementalFileMergerState();
@@ -71,4 +80,115 @@ public class IncrementalFileMergerStateTest {
         assertThat(fourthState.inputsFor("path2")).containsExactly("input1");
         assertThat(fourthState.inputsFor("path3")).hasSize(0);
     }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        IncrementalFileMergerState.Builder builder =
+                new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(ImmutableList.of("input1", "input2", "input\u00e9"));
+        builder.set("com/example/a.txt", ImmutableList.of("input1", "input2"));
+        builder.set("com/example/b.txt", ImmutableList.of("input2"));
+        builder.set("com/example/\u00e9t\u00e9.txt", ImmutableList.of("input\u00e9"));
+        builder.set("com/example/\u00e9t\u00e9/x.txt", ImmutableList.of("input1"));
+        builder.set("META-INF/LICENSE", ImmutableList.of("input\u00e9", "input1"));
+        IncrementalFileMergerState state = builder.build();
+
+        File file = temporaryFolder.newFile();
+        state.save(file);
+        IncrementalFileMergerState loaded = IncrementalFileMergerState.load(file);
+
+        assertThat(loaded).isNotNull();
+        assertThat(loaded.getInputNames())
+                .containsExactly("input1", "input2", "input\u00e9")
+                .inOrder();
+        assertThat(loaded.inputsFor("com/example/a.txt"))
+                .containsExactly("input1", "input2")
+                .inOrder();
+        assertThat(loaded.inputsFor("com/example/b.txt")).containsExactly("input2");
+        assertThat(loaded.inputsFor("com/example/\u00e9t\u00e9.txt"))
+                .containsExactly("input\u00e9");
+        assertThat(loaded.inputsFor("com/example/\u00e9t\u00e9/x.txt")).containsExactly("input1");
+        assertThat(loaded.inputsFor("META-INF/LICENSE"))
+                .containsExactly("input\u00e9", "input1")
+                .inOrder();
+        assertThat(loaded.inputsFor("com/example/c.txt")).isEmpty();
+        assertThat(loaded.filesOf("input1"))
+                .containsExactly(
+                        "com/example/a.txt", "com/example/\u00e9t\u00e9/x.txt", "META-INF/LICENSE");
+        assertThat(loaded.filesOf("input2"))
+                .containsExactly("com/example/a.txt", "com/example/b.txt");
+    }
+
+    @Test
+    public void testLoadOtherFormat() throws Exception {
+        File file = temporaryFolder.newFile();
+        try (ObjectOutputStream o = new ObjectOutputStream(new FileOutputStream(file))) {
+            o.writeObject(new IncrementalFileMergerState());
+        }
+
+        assertThat(IncrementalFileMergerState.load(file)).isNull();
+    }
+
+    @Test
+    public void testUnchangedStateIsReused() {
+        IncrementalFileMergerState.Builder builder =
+                new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(ImmutableList.of("input1", "input2"));
+        builder.set("path1", ImmutableList.of("input1", "input2"));
+        IncrementalFileMergerState state = builder.build();
+
+        builder = new IncrementalFileMergerState.Builder(state);
+        builder.setInputNames(ImmutableList.of("input1", "input2"));
+        builder.set("path1", ImmutableList.of("input1", "input2"));
+        builder.remove("path2");
+        assertThat(builder.build()).isSameAs(state);
+
+        builder = new IncrementalFileMergerState.Builder(state);
+        builder.set("path1", ImmutableList.of("input2"));
+        builder.set("path1", ImmutableList.of("input1", "input2"));
+        assertThat(builder.build()).isSameAs(state);
+
+        // Reordering inputs changes the state even if no path changed.
+        builder = new IncrementalFileMergerState.Builder(state);
+        builder.setInputNames(ImmutableList.of("input2", "input1"));
+        IncrementalFileMergerState reordered = builder.build();
+        assertThat(reordered).isNotSameAs(state);
+        assertThat(reordered.inputsFor("path1")).containsExactly("input1", "input2").inOrder();
+    }
+
+    /**
+     * A no-op merge of a large state is a load, a builder that records no change and no save. This
+     * is used to check the cost of each step with a realistic number of Java resources.
+     */
+    @Test
+    public void testNoOpMergeOfManyPaths() throws Exception {
+        List<String> inputNames = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            inputNames.add("/path/to/library" + i + ".jar");
+        }
+
+        IncrementalFileMergerState.Builder builder =
+                new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(inputNames);
+        for (int i = 0; i < 100_000; i++) {
+            builder.set(
+                    "com/example/library" + (i % 100) + "/resources/file" + i + ".properties",
+                    ImmutableList.of(inputNames.get(i % 100)));
+        }
+        IncrementalFileMergerState state = builder.build();
+
+        File file = temporaryFolder.newFile();
+        state.save(file);
+        IncrementalFileMergerState loaded = IncrementalFileMergerState.load(file);
+        assertThat(loaded).isNotNull();
+
+        IncrementalFileMergerState.Builder noOpBuilder =
+                new IncrementalFileMergerState.Builder(loaded);
+        noOpBuilder.setInputNames(inputNames);
+        assertThat(noOpBuilder.build()).isSameAs(loaded);
+
+        assertThat(loaded.filesOf(inputNames.get(42))).hasSize(1000);
+        assertThat(loaded.inputsFor("com/example/library7/resources/file12307.properties"))
+                .containsExactly(inputNames.get(7));
+    }
 }
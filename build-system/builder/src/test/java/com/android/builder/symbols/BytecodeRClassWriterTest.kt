@@ -34,6 +34,7 @@ import java.lang.reflect.Field
 import java.net.URLClassLoader
 import java.nio.file.Files
 import java.nio.file.Path
+import java.util.zip.ZipInputStream
 import javax.tools.JavaFileObject
 import javax.tools.ToolProvider
 import kotlin.streams.toList
@@ -180,6 +181,68 @@ class BytecodeRClassWriterTest {
         }
     }
 
+    @Test
+    fun exportIncrementallyTest() {
+        val rJar = mTemporaryFolder.root.toPath().resolve("R.jar")
+        val stateDir = mTemporaryFolder.root.toPath().resolve("state")
+
+        val libSymbols = SymbolTable.builder()
+                .tablePackage("com.example.foo.lib")
+                .add(Symbol.createSymbol(ResourceType.STRING, "libstring", SymbolJavaType.INT, "0x4"))
+                .build()
+        val otherLibSymbols = SymbolTable.builder()
+                .tablePackage("com.example.foo.otherlib")
+                .add(Symbol.createSymbol(ResourceType.ID, "other", SymbolJavaType.INT, "0x5"))
+                .build()
+        val appSymbols = SymbolTable.builder()
+                .tablePackage("com.example.foo.app")
+                .add(Symbol.createSymbol(ResourceType.ATTR, "beep", SymbolJavaType.INT, "0x1"))
+                .add(Symbol.createSymbol(ResourceType.ID, "foo", SymbolJavaType.INT, "0x2"))
+                .add(Symbol.createSymbol(ResourceType.STRING, "libstring", SymbolJavaType.INT, "0x4"))
+                .build()
+
+        exportToCompiledJavaIncrementally(
+                listOf(appSymbols, libSymbols, otherLibSymbols), rJar, stateDir)
+        assertThat(readEntries(rJar)).isEqualTo(
+                readEntries(export(listOf(appSymbols, libSymbols, otherLibSymbols))))
+        val initialEntries = readEntries(rJar)
+
+        // Change an id, remove the attrs, add a drawable and drop a library.
+        val newAppSymbols = SymbolTable.builder()
+                .tablePackage("com.example.foo.app")
+                .add(Symbol.createSymbol(ResourceType.ID, "foo", SymbolJavaType.INT, "0x3"))
+                .add(Symbol.createSymbol(ResourceType.DRAWABLE, "bar", SymbolJavaType.INT, "0x6"))
+                .add(Symbol.createSymbol(ResourceType.STRING, "libstring", SymbolJavaType.INT, "0x4"))
+                .build()
+        exportToCompiledJavaIncrementally(listOf(newAppSymbols, libSymbols), rJar, stateDir)
+
+        val entries = readEntries(rJar)
+        assertThat(entries).isEqualTo(readEntries(export(listOf(newAppSymbols, libSymbols))))
+        // The classes whose symbols did not change are the ones from the first export.
+        for (unchanged in listOf(
+                "com/example/foo/app/R\$string.class",
+                "com/example/foo/lib/R.class",
+                "com/example/foo/lib/R\$string.class")) {
+            assertThat(entries[unchanged]).isEqualTo(initialEntries[unchanged])
+        }
+    }
+
+    @Test
+    fun exportIncrementallyWithoutStateTest() {
+        val rJar = mTemporaryFolder.root.toPath().resolve("R.jar")
+        val stateDir = mTemporaryFolder.root.toPath().resolve("state")
+        val symbols = SymbolTable.builder()
+                .tablePackage("com.example.foo")
+                .add(Symbol.createSymbol(ResourceType.ID, "foo", SymbolJavaType.INT, "0x0"))
+                .build()
+
+        // A jar without saved state is written from scratch.
+        Files.write(rJar, byteArrayOf(1, 2, 3))
+        exportToCompiledJavaIncrementally(listOf(symbols), rJar, stateDir)
+        assertThat(readEntries(rJar)).isEqualTo(readEntries(export(listOf(symbols))))
+        assertThat(Files.isDirectory(stateDir)).isTrue()
+    }
+
     @Test
     fun testParseArrayLiteral() {
         assertThat(parseArrayLiteral(0, "{}").asList()).isEmpty()
@@ -213,6 +276,23 @@ class BytecodeRClassWriterTest {
         assertThat(valueStringToInt("0x7f04002c")).isEqualTo(0x7f04002c)
     }
 
+    private fun export(tables: List<SymbolTable>): Path {
+        val jar = mTemporaryFolder.newFolder().toPath().resolve("R.jar")
+        exportToCompiledJava(tables, jar)
+        return jar
+    }
+
+    private fun readEntries(jar: Path): Map<String, List<Byte>> {
+        val entries = HashMap<String, List<Byte>>()
+        ZipInputStream(Files.newInputStream(jar)).use { zip ->
+            while (true) {
+                val entry = zip.nextEntry ?: break
+                entries.put(entry.name, zip.readBytes().toList())
+            }
+        }
+        return entries
+    }
+
     private fun loadFields(classLoader: ClassLoader, name: String) =
             classLoader.loadClass(name)
                     .fields
@@ -27,6 +27,7 @@ import com.android.repository.Revision;
 import com.android.testutils.concurrency.ConcurrencyTester;
 import com.android.utils.FileUtils;
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
@@ -36,6 +37,7 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import org.junit.Before;
@@ -885,6 +887,143 @@ public class FileCacheTest {
         assertThat(cacheDir).doesNotExist();
     }
 
+    @Test
+    public void testEvictLeastRecentlyUsedEntries() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithMultiProcessLocking(cacheDir);
+        FileCache.Inputs inputs1 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo1")
+                        .build();
+        FileCache.Inputs inputs2 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo2")
+                        .build();
+        FileCache.Inputs inputs3 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo3")
+                        .build();
+        for (FileCache.Inputs inputs : new FileCache.Inputs[] {inputs1, inputs2, inputs3}) {
+            fileCache.createFileInCacheIfAbsent(
+                    inputs,
+                    (outputFile) -> writeStringToFile(Strings.repeat("x", 100), outputFile));
+        }
+        fileCache.createFileInCacheIfAbsent(inputs1, (outputFile) -> {});
+        assertThat(fileCache.getMisses()).isEqualTo(3);
+        assertThat(fileCache.getHits()).isEqualTo(1);
+
+        // The accesses are buffered until they are flushed
+        File indexFile = fileCache.getIndexFile();
+        assertThat(indexFile).doesNotExist();
+        fileCache.flushAccesses();
+
+        // The index file is placed next to the cache directory and records the entries' sizes
+        assertThat(indexFile.getParentFile()).isEqualTo(cacheDir.getParentFile());
+        Map<String, FileCacheIndex.Entry> entries = FileCacheIndex.read(indexFile);
+        assertThat(entries.keySet())
+                .containsExactly(inputs1.getKey(), inputs2.getKey(), inputs3.getKey());
+        long entrySize = entries.get(inputs1.getKey()).getSize();
+        assertThat(entrySize).isGreaterThan(100L);
+        assertThat(entries.get(inputs2.getKey()).getSize()).isEqualTo(entrySize);
+
+        // Make the second cache entry the least recently used one
+        long now = System.currentTimeMillis();
+        FileCacheIndex.recordAccess(
+                indexFile, inputs1.getKey(), FileCacheIndex.UNKNOWN_SIZE, now + 3000);
+        FileCacheIndex.recordAccess(
+                indexFile, inputs2.getKey(), FileCacheIndex.UNKNOWN_SIZE, now + 1000);
+        FileCacheIndex.recordAccess(
+                indexFile, inputs3.getKey(), FileCacheIndex.UNKNOWN_SIZE, now + 2000);
+
+        // Check that nothing is evicted if the cache is within budget
+        fileCache.evictLeastRecentlyUsedEntries(3 * entrySize);
+        assertThat(fileCache.getEvictedEntries()).isEqualTo(0);
+
+        fileCache.evictLeastRecentlyUsedEntries(2 * entrySize);
+        File cacheEntryDir2 = fileCache.getFileInCache(inputs2).getParentFile();
+        assertThat(SynchronizedFile.getLockFile(cacheEntryDir2)).doesNotExist();
+        assertThat(fileCache.cacheEntryExists(inputs1)).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputs2)).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputs3)).isTrue();
+        assertThat(fileCache.getEvictedEntries()).isEqualTo(1);
+        assertThat(fileCache.getEvictedBytes()).isEqualTo(entrySize);
+        assertThat(FileCacheIndex.read(indexFile).keySet())
+                .containsExactly(inputs1.getKey(), inputs3.getKey());
+
+        // Check that cache entries missing from the index are measured and evicted too
+        FileUtils.delete(indexFile);
+        fileCache.evictLeastRecentlyUsedEntries(0);
+        assertThat(fileCache.cacheEntryExists(inputs1)).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputs3)).isFalse();
+        assertThat(fileCache.getEvictedEntries()).isEqualTo(3);
+        assertThat(fileCache.getEvictedBytes()).isEqualTo(3 * entrySize);
+        assertThat(FileCacheIndex.read(indexFile)).isEmpty();
+
+        // Check that a corrupted index file is ignored and then replaced
+        writeStringToFile("Corrupted index", indexFile);
+        fileCache.createFileInCacheIfAbsent(inputs1, (outputFile) -> {});
+        fileCache.flushAccesses();
+        assertThat(FileCacheIndex.read(indexFile).keySet()).containsExactly(inputs1.getKey());
+
+        fileCache.delete();
+        assertThat(indexFile).doesNotExist();
+    }
+
+    @Test
+    public void testInProcessIndex() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithMultiProcessLocking(cacheDir);
+        FileCache indexedCache = fileCache.withInProcessIndex();
+        FileCache otherIndexedCache =
+                FileCache.getInstanceWithMultiProcessLocking(cacheDir).withInProcessIndex();
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+        File outputFile = new File(outputDir, "output");
+        File cacheEntryDir = fileCache.getFileInCache(inputs).getParentFile();
+        File lockFile = SynchronizedFile.getLockFile(cacheEntryDir);
+
+        indexedCache.createFile(
+                outputFile, inputs, () -> writeStringToFile("Some text", outputFile));
+        assertThat(indexedCache.getMisses()).isEqualTo(1);
+
+        // Check that hits on a known cache entry do not lock the cache entry, including from
+        // another instance of the same cache directory
+        FileUtils.delete(lockFile);
+        FileUtils.delete(outputFile);
+        otherIndexedCache.createFile(
+                outputFile, inputs, () -> fail("This statement should not be executed"));
+        assertThat(otherIndexedCache.getHits()).isEqualTo(1);
+        assertThat(outputFile).hasContents("Some text");
+        assertThat(indexedCache.cacheEntryExists(inputs)).isTrue();
+        assertThat(lockFile).doesNotExist();
+
+        // Check that a cache entry recreated by another thread/process is checked again
+        fileCache.deleteOldCacheEntries(System.currentTimeMillis());
+        fileCache.createFile(outputFile, inputs, () -> writeStringToFile("Other text", outputFile));
+        File inputsFile = new File(cacheEntryDir, "inputs");
+        inputsFile.setLastModified(inputsFile.lastModified() - 10_000);
+        indexedCache.createFile(
+                outputFile, inputs, () -> fail("This statement should not be executed"));
+        assertThat(indexedCache.getHits()).isEqualTo(1);
+        assertThat(outputFile).hasContents("Other text");
+        assertThat(lockFile).exists();
+
+        // Check that a cache entry deleted by another thread/process is recreated
+        fileCache.deleteOldCacheEntries(System.currentTimeMillis());
+        assertThat(indexedCache.cacheEntryExists(inputs)).isFalse();
+        indexedCache.createFile(
+                outputFile, inputs, () -> writeStringToFile("New text", outputFile));
+        assertThat(indexedCache.getMisses()).isEqualTo(2);
+        assertThat(outputFile).hasContents("New text");
+
+        // Check that deleting the cache through an indexed instance clears the index
+        otherIndexedCache.delete();
+        indexedCache.createFile(
+                outputFile, inputs, () -> writeStringToFile("Last text", outputFile));
+        assertThat(indexedCache.getMisses()).isEqualTo(3);
+        assertThat(outputFile).hasContents("Last text");
+    }
+
     @Test
     public void testDeleteFileCache() throws IOException {
         FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
@@ -22,6 +22,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.options.BooleanOption;
+import com.android.build.gradle.options.LongOption;
 import com.android.build.gradle.options.ProjectOptions;
 import com.android.build.gradle.options.StringOption;
 import com.android.builder.model.Version;
@@ -66,6 +67,13 @@ public final class BuildCacheUtils {
      */
     private static final long CACHE_DIRECTORY_DAYS_TO_LIVE = 30;
 
+    /**
+     * The default maximum total size in megabytes of the cache entries created by the current
+     * plugin version, beyond which the least recently used cache entries are deleted (see {@link
+     * LongOption#BUILD_CACHE_MAX_SIZE_MB}).
+     */
+    private static final long DEFAULT_CACHE_MAX_SIZE_MB = 10 * 1024;
+
     /**
      * The number of days until the next cache eviction is performed. This is to avoid running cache
      * eviction too frequently (e.g., with every build).
@@ -176,8 +184,10 @@ public final class BuildCacheUtils {
                 shouldRunCacheEviction(
                         buildCache, Duration.ofDays(DAYS_BETWEEN_CACHE_EVICTION_RUNS));
         if (shouldRunCacheEviction) {
-            // 1. Delete old cache entries created by the current plugin version
+            // 1. Delete old cache entries created by the current plugin version, then the least
+            // recently used ones if the remaining ones exceed the size budget
             deleteOldCacheEntries(buildCache, Duration.ofDays(CACHE_ENTRY_DAYS_TO_LIVE));
+            evictLeastRecentlyUsedEntries(buildCache, getCacheMaxSizeInBytes(projectOptions));
 
             // 2. Delete old cache directories created by previous plugin versions (back to and
             // including 3.1.x)
@@ -202,6 +212,15 @@ public final class BuildCacheUtils {
                                             Duration.ofDays(CACHE_DIRECTORY_DAYS_TO_LIVE)));
         }
 
+        // Record the accesses to the cache entries that the cache buffers in memory at the end of
+        // the build, so that cache eviction in other builds takes them into account. Each project
+        // has its own FileCache instance, hence its own buffer.
+        BuildSessionImpl.getSingleton()
+                .executeOnceWhenBuildFinished(
+                        actionGroup,
+                        "flushBuildCacheAccesses@" + project.getPath(),
+                        buildCache::flushAccesses);
+
         // Mark that the current cache was last used at this point
         updateMarkerFile(new File(buildCache.getCacheDirectory(), CACHE_USE_MARKER_FILE_NAME));
 
@@ -262,6 +281,27 @@ public final class BuildCacheUtils {
                 System.currentTimeMillis() - cacheEntryLifeTime.toMillis());
     }
 
+    /**
+     * Returns the maximum total size in bytes of the cache entries created by the current plugin
+     * version, which the user may set with {@link LongOption#BUILD_CACHE_MAX_SIZE_MB}.
+     */
+    @VisibleForTesting
+    static long getCacheMaxSizeInBytes(@NonNull ProjectOptions projectOptions) {
+        Long maxSizeInMb = projectOptions.get(LongOption.BUILD_CACHE_MAX_SIZE_MB);
+        return (maxSizeInMb != null ? maxSizeInMb : DEFAULT_CACHE_MAX_SIZE_MB) * 1024 * 1024;
+    }
+
+    /**
+     * Deletes the least recently used cache entries in the given cache directory until the total
+     * size of the cache entries is at most the given size.
+     */
+    @VisibleForTesting
+    static void evictLeastRecentlyUsedEntries(@NonNull FileCache buildCache, long maxSizeInBytes) {
+        // Like in deleteOldCacheEntries(), another thread/process may be doing the same, which is
+        // fine as the method call below is thread-safe and process-safe.
+        buildCache.evictLeastRecentlyUsedEntries(maxSizeInBytes);
+    }
+
     /**
      * Deletes all the private cache directories in the given shared cache directory that were
      * created by previous plugin versions and have not been used for the specified life time or
@@ -36,7 +36,7 @@ import org.gradle.api.artifacts.transform.ArtifactTransform;
 
 /**
  * Transform that extracts the package name from the manifest and combines it with the r.txt symbol
- * table.
+ * table, in the binary format read by {@link SymbolIo#readTableWithPackage(Path)}.
  *
  * <p>This means that one artifact contains all the information needed to build a {@link
  * SymbolTable} for {@link LinkApplicationAndroidResourcesTask}
@@ -66,8 +66,8 @@ public class LibrarySymbolTableTransform extends ArtifactTransform {
         // May not exist in some AARs. e.g. the multidex support library.
         Path rTxt = explodedAar.resolve(FN_RESOURCE_TEXT);
         Files.createDirectories(outputDirectory);
-        Path outputFile = outputDirectory.resolve("package-aware-r.txt");
-        SymbolIo.writeSymbolTableWithPackage(rTxt, manifest, outputFile);
+        Path outputFile = outputDirectory.resolve("package-aware-r.bin");
+        SymbolIo.writeBinarySymbolTableWithPackage(rTxt, manifest, outputFile);
         return outputFile;
     }
 }
@@ -113,7 +113,8 @@ open class GenerateLibraryRFileTask : ProcessAndroidResources() {
                 proguardOut = proguardOutputFile,
                 mergedResources = inputResourcesDir.singleFile,
                 platformSymbols = androidAttrSymbol,
-                disableMergeInLib = true)
+                disableMergeInLib = true,
+                incrementalDir = incrementalFolder)
 
         SymbolIo.writeSymbolTableWithPackage(
                 textSymbolOutputFile.toPath(),
@@ -157,6 +158,7 @@ open class GenerateLibraryRFileTask : ProcessAndroidResources() {
             if (variantScope.globalScope.projectOptions.get(BooleanOption.ENABLE_SEPARATE_R_CLASS_COMPILATION)) {
                 val rJar = File(variantScope.getIntermediateDir(TaskOutputHolder.TaskOutputType.COMPILE_ONLY_NOT_NAMESPACED_R_CLASS_JAR), "R.jar")
                 task.rClassOutputJar = rJar
+                task.incrementalFolder = variantScope.getIncrementalDir(name)
                 variantScope.addTaskOutput(
                         TaskOutputHolder.TaskOutputType.COMPILE_ONLY_NOT_NAMESPACED_R_CLASS_JAR,
                         rJar,
@@ -392,6 +392,7 @@ public class DeviceProviderInstrumentTestTask extends AndroidBuilderTask
                     scope.getGlobalScope().getAndroidBuilder().getProcessExecutor());
 
             boolean shardBetweenDevices = projectOptions.get(BooleanOption.ENABLE_TEST_SHARDING);
+            String providerFolder = connected ? CONNECTED : DEVICE + "/" + deviceProvider.getName();
 
             switch (scope.getGlobalScope().getExtension().getTestOptions().getExecutionEnum()) {
                 case ANDROID_TEST_ORCHESTRATOR:
@@ -403,10 +404,23 @@ public class DeviceProviderInstrumentTestTask extends AndroidBuilderTask
                     if (shardBetweenDevices) {
                         Integer numShards =
                                 projectOptions.get(IntegerOption.ANDROID_TEST_SHARD_COUNT);
+                        boolean dynamicSharding =
+                                projectOptions.get(BooleanOption.ENABLE_DYNAMIC_TEST_SHARDING);
+                        // Kept in the intermediates, as the results are cleaned on each run.
+                        File testDurationsFile =
+                                FileUtils.join(
+                                        scope.getGlobalScope().getIntermediatesDir(),
+                                        "androidTest-durations",
+                                        providerFolder,
+                                        variantName + ".properties");
                         task.testRunnerFactory =
                                 (splitSelect, processExecutor) ->
                                         new ShardedTestRunner(
-                                                splitSelect, processExecutor, numShards);
+                                                splitSelect,
+                                                processExecutor,
+                                                numShards,
+                                                dynamicSharding,
+                                                testDurationsFile);
                     } else {
                         task.testRunnerFactory = SimpleTestRunner::new;
                     }
@@ -424,7 +438,6 @@ public class DeviceProviderInstrumentTestTask extends AndroidBuilderTask
             if (!flavorFolder.isEmpty()) {
                 flavorFolder = FD_FLAVORS + "/" + flavorFolder;
             }
-            String providerFolder = connected ? CONNECTED : DEVICE + "/" + deviceProvider.getName();
             final String subFolder = "/" + providerFolder + "/" + flavorFolder;
 
             task.splitSelectExec = TaskInputHelper.memoize(() -> {
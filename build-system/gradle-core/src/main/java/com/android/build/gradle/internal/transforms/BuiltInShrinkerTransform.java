@@ -33,10 +33,10 @@ import com.android.build.gradle.internal.PostprocessingFeatures;
 import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.build.gradle.internal.scope.VariantScope;
 import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.CompactShrinkerGraph;
 import com.android.build.gradle.shrinker.DependencyType;
 import com.android.build.gradle.shrinker.FullRunShrinker;
 import com.android.build.gradle.shrinker.IncrementalShrinker;
-import com.android.build.gradle.shrinker.JavaSerializationShrinkerGraph;
 import com.android.build.gradle.shrinker.ProguardConfig;
 import com.android.build.gradle.shrinker.ProguardParserKeepRules;
 import com.android.build.gradle.shrinker.ShrinkerLogger;
@@ -142,7 +142,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
         FullRunShrinker<String> shrinker =
                 new FullRunShrinker<>(
                         WaitableExecutor.useGlobalSharedThreadPool(),
-                        JavaSerializationShrinkerGraph.empty(incrementalDir),
+                        CompactShrinkerGraph.empty(incrementalDir),
                         platformJars,
                         shrinkerLogger,
                         flags.getBytecodeVersion());
@@ -240,10 +240,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
             @NonNull TransformOutputProvider output) throws IOException {
         try {
             Stopwatch stopwatch = Stopwatch.createStarted();
-            JavaSerializationShrinkerGraph graph =
-                    JavaSerializationShrinkerGraph.readFromDir(
-                            incrementalDir,
-                            this.getClass().getClassLoader());
+            CompactShrinkerGraph graph = CompactShrinkerGraph.readFromDir(incrementalDir);
             logTime("loading state", stopwatch);
 
             ProguardFlags proguardFlags = getProguardFlags();
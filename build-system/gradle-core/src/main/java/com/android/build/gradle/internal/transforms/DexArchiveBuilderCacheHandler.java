@@ -125,6 +125,37 @@ class DexArchiveBuilderCacheHandler {
                 : null;
     }
 
+    /**
+     * Returns the cache storing the dex files of single classes, or {@code null} if there is no
+     * such cache. Unlike the cache of whole dex archives, it is used for all jar inputs, as its
+     * entries are keyed by the content of the classes.
+     */
+    @Nullable
+    FileCache getClassCache() {
+        return userLevelCache;
+    }
+
+    /**
+     * Returns a key identifying all the inputs, other than the content of the class file, that
+     * affect the dex file produced for a single class.
+     *
+     * <p>It does not cover the other classes of the jar, so it must not be used when D8
+     * desugars the jar, as the dex file of a class then depends on its supertypes in the jar.
+     */
+    @NonNull
+    String getClassCacheConfigurationKey() throws IOException {
+        FileCache.Inputs.Builder buildCacheInputs =
+                new FileCache.Inputs.Builder(FileCache.Command.PREDEX_CLASS_TO_DEX, cacheSession);
+        putDexingParameters(
+                buildCacheInputs,
+                dexOptions,
+                dexer,
+                minSdkVersion,
+                isDebuggable,
+                Collections.emptyList());
+        return buildCacheInputs.build().getKey();
+    }
+
     void populateCache(@NonNull Collection<CacheableItem> cacheableItems)
             throws IOException, ExecutionException {
 
@@ -267,11 +298,28 @@ class DexArchiveBuilderCacheHandler {
                 new FileCache.Inputs.Builder(
                         FileCache.Command.PREDEX_LIBRARY_TO_DEX_ARCHIVE, cacheSession);
 
+        buildCacheInputs.putFile(
+                FileCacheInputParams.FILE.name(), inputFile, FileCache.FileProperties.PATH_HASH);
+        putDexingParameters(
+                buildCacheInputs,
+                dexOptions,
+                dexerTool,
+                minSdkVersion,
+                isDebuggable,
+                extraDependencies);
+
+        return buildCacheInputs.build();
+    }
+
+    private static void putDexingParameters(
+            @NonNull FileCache.Inputs.Builder buildCacheInputs,
+            @NonNull DexOptions dexOptions,
+            @NonNull DexerTool dexerTool,
+            int minSdkVersion,
+            boolean isDebuggable,
+            @NonNull List<Path> extraDependencies)
+            throws IOException {
         buildCacheInputs
-                .putFile(
-                        FileCacheInputParams.FILE.name(),
-                        inputFile,
-                        FileCache.FileProperties.PATH_HASH)
                 .putString(FileCacheInputParams.DX_VERSION.name(), Version.VERSION)
                 .putBoolean(FileCacheInputParams.JUMBO_MODE.name(), isJumboModeEnabledForDx())
                 .putBoolean(
@@ -300,8 +348,6 @@ class DexArchiveBuilderCacheHandler {
                 throw new IOException("Unsupported file '" + path.toString() + "'");
             }
         }
-
-        return buildCacheInputs.build();
     }
 
     /** Jumbo mode is always enabled for dex archives - see http://b.android.com/321744 */
@@ -267,7 +267,9 @@ public class DexArchiveBuilderTransform extends Transform {
                             classFileProviderFactory,
                             bootclasspath,
                             classpath,
-                            additionalPaths);
+                            additionalPaths,
+                            null,
+                            null);
                 }
 
                 for (JarInput jarInput : input.getJarInputs()) {
@@ -498,6 +500,16 @@ public class DexArchiveBuilderTransform extends Transform {
                 return ImmutableList.of();
             }
         }
+
+        // Even if the whole jar is not cached, most of its classes might be, e.g. for a snapshot
+        // library or a local jar where only a few classes changed. This is not done when D8
+        // desugars the jar, as the dex file of a class then also depends on its supertypes, which
+        // might be other classes of the same jar.
+        FileCache classCache = cacheHandler.getClassCache();
+        String classCacheKey = null;
+        if (java8LangSupportType != VariantScope.Java8LangSupport.D8 && classCache != null) {
+            classCacheKey = cacheHandler.getClassCacheConfigurationKey();
+        }
         return convertToDexArchive(
                 context,
                 toConvert,
@@ -506,7 +518,9 @@ public class DexArchiveBuilderTransform extends Transform {
                 classFileProviderFactory,
                 bootclasspath,
                 classpath,
-                ImmutableSet.of());
+                ImmutableSet.of(),
+                classCacheKey != null ? classCache.getCacheDirectory() : null,
+                classCacheKey);
     }
 
     public static class DexConversionParameters implements Serializable {
@@ -527,6 +541,8 @@ public class DexArchiveBuilderTransform extends Transform {
         private final VariantScope.Java8LangSupport java8LangSupportType;
         @NonNull private final Set<File> additionalPaths;
         @Nonnull private final MessageReceiver messageReceiver;
+        @Nullable private final File classCacheDirectory;
+        @Nullable private final String classCacheKey;
 
         public DexConversionParameters(
                 @NonNull QualifiedContent input,
@@ -545,7 +561,9 @@ public class DexArchiveBuilderTransform extends Transform {
                 @NonNull ClassFileProviderFactory classFileProviderFactory,
                 @NonNull VariantScope.Java8LangSupport java8LangSupportType,
                 @NonNull Set<File> additionalPaths,
-                @Nonnull MessageReceiver messageReceiver) {
+                @Nonnull MessageReceiver messageReceiver,
+                @Nullable File classCacheDirectory,
+                @Nullable String classCacheKey) {
             this.input = input;
             this.bootClasspath = bootClasspath;
             this.classpath = classpath;
@@ -563,6 +581,8 @@ public class DexArchiveBuilderTransform extends Transform {
             this.java8LangSupportType = java8LangSupportType;
             this.additionalPaths = additionalPaths;
             this.messageReceiver = messageReceiver;
+            this.classCacheDirectory = classCacheDirectory;
+            this.classCacheKey = classCacheKey;
         }
 
         public boolean belongsToThisBucket(String path) {
@@ -678,7 +698,9 @@ public class DexArchiveBuilderTransform extends Transform {
             @NonNull ClassFileProviderFactory classFileProviderFactory,
             @NonNull List<String> bootClasspath,
             @NonNull List<String> classpath,
-            @NonNull Set<File> additionalPaths)
+            @NonNull Set<File> additionalPaths,
+            @Nullable File classCacheDirectory,
+            @Nullable String classCacheKey)
             throws Exception {
 
         logger.verbose("Dexing %s", input.getFile().getAbsolutePath());
@@ -706,7 +728,9 @@ public class DexArchiveBuilderTransform extends Transform {
                             classFileProviderFactory,
                             java8LangSupportType,
                             additionalPaths,
-                            new SerializableMessageReceiver(messageReceiver));
+                            new SerializableMessageReceiver(messageReceiver),
+                            classCacheDirectory,
+                            classCacheKey);
 
             if (useGradleWorkers) {
                 context.getWorkerExecutor()
@@ -771,6 +795,16 @@ public class DexArchiveBuilderTransform extends Transform {
                         errStream,
                         receiver);
 
+        if (dexConversionParameters.classCacheDirectory != null
+                && dexConversionParameters.classCacheKey != null) {
+            dexArchiveBuilder =
+                    DexArchiveBuilder.createCachingDexBuilder(
+                            dexArchiveBuilder,
+                            FileCache.getInstanceWithMultiProcessLocking(
+                                    dexConversionParameters.classCacheDirectory),
+                            dexConversionParameters.classCacheKey);
+        }
+
         Path inputPath = dexConversionParameters.input.getFile().toPath();
         Predicate<String> bucketFilter = dexConversionParameters::belongsToThisBucket;
 
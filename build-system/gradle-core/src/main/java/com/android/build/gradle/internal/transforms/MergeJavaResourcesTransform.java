@@ -53,11 +53,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -189,7 +185,7 @@ public class MergeJavaResourcesTransform extends Transform {
     /**
      * Loads the incremental state.
      *
-     * @return {@code null} if the state is not defined
+     * @return {@code null} if the state is not defined, or was saved in an older format
      * @throws IOException failed to load the incremental state
      */
     @Nullable
@@ -199,11 +195,7 @@ public class MergeJavaResourcesTransform extends Transform {
             return null;
         }
 
-        try (ObjectInputStream i = new ObjectInputStream(new FileInputStream(incrementalFile))) {
-            return (IncrementalFileMergerState) i.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IOException(e);
-        }
+        return IncrementalFileMergerState.load(incrementalFile);
     }
 
     /**
@@ -216,9 +208,7 @@ public class MergeJavaResourcesTransform extends Transform {
         File incrementalFile = incrementalStateFile();
 
         FileUtils.mkdirs(incrementalFile.getParentFile());
-        try (ObjectOutputStream o = new ObjectOutputStream(new FileOutputStream(incrementalFile))) {
-            o.writeObject(state);
-        }
+        state.save(incrementalFile);
     }
 
     @Override
@@ -408,8 +398,13 @@ public class MergeJavaResourcesTransform extends Transform {
             }
         };
 
-        state = IncrementalFileMerger.merge(ImmutableList.copyOf(inputs), output, state);
-        saveMergeState(state);
+        IncrementalFileMergerState newState =
+                IncrementalFileMerger.merge(ImmutableList.copyOf(inputs), output, state);
+        // The merger returns the same state if nothing changed, in which case the saved state is
+        // already up to date.
+        if (newState != state || full) {
+            saveMergeState(newState);
+        }
 
         cacheUpdates.forEach(Runnable::run);
     }
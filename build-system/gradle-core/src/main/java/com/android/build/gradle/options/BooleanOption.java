@@ -28,6 +28,7 @@ public enum BooleanOption implements Option<Boolean> {
     ENABLE_PROFILE_JSON("android.enableProfileJson", false),
     ENABLE_SDK_DOWNLOAD("android.builder.sdkDownload", true),
     ENABLE_TEST_SHARDING("android.androidTest.shardBetweenDevices"),
+    ENABLE_DYNAMIC_TEST_SHARDING("android.androidTest.dynamicSharding"),
     ENABLE_DEX_ARCHIVE("android.useDexArchive", true),
 
     ENABLE_IMPROVED_DEPENDENCY_RESOLUTION("android.enableImprovedDependenciesResolution", true),
@@ -22,6 +22,7 @@ import com.android.build.gradle.internal.errors.DeprecationReporter;
 
 public enum LongOption implements Option<Long> {
     DEPRECATED_NDK_COMPILE_LEASE("android.deprecatedNdkCompileLease"),
+    BUILD_CACHE_MAX_SIZE_MB("android.buildCacheMaxSizeMb"),
     ;
 
     @NonNull private final String propertyName;
@@ -0,0 +1,1034 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.android.build.gradle.shrinker.AbstractShrinker.isSdkPackage;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.build.gradle.internal.incremental.ByteCodeUtils;
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.ide.common.util.CompactBinaryFormat;
+import com.android.utils.FileUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link ShrinkerGraph} implementation that interns node names to int ids and keeps the graph in
+ * primitive arrays indexed by these ids. Nodes are still represented by their names in the API.
+ *
+ * <p>The saved state is a binary file where everything but the node names is stored as
+ * fixed-width ints, so that they can be copied in bulk to int arrays. The names, flags, modifiers
+ * and counters of the nodes are read when the graph is loaded, but the class hierarchy and the
+ * outgoing edges of a node are only decoded when the node is first accessed. Nodes that were never accessed are
+ * written back as they were read.
+ *
+ * <p>The data of a node is guarded by one of a fixed number of locks, picked by the node id.
+ */
+public class CompactShrinkerGraph implements ShrinkerGraph<String> {
+
+    /** Identifies the state file. Bump the version when the format or DependencyType changes. */
+    private static final int MAGIC = 0x53475246;
+
+    private static final int VERSION = 1;
+
+    private static final String STATE_FILE_NAME = "shrinker-graph.bin";
+
+    /** Name of the Java-serialized state file written by older versions of the shrinker. */
+    private static final String LEGACY_STATE_FILE_NAME = "shrinker.bin";
+
+    private static final int NONE = -1;
+
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final int LOCK_COUNT = 64;
+
+    /** Number of low bits of a packed dependency used for its {@link DependencyType}. */
+    private static final int TYPE_BITS = 3;
+
+    private static final DependencyType[] DEPENDENCY_TYPES = DependencyType.values();
+
+    private static final int MAX_NODES = 1 << (Integer.SIZE - 1 - TYPE_BITS);
+
+    private static final int FLAG_CLASS = 1;
+    private static final int FLAG_PROGRAM_CLASS = 2;
+    private static final int FLAG_MEMBER = 4;
+
+    private static final int INTERFACES = 0;
+    private static final int MEMBERS = 1;
+    private static final int ANNOTATIONS = 2;
+    private static final int TYPES_FROM_SIGNATURES = 3;
+    private static final int DEPENDENCIES = 4;
+    private static final int LIST_COUNT = 5;
+
+    private static final int REQUIRED = 0;
+    private static final int IF_CLASS_KEPT = 1;
+    private static final int CLASS_IS_KEPT = 2;
+    private static final int SUPERINTERFACE_KEPT = 3;
+    private static final int INTERFACE_IMPLEMENTED = 4;
+    private static final int COUNTER_FIELDS = 5;
+
+    private static final int COUNTERS_PER_NODE = COUNTER_FIELDS * CounterSet.values().length;
+
+    private static final int[] EMPTY = new int[0];
+
+    static {
+        checkState(DEPENDENCY_TYPES.length <= 1 << TYPE_BITS);
+    }
+
+    /** Data of {@link #SEGMENT_SIZE} consecutive nodes. Segments never move once created. */
+    private static final class Segment {
+        final String[] names = new String[SEGMENT_SIZE];
+        final int[] flags = new int[SEGMENT_SIZE];
+        final int[] modifiers = new int[SEGMENT_SIZE];
+        final int[] counters = new int[SEGMENT_SIZE * COUNTERS_PER_NODE];
+        final File[] classFiles = new File[SEGMENT_SIZE];
+        final boolean[] decoded = new boolean[SEGMENT_SIZE];
+        final int[] superclasses = new int[SEGMENT_SIZE];
+        final int[][][] lists = new int[LIST_COUNT][SEGMENT_SIZE][];
+        final int[][] sizes = new int[LIST_COUNT][SEGMENT_SIZE];
+
+        Segment() {
+            Arrays.fill(superclasses, NONE);
+        }
+    }
+
+    private final File mStateDir;
+
+    private final ConcurrentMap<String, Integer> mIds = Maps.newConcurrentMap();
+
+    private final Object[] mLocks = new Object[LOCK_COUNT];
+
+    private final Object mGrowLock = new Object();
+
+    private volatile Segment[] mSegments = new Segment[0];
+
+    private volatile int mSize;
+
+    private final ConcurrentMap<String, DependencyType> mShrinkRoots = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, DependencyType> mMultidexRoots = Maps.newConcurrentMap();
+
+    /** Number of nodes read from the state file, whose records may not be decoded yet. */
+    private final int mLoadedNodeCount;
+
+    /** Start of the record of every loaded node in {@link #mRecords}, plus the end of the last. */
+    @Nullable private final IntBuffer mRecordOffsets;
+
+    @Nullable private final IntBuffer mRecords;
+
+    private CompactShrinkerGraph(@NonNull File stateDir) {
+        mStateDir = checkNotNull(stateDir);
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+        mLoadedNodeCount = 0;
+        mRecordOffsets = null;
+        mRecords = null;
+    }
+
+    private CompactShrinkerGraph(@NonNull File stateDir, @NonNull ByteBuffer buffer) {
+        mStateDir = checkNotNull(stateDir);
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IncrementalRunImpossibleException("Unsupported shrinker state format.");
+        }
+        int nodeCount = buffer.getInt();
+        checkArgument(nodeCount >= 0 && nodeCount <= MAX_NODES, "Invalid node count.");
+        Segment[] segments = new Segment[(nodeCount + SEGMENT_MASK) >>> SEGMENT_SHIFT];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+
+        for (int id = 0; id < nodeCount; id++) {
+            String name = readString(buffer);
+            checkArgument(mIds.put(name, id) == null, "Duplicate node %s.", name);
+            segments[id >>> SEGMENT_SHIFT].names[id & SEGMENT_MASK] = name;
+        }
+
+        int classFileCount = buffer.getInt();
+        for (int i = 0; i < classFileCount; i++) {
+            int id = buffer.getInt();
+            checkArgument(id >= 0 && id < nodeCount, "Invalid node id.");
+            segments[id >>> SEGMENT_SHIFT].classFiles[id & SEGMENT_MASK] =
+                    new File(readString(buffer));
+        }
+
+        IntBuffer ints = buffer.slice().asIntBuffer();
+        for (int i = 0; i < segments.length; i++) {
+            ints.get(segments[i].flags, 0, getSegmentLength(i, nodeCount));
+        }
+        for (int i = 0; i < segments.length; i++) {
+            ints.get(segments[i].modifiers, 0, getSegmentLength(i, nodeCount));
+        }
+        for (int i = 0; i < segments.length; i++) {
+            ints.get(
+                    segments[i].counters,
+                    0,
+                    getSegmentLength(i, nodeCount) * COUNTERS_PER_NODE);
+        }
+
+        for (CounterSet counterSet : CounterSet.values()) {
+            Map<String, DependencyType> roots = getRootsMap(counterSet);
+            int rootCount = ints.get();
+            for (int i = 0; i < rootCount; i++) {
+                int id = ints.get();
+                checkArgument(id >= 0 && id < nodeCount, "Invalid node id.");
+                roots.put(
+                        segments[id >>> SEGMENT_SHIFT].names[id & SEGMENT_MASK],
+                        DEPENDENCY_TYPES[ints.get()]);
+            }
+        }
+
+        IntBuffer recordOffsets = ints.slice();
+        recordOffsets.limit(nodeCount + 1);
+        ints.position(ints.position() + nodeCount + 1);
+        IntBuffer records = ints.slice();
+        checkArgument(
+                recordOffsets.get(nodeCount) == records.limit(), "Invalid shrinker state size.");
+
+        mLoadedNodeCount = nodeCount;
+        mRecordOffsets = recordOffsets;
+        mRecords = records;
+        mSegments = segments;
+        mSize = nodeCount;
+    }
+
+    public static CompactShrinkerGraph empty(@NonNull File stateDir) {
+        return new CompactShrinkerGraph(stateDir);
+    }
+
+    /**
+     * Constructs a graph from saved state. Only the names, flags and counters of the nodes are
+     * read eagerly, the rest is decoded as nodes are accessed.
+     *
+     * @param dir directory where the state was saved
+     * @throws IncrementalRunImpossibleException if there is no saved state or it is not readable
+     */
+    @NonNull
+    public static CompactShrinkerGraph readFromDir(@NonNull File dir) throws IOException {
+        File stateFile = getStateFile(dir);
+        if (!stateFile.isFile()) {
+            File legacyStateFile = new File(dir, LEGACY_STATE_FILE_NAME);
+            if (legacyStateFile.isFile()) {
+                throw new IncrementalRunImpossibleException(
+                        String.format(
+                                "Shrinker state %s was saved by an older version of the plugin.",
+                                legacyStateFile));
+            }
+            throw new IncrementalRunImpossibleException(
+                    String.format("Shrinker state %s not found.", stateFile));
+        }
+
+        ByteBuffer buffer = CompactBinaryFormat.readFile(stateFile.toPath());
+
+        try {
+            return new CompactShrinkerGraph(dir, buffer);
+        } catch (BufferUnderflowException
+                | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IncrementalRunImpossibleException(e);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String addMember(
+            @NonNull String owner, @NonNull String name, @NonNull String desc, int modifiers) {
+        String fullName = getFullMethodName(owner, name, desc);
+        int member = intern(fullName);
+        addToList(intern(owner), MEMBERS, member);
+        synchronized (getLock(member)) {
+            Segment segment = getSegment(member);
+            segment.flags[member & SEGMENT_MASK] |= FLAG_MEMBER;
+            segment.modifiers[member & SEGMENT_MASK] = modifiers;
+        }
+        return fullName;
+    }
+
+    @NonNull
+    @Override
+    public String getMemberReference(
+            @NonNull String className, @NonNull String memberName, @NonNull String desc) {
+        return getFullMethodName(className, memberName, desc);
+    }
+
+    @Override
+    public void addDependency(
+            @NonNull String source, @NonNull String target, @NonNull DependencyType type) {
+        addToList(intern(source), DEPENDENCIES, packDependency(intern(target), type));
+    }
+
+    @NonNull
+    @Override
+    public Set<Dependency<String>> getDependencies(@NonNull String node) {
+        Set<Dependency<String>> dependencies = Sets.newHashSet();
+        for (int dependency : getList(find(node), DEPENDENCIES)) {
+            dependencies.add(
+                    new Dependency<>(
+                            getName(getDependencyTarget(dependency)),
+                            getDependencyType(dependency)));
+        }
+        return dependencies;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getMethods(@NonNull String klass) {
+        Set<String> methods = Sets.newHashSet();
+        for (int member : getList(find(klass), MEMBERS)) {
+            String name = getName(member);
+            if (isMethod(name)) {
+                methods.add(name);
+            }
+        }
+        return methods;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getFields(@NonNull String klass) {
+        Set<String> fields = Sets.newHashSet();
+        for (int member : getList(find(klass), MEMBERS)) {
+            String name = getName(member);
+            if (!isMethod(name)) {
+                fields.add(name);
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    public boolean incrementAndCheck(
+            @NonNull String node, @NonNull DependencyType type, @NonNull CounterSet counterSet) {
+        int id = intern(node);
+        synchronized (getLock(id)) {
+            int[] counters = getSegment(id).counters;
+            int base = getCountersBase(id, counterSet);
+            boolean before = isReachable(counters, base);
+            counters[base + getCounterField(type)]++;
+            boolean after = isReachable(counters, base);
+            return before != after;
+        }
+    }
+
+    @Override
+    public void saveState() throws IOException {
+        File stateFile = getStateFile(mStateDir);
+        FileUtils.deleteIfExists(stateFile);
+        FileUtils.deleteIfExists(new File(mStateDir, LEGACY_STATE_FILE_NAME));
+        Files.createParentDirs(stateFile);
+
+        // Roots are written as node ids, so make sure they all have one before counting nodes.
+        for (CounterSet counterSet : CounterSet.values()) {
+            getRootsMap(counterSet).keySet().forEach(this::intern);
+        }
+        int size = mSize;
+        Segment[] segments = mSegments;
+        int segmentCount = (size + SEGMENT_MASK) >>> SEGMENT_SHIFT;
+
+        try (DataOutputStream stream =
+                new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(stateFile)))) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(size);
+
+            for (int id = 0; id < size; id++) {
+                writeString(stream, getName(id));
+            }
+
+            List<Integer> programClasses = Lists.newArrayList();
+            for (int id = 0; id < size; id++) {
+                if (getSourceFile(id) != null) {
+                    programClasses.add(id);
+                }
+            }
+            stream.writeInt(programClasses.size());
+            for (int id : programClasses) {
+                stream.writeInt(id);
+                writeString(stream, checkNotNull(getSourceFile(id)).getPath());
+            }
+
+            for (int i = 0; i < segmentCount; i++) {
+                writeInts(stream, segments[i].flags, getSegmentLength(i, size));
+            }
+            for (int i = 0; i < segmentCount; i++) {
+                writeInts(stream, segments[i].modifiers, getSegmentLength(i, size));
+            }
+            for (int i = 0; i < segmentCount; i++) {
+                writeInts(
+                        stream,
+                        segments[i].counters,
+                        getSegmentLength(i, size) * COUNTERS_PER_NODE);
+            }
+
+            for (CounterSet counterSet : CounterSet.values()) {
+                Map<String, DependencyType> roots = getRoots(counterSet);
+                stream.writeInt(roots.size());
+                for (Map.Entry<String, DependencyType> root : roots.entrySet()) {
+                    stream.writeInt(find(root.getKey()));
+                    stream.writeInt(root.getValue().ordinal());
+                }
+            }
+
+            int offset = 0;
+            stream.writeInt(offset);
+            for (int id = 0; id < size; id++) {
+                offset += getRecordLength(id);
+                stream.writeInt(offset);
+            }
+            for (int id = 0; id < size; id++) {
+                writeRecord(stream, id);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReachable(@NonNull String node, @NonNull CounterSet counterSet) {
+        int id = find(node);
+        return id != NONE && isReachable(id, counterSet);
+    }
+
+    @Override
+    public void removeAllCodeDependencies(@NonNull String node) {
+        int id = find(node);
+        if (id == NONE) {
+            return;
+        }
+        synchronized (getLock(id)) {
+            Segment segment = getDecodedSegment(id);
+            int index = id & SEGMENT_MASK;
+            int[] dependencies = segment.lists[DEPENDENCIES][index];
+            int size = 0;
+            for (int i = 0; i < segment.sizes[DEPENDENCIES][index]; i++) {
+                DependencyType type = getDependencyType(dependencies[i]);
+                if (type != DependencyType.REQUIRED_CODE_REFERENCE
+                        && type != DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION) {
+                    dependencies[size++] = dependencies[i];
+                }
+            }
+            segment.sizes[DEPENDENCIES][index] = size;
+        }
+    }
+
+    @Override
+    @Nullable
+    public String getSuperclass(@NonNull String klass) throws ClassLookupException {
+        int id = find(klass);
+        if (!hasFlags(id, FLAG_CLASS)) {
+            throw new ClassLookupException(klass);
+        }
+        int superclass;
+        synchronized (getLock(id)) {
+            superclass = getDecodedSegment(id).superclasses[id & SEGMENT_MASK];
+        }
+        if (superclass == NONE) {
+            return null;
+        }
+
+        String superclassName = getName(superclass);
+        if (!hasFlags(superclass, FLAG_CLASS)) {
+            throw new ClassLookupException(superclassName);
+        }
+
+        return superclassName;
+    }
+
+    @Nullable
+    @Override
+    public String findMatchingMethod(@NonNull String klass, @NonNull String method) {
+        // Common case:
+        if (isMemberOf(klass, method)) {
+            return method;
+        }
+
+        String methodToLookFor = klass + "." + getMemberId(method);
+        if (isMemberOf(klass, methodToLookFor)) {
+            return methodToLookFor;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isProgramClass(@NonNull String klass) {
+        return !isSdkPackage(klass) && hasFlags(find(klass), FLAG_PROGRAM_CLASS);
+    }
+
+    @NonNull
+    @Override
+    public String[] getInterfaces(String klass) throws ClassLookupException {
+        int id = find(klass);
+        if (!hasFlags(id, FLAG_CLASS)) {
+            throw new ClassLookupException(klass);
+        }
+        int[] interfaces = getList(id, INTERFACES);
+        String[] names = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            names[i] = getName(interfaces[i]);
+        }
+        return names;
+    }
+
+    @Override
+    public void checkDependencies(ShrinkerLogger shrinkerLogger) {
+        int size = mSize;
+        for (int id = 0; id < size; id++) {
+            String source = getName(id);
+            Set<Integer> invalidDeps = Sets.newHashSet();
+            for (int dependency : getList(id, DEPENDENCIES)) {
+                int target = getDependencyTarget(dependency);
+                String targetName = getName(target);
+                if (!targetName.contains(".")) {
+                    if (!hasFlags(target, FLAG_CLASS)) {
+                        // We don't warn about by-name references in strings.
+                        if (getDependencyType(dependency)
+                                != DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION) {
+                            shrinkerLogger.invalidClassReference(source, targetName);
+                            invalidDeps.add(dependency);
+                        }
+                    }
+                } else {
+                    if (!hasFlags(target, FLAG_MEMBER)) {
+                        shrinkerLogger.invalidMemberReference(source, targetName);
+                        invalidDeps.add(dependency);
+                    }
+                }
+            }
+
+            if (!invalidDeps.isEmpty()) {
+                synchronized (getLock(id)) {
+                    Segment segment = getDecodedSegment(id);
+                    int index = id & SEGMENT_MASK;
+                    int[] dependencies = segment.lists[DEPENDENCIES][index];
+                    int newSize = 0;
+                    for (int i = 0; i < segment.sizes[DEPENDENCIES][index]; i++) {
+                        if (!invalidDeps.contains(dependencies[i])) {
+                            dependencies[newSize++] = dependencies[i];
+                        }
+                    }
+                    segment.sizes[DEPENDENCIES][index] = newSize;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addTypeFromGenericSignature(@NonNull String klass, @NonNull String type) {
+        addToList(intern(klass), TYPES_FROM_SIGNATURES, intern(type));
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getTypesFromGenericSignatures(@NonNull String klass) {
+        Set<String> types = Sets.newHashSet();
+        for (int type : getList(find(klass), TYPES_FROM_SIGNATURES)) {
+            types.add(getName(type));
+        }
+        return types;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getReachableClasses(@NonNull CounterSet counterSet) {
+        Set<String> classesToKeep = Sets.newHashSet();
+        int size = mSize;
+        for (int id = 0; id < size; id++) {
+            // Skip library classes.
+            if (hasFlags(id, FLAG_PROGRAM_CLASS) && isReachable(id, counterSet)) {
+                classesToKeep.add(getName(id));
+            }
+        }
+
+        return classesToKeep;
+    }
+
+    @Override
+    public File getSourceFile(@NonNull String klass) {
+        int id = find(klass);
+        return id != NONE ? getSourceFile(id) : null;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getReachableMembersLocalNames(
+            @NonNull String klass, @NonNull CounterSet counterSet) {
+        Set<String> memberIds = Sets.newHashSet();
+        for (int member : getList(find(klass), MEMBERS)) {
+            if (isReachable(member, counterSet)) {
+                memberIds.add(getMemberId(getName(member)));
+            }
+        }
+
+        return memberIds;
+    }
+
+    @NonNull
+    @Override
+    public String getOwnerClass(@NonNull String member) {
+        return ByteCodeUtils.getClassName(member);
+    }
+
+    @NonNull
+    @Override
+    public String getClassReference(@NonNull String className) {
+        checkNotNull(className);
+        return className;
+    }
+
+    @NonNull
+    @Override
+    public String addClass(
+            @NonNull String name,
+            @Nullable String superName,
+            @Nullable String[] interfaces,
+            int modifiers,
+            @Nullable File classFile) {
+        int id = intern(name);
+        int superclass = superName != null ? intern(superName) : NONE;
+        int[] interfaceIds = EMPTY;
+        if (interfaces != null) {
+            interfaceIds = new int[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaceIds[i] = intern(interfaces[i]);
+            }
+        }
+
+        synchronized (getLock(id)) {
+            Segment segment = getDecodedSegment(id);
+            int index = id & SEGMENT_MASK;
+            int flags = segment.flags[index] | FLAG_CLASS;
+            segment.flags[index] =
+                    classFile != null ? flags | FLAG_PROGRAM_CLASS : flags & ~FLAG_PROGRAM_CLASS;
+            segment.modifiers[index] = modifiers;
+            segment.classFiles[index] = classFile;
+            segment.superclasses[index] = superclass;
+            segment.lists[INTERFACES][index] = interfaceIds;
+            segment.sizes[INTERFACES][index] = interfaceIds.length;
+        }
+        return name;
+    }
+
+    @NonNull
+    @Override
+    public Iterable<String> getAllProgramClasses() {
+        List<String> classes = Lists.newArrayList();
+        int size = mSize;
+        for (int id = 0; id < size; id++) {
+            if (hasFlags(id, FLAG_PROGRAM_CLASS)) {
+                classes.add(getName(id));
+            }
+        }
+
+        return classes;
+    }
+
+    @NonNull
+    @Override
+    public String getClassName(@NonNull String klass) {
+        return klass;
+    }
+
+    @Override
+    public int getModifiers(@NonNull String node) {
+        int id = find(node);
+        checkArgument(id != NONE, "Unknown node %s.", node);
+        synchronized (getLock(id)) {
+            return getSegment(id).modifiers[id & SEGMENT_MASK];
+        }
+    }
+
+    @Override
+    public void addAnnotation(@NonNull String node, @NonNull String annotationName) {
+        checkArgument(!annotationName.endsWith(";"));
+        addToList(intern(node), ANNOTATIONS, intern(annotationName));
+    }
+
+    @NonNull
+    @Override
+    public Iterable<String> getAnnotations(@NonNull String node) {
+        List<String> annotations = Lists.newArrayList();
+        for (int annotation : getList(find(node), ANNOTATIONS)) {
+            annotations.add(getName(annotation));
+        }
+        return annotations;
+    }
+
+    @Override
+    public void addRoots(
+            @NonNull Map<String, DependencyType> symbolsToKeep, @NonNull CounterSet counterSet) {
+        getRootsMap(counterSet).putAll(symbolsToKeep);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, DependencyType> getRoots(@NonNull CounterSet counterSet) {
+        return ImmutableMap.copyOf(getRootsMap(counterSet));
+    }
+
+    @Override
+    public void clearCounters(@NonNull WaitableExecutor executor) {
+        for (Segment segment : mSegments) {
+            if (segment != null) {
+                executor.execute(
+                        () -> {
+                            Arrays.fill(segment.counters, 0);
+                            return null;
+                        });
+            }
+        }
+    }
+
+    @Override
+    public String getMemberName(@NonNull String member) {
+        return member.substring(member.indexOf('.') + 1, member.indexOf(':'));
+    }
+
+    @Override
+    public String getFullMemberName(@NonNull String member) {
+        return member;
+    }
+
+    @Override
+    public String getMemberDescriptor(@NonNull String member) {
+        return member.substring(member.indexOf(':') + 1);
+    }
+
+    @Override
+    public boolean isClassKnown(@NonNull String klass) {
+        return hasFlags(find(klass), FLAG_CLASS);
+    }
+
+    /** Returns the id of the given node, adding the node to the graph if needed. */
+    private int intern(@NonNull String name) {
+        Integer id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (mGrowLock) {
+            id = mIds.get(name);
+            if (id != null) {
+                return id;
+            }
+
+            int newId = mSize;
+            checkState(newId < MAX_NODES, "Too many nodes in the shrinker graph.");
+            Segment[] segments = mSegments;
+            int segmentIndex = newId >>> SEGMENT_SHIFT;
+            if (segmentIndex == segments.length) {
+                segments = Arrays.copyOf(segments, Math.max(segments.length * 2, 1));
+            }
+            if (segments[segmentIndex] == null) {
+                segments[segmentIndex] = new Segment();
+            }
+            segments[segmentIndex].names[newId & SEGMENT_MASK] = name;
+            mSegments = segments;
+            mSize = newId + 1;
+            mIds.put(name, newId);
+            return newId;
+        }
+    }
+
+    /** Returns the id of the given node, or {@link #NONE} if it is not in the graph. */
+    private int find(@NonNull String name) {
+        Integer id = mIds.get(name);
+        return id != null ? id : NONE;
+    }
+
+    @NonNull
+    private String getName(int id) {
+        return getSegment(id).names[id & SEGMENT_MASK];
+    }
+
+    @NonNull
+    private Segment getSegment(int id) {
+        return mSegments[id >>> SEGMENT_SHIFT];
+    }
+
+    @NonNull
+    private Object getLock(int id) {
+        return mLocks[id & (LOCK_COUNT - 1)];
+    }
+
+    /**
+     * Returns the segment of the given node, after decoding the node's record from the saved
+     * state if needed. The caller must hold the node's lock.
+     */
+    @NonNull
+    private Segment getDecodedSegment(int id) {
+        Segment segment = getSegment(id);
+        int index = id & SEGMENT_MASK;
+        if (id >= mLoadedNodeCount || segment.decoded[index]) {
+            return segment;
+        }
+
+        IntBuffer records = checkNotNull(mRecords);
+        int position = checkNotNull(mRecordOffsets).get(id);
+        segment.superclasses[index] = records.get(position++);
+        for (int list = 0; list < LIST_COUNT; list++) {
+            int size = records.get(position++);
+            int[] values = size > 0 ? new int[size] : EMPTY;
+            for (int i = 0; i < size; i++) {
+                values[i] = records.get(position++);
+            }
+            segment.lists[list][index] = values;
+            segment.sizes[list][index] = size;
+        }
+        segment.decoded[index] = true;
+        return segment;
+    }
+
+    private boolean hasFlags(int id, int flags) {
+        if (id == NONE) {
+            return false;
+        }
+        synchronized (getLock(id)) {
+            return (getSegment(id).flags[id & SEGMENT_MASK] & flags) == flags;
+        }
+    }
+
+    @Nullable
+    private File getSourceFile(int id) {
+        synchronized (getLock(id)) {
+            return getSegment(id).classFiles[id & SEGMENT_MASK];
+        }
+    }
+
+    private boolean isMemberOf(@NonNull String klass, @NonNull String member) {
+        return hasFlags(find(member), FLAG_MEMBER) && klass.equals(getOwnerClass(member));
+    }
+
+    /** Returns a copy of the given list of the given node, which may be {@link #NONE}. */
+    @NonNull
+    private int[] getList(int id, int list) {
+        if (id == NONE) {
+            return EMPTY;
+        }
+        synchronized (getLock(id)) {
+            Segment segment = getDecodedSegment(id);
+            int index = id & SEGMENT_MASK;
+            int size = segment.sizes[list][index];
+            return size > 0 ? Arrays.copyOf(segment.lists[list][index], size) : EMPTY;
+        }
+    }
+
+    /** Adds a value to the given list of the given node, unless it is already there. */
+    private void addToList(int id, int list, int value) {
+        synchronized (getLock(id)) {
+            Segment segment = getDecodedSegment(id);
+            int index = id & SEGMENT_MASK;
+            int[] values = segment.lists[list][index];
+            int size = segment.sizes[list][index];
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    return;
+                }
+            }
+            if (values == null || size == values.length) {
+                values = Arrays.copyOf(values != null ? values : EMPTY, Math.max(size * 2, 4));
+                segment.lists[list][index] = values;
+            }
+            values[size] = value;
+            segment.sizes[list][index] = size + 1;
+        }
+    }
+
+    private boolean isReachable(int id, @NonNull CounterSet counterSet) {
+        synchronized (getLock(id)) {
+            return isReachable(getSegment(id).counters, getCountersBase(id, counterSet));
+        }
+    }
+
+    private static boolean isReachable(@NonNull int[] counters, int base) {
+        return counters[base + REQUIRED] > 0
+                || (counters[base + IF_CLASS_KEPT] > 0 && counters[base + CLASS_IS_KEPT] > 0)
+                || (counters[base + SUPERINTERFACE_KEPT] > 0
+                        && counters[base + INTERFACE_IMPLEMENTED] > 0);
+    }
+
+    private static int getCountersBase(int id, @NonNull CounterSet counterSet) {
+        return (id & SEGMENT_MASK) * COUNTERS_PER_NODE + counterSet.ordinal() * COUNTER_FIELDS;
+    }
+
+    private static int getCounterField(@NonNull DependencyType type) {
+        switch (type) {
+            case REQUIRED_CLASS_STRUCTURE:
+            case REQUIRED_CODE_REFERENCE:
+            case REQUIRED_CODE_REFERENCE_REFLECTION:
+            case REQUIRED_KEEP_RULES:
+                return REQUIRED;
+            case IF_CLASS_KEPT:
+                return IF_CLASS_KEPT;
+            case CLASS_IS_KEPT:
+                return CLASS_IS_KEPT;
+            case SUPERINTERFACE_KEPT:
+                return SUPERINTERFACE_KEPT;
+            case INTERFACE_IMPLEMENTED:
+                return INTERFACE_IMPLEMENTED;
+            default:
+                throw new IllegalArgumentException("Unknown dependency type.");
+        }
+    }
+
+    @NonNull
+    private ConcurrentMap<String, DependencyType> getRootsMap(@NonNull CounterSet counterSet) {
+        if (counterSet == CounterSet.SHRINK) {
+            return mShrinkRoots;
+        } else {
+            return mMultidexRoots;
+        }
+    }
+
+    /** Returns the number of ints in the saved record of the given node. */
+    private int getRecordLength(int id) {
+        synchronized (getLock(id)) {
+            Segment segment = getSegment(id);
+            int index = id & SEGMENT_MASK;
+            if (id < mLoadedNodeCount && !segment.decoded[index]) {
+                IntBuffer recordOffsets = checkNotNull(mRecordOffsets);
+                return recordOffsets.get(id + 1) - recordOffsets.get(id);
+            }
+            int length = 1 + LIST_COUNT;
+            for (int list = 0; list < LIST_COUNT; list++) {
+                length += segment.sizes[list][index];
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Writes the record of the given node: its superclass followed by the size and contents of
+     * each of its lists. Records that were never decoded are copied from the saved state.
+     */
+    private void writeRecord(@NonNull DataOutputStream stream, int id) throws IOException {
+        synchronized (getLock(id)) {
+            Segment segment = getSegment(id);
+            int index = id & SEGMENT_MASK;
+            if (id < mLoadedNodeCount && !segment.decoded[index]) {
+                IntBuffer records = checkNotNull(mRecords);
+                IntBuffer recordOffsets = checkNotNull(mRecordOffsets);
+                for (int i = recordOffsets.get(id); i < recordOffsets.get(id + 1); i++) {
+                    stream.writeInt(records.get(i));
+                }
+                return;
+            }
+            stream.writeInt(segment.superclasses[index]);
+            for (int list = 0; list < LIST_COUNT; list++) {
+                int size = segment.sizes[list][index];
+                stream.writeInt(size);
+                if (size > 0) {
+                    writeInts(stream, segment.lists[list][index], size);
+                }
+            }
+        }
+    }
+
+    private static int packDependency(int target, @NonNull DependencyType type) {
+        return target << TYPE_BITS | type.ordinal();
+    }
+
+    private static int getDependencyTarget(int dependency) {
+        return dependency >>> TYPE_BITS;
+    }
+
+    @NonNull
+    private static DependencyType getDependencyType(int dependency) {
+        return DEPENDENCY_TYPES[dependency & ((1 << TYPE_BITS) - 1)];
+    }
+
+    private static int getSegmentLength(int segmentIndex, int size) {
+        return Math.min(size - (segmentIndex << SEGMENT_SHIFT), SEGMENT_SIZE);
+    }
+
+    private static void writeInts(@NonNull DataOutputStream stream, @NonNull int[] values, int size)
+            throws IOException {
+        for (int i = 0; i < size; i++) {
+            stream.writeInt(values[i]);
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream stream, @NonNull String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        checkArgument(length >= 0 && length <= buffer.remaining(), "Invalid string length.");
+        String string =
+                new String(
+                        buffer.array(),
+                        buffer.arrayOffset() + buffer.position(),
+                        length,
+                        StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    @NonNull
+    private static String getFullMethodName(String className, String methodName, String typeDesc) {
+        return className + "." + methodName + ":" + typeDesc;
+    }
+
+    @NonNull
+    private static String getMemberId(String member) {
+        return member.substring(member.indexOf('.') + 1);
+    }
+
+    @VisibleForTesting
+    @NonNull
+    static File getStateFile(@NonNull File dir) {
+        return new File(dir, STATE_FILE_NAME);
+    }
+
+    private static boolean isMethod(String member) {
+        return member.contains("(");
+    }
+}
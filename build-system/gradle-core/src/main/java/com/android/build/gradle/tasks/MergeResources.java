@@ -44,6 +44,7 @@ import com.android.ide.common.blame.parser.PatternAwareOutputParser;
 import com.android.ide.common.blame.parser.ToolOutputParser;
 import com.android.ide.common.blame.parser.aapt.Aapt2OutputParser;
 import com.android.ide.common.blame.parser.aapt.AaptOutputParser;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.process.ProcessOutputHandler;
 import com.android.ide.common.res2.FileStatus;
 import com.android.ide.common.res2.FileValidity;
@@ -263,8 +264,17 @@ public class MergeResources extends IncrementalTask {
                         flags,
                         processResources)) {
 
+            Map<String, Long> parseTimes =
+                    ResourceSet.loadFromFilesInParallel(
+                            resourceSets,
+                            getILogger(),
+                            WaitableExecutor.useGlobalSharedThreadPool());
             for (ResourceSet resourceSet : resourceSets) {
-                resourceSet.loadFromFiles(getILogger());
+                getILogger()
+                        .verbose(
+                                "Parsed resource set %1$s in %2$d ms",
+                                resourceSet.getConfigName(),
+                                parseTimes.get(resourceSet.getConfigName()));
                 merger.addDataSet(resourceSet);
             }
 
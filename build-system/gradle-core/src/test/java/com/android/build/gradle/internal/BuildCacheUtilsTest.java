@@ -22,10 +22,14 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.android.annotations.NonNull;
+import com.android.build.gradle.options.LongOption;
+import com.android.build.gradle.options.ProjectOptions;
 import com.android.builder.model.Version;
 import com.android.builder.utils.FileCache;
 import com.android.testutils.TestUtils;
 import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
@@ -158,6 +162,42 @@ public class BuildCacheUtilsTest {
         assertThat(fileCache.cacheEntryExists(inputs3)).isTrue();
     }
 
+    @Test
+    public void testEvictLeastRecentlyUsedEntries() throws Exception {
+        assertThat(BuildCacheUtils.getCacheMaxSizeInBytes(new ProjectOptions(ImmutableMap.of())))
+                .isEqualTo(10L * 1024 * 1024 * 1024);
+        assertThat(
+                        BuildCacheUtils.getCacheMaxSizeInBytes(
+                                new ProjectOptions(
+                                        ImmutableMap.of(
+                                                LongOption.BUILD_CACHE_MAX_SIZE_MB
+                                                        .getPropertyName(),
+                                                "2"))))
+                .isEqualTo(2L * 1024 * 1024);
+
+        File cacheDir = testDir.newFolder();
+        FileCache fileCache = FileCache.getInstanceWithMultiProcessLocking(cacheDir);
+        FileCache.Inputs inputs1 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo1")
+                        .build();
+        FileCache.Inputs inputs2 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo2")
+                        .build();
+        fileCache.createFileInCacheIfAbsent(
+                inputs1, (outputFile) -> Files.write(new byte[1000], outputFile));
+        // Make sure that the second cache entry is accessed later than the first one
+        Thread.sleep(10);
+        fileCache.createFileInCacheIfAbsent(
+                inputs2, (outputFile) -> Files.write(new byte[1000], outputFile));
+
+        // Check that the least recently used cache entry is evicted when over budget
+        BuildCacheUtils.evictLeastRecentlyUsedEntries(fileCache, 1500);
+        assertThat(fileCache.cacheEntryExists(inputs1)).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputs2)).isTrue();
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @Test
     public void testDeleteOldCacheDirectories() throws Exception {
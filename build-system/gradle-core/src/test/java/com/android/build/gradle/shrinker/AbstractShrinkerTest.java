@@ -113,7 +113,7 @@ public abstract class AbstractShrinkerTest {
             @Nullable BytecodeVersion bytecodeVersion) {
         return new FullRunShrinker<>(
                 WaitableExecutor.useGlobalSharedThreadPool(),
-                JavaSerializationShrinkerGraph.empty(mIncrementalDir),
+                CompactShrinkerGraph.empty(mIncrementalDir),
                 getPlatformJars(),
                 mShrinkerLogger,
                 bytecodeVersion);
@@ -274,8 +274,7 @@ public abstract class AbstractShrinkerTest {
         IncrementalShrinker<String> incrementalShrinker =
                 new IncrementalShrinker<>(
                         WaitableExecutor.useGlobalSharedThreadPool(),
-                        JavaSerializationShrinkerGraph.readFromDir(
-                                mIncrementalDir, this.getClass().getClassLoader()),
+                        CompactShrinkerGraph.readFromDir(mIncrementalDir),
                         mShrinkerLogger,
                         null);
 
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Opcodes;
+
+/** Tests for saving and loading the state of {@link CompactShrinkerGraph}. */
+public class CompactShrinkerGraphTest {
+
+    @Rule public TemporaryFolder mTmpDir = new TemporaryFolder();
+
+    @Rule public ExpectedException mException = ExpectedException.none();
+
+    private File mStateDir;
+
+    private File mMainClassFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mStateDir = mTmpDir.newFolder("state");
+        mMainClassFile = new File(mTmpDir.getRoot(), "test/Main.class");
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        createGraph().saveState();
+
+        checkGraph(CompactShrinkerGraph.readFromDir(mStateDir));
+    }
+
+    @Test
+    public void saveAndLoad_untouchedNodes() throws Exception {
+        createGraph().saveState();
+
+        // Nodes that were never accessed are written back from the loaded records.
+        CompactShrinkerGraph.readFromDir(mStateDir).saveState();
+
+        checkGraph(CompactShrinkerGraph.readFromDir(mStateDir));
+    }
+
+    @Test
+    public void saveAndLoad_modifiedNodes() throws Exception {
+        createGraph().saveState();
+
+        CompactShrinkerGraph graph = CompactShrinkerGraph.readFromDir(mStateDir);
+        graph.removeAllCodeDependencies("test/Main.main:()V");
+        graph.addDependency(
+                "test/Main.main:()V", "test/Helper", DependencyType.REQUIRED_CLASS_STRUCTURE);
+        graph.saveState();
+
+        graph = CompactShrinkerGraph.readFromDir(mStateDir);
+        assertThat(graph.getDependencies("test/Main.main:()V"))
+                .containsExactly(
+                        new Dependency<>("test/Helper", DependencyType.REQUIRED_CLASS_STRUCTURE));
+        assertThat(graph.getMethods("test/Main")).containsExactly("test/Main.main:()V");
+    }
+
+    @Test
+    public void load_truncatedState() throws Exception {
+        createGraph().saveState();
+        File stateFile = CompactShrinkerGraph.getStateFile(mStateDir);
+        Files.write(Arrays.copyOf(Files.toByteArray(stateFile), 20), stateFile);
+
+        mException.expect(IncrementalRunImpossibleException.class);
+        CompactShrinkerGraph.readFromDir(mStateDir);
+    }
+
+    @Test
+    public void load_legacyState() throws Exception {
+        Files.write(new byte[] {(byte) 0xAC, (byte) 0xED}, new File(mStateDir, "shrinker.bin"));
+
+        mException.expect(IncrementalRunImpossibleException.class);
+        mException.expectMessage("older version");
+        CompactShrinkerGraph.readFromDir(mStateDir);
+    }
+
+    @Test
+    public void save_deletesLegacyState() throws Exception {
+        File legacyStateFile = new File(mStateDir, "shrinker.bin");
+        Files.write(new byte[] {(byte) 0xAC, (byte) 0xED}, legacyStateFile);
+
+        createGraph().saveState();
+
+        assertThat(legacyStateFile.exists()).isFalse();
+        checkGraph(CompactShrinkerGraph.readFromDir(mStateDir));
+    }
+
+    private CompactShrinkerGraph createGraph() {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        graph.addClass(
+                "test/Main",
+                "java/lang/Object",
+                new String[] {"java/lang/Runnable"},
+                Opcodes.ACC_PUBLIC,
+                mMainClassFile);
+        graph.addClass("java/lang/Object", null, null, Opcodes.ACC_PUBLIC, null);
+        String main = graph.addMember("test/Main", "main", "()V", Opcodes.ACC_STATIC);
+        String field = graph.addMember("test/Main", "count", "I", Opcodes.ACC_PRIVATE);
+        graph.addDependency(main, field, DependencyType.REQUIRED_CODE_REFERENCE);
+        graph.addDependency(main, "test/Helper", DependencyType.REQUIRED_CODE_REFERENCE);
+        graph.addAnnotation("test/Main", "test/Annotation");
+        graph.addTypeFromGenericSignature("test/Main", "test/Generic");
+        graph.addRoots(
+                ImmutableMap.of(main, DependencyType.REQUIRED_KEEP_RULES), CounterSet.SHRINK);
+        graph.incrementAndCheck(main, DependencyType.REQUIRED_KEEP_RULES, CounterSet.SHRINK);
+        graph.incrementAndCheck(
+                "test/Main", DependencyType.REQUIRED_CODE_REFERENCE, CounterSet.SHRINK);
+        return graph;
+    }
+
+    private void checkGraph(CompactShrinkerGraph graph) throws Exception {
+        String field = "test/Main.count:I";
+        assertThat(graph.isClassKnown("test/Main")).isTrue();
+        assertThat(graph.isProgramClass("test/Main")).isTrue();
+        assertThat(graph.isProgramClass("java/lang/Object")).isFalse();
+        assertThat(graph.getSourceFile("test/Main")).isEqualTo(mMainClassFile);
+        assertThat(graph.getAllProgramClasses()).containsExactly("test/Main");
+        assertThat(graph.getSuperclass("test/Main")).isEqualTo("java/lang/Object");
+        assertThat(graph.getInterfaces("test/Main")).asList().containsExactly("java/lang/Runnable");
+        assertThat(graph.getModifiers("test/Main")).isEqualTo(Opcodes.ACC_PUBLIC);
+        assertThat(graph.getModifiers(field)).isEqualTo(Opcodes.ACC_PRIVATE);
+
+        assertThat(graph.getMethods("test/Main")).containsExactly("test/Main.main:()V");
+        assertThat(graph.getFields("test/Main")).containsExactly(field);
+        assertThat(graph.getDependencies("test/Main.main:()V"))
+                .containsExactly(
+                        new Dependency<>(field, DependencyType.REQUIRED_CODE_REFERENCE),
+                        new Dependency<>("test/Helper", DependencyType.REQUIRED_CODE_REFERENCE));
+        assertThat(graph.getAnnotations("test/Main")).containsExactly("test/Annotation");
+        assertThat(graph.getTypesFromGenericSignatures("test/Main"))
+                .containsExactly("test/Generic");
+
+        assertThat(graph.getRoots(CounterSet.SHRINK))
+                .containsExactly("test/Main.main:()V", DependencyType.REQUIRED_KEEP_RULES);
+        assertThat(graph.getRoots(CounterSet.LEGACY_MULTIDEX)).isEmpty();
+        assertThat(graph.isReachable("test/Main.main:()V", CounterSet.SHRINK)).isTrue();
+        assertThat(graph.isReachable("test/Main", CounterSet.SHRINK)).isTrue();
+        assertThat(graph.isReachable(field, CounterSet.SHRINK)).isFalse();
+        assertThat(graph.isReachable("test/Main", CounterSet.LEGACY_MULTIDEX)).isFalse();
+        assertThat(graph.getReachableMembersLocalNames("test/Main", CounterSet.SHRINK))
+                .containsExactly("main:()V");
+    }
+}
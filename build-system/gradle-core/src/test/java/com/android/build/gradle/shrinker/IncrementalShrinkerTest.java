@@ -32,6 +32,7 @@ import com.android.utils.FileUtils;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
 import java.io.File;
+import java.util.Arrays;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -53,7 +54,7 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
 
         fullRun("Main", "main:()V");
 
-        assertTrue(new File(mIncrementalDir, "shrinker.bin").exists());
+        assertTrue(CompactShrinkerGraph.getStateFile(mIncrementalDir).exists());
         assertMembersLeft("Main", "<init>:()V", "main:()V");
         assertMembersLeft("Aaa", "<init>:()V", "m1:()V");
         assertMembersLeft("Bbb", "<init>:()V");
@@ -76,6 +77,40 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
         assertEquals(timestampBbb, getOutputClassFile("Bbb").lastModified());
     }
 
+    @Test
+    public void simple_invalidState() throws Exception {
+        // Given:
+        Files.write(Simple.aaa(), new File(mTestPackageDir, "Aaa.class"));
+        Files.write(Simple.bbb(), new File(mTestPackageDir, "Bbb.class"));
+        Files.write(Simple.main1(), new File(mTestPackageDir, "Main.class"));
+
+        fullRun("Main", "main:()V");
+
+        File stateFile = CompactShrinkerGraph.getStateFile(mIncrementalDir);
+        Files.write(Arrays.copyOf(Files.toByteArray(stateFile), 20), stateFile);
+
+        mException.expect(IncrementalRunImpossibleException.class);
+        incrementalRun(ImmutableMap.of("Main", Status.CHANGED));
+    }
+
+    @Test
+    public void simple_legacyState() throws Exception {
+        // Given:
+        Files.write(Simple.aaa(), new File(mTestPackageDir, "Aaa.class"));
+        Files.write(Simple.bbb(), new File(mTestPackageDir, "Bbb.class"));
+        Files.write(Simple.main1(), new File(mTestPackageDir, "Main.class"));
+
+        fullRun("Main", "main:()V");
+
+        // State saved by an older version of the plugin, with Java serialization.
+        File stateFile = CompactShrinkerGraph.getStateFile(mIncrementalDir);
+        Files.move(stateFile, new File(mIncrementalDir, "shrinker.bin"));
+
+        mException.expect(IncrementalRunImpossibleException.class);
+        mException.expectMessage("older version");
+        incrementalRun(ImmutableMap.of("Main", Status.CHANGED));
+    }
+
     @Test
     public void simple_unusedClassModified() throws Exception {
         // Given:
@@ -400,7 +435,7 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
 
         fullRun("Main", "main:()V");
 
-        assertTrue(new File(mIncrementalDir, "shrinker.bin").exists());
+        assertTrue(CompactShrinkerGraph.getStateFile(mIncrementalDir).exists());
         assertMembersLeft("Main", "<init>:()V", "main:()V");
         assertMembersLeft("CycleOne", "<init>:()V");
         assertMembersLeft("CycleTwo", "<init>:()V");
@@ -0,0 +1,826 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.log.LogReceiver;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An asynchronous client of the adb server.
+ *
+ * <p>Unlike {@link AdbHelper}, which blocks the calling thread on a new connection for each
+ * command, the commands of this client are multiplexed over a small fixed number of I/O threads,
+ * each of them waiting on a {@link Selector} for all of its connections. The result of each
+ * command is a {@link CompletableFuture}, completed on an I/O thread.
+ *
+ * <p>The adb protocol does not allow a connection to be reused once a request was sent on it: the
+ * server closes it after answering a host request, and a connection switched to a device
+ * transport belongs to that device's service. What the client pools instead are idle
+ * connections, connected ahead of time so that a command does not wait for the connection to
+ * be established. Idle connections closed by the server are detected and dropped.
+ *
+ * <p>The number of commands running at the same time on a device is limited, so that a burst of
+ * commands does not overload its transport. The commands over the limit are queued, and started
+ * in order as the running ones complete.
+ */
+public final class AsyncAdbClient implements Closeable {
+
+    public static final int DEFAULT_IO_THREAD_COUNT = 2;
+    public static final int DEFAULT_MAX_COMMANDS_PER_DEVICE = 4;
+    public static final int DEFAULT_IDLE_CONNECTIONS_PER_THREAD = 1;
+
+    /** Interval at which the I/O threads check the timeouts of their commands, in ms. */
+    private static final long TIMEOUT_CHECK_INTERVAL_MS = 100;
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private enum State {
+        CONNECTING,
+        WRITING_REQUEST,
+        READING_STATUS,
+        READING_FAIL_LENGTH,
+        READING_FAIL_MESSAGE,
+        READING_LENGTH,
+        READING_PAYLOAD,
+        READING_OUTPUT
+    }
+
+    /** What the server sends once it accepted the request of a command. */
+    private enum Response {
+        /** Nothing that is read: the command is complete once its request is accepted. */
+        NONE,
+        /** A payload prefixed with its length. */
+        PAYLOAD,
+        /** The output of a service, up to the end of the connection. */
+        OUTPUT
+    }
+
+    @NonNull private final InetSocketAddress mAdbSockAddr;
+    private final int mMaxCommandsPerDevice;
+    private final int mIdleConnectionsPerThread;
+    @NonNull private final IoThread[] mIoThreads;
+    private final AtomicInteger mNextIoThread = new AtomicInteger();
+
+    /** The commands running and waiting on each device, by serial number. */
+    private final Map<String, DeviceCommands> mDeviceCommands = new HashMap<>();
+
+    private volatile boolean mClosed;
+
+    /**
+     * Creates a client of the adb server at the given address, with the default number of I/O
+     * threads, commands per device and idle connections.
+     */
+    public AsyncAdbClient(@NonNull InetSocketAddress adbSockAddr) throws IOException {
+        this(
+                adbSockAddr,
+                DEFAULT_IO_THREAD_COUNT,
+                DEFAULT_MAX_COMMANDS_PER_DEVICE,
+                DEFAULT_IDLE_CONNECTIONS_PER_THREAD);
+    }
+
+    /**
+     * Creates a client of the adb server at the given address.
+     *
+     * @param adbSockAddr the address of the adb server.
+     * @param ioThreadCount the number of I/O threads.
+     * @param maxCommandsPerDevice the maximum number of commands running at the same time on a
+     *     device.
+     * @param idleConnectionsPerThread the number of idle connections that each I/O thread keeps
+     *     connected to the adb server, or 0 to connect when a command starts.
+     * @throws IOException if the selectors of the I/O threads cannot be opened.
+     */
+    public AsyncAdbClient(
+            @NonNull InetSocketAddress adbSockAddr,
+            int ioThreadCount,
+            int maxCommandsPerDevice,
+            int idleConnectionsPerThread)
+            throws IOException {
+        if (ioThreadCount < 1 || maxCommandsPerDevice < 1 || idleConnectionsPerThread < 0) {
+            throw new IllegalArgumentException();
+        }
+        mAdbSockAddr = adbSockAddr;
+        mMaxCommandsPerDevice = maxCommandsPerDevice;
+        mIdleConnectionsPerThread = idleConnectionsPerThread;
+        mIoThreads = new IoThread[ioThreadCount];
+        try {
+            for (int i = 0; i < ioThreadCount; i++) {
+                mIoThreads[i] = new IoThread(i);
+            }
+        } catch (IOException e) {
+            for (IoThread thread : mIoThreads) {
+                if (thread != null) {
+                    try {
+                        thread.mSelector.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            throw e;
+        }
+        for (IoThread thread : mIoThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Sends a host request, such as {@code host:version}, and returns the payload of its
+     * response.
+     */
+    @NonNull
+    public CompletableFuture<String> queryHost(@NonNull String request) {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        return submit(new Command(null, request, Response.PAYLOAD, receiver, 0))
+                .thenApply(ignored -> receiver.getOutput());
+    }
+
+    /**
+     * Creates a port forward from the host to the device.
+     *
+     * @param device the device to forward to.
+     * @param localPortSpec the specification of the host port, such as {@code tcp:8000}.
+     * @param remotePortSpec the specification of the device port, such as {@code tcp:8000} or
+     *     {@code localabstract:name}.
+     */
+    @NonNull
+    public CompletableFuture<Void> createForward(
+            @NonNull IDevice device,
+            @NonNull String localPortSpec,
+            @NonNull String remotePortSpec) {
+        return submit(
+                new Command(
+                        null,
+                        String.format(
+                                "host-serial:%1$s:forward:%2$s;%3$s", //$NON-NLS-1$
+                                device.getSerialNumber(),
+                                localPortSpec,
+                                remotePortSpec),
+                        Response.NONE,
+                        NullOutputReceiver.getReceiver(),
+                        0));
+    }
+
+    /**
+     * Removes a port forward from the host to the device.
+     *
+     * @param device the device the port is forwarded to.
+     * @param localPortSpec the specification of the host port, such as {@code tcp:8000}.
+     */
+    @NonNull
+    public CompletableFuture<Void> removeForward(
+            @NonNull IDevice device, @NonNull String localPortSpec) {
+        return submit(
+                new Command(
+                        null,
+                        String.format(
+                                "host-serial:%1$s:killforward:%2$s", //$NON-NLS-1$
+                                device.getSerialNumber(),
+                                localPortSpec),
+                        Response.NONE,
+                        NullOutputReceiver.getReceiver(),
+                        0));
+    }
+
+    /**
+     * Reboots the device. The future is completed once adb accepted the request, not when the
+     * device is back online.
+     *
+     * @param device the device to reboot.
+     * @param into what to reboot into, such as {@code bootloader} or {@code recovery}, or null
+     *     to just reboot.
+     */
+    @NonNull
+    public CompletableFuture<Void> reboot(@NonNull IDevice device, @Nullable String into) {
+        return submit(
+                new Command(
+                        device.getSerialNumber(),
+                        "reboot:" + (into == null ? "" : into), //$NON-NLS-1$
+                        Response.NONE,
+                        NullOutputReceiver.getReceiver(),
+                        0));
+    }
+
+    /**
+     * Runs the log service of the device, such as {@code main} or {@code events}, and sends the
+     * log to a receiver until the receiver is cancelled or the device closes the log.
+     *
+     * <p>The receiver is called on an I/O thread, and must not block.
+     */
+    @NonNull
+    public CompletableFuture<Void> runLogService(
+            @NonNull IDevice device, @NonNull String logName, @NonNull LogReceiver receiver) {
+        IShellOutputReceiver output =
+                new IShellOutputReceiver() {
+                    @Override
+                    public void addOutput(byte[] data, int offset, int length) {
+                        receiver.parseNewData(data, offset, length);
+                    }
+
+                    @Override
+                    public void flush() {}
+
+                    @Override
+                    public boolean isCancelled() {
+                        return receiver.isCancelled();
+                    }
+                };
+        return submit(
+                new Command(
+                        device.getSerialNumber(),
+                        "log:" + logName, //$NON-NLS-1$
+                        Response.OUTPUT,
+                        output,
+                        0));
+    }
+
+    /** Executes a shell command on the device and returns its output. */
+    @NonNull
+    public CompletableFuture<String> executeShellCommand(
+            @NonNull IDevice device, @NonNull String command) {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        return executeShellCommand(device, command, receiver, 0, TimeUnit.MILLISECONDS)
+                .thenApply(ignored -> receiver.getOutput());
+    }
+
+    /**
+     * Executes a shell command on the device, and sends its output to a receiver.
+     *
+     * <p>The receiver is called on an I/O thread, and must not block. The command is stopped,
+     * and the future completed, as soon as the receiver is cancelled.
+     *
+     * @param device the device to execute the command on.
+     * @param command the shell command to execute.
+     * @param receiver the receiver of the output of the command.
+     * @param maxTimeToOutputResponse the maximum time the command can go without sending any
+     *     output, after which the future fails with a {@link ShellCommandUnresponsiveException}.
+     *     A value of 0 means the command can wait for its output indefinitely.
+     * @param maxTimeUnits the unit of {@code maxTimeToOutputResponse}.
+     */
+    @NonNull
+    public CompletableFuture<Void> executeShellCommand(
+            @NonNull IDevice device,
+            @NonNull String command,
+            @NonNull IShellOutputReceiver receiver,
+            long maxTimeToOutputResponse,
+            @NonNull TimeUnit maxTimeUnits) {
+        return submit(
+                new Command(
+                        device.getSerialNumber(),
+                        "shell:" + command, //$NON-NLS-1$
+                        Response.OUTPUT,
+                        receiver,
+                        maxTimeUnits.toMillis(maxTimeToOutputResponse)));
+    }
+
+    /**
+     * Closes the connections of the client and stops its I/O threads. The commands that are
+     * still running or waiting fail with an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        List<Command> waiting = new ArrayList<>();
+        synchronized (mDeviceCommands) {
+            for (DeviceCommands commands : mDeviceCommands.values()) {
+                waiting.addAll(commands.mWaiting);
+                commands.mWaiting.clear();
+            }
+        }
+        for (Command command : waiting) {
+            command.mFuture.completeExceptionally(new IOException("adb client closed"));
+        }
+        for (IoThread thread : mIoThreads) {
+            thread.mSelector.wakeup();
+        }
+        for (IoThread thread : mIoThreads) {
+            if (thread == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @NonNull
+    private CompletableFuture<Void> submit(@NonNull Command command) {
+        if (mClosed) {
+            command.mFuture.completeExceptionally(new IOException("adb client closed"));
+            return command.mFuture;
+        }
+        if (command.mSerial == null) {
+            start(command);
+            return command.mFuture;
+        }
+        boolean start;
+        synchronized (mDeviceCommands) {
+            DeviceCommands commands = mDeviceCommands.get(command.mSerial);
+            if (commands == null) {
+                commands = new DeviceCommands();
+                mDeviceCommands.put(command.mSerial, commands);
+            }
+            start = commands.mRunning < mMaxCommandsPerDevice;
+            if (start) {
+                commands.mRunning++;
+            } else {
+                commands.mWaiting.add(command);
+            }
+        }
+        if (start) {
+            start(command);
+        }
+        return command.mFuture;
+    }
+
+    private void start(@NonNull Command command) {
+        IoThread thread =
+                mIoThreads[Math.floorMod(mNextIoThread.getAndIncrement(), mIoThreads.length)];
+        thread.execute(() -> thread.begin(command));
+    }
+
+    /** Called once a command is complete, to start the next command waiting on its device. */
+    private void onFinished(@NonNull Command command) {
+        if (command.mSerial == null) {
+            return;
+        }
+        Command next;
+        synchronized (mDeviceCommands) {
+            DeviceCommands commands = mDeviceCommands.get(command.mSerial);
+            next = commands.mWaiting.poll();
+            if (next == null && --commands.mRunning == 0) {
+                mDeviceCommands.remove(command.mSerial);
+            }
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    private static void closeQuietly(@NonNull SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** The commands of a device. */
+    private static final class DeviceCommands {
+        private int mRunning;
+        private final Queue<Command> mWaiting = new ArrayDeque<>();
+    }
+
+    /**
+     * A thread waiting on a selector for the connections of its commands and for its idle
+     * connections. The state of the commands, and of the idle connections, is only accessed from
+     * that thread.
+     */
+    private final class IoThread extends Thread {
+        @NonNull private final Selector mSelector;
+        private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+        /** Idle connections, connected and waiting for a request. Their keys have no attachment. */
+        private final Deque<SelectionKey> mIdleConnections = new ArrayDeque<>();
+
+        /** Number of idle connections being connected. */
+        private int mConnectingCount;
+
+        private long mLastTimeoutCheck;
+
+        private IoThread(int index) throws IOException {
+            super("AsyncAdbClient I/O " + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        private void execute(@NonNull Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+            if (mClosed && !isAlive()) {
+                // The thread may have exited before seeing the task.
+                runTasks();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mClosed) {
+                    mSelector.select(TIMEOUT_CHECK_INTERVAL_MS);
+                    runTasks();
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        Object attachment = key.attachment();
+                        if (attachment instanceof Command) {
+                            ((Command) attachment).onReady();
+                        } else {
+                            onIdleConnectionReady(key);
+                        }
+                    }
+                    checkTimeouts();
+                }
+            } catch (IOException e) {
+                Log.e("ddms", e);
+            } finally {
+                mClosed = true;
+                for (SelectionKey key : mSelector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Command) {
+                        ((Command) attachment).fail(new IOException("adb client closed"));
+                    } else {
+                        closeQuietly(key);
+                    }
+                }
+                mIdleConnections.clear();
+                try {
+                    mSelector.close();
+                } catch (IOException ignored) {
+                }
+                runTasks();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /** Starts a command on an idle connection, or on a new connection. */
+        private void begin(@NonNull Command command) {
+            if (command.mFuture.isDone()) {
+                // Cancelled while it was waiting.
+                command.finish();
+                return;
+            }
+            if (mClosed) {
+                command.fail(new IOException("adb client closed"));
+                return;
+            }
+            command.mThread = this;
+            command.mFuture.whenComplete(
+                    (result, t) -> {
+                        if (command.mFuture.isCancelled()) {
+                            execute(command::finish);
+                        }
+                    });
+            SelectionKey key = mIdleConnections.poll();
+            if (key != null) {
+                key.attach(command);
+                command.mKey = key;
+                command.startRequest();
+            } else {
+                try {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    command.mKey = channel.register(mSelector, SelectionKey.OP_CONNECT, command);
+                    command.progress();
+                    if (channel.connect(mAdbSockAddr)) {
+                        command.startRequest();
+                    }
+                } catch (IOException e) {
+                    command.fail(e);
+                }
+            }
+            connectIdleConnections();
+        }
+
+        /** Connects new idle connections, up to the number kept by each thread. */
+        private void connectIdleConnections() {
+            while (!mClosed
+                    && mIdleConnections.size() + mConnectingCount < mIdleConnectionsPerThread) {
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    if (channel.connect(mAdbSockAddr)) {
+                        mIdleConnections.add(
+                                channel.register(mSelector, SelectionKey.OP_READ, null));
+                    } else {
+                        channel.register(mSelector, SelectionKey.OP_CONNECT, null);
+                        mConnectingCount++;
+                    }
+                } catch (IOException e) {
+                    // The next command will try again.
+                    if (channel != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void onIdleConnectionReady(@NonNull SelectionKey key) {
+            if (key.isConnectable()) {
+                mConnectingCount--;
+                try {
+                    ((SocketChannel) key.channel()).finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    mIdleConnections.add(key);
+                } catch (IOException e) {
+                    closeQuietly(key);
+                }
+            } else if (key.isReadable()) {
+                // The server does not send anything before a request: the connection was closed.
+                mIdleConnections.remove(key);
+                closeQuietly(key);
+            }
+        }
+
+        private void checkTimeouts() {
+            long now = System.currentTimeMillis();
+            if (now - mLastTimeoutCheck < TIMEOUT_CHECK_INTERVAL_MS) {
+                return;
+            }
+            mLastTimeoutCheck = now;
+            for (SelectionKey key : mSelector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Command) {
+                    ((Command) attachment).checkTimeout(now);
+                }
+            }
+        }
+    }
+
+    /**
+     * A command sent to the adb server: an optional switch to the transport of a device, followed
+     * by a request whose response is either nothing, a length-prefixed payload, or the output of a
+     * service up to the end of the connection.
+     */
+    private final class Command {
+        @Nullable private final String mSerial;
+        @NonNull private final ByteBuffer[] mRequests;
+        @NonNull private final Response mResponse;
+        @NonNull private final IShellOutputReceiver mReceiver;
+        private final long mMaxTimeToOutputMs;
+        private final CompletableFuture<Void> mFuture = new CompletableFuture<>();
+
+        // The following fields are only accessed from the I/O thread of the command.
+        private IoThread mThread;
+        private SelectionKey mKey;
+        private State mState = State.CONNECTING;
+        private int mRequest;
+        private ByteBuffer mBuffer;
+        private int mRemaining;
+        private byte[] mMessage;
+        private long mLastProgress;
+        private boolean mFinished;
+
+        private Command(
+                @Nullable String serial,
+                @NonNull String request,
+                @NonNull Response response,
+                @NonNull IShellOutputReceiver receiver,
+                long maxTimeToOutputMs) {
+            mSerial = serial;
+            if (serial != null) {
+                mRequests =
+                        new ByteBuffer[] {
+                            ByteBuffer.wrap(
+                                    AdbHelper.formAdbRequest(
+                                            "host:transport:" + serial)), //$NON-NLS-1$
+                            ByteBuffer.wrap(AdbHelper.formAdbRequest(request))
+                        };
+            } else {
+                mRequests = new ByteBuffer[] {ByteBuffer.wrap(AdbHelper.formAdbRequest(request))};
+            }
+            mResponse = response;
+            mReceiver = receiver;
+            mMaxTimeToOutputMs = maxTimeToOutputMs;
+        }
+
+        private void progress() {
+            mLastProgress = System.currentTimeMillis();
+        }
+
+        private void startRequest() {
+            mState = State.WRITING_REQUEST;
+            mKey.interestOps(SelectionKey.OP_WRITE);
+            progress();
+        }
+
+        private void onReady() {
+            try {
+                SocketChannel channel = (SocketChannel) mKey.channel();
+                if (mKey.isConnectable()) {
+                    channel.finishConnect();
+                    startRequest();
+                } else if (mKey.isWritable()) {
+                    ByteBuffer request = mRequests[mRequest];
+                    channel.write(request);
+                    progress();
+                    if (!request.hasRemaining()) {
+                        mState = State.READING_STATUS;
+                        mKey.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (mKey.isReadable()) {
+                    if (mBuffer == null) {
+                        mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    }
+                    if (channel.read(mBuffer) < 0) {
+                        onEndOfStream();
+                        return;
+                    }
+                    progress();
+                    mBuffer.flip();
+                    while (!mFinished && processBuffer()) {
+                        // Keep processing the buffer.
+                    }
+                    if (!mFinished) {
+                        mBuffer.compact();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        /** Processes the data in the buffer, and returns whether there may be more to process. */
+        private boolean processBuffer() throws IOException {
+            switch (mState) {
+                case READING_STATUS:
+                    if (mBuffer.remaining() < 4) {
+                        return false;
+                    }
+                    if (!AdbHelper.isOkay(readWord())) {
+                        mState = State.READING_FAIL_LENGTH;
+                        return true;
+                    }
+                    if (++mRequest < mRequests.length) {
+                        startRequest();
+                        return false;
+                    }
+                    switch (mResponse) {
+                        case NONE:
+                            complete();
+                            return false;
+                        case PAYLOAD:
+                            mState = State.READING_LENGTH;
+                            return true;
+                        default:
+                            mState = State.READING_OUTPUT;
+                            return true;
+                    }
+                case READING_FAIL_LENGTH:
+                case READING_LENGTH:
+                    if (mBuffer.remaining() < 4) {
+                        return false;
+                    }
+                    String length = AdbHelper.replyToString(readWord());
+                    try {
+                        mRemaining = Integer.parseInt(length, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Expected a length, got '" + length + "'");
+                    }
+                    if (mState == State.READING_FAIL_LENGTH) {
+                        mMessage = new byte[mRemaining];
+                        mState = State.READING_FAIL_MESSAGE;
+                    } else {
+                        mState = State.READING_PAYLOAD;
+                    }
+                    return true;
+                case READING_FAIL_MESSAGE:
+                    int count = Math.min(mRemaining, mBuffer.remaining());
+                    mBuffer.get(mMessage, mMessage.length - mRemaining, count);
+                    mRemaining -= count;
+                    if (mRemaining == 0) {
+                        failRejected(mMessage.length);
+                    }
+                    return false;
+                case READING_PAYLOAD:
+                    output(Math.min(mRemaining, mBuffer.remaining()));
+                    if (mRemaining == 0) {
+                        complete();
+                    }
+                    return false;
+                case READING_OUTPUT:
+                    output(mBuffer.remaining());
+                    return false;
+                default:
+                    throw new IllegalStateException(mState.toString());
+            }
+        }
+
+        @NonNull
+        private byte[] readWord() {
+            byte[] word = new byte[4];
+            mBuffer.get(word);
+            return word;
+        }
+
+        private void output(int count) {
+            mReceiver.addOutput(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), count);
+            mBuffer.position(mBuffer.position() + count);
+            mRemaining -= count;
+            if (mReceiver.isCancelled()) {
+                complete();
+            }
+        }
+
+        private void onEndOfStream() {
+            switch (mState) {
+                case READING_OUTPUT:
+                    mReceiver.flush();
+                    complete();
+                    break;
+                case READING_FAIL_MESSAGE:
+                    failRejected(mMessage.length - mRemaining);
+                    break;
+                default:
+                    fail(new IOException("Connection closed by adb"));
+                    break;
+            }
+        }
+
+        private void failRejected(int messageLength) {
+            String message = new String(mMessage, 0, messageLength, StandardCharsets.UTF_8);
+            boolean deviceSelection = mSerial != null && mRequest == 0;
+            fail(new AdbCommandRejectedException(message, deviceSelection));
+        }
+
+        private void checkTimeout(long now) {
+            long elapsed = now - mLastProgress;
+            if (mState == State.READING_OUTPUT) {
+                if (mMaxTimeToOutputMs > 0 && elapsed > mMaxTimeToOutputMs) {
+                    fail(new ShellCommandUnresponsiveException());
+                }
+            } else {
+                int timeOut = DdmPreferences.getTimeOut();
+                if (timeOut > 0 && elapsed > timeOut) {
+                    fail(new TimeoutException("No response from adb in " + elapsed + " ms"));
+                }
+            }
+        }
+
+        private void complete() {
+            if (finish()) {
+                mFuture.complete(null);
+            }
+        }
+
+        private void fail(@NonNull Throwable t) {
+            if (finish()) {
+                mFuture.completeExceptionally(t);
+            }
+        }
+
+        /** Closes the connection of the command, and returns whether it was still running. */
+        private boolean finish() {
+            if (mFinished) {
+                return false;
+            }
+            mFinished = true;
+            if (mKey != null) {
+                closeQuietly(mKey);
+            }
+            onFinished(this);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Splits the raw output of a shell command into lines, without decoding it.
+ *
+ * <p>The lines are given to a {@link LineHandler} as ranges of bytes, without their line
+ * terminator, {@code \n} or {@code \r\n}. A line that is complete within a chunk of output is
+ * given as a range of that chunk; only the lines spread over several chunks are copied, to a
+ * buffer reused for all of them.
+ */
+public final class ByteLineScanner {
+
+    /** Receives the lines found by a {@link ByteLineScanner}. */
+    public interface LineHandler {
+        /**
+         * Called for each line. The bytes of the line are only valid for the duration of the
+         * call.
+         */
+        void processLine(@NonNull byte[] data, int offset, int length);
+    }
+
+    /** The start of a line that was not terminated in the previous chunks. */
+    @NonNull private byte[] mUnfinishedLine = new byte[256];
+
+    private int mUnfinishedLength;
+
+    /**
+     * Scans a chunk of output, and calls the handler for each line that it completes.
+     */
+    public void scan(
+            @NonNull byte[] data, int offset, int length, @NonNull LineHandler handler) {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mUnfinishedLength > 0) {
+                append(data, start, i - start);
+                int lineLength = withoutCarriageReturn(mUnfinishedLine, 0, mUnfinishedLength);
+                mUnfinishedLength = 0;
+                handler.processLine(mUnfinishedLine, 0, lineLength);
+            } else {
+                handler.processLine(data, start, withoutCarriageReturn(data, start, i - start));
+            }
+            start = i + 1;
+        }
+        append(data, start, end - start);
+    }
+
+    /**
+     * Calls the handler for the last line, if it was not terminated, and resets the scanner.
+     *
+     * @return whether there was such a line.
+     */
+    public boolean flush(@NonNull LineHandler handler) {
+        if (mUnfinishedLength == 0) {
+            return false;
+        }
+        handler.processLine(mUnfinishedLine, 0, mUnfinishedLength);
+        mUnfinishedLength = 0;
+        return true;
+    }
+
+    private void append(@NonNull byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        int required = mUnfinishedLength + length;
+        if (required > mUnfinishedLine.length) {
+            byte[] line = new byte[Math.max(required, mUnfinishedLine.length * 2)];
+            System.arraycopy(mUnfinishedLine, 0, line, 0, mUnfinishedLength);
+            mUnfinishedLine = line;
+        }
+        System.arraycopy(data, offset, mUnfinishedLine, mUnfinishedLength, length);
+        mUnfinishedLength = required;
+    }
+
+    /**
+     * Returns the length of a line without the {@code \r} that precedes its {@code \n} on older
+     * devices.
+     */
+    private static int withoutCarriageReturn(@NonNull byte[] data, int offset, int length) {
+        return length > 0 && data[offset + length - 1] == '\r' ? length - 1 : length;
+    }
+}
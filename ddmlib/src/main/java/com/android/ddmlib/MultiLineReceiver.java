@@ -33,11 +33,22 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
 
     private boolean mTrimLines = true;
 
-    /** unfinished message line, stored for next packet */
-    private String mUnfinishedLine = null;
+    /** Whether output was received, in which case the unfinished line is given by flush. */
+    private boolean mReceivedOutput = false;
+
+    private final ByteLineScanner mScanner = new ByteLineScanner();
 
     private final Collection<String> mArray = new ArrayList<>();
 
+    private final ByteLineScanner.LineHandler mLineHandler =
+            (data, offset, length) -> {
+                String line = new String(data, offset, length, Charsets.UTF_8);
+                if (mTrimLines) {
+                    line = line.trim();
+                }
+                mArray.add(line);
+            };
+
     /**
      * Set the trim lines flag.
      *
@@ -54,45 +65,13 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
     @Override
     public final void addOutput(byte[] data, int offset, int length) {
         if (!isCancelled()) {
-            String s = new String(data, offset, length, Charsets.UTF_8);
-
-            // ok we've got a string
-            // if we had an unfinished line we add it.
-            if (mUnfinishedLine != null) {
-                s = mUnfinishedLine + s;
-                mUnfinishedLine = null;
-            }
+            mReceivedOutput = true;
 
-            // now we split the lines
+            // Split the lines before decoding them, so that a multi-byte character spread over
+            // two chunks is decoded correctly, and only the unfinished line is copied over to the
+            // next chunk.
             mArray.clear();
-            int start = 0;
-            do {
-                int index = s.indexOf('\n', start); // $NON-NLS-1$
-
-                // if \n was not found, this is an unfinished line
-                // and we store it to be processed for the next packet
-                if (index == -1) {
-                    mUnfinishedLine = s.substring(start);
-                    break;
-                }
-
-                // we found a \n, in older devices, this is preceded by a \r
-                int newlineLength = 1;
-                if (index > 0 && s.charAt(index - 1) == '\r') {
-                    index--;
-                    newlineLength = 2;
-                }
-
-                // extract the line
-                String line = s.substring(start, index);
-                if (mTrimLines) {
-                    line = line.trim();
-                }
-                mArray.add(line);
-
-                // move start to after the \r\n we found
-                start = index + newlineLength;
-            } while (true);
+            mScanner.scan(data, offset, length, mLineHandler);
 
             if (!mArray.isEmpty()) {
                 // at this point we've split all the lines.
@@ -110,8 +89,14 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      */
     @Override
     public void flush() {
-        if (mUnfinishedLine != null) {
-            processNewLines(new String[] {mUnfinishedLine});
+        if (mReceivedOutput) {
+            // The unfinished line is given as is, and is empty if the output ended with a line
+            // terminator.
+            String[] lines = {""};
+            mScanner.flush(
+                    (data, offset, length) ->
+                            lines[0] = new String(data, offset, length, Charsets.UTF_8));
+            processNewLines(lines);
         }
 
         done();
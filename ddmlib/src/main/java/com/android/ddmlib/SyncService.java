@@ -24,13 +24,23 @@ import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.utils.ArrayHelper;
 import com.android.ddmlib.utils.FilePermissionUtil;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
@@ -79,6 +89,8 @@ public class SyncService {
 
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
+    /** Value returned by {@link #writeFully} when it did not read the next chunk of the file. */
+    private static final int NOT_READ = -1;
 
     /**
      * Classes which implement this interface provide methods that deal
@@ -158,15 +170,102 @@ public class SyncService {
         }
     }
 
+    /** A file to push or pull. */
+    private static final class Transfer {
+        private final String localPath;
+        private final String remotePath;
+        private final long size;
+
+        private Transfer(String localPath, String remotePath, long size) {
+            this.localPath = localPath;
+            this.remotePath = remotePath;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Progress monitor shared by the sync sessions of a transfer, which forwards the calls of all
+     * the sessions to a single monitor. The first failure of a session cancels the others.
+     */
+    private static class ConcurrentSyncProgressMonitor implements ISyncProgressMonitor {
+        private final ISyncProgressMonitor mMonitor;
+        private Exception mFailure;
+
+        private ConcurrentSyncProgressMonitor(ISyncProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        @Override
+        public synchronized void start(int totalWork) {
+            mMonitor.start(totalWork);
+        }
+
+        @Override
+        public synchronized void stop() {
+            mMonitor.stop();
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return mFailure != null || mMonitor.isCanceled();
+        }
+
+        @Override
+        public synchronized void startSubTask(String name) {
+            mMonitor.startSubTask(name);
+        }
+
+        @Override
+        public synchronized void advance(int work) {
+            mMonitor.advance(work);
+        }
+
+        private synchronized void fail(Exception failure) {
+            if (mFailure == null) {
+                mFailure = failure;
+            }
+        }
+
+        /**
+         * Throws the first failure of the sessions, or a {@link SyncException} if the transfer
+         * was canceled through the forwarded monitor.
+         */
+        private synchronized void rethrowFailure()
+                throws SyncException, IOException, TimeoutException {
+            if (mFailure instanceof SyncException) {
+                throw (SyncException) mFailure;
+            } else if (mFailure instanceof IOException) {
+                throw (IOException) mFailure;
+            } else if (mFailure instanceof TimeoutException) {
+                throw (TimeoutException) mFailure;
+            } else if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException) mFailure;
+            } else if (mMonitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+        }
+    }
+
     private InetSocketAddress mAddress;
     private Device mDevice;
     private SocketChannel mChannel;
 
     /**
-     * Buffer used to send data. Allocated when needed and reused afterward.
+     * Buffer used to read error messages. Allocated when needed and reused afterward.
      */
     private byte[] mBuffer;
 
+    /**
+     * Direct buffers used to send and receive file data. Allocated when needed and reused
+     * afterward.
+     */
+    private ByteBuffer[] mDataBuffers;
+
+    /**
+     * Selector used to wait for {@link #mChannel} to be ready. Opened when needed.
+     */
+    private Selector mSelector;
+
     /**
      * Creates a Sync service object.
      * @param address The address to connect to
@@ -243,6 +342,14 @@ public class SyncService {
             }
             mChannel = null;
         }
+        if (mSelector != null) {
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // nothing to be done really...
+            }
+            mSelector = null;
+        }
     }
 
     /**
@@ -269,6 +376,29 @@ public class SyncService {
      */
     public void pull(FileEntry[] entries, String localPath, ISyncProgressMonitor monitor)
             throws SyncException, IOException, TimeoutException {
+        pull(entries, localPath, monitor, 1);
+    }
+
+    /**
+     * Pulls file(s) or folder(s), transferring several files at once over up to
+     * {@code sessionCount} sync sessions.
+     * <p>This sync session is one of them, the others are opened for the duration of the call.
+     * Files are transferred largest first, and the monitor may be called from any of the threads
+     * running the sessions.
+     * @param entries the remote item(s) to pull
+     * @param localPath The local destination. If the entries count is &gt; 1 or
+     *      if the unique entry is a folder, this should be a folder.
+     * @param monitor The progress monitor. Cannot be null.
+     * @param sessionCount the maximum number of sync sessions to use.
+     * @throws SyncException
+     * @throws IOException
+     * @throws TimeoutException
+     *
+     * @see FileListingService.FileEntry
+     * @see #getNullProgressMonitor()
+     */
+    public void pull(FileEntry[] entries, String localPath, ISyncProgressMonitor monitor,
+            int sessionCount) throws SyncException, IOException, TimeoutException {
 
         // first we check the destination is a directory and exists
         File f = new File(localPath);
@@ -288,7 +418,13 @@ public class SyncService {
         // start the monitor
         monitor.start(total);
 
-        doPull(entries, localPath, fls, monitor);
+        if (sessionCount > 1) {
+            List<Transfer> transfers = new ArrayList<Transfer>();
+            collectPulls(entries, localPath, fls, monitor, transfers);
+            doTransfers(transfers, false /*push*/, monitor, sessionCount);
+        } else {
+            doPull(entries, localPath, fls, monitor);
+        }
 
         monitor.stop();
     }
@@ -359,6 +495,25 @@ public class SyncService {
      */
     public void push(String[] local, FileEntry remote, ISyncProgressMonitor monitor)
             throws SyncException, IOException, TimeoutException {
+        push(local, remote, monitor, 1);
+    }
+
+    /**
+     * Push several files, transferring several files at once over up to {@code sessionCount}
+     * sync sessions.
+     * <p>This sync session is one of them, the others are opened for the duration of the call.
+     * Files are transferred largest first, and the monitor may be called from any of the threads
+     * running the sessions.
+     * @param local An array of loca files to push
+     * @param remote the remote {@link FileEntry} representing a directory.
+     * @param monitor The progress monitor. Cannot be null.
+     * @param sessionCount the maximum number of sync sessions to use.
+     * @throws SyncException if file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void push(String[] local, FileEntry remote, ISyncProgressMonitor monitor,
+            int sessionCount) throws SyncException, IOException, TimeoutException {
         if (!remote.isDirectory()) {
             throw new SyncException(SyncError.REMOTE_IS_FILE);
         }
@@ -375,7 +530,13 @@ public class SyncService {
 
         monitor.start(total);
 
-        doPush(fileArray, remote.getFullPath(), monitor);
+        if (sessionCount > 1) {
+            List<Transfer> transfers = new ArrayList<Transfer>();
+            collectPushes(fileArray, remote.getFullPath(), monitor, transfers);
+            doTransfers(transfers, true /*push*/, monitor, sessionCount);
+        } else {
+            doPush(fileArray, remote.getFullPath(), monitor);
+        }
 
         monitor.stop();
     }
@@ -511,6 +672,7 @@ public class SyncService {
             ISyncProgressMonitor monitor) throws IOException, SyncException, TimeoutException {
         byte[] msg = null;
         byte[] pullResult = new byte[8];
+        ByteBuffer header = ByteBuffer.wrap(pullResult).order(ByteOrder.LITTLE_ENDIAN);
 
         final int timeOut = DdmPreferences.getTimeOut();
         byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_CHARSET);
@@ -526,7 +688,7 @@ public class SyncService {
         AdbHelper.write(mChannel, msg, -1, timeOut);
 
         // read the result, in a byte array containing 2 ints (id, size)
-        AdbHelper.read(mChannel, pullResult, -1, timeOut);
+        readFully(new ByteBuffer[] { header }, timeOut);
 
         // check we have the proper data back
         if (!checkResult(pullResult, ID_DATA) && !checkResult(pullResult, ID_DONE)) {
@@ -537,14 +699,15 @@ public class SyncService {
         // access the destination file
         File f = new File(localPath);
 
-        // create the stream to write in the file. We use a new try/catch block to differentiate
+        // create the channel to write in the file. We use a new try/catch block to differentiate
         // between file and network io exceptions.
-        FileOutputStream fos = null;
+        FileChannel fileChannel = null;
         try {
-            fos = new FileOutputStream(f);
+            fileChannel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
 
             // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            ByteBuffer data = getDataBuffers()[0];
 
             // loop to get data until we're done.
             while (true) {
@@ -562,33 +725,34 @@ public class SyncService {
                     throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
                             readErrorMessage(pullResult, timeOut));
                 }
-                int length = ArrayHelper.swap32bitFromArray(pullResult, 4);
+                int length = header.getInt(4);
                 if (length > SYNC_DATA_MAX) {
                     // buffer overrun!
                     // error and exit
                     throw new SyncException(SyncError.BUFFER_OVERRUN);
                 }
 
-                // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
-
-                // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
+                // now read the length we received, along with the header for the next packet.
+                data.clear();
+                data.limit(length);
+                header.clear();
+                readFully(new ByteBuffer[] { data, header }, timeOut);
 
                 // write the content in the file
-                fos.write(data, 0, length);
+                data.flip();
+                while (data.hasRemaining()) {
+                    fileChannel.write(data);
+                }
 
                 monitor.advance(length);
             }
-
-            fos.flush();
         } catch (IOException e) {
             Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
                     f.getAbsolutePath(), e.toString()));
             throw new SyncException(SyncError.FILE_WRITE_ERROR);
         } finally {
-            if (fos != null) {
-                fos.close();
+            if (fileChannel != null) {
+                fileChannel.close();
             }
         }
     }
@@ -641,7 +805,7 @@ public class SyncService {
      */
     private void doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
-        FileInputStream fis = null;
+        FileChannel fileChannel = null;
         byte[] msg;
 
         final int timeOut = DdmPreferences.getTimeOut();
@@ -654,8 +818,8 @@ public class SyncService {
                 throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
             }
 
-            // create the stream to read the file
-            fis = new FileInputStream(f);
+            // create the channel to read the file
+            fileChannel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
 
             int permissions = FilePermissionUtil.getFilePosixPermission(f);
             // create the header for the action
@@ -665,37 +829,41 @@ public class SyncService {
             // file and network IO exceptions.
             AdbHelper.write(mChannel, msg, -1, timeOut);
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+            // The chunks are read in turn in each of the two buffers: the next chunk is read
+            // from the file while the current one is being sent.
+            ByteBuffer[] dataBuffers = getDataBuffers();
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer[] packet = { header, null };
+            int current = 0;
+            int readCount = readChunk(fileChannel, dataBuffers[current]);
 
             // look while there is something to read
-            while (true) {
+            while (readCount > 0) {
                 // check if we're canceled
                 if (monitor.isCanceled()) {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
-
-                if (readCount == -1) {
-                    // we reached the end of the file
-                    break;
+                // send the header and the data in a single write
+                header.clear();
+                header.put(ID_DATA).putInt(readCount).flip();
+                packet[1] = dataBuffers[current];
+                ByteBuffer next = dataBuffers[1 - current];
+                int nextReadCount = writeFully(packet, timeOut, fileChannel, next);
+                if (nextReadCount == NOT_READ) {
+                    nextReadCount = readChunk(fileChannel, next);
                 }
 
-                // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
-
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
-
                 // and advance the monitor
                 monitor.advance(readCount);
+
+                current = 1 - current;
+                readCount = nextReadCount;
             }
         } finally {
             // close the local file
-            if (fis != null) {
-                fis.close();
+            if (fileChannel != null) {
+                fileChannel.close();
             }
         }
 
@@ -717,6 +885,140 @@ public class SyncService {
         }
     }
 
+    /**
+     * Lists the files to pull recursively, and creates the local directories.
+     * @param entries The list of entry to pull
+     * @param localPath the localpath to a directory
+     * @param fileListingService a FileListingService object to browse through remote directories.
+     * @param monitor the progress monitor. Must be started already.
+     * @param transfers the list to add the files to pull to
+     */
+    private static void collectPulls(FileEntry[] entries, String localPath,
+            FileListingService fileListingService, ISyncProgressMonitor monitor,
+            List<Transfer> transfers) throws SyncException {
+        for (FileEntry e : entries) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            String dest = localPath + File.separator + e.getName();
+            int type = e.getType();
+            if (type == FileListingService.TYPE_DIRECTORY) {
+                new File(dest).mkdir();
+                FileEntry[] children = fileListingService.getChildren(e, true, null);
+                collectPulls(children, dest, fileListingService, monitor, transfers);
+                monitor.advance(1);
+            } else if (type == FileListingService.TYPE_FILE) {
+                transfers.add(new Transfer(dest, e.getFullPath(), e.getSizeValue()));
+            }
+        }
+    }
+
+    /**
+     * Lists the files to push recursively.
+     * @param fileArray the files and directories to push
+     * @param remotePath the remote directory to push them to
+     * @param monitor the progress monitor. Must be started already.
+     * @param transfers the list to add the files to push to
+     */
+    private static void collectPushes(File[] fileArray, String remotePath,
+            ISyncProgressMonitor monitor, List<Transfer> transfers) {
+        for (File f : fileArray) {
+            if (f.isDirectory()) {
+                collectPushes(f.listFiles(), remotePath + "/" + f.getName(), monitor, transfers);
+                monitor.advance(1);
+            } else if (f.isFile()) {
+                transfers.add(new Transfer(
+                        f.getAbsolutePath(), remotePath + "/" + f.getName(), f.length()));
+            }
+        }
+    }
+
+    /**
+     * Transfers files over this sync session and up to {@code sessionCount - 1} other ones.
+     * @param transfers the files to transfer
+     * @param push true to push the files, false to pull them
+     * @param monitor the progress monitor. Must be started already.
+     * @param sessionCount the maximum number of sync sessions to use.
+     *
+     * @throws SyncException if a file could not be transferred, or if the transfer was canceled
+     * @throws IOException in case of I/O error on a connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void doTransfers(List<Transfer> transfers, final boolean push,
+            ISyncProgressMonitor monitor, int sessionCount)
+            throws SyncException, IOException, TimeoutException {
+        // Largest files first, so that the sessions are kept busy until the end.
+        Collections.sort(transfers, new Comparator<Transfer>() {
+            @Override
+            public int compare(Transfer t1, Transfer t2) {
+                return Long.compare(t2.size, t1.size);
+            }
+        });
+        final Queue<Transfer> queue = new ConcurrentLinkedQueue<Transfer>(transfers);
+        final ConcurrentSyncProgressMonitor concurrentMonitor =
+                new ConcurrentSyncProgressMonitor(monitor);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 1; i < Math.min(sessionCount, transfers.size()); i++) {
+            final SyncService session = new SyncService(mAddress, mDevice);
+            try {
+                if (!session.openSync()) {
+                    break;
+                }
+            } catch (AdbCommandRejectedException | IOException | TimeoutException e) {
+                // the transfers still go through the sessions already opened.
+                Log.w("ddms", "Failed to open an additional sync session: " + e.getMessage());
+                break;
+            }
+            Thread thread = new Thread("Sync session " + i) {
+                @Override
+                public void run() {
+                    try {
+                        session.runTransfers(queue, push, concurrentMonitor);
+                    } finally {
+                        session.close();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        runTransfers(queue, push, concurrentMonitor);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                concurrentMonitor.fail(new SyncException(SyncError.CANCELED));
+                break;
+            }
+        }
+        concurrentMonitor.rethrowFailure();
+    }
+
+    /**
+     * Transfers files from a queue shared with other sync sessions, until it is empty or the
+     * transfers fail.
+     */
+    private void runTransfers(Queue<Transfer> queue, boolean push,
+            ConcurrentSyncProgressMonitor monitor) {
+        Transfer transfer;
+        while (!monitor.isCanceled() && (transfer = queue.poll()) != null) {
+            monitor.startSubTask(transfer.remotePath);
+            try {
+                if (push) {
+                    doPushFile(transfer.localPath, transfer.remotePath, monitor);
+                } else {
+                    doPullFile(transfer.remotePath, transfer.localPath, monitor);
+                }
+            } catch (SyncException | IOException | TimeoutException | RuntimeException e) {
+                monitor.fail(e);
+            }
+        }
+    }
+
     /**
      * Reads an error message from the opened {@link #mChannel}.
      * @param result the current adb result. Must contain both FAIL and the length of the message.
@@ -879,6 +1181,121 @@ public class SyncService {
         return FileListingService.TYPE_OTHER;
     }
 
+    /**
+     * Reads the next chunk of a file, up to {@link #SYNC_DATA_MAX} bytes.
+     * @param fileChannel the file to read from
+     * @param buffer the buffer to read into. It is flipped after reading, ready to be sent.
+     * @return the number of bytes read, 0 at the end of the file.
+     */
+    private static int readChunk(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    /**
+     * Writes buffers to {@link #mChannel} with gathered writes, until they are all written.
+     * <p>While the channel cannot accept more data, the next chunk of the file being sent is read,
+     * if any, so that reading the file overlaps with sending the data.
+     * @param buffers the buffers to write
+     * @param timeOut the timeout in ms since the last successful write, or 0 to wait forever.
+     * @param fileChannel the file to read the next chunk from
+     * @param next the buffer to read the next chunk into
+     * @return the number of bytes of the next chunk, or {@link #NOT_READ} if it was not read.
+     */
+    private int writeFully(ByteBuffer[] buffers, int timeOut, FileChannel fileChannel,
+            ByteBuffer next) throws IOException, TimeoutException {
+        int nextReadCount = NOT_READ;
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            long count = mChannel.write(buffers);
+            if (count < 0) {
+                Log.d("ddms", "write: channel EOF");
+                throw new IOException("channel EOF");
+            } else if (count == 0) {
+                if (nextReadCount == NOT_READ) {
+                    nextReadCount = readChunk(fileChannel, next);
+                } else {
+                    waitForChannel(SelectionKey.OP_WRITE, timeOut);
+                }
+            }
+        }
+        return nextReadCount;
+    }
+
+    /**
+     * Reads from {@link #mChannel} with scattered reads, until the buffers are full.
+     * @param buffers the buffers to read into
+     * @param timeOut the timeout in ms since the last successful read, or 0 to wait forever.
+     */
+    private void readFully(ByteBuffer[] buffers, int timeOut)
+            throws IOException, TimeoutException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            long count = mChannel.read(buffers);
+            if (count < 0) {
+                Log.d("ddms", "read: channel EOF");
+                throw new IOException("EOF");
+            } else if (count == 0) {
+                waitForChannel(SelectionKey.OP_READ, timeOut);
+            }
+        }
+    }
+
+    /**
+     * Waits until {@link #mChannel} is ready for an operation. Unlike the spin-wait of
+     * {@link AdbHelper}, this returns as soon as the channel is ready.
+     * @param operation the operation, {@link SelectionKey#OP_READ} or
+     *      {@link SelectionKey#OP_WRITE}.
+     * @param timeOut the timeout in ms, or 0 to wait forever.
+     */
+    private void waitForChannel(int operation, int timeOut) throws IOException, TimeoutException {
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            mChannel.register(mSelector, 0);
+        }
+        mChannel.keyFor(mSelector).interestOps(operation);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeOut);
+        while (true) {
+            long wait = 0;
+            if (timeOut != 0) {
+                wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) {
+                    Log.d("ddms", "sync: timeout");
+                    throw new TimeoutException();
+                }
+            }
+            int ready = mSelector.select(wait);
+            mSelector.selectedKeys().clear();
+            if (ready > 0) {
+                return;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // Throw a timeout exception in place of interrupted exception to avoid API changes.
+                throw new TimeoutException(
+                        "Sync interrupted with immediate timeout via interruption.");
+            }
+        }
+    }
+
+    /**
+     * Retrieve the data buffers, allocating if necessary
+     * @return two direct buffers of {@link #SYNC_DATA_MAX} bytes
+     */
+    private ByteBuffer[] getDataBuffers() {
+        if (mDataBuffers == null) {
+            mDataBuffers = new ByteBuffer[] {
+                    ByteBuffer.allocateDirect(SYNC_DATA_MAX),
+                    ByteBuffer.allocateDirect(SYNC_DATA_MAX)
+            };
+        }
+        return mDataBuffers;
+    }
+
     /**
      * Retrieve the buffer, allocating if necessary
      * @return
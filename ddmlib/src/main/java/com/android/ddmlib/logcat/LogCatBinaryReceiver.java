@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Receives the raw output of {@code adb logcat -B}, and decodes it into {@link LogCatMessage}
+ * objects.
+ *
+ * <p>The output is a sequence of {@code logger_entry} structures, in little endian:
+ *
+ * <pre>
+ *     uint16_t len;       // length of the payload
+ *     uint16_t hdr_size;  // size of this header, or 0 in the v1 format
+ *     int32_t  pid;
+ *     int32_t  tid;
+ *     int32_t  sec;
+ *     int32_t  nsec;
+ *     ...                 // fields of the v2 format and later
+ *     char     msg[len];  // priority, tag and message, the last two terminated by '\0'
+ * </pre>
+ *
+ * Entries are decoded incrementally as the output is received, without going through text. An
+ * entry spread over several chunks of output is copied to a buffer reused for all of them. As
+ * with {@link LogCatMessageParser}, each line of a message becomes a {@link LogCatMessage}, and
+ * empty lines are dropped.
+ */
+public abstract class LogCatBinaryReceiver implements IShellOutputReceiver {
+
+    /** Size of the header of the entries of the v1 format, which is the smallest one. */
+    private static final int V1_HEADER_SIZE = 20;
+
+    /** Largest header size accepted, beyond which the header is assumed to be in the v1 format. */
+    private static final int MAX_HEADER_SIZE = 128;
+
+    /** Android log priorities, which are the indices of their {@link LogLevel}. */
+    private static final LogLevel[] LEVELS = new LogLevel[8];
+
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            LEVELS[level.getPriority()] = level;
+        }
+    }
+
+    @Nullable private final IDevice mDevice;
+    @NonNull private final Calendar mCalendar;
+
+    /** The entry being received, when it is spread over several chunks. */
+    private final byte[] mPendingEntry = new byte[MAX_HEADER_SIZE + 0xFFFF];
+
+    private int mPendingLength;
+
+    /** The messages of the chunk of output being processed. */
+    private List<LogCatMessage> mMessages = new ArrayList<>();
+
+    /**
+     * @param device device from which the output is received, used to look up the app names of
+     *     the messages.
+     * @param timeZone time zone of the device, in which the timestamps of the messages are given.
+     */
+    public LogCatBinaryReceiver(@Nullable IDevice device, @NonNull TimeZone timeZone) {
+        mDevice = device;
+        mCalendar = Calendar.getInstance(timeZone);
+    }
+
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        int end = offset + length;
+        while (offset < end) {
+            if (mPendingLength == 0 && end - offset >= 4) {
+                int size = getEntrySize(data, offset);
+                if (end - offset >= size) {
+                    // The whole entry is in the chunk.
+                    processEntry(data, offset, size);
+                    offset += size;
+                    continue;
+                }
+            }
+
+            // Copy to the pending entry, up to its size once it is known.
+            int target = mPendingLength < 4 ? 4 : getEntrySize(mPendingEntry, 0);
+            int count = Math.min(target - mPendingLength, end - offset);
+            System.arraycopy(data, offset, mPendingEntry, mPendingLength, count);
+            mPendingLength += count;
+            offset += count;
+            if (mPendingLength >= 4 && mPendingLength == getEntrySize(mPendingEntry, 0)) {
+                processEntry(mPendingEntry, 0, mPendingLength);
+                mPendingLength = 0;
+            }
+        }
+
+        if (!mMessages.isEmpty()) {
+            List<LogCatMessage> messages = mMessages;
+            mMessages = new ArrayList<>();
+            processLogMessages(messages);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // A truncated entry is dropped.
+        mPendingLength = 0;
+    }
+
+    /**
+     * Called with the new messages decoded from the output.
+     *
+     * @param messages the new messages, which the receiver can keep.
+     */
+    protected abstract void processLogMessages(@NonNull List<LogCatMessage> messages);
+
+    /** Returns the size of the entry at an offset, given its first 4 bytes. */
+    private static int getEntrySize(@NonNull byte[] data, int offset) {
+        return getHeaderSize(data, offset) + readUnsignedShort(data, offset);
+    }
+
+    private static int getHeaderSize(@NonNull byte[] data, int offset) {
+        int headerSize = readUnsignedShort(data, offset + 2);
+        return headerSize < V1_HEADER_SIZE || headerSize > MAX_HEADER_SIZE
+                ? V1_HEADER_SIZE
+                : headerSize;
+    }
+
+    private void processEntry(@NonNull byte[] data, int offset, int size) {
+        int payload = offset + getHeaderSize(data, offset);
+        int end = offset + size;
+        int tagEnd = indexOf(data, payload + 1, end, (byte) 0);
+        if (payload >= end || tagEnd == end) {
+            // Not a text entry.
+            return;
+        }
+        int messageEnd = indexOf(data, tagEnd + 1, end, (byte) 0);
+
+        int priority = data[payload];
+        LogLevel level = priority >= 0 && priority < LEVELS.length ? LEVELS[priority] : null;
+        if (level == null) {
+            // As for the text output, warn seems like a decent default.
+            level = LogLevel.WARN;
+        }
+        int pid = readInt(data, offset + 4);
+        int tid = readInt(data, offset + 8);
+        long seconds = readInt(data, offset + 12) & 0xFFFFFFFFL;
+        int nanos = readInt(data, offset + 16);
+
+        String appName = null;
+        if (mDevice != null && pid != -1) {
+            appName = mDevice.getClientName(pid);
+        }
+        if (appName == null || appName.isEmpty()) {
+            appName = "?"; //$NON-NLS-1$
+        }
+        String tag = new String(data, payload + 1, tagEnd - payload - 1, StandardCharsets.UTF_8);
+        mCalendar.setTimeInMillis(seconds * 1000 + nanos / 1000000);
+        LogCatTimestamp timestamp =
+                new LogCatTimestamp(
+                        mCalendar.get(Calendar.MONTH) + 1,
+                        mCalendar.get(Calendar.DAY_OF_MONTH),
+                        mCalendar.get(Calendar.HOUR_OF_DAY),
+                        mCalendar.get(Calendar.MINUTE),
+                        mCalendar.get(Calendar.SECOND),
+                        mCalendar.get(Calendar.MILLISECOND));
+        LogCatHeader header = new LogCatHeader(level, pid, tid, appName, tag, timestamp);
+
+        int lineStart = tagEnd + 1;
+        while (lineStart < messageEnd) {
+            int lineEnd = indexOf(data, lineStart, messageEnd, (byte) '\n');
+            if (lineEnd > lineStart) {
+                String line =
+                        new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                mMessages.add(new LogCatMessage(header, line));
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /** Returns the index of a byte in a range, or the end of the range if it is not found. */
+    private static int indexOf(@NonNull byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int readUnsignedShort(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xFF)
+                | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -43,6 +43,9 @@ public final class LogCatFilter {
     private final LogLevel mLogLevel;
 
     private boolean mCheckPid;
+
+    /** The pid that matches {@link #mPid}, or {@link Long#MIN_VALUE} if no pid matches it. */
+    private long mPidValue = Long.MIN_VALUE;
     private boolean mCheckAppName;
     private boolean mCheckTag;
     private boolean mCheckText;
@@ -72,6 +75,16 @@ public final class LogCatFilter {
         mLogLevel = logLevel;
 
         mCheckPid = !mPid.isEmpty();
+        if (mCheckPid) {
+            try {
+                int pidValue = Integer.parseInt(mPid);
+                // "007" or "+7" are not the text of any pid.
+                if (Integer.toString(pidValue).equals(mPid)) {
+                    mPidValue = pidValue;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
 
         if (!mAppName.isEmpty()) {
             try {
@@ -192,20 +205,36 @@ public final class LogCatFilter {
      * @return true if the message matches the filter's conditions.
      */
     public boolean matches(LogCatMessage m) {
+        return matchesHeader(m.getLogLevel(), m.getPid(), m.getAppName(), m.getTag())
+                && matchesText(m.getMessage());
+    }
+
+    /**
+     * Check whether the messages with the given header fields can make it through this filter,
+     * depending on their text. The fields are given separately so that they can be checked before
+     * the messages are built.
+     * @param logLevel log level of the messages
+     * @param pid pid of the messages
+     * @param appName app name of the messages
+     * @param tag tag of the messages
+     * @return true if the fields match the filter's conditions.
+     */
+    public boolean matchesHeader(@NonNull LogLevel logLevel, int pid, @NonNull String appName,
+            @NonNull CharSequence tag) {
         /* filter out messages of a lower priority */
-        if (m.getLogLevel().getPriority() < mLogLevel.getPriority()) {
+        if (logLevel.getPriority() < mLogLevel.getPriority()) {
             return false;
         }
 
         /* if pid filter is enabled, filter out messages whose pid does not match
          * the filter's pid */
-        if (mCheckPid && !Integer.toString(m.getPid()).equals(mPid)) {
+        if (mCheckPid && pid != mPidValue) {
             return false;
         }
 
         /* if app name filter is enabled, filter out messages not matching the app name */
         if (mCheckAppName) {
-            Matcher matcher = mAppNamePattern.matcher(m.getAppName());
+            Matcher matcher = mAppNamePattern.matcher(appName);
             if (!matcher.find()) {
                 return false;
             }
@@ -213,14 +242,24 @@ public final class LogCatFilter {
 
         /* if tag filter is enabled, filter out messages not matching the tag */
         if (mCheckTag) {
-            Matcher matcher = mTagPattern.matcher(m.getTag());
+            Matcher matcher = mTagPattern.matcher(tag);
             if (!matcher.find()) {
                 return false;
             }
         }
 
+        return true;
+    }
+
+    /**
+     * Check whether the text of a message will make it through this filter, once its header
+     * fields did.
+     * @param text text of the message
+     * @return true if the text matches the filter's conditions.
+     */
+    public boolean matchesText(@NonNull CharSequence text) {
         if (mCheckText) {
-            Matcher matcher = mTextPattern.matcher(m.getMessage());
+            Matcher matcher = mTextPattern.matcher(text);
             if (!matcher.find()) {
                 return false;
             }
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.ByteLineScanner;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.MultiLineReceiver;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives the raw output of {@code adb logcat -v long}, and parses it into {@link LogCatMessage}
+ * objects.
+ *
+ * <p>The output gives the same messages as a {@link MultiLineReceiver} feeding a {@link
+ * LogCatMessageParser}, but is parsed at the byte level: lines are split by a {@link
+ * ByteLineScanner}, and headers are parsed in place rather than with a regex, into fields that
+ * are reused from one header to the next. Strings and messages are only built for the lines that
+ * make it through the optional {@link LogCatFilter}: the level, pid and tag of a header are
+ * checked before its tag is decoded, and the text of a line before it is decoded, through views
+ * over the received bytes.
+ */
+public abstract class LogCatOutputReceiver implements IShellOutputReceiver {
+
+    private static final int TAG_CACHE_SIZE = 256;
+
+    @Nullable private final IDevice mDevice;
+    @Nullable private final LogCatFilter mFilter;
+
+    private final ByteLineScanner mScanner = new ByteLineScanner();
+    private final ByteLineScanner.LineHandler mLineHandler = this::processLine;
+    private final AsciiView mView = new AsciiView();
+
+    /** The messages of the chunk of output being processed. */
+    private List<LogCatMessage> mMessages = new ArrayList<>();
+
+    // The fields of the last header.
+    private boolean mHasHeader;
+    private boolean mHeaderMatches;
+    private LogLevel mLogLevel;
+    private int mPid;
+    private int mTid;
+    private int mMonth;
+    private int mDay;
+    private int mHour;
+    private int mMinute;
+    private int mSecond;
+    private int mMilli;
+    @NonNull private byte[] mTagBytes = new byte[64];
+    private int mTagLength;
+
+    /** The last header, built when its first message is. */
+    @Nullable private LogCatHeader mHeader;
+
+    /** Recently decoded tags, indexed by hash, since a few tags make up most of the log. */
+    private final String[] mTagCache = new String[TAG_CACHE_SIZE];
+
+    /**
+     * @param device device from which the output is received, used to look up the app names of
+     *     the messages.
+     * @param filter filter the messages must match, or null to receive all of them.
+     */
+    public LogCatOutputReceiver(@Nullable IDevice device, @Nullable LogCatFilter filter) {
+        mDevice = device;
+        mFilter = filter;
+    }
+
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        mScanner.scan(data, offset, length, mLineHandler);
+        sendMessages();
+    }
+
+    @Override
+    public void flush() {
+        mScanner.flush(mLineHandler);
+        sendMessages();
+    }
+
+    /**
+     * Called with the new messages parsed from the output.
+     *
+     * @param messages the new messages, which the receiver can keep.
+     */
+    protected abstract void processLogMessages(@NonNull List<LogCatMessage> messages);
+
+    private void sendMessages() {
+        if (!mMessages.isEmpty()) {
+            List<LogCatMessage> messages = mMessages;
+            mMessages = new ArrayList<>();
+            processLogMessages(messages);
+        }
+    }
+
+    private void processLine(@NonNull byte[] data, int offset, int length) {
+        if (length == 0 || parseHeader(data, offset, length)) {
+            return;
+        }
+        if (!mHasHeader || !mHeaderMatches) {
+            // Lines without a header are dropped, as by LogCatMessageParser.
+            return;
+        }
+
+        String text = null;
+        if (mFilter != null) {
+            CharSequence view;
+            if (isAscii(data, offset, length)) {
+                view = mView.set(data, offset, length);
+            } else {
+                text = new String(data, offset, length, StandardCharsets.UTF_8);
+                view = text;
+            }
+            if (!mFilter.matchesText(view)) {
+                return;
+            }
+        }
+        if (text == null) {
+            text = new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+        mMessages.add(new LogCatMessage(getHeader(), text));
+    }
+
+    /**
+     * Parses a {@code logcat -v long} header ({@code [ MM-DD HH:MM:SS.mmm PID:TID LEVEL/TAG ]}),
+     * such as {@code [ 08-18 16:39:11.760  2977: 2988 D/PhoneInterfaceManager ]}, and returns
+     * whether the line was one. Accepts the same lines as the pattern of {@link
+     * LogCatMessageParser}, except for the ones with an out of range timestamp, which the regex
+     * path fails on.
+     */
+    private boolean parseHeader(@NonNull byte[] data, int offset, int length) {
+        int end = offset + length;
+        // The shortest header is "[ MM-DD HH:MM:SS.m :T L/]".
+        if (length < 25
+                || data[offset] != '['
+                || !isSpace(data[offset + 1])
+                || data[end - 1] != ']') {
+            return false;
+        }
+
+        int p = offset + 2;
+        int month = parseTwoDigits(data, p);
+        int day = parseTwoDigits(data, p + 3);
+        int hour = parseTwoDigits(data, p + 6);
+        int minute = parseTwoDigits(data, p + 9);
+        int second = parseTwoDigits(data, p + 12);
+        if (month < 1 || month > 12
+                || data[p + 2] != '-'
+                || day < 1 || day > 31
+                || !isSpace(data[p + 5])
+                || hour < 0 || hour > 23
+                || data[p + 8] != ':'
+                || minute < 0 || minute > 59
+                || data[p + 11] != ':'
+                || second < 0 || second > 59
+                || data[p + 14] != '.') {
+            return false;
+        }
+        p += 15;
+
+        // Milliseconds, reduced to three digits as by LogCatTimestamp.fromString.
+        int millisStart = p;
+        long milli = 0;
+        for (; p < end && isDigit(data[p]); p++) {
+            if (p - millisStart < 18) {
+                milli = milli * 10 + (data[p] - '0');
+            }
+        }
+        if (p == millisStart || p >= end || !isSpace(data[p])) {
+            return false;
+        }
+        while (milli >= 1000) {
+            milli /= 10;
+        }
+        p = skipSpaces(data, p, end);
+
+        int pidStart = p;
+        long pid = 0;
+        for (; p < end && isDigit(data[p]); p++) {
+            if (pid <= Integer.MAX_VALUE) {
+                pid = pid * 10 + (data[p] - '0');
+            }
+        }
+        if (p == pidStart || pid > Integer.MAX_VALUE) {
+            pid = -1;
+        }
+        if (p >= end || data[p] != ':') {
+            return false;
+        }
+        p = skipSpaces(data, p + 1, end);
+
+        int tidStart = p;
+        while (p < end && !isSpace(data[p])) {
+            p++;
+        }
+        int tidEnd = p;
+        // A single space, then the level and the tag.
+        if (tidStart == tidEnd || p + 3 > end || data[p + 2] != '/') {
+            return false;
+        }
+        char level = (char) data[p + 1];
+        if ("VDIWEAF".indexOf(level) < 0) {
+            return false;
+        }
+        int tagStart = p + 3;
+        int tagEnd = end - 1;
+        while (tagEnd > tagStart && isSpace(data[tagEnd - 1])) {
+            tagEnd--;
+        }
+
+        mHasHeader = true;
+        mHeader = null;
+        mLogLevel = LogLevel.getByLetter(level);
+        if (mLogLevel == null) {
+            mLogLevel = level == 'F' ? LogLevel.ASSERT : LogLevel.WARN;
+        }
+        mPid = (int) pid;
+        mTid = parseTid(data, tidStart, tidEnd);
+        mMonth = month;
+        mDay = day;
+        mHour = hour;
+        mMinute = minute;
+        mSecond = second;
+        mMilli = (int) milli;
+        mTagLength = tagEnd - tagStart;
+        if (mTagLength > mTagBytes.length) {
+            mTagBytes = new byte[Math.max(mTagLength, mTagBytes.length * 2)];
+        }
+        System.arraycopy(data, tagStart, mTagBytes, 0, mTagLength);
+
+        mHeaderMatches = true;
+        if (mFilter != null) {
+            CharSequence tag =
+                    isAscii(mTagBytes, 0, mTagLength)
+                            ? mView.set(mTagBytes, 0, mTagLength)
+                            : getTag();
+            mHeaderMatches = mFilter.matchesHeader(mLogLevel, mPid, getAppName(), tag);
+        }
+        return true;
+    }
+
+    /** Parses a thread ID, which is in hex on some platforms, like {@link Integer#decode}. */
+    private static int parseTid(@NonNull byte[] data, int start, int end) {
+        long tid = 0;
+        boolean decimal = data[start] != '0' || end - start == 1;
+        for (int i = start; decimal && i < end; i++) {
+            decimal = isDigit(data[i]) && tid <= Integer.MAX_VALUE;
+            tid = tid * 10 + (data[i] - '0');
+        }
+        if (decimal && tid <= Integer.MAX_VALUE) {
+            return (int) tid;
+        }
+        try {
+            return Integer.decode(new String(data, start, end - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    @NonNull
+    private LogCatHeader getHeader() {
+        if (mHeader == null) {
+            mHeader =
+                    new LogCatHeader(
+                            mLogLevel,
+                            mPid,
+                            mTid,
+                            getAppName(),
+                            getTag(),
+                            new LogCatTimestamp(mMonth, mDay, mHour, mMinute, mSecond, mMilli));
+        }
+        return mHeader;
+    }
+
+    @NonNull
+    private String getAppName() {
+        String appName = null;
+        if (mDevice != null && mPid != -1) {
+            appName = mDevice.getClientName(mPid);
+        }
+        if (appName == null || appName.isEmpty()) {
+            appName = "?"; //$NON-NLS-1$
+        }
+        return appName;
+    }
+
+    @NonNull
+    private String getTag() {
+        if (!isAscii(mTagBytes, 0, mTagLength)) {
+            return new String(mTagBytes, 0, mTagLength, StandardCharsets.UTF_8);
+        }
+        // The hash of an ASCII string.
+        int hash = 0;
+        for (int i = 0; i < mTagLength; i++) {
+            hash = 31 * hash + mTagBytes[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (TAG_CACHE_SIZE - 1);
+        String tag = mTagCache[index];
+        boolean cached =
+                tag != null
+                        && tag.hashCode() == hash
+                        && mView.set(mTagBytes, 0, mTagLength).contentEquals(tag);
+        if (!cached) {
+            tag = new String(mTagBytes, 0, mTagLength, StandardCharsets.US_ASCII);
+            mTagCache[index] = tag;
+        }
+        return tag;
+    }
+
+    private static int parseTwoDigits(@NonNull byte[] data, int offset) {
+        if (!isDigit(data[offset]) || !isDigit(data[offset + 1])) {
+            return -1;
+        }
+        return (data[offset] - '0') * 10 + (data[offset + 1] - '0');
+    }
+
+    private static int skipSpaces(@NonNull byte[] data, int offset, int end) {
+        while (offset < end && isSpace(data[offset])) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /** Returns whether a byte is a whitespace character, as matched by {@code \s}. */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    private static boolean isAscii(@NonNull byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** A reusable view over ASCII bytes, to match them without building a String. */
+    private static final class AsciiView implements CharSequence {
+        private byte[] mData;
+        private int mOffset;
+        private int mLength;
+
+        @NonNull
+        private AsciiView set(@NonNull byte[] data, int offset, int length) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+            return this;
+        }
+
+        private boolean contentEquals(@NonNull String s) {
+            if (s.length() != mLength) {
+                return false;
+            }
+            for (int i = 0; i < mLength; i++) {
+                if (s.charAt(i) != mData[mOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) mData[mOffset + index];
+        }
+
+        @NonNull
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return new String(mData, mOffset, mLength, StandardCharsets.US_ASCII);
+        }
+    }
+}
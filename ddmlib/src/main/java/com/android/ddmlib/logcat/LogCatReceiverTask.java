@@ -22,7 +22,6 @@ import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 
@@ -31,10 +30,18 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogCatReceiverTask implements Runnable {
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    private static final String LOGCAT_BINARY_COMMAND = "logcat -B"; //$NON-NLS-1$
+
+    /**
+     * API level from which adbd runs shell commands without a pty, which would otherwise mangle
+     * the binary output of logcat.
+     */
+    private static final int BINARY_MIN_API_LEVEL = 24;
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -45,18 +52,27 @@ public class LogCatReceiverTask implements Runnable {
             new LogCatMessage(LogLevel.ERROR, "LogCat Connection error");
 
     private final IDevice mDevice;
+    private final boolean mBinary;
     private final LogCatOutputReceiver mReceiver;
-    private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, false);
+    }
+
+    /**
+     * @param device the device to receive the log of.
+     * @param binary whether to receive the log in the binary format of {@code logcat -B}, which
+     *     is decoded without going through text, on devices where it is supported.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, boolean binary) {
         mDevice = device;
+        mBinary = binary;
 
-        mReceiver = new LogCatOutputReceiver();
-        mParser = new LogCatMessageParser();
+        mReceiver = new Receiver();
         mCancelled = new AtomicBoolean();
     }
 
@@ -72,7 +88,12 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (mBinary && mDevice.getVersion().getApiLevel() >= BINARY_MIN_API_LEVEL) {
+                mDevice.executeShellCommand(
+                        LOGCAT_BINARY_COMMAND, new BinaryReceiver(getDeviceTimeZone()), 0);
+            } else {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
@@ -90,9 +111,22 @@ public class LogCatReceiverTask implements Runnable {
         mCancelled.set(true);
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
-        public LogCatOutputReceiver() {
-            setTrimLine(false);
+    /**
+     * Returns the time zone of the device, used to convert the timestamps of the binary format, or
+     * the default time zone if the device does not report one.
+     */
+    @NonNull
+    private TimeZone getDeviceTimeZone() {
+        String timeZone = mDevice.getProperty("persist.sys.timezone"); //$NON-NLS-1$
+        if (timeZone == null || timeZone.isEmpty()) {
+            return TimeZone.getDefault();
+        }
+        return TimeZone.getTimeZone(timeZone);
+    }
+
+    private class Receiver extends LogCatOutputReceiver {
+        public Receiver() {
+            super(mDevice, null);
         }
 
         /** Implements {@link IShellOutputReceiver#isCancelled() }. */
@@ -102,16 +136,28 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(String[] lines) {
+        protected void processLogMessages(@NonNull List<LogCatMessage> messages) {
             if (!mCancelled.get()) {
-                processLogLines(lines);
+                notifyListeners(messages);
             }
         }
+    }
+
+    private class BinaryReceiver extends LogCatBinaryReceiver {
+        public BinaryReceiver(@NonNull TimeZone timeZone) {
+            super(mDevice, timeZone);
+        }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
-            if (!newMessages.isEmpty()) {
-                notifyListeners(newMessages);
+        /** Implements {@link IShellOutputReceiver#isCancelled() }. */
+        @Override
+        public boolean isCancelled() {
+            return mCancelled.get();
+        }
+
+        @Override
+        protected void processLogMessages(@NonNull List<LogCatMessage> messages) {
+            if (!mCancelled.get()) {
+                notifyListeners(messages);
             }
         }
     }
@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only store of the logcat messages of a device, on disk, which can be queried with
+ * {@link LogCatFilter}s without keeping the messages in memory.
+ *
+ * <p>The messages are appended to segments of a bounded size. Each segment is made of a data
+ * file, holding the text of the messages, and an index file, holding a fixed-size entry per
+ * message: the offset and length of its text, its timestamp, its tid, and the ID of its header.
+ * A header is the level, pid, tag and app name shared by many messages; headers, tags and app
+ * names are stored once in dictionaries kept in memory. For each segment, the range of its
+ * timestamps and the set of its headers are kept in memory too.
+ *
+ * <p>A query evaluates the filters once per header, skips the segments whose time range or
+ * headers cannot match, scans the index of the other ones, and only reads the text of the
+ * messages whose header and timestamp match. The matching messages are given to a {@link
+ * LogCatListener} in batches. As the files are only appended to, a query works on a snapshot of
+ * the segments and dictionaries, and reads the files without holding the lock of the store.
+ *
+ * <p>As in {@link LogCatTimestamp}, timestamps do not include the year, so a time range spanning
+ * the end of a year does not match the messages of the new year.
+ */
+public final class LogCatStore implements LogCatListener, Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String STRINGS_FILE = "strings"; //$NON-NLS-1$
+    private static final String HEADERS_FILE = "headers"; //$NON-NLS-1$
+    private static final String DATA_SUFFIX = ".log"; //$NON-NLS-1$
+    private static final String INDEX_SUFFIX = ".idx"; //$NON-NLS-1$
+    private static final Pattern INDEX_FILE_PATTERN = Pattern.compile("(\\d+)\\.idx");
+
+    /** Size of a header: its level, pid, tag ID and app name ID. */
+    private static final int HEADER_SIZE = 13;
+
+    /** Size of an index entry: offset and length of the text, timestamp, tid and header ID. */
+    private static final int INDEX_ENTRY_SIZE = 24;
+
+    private static final int QUERY_BATCH_SIZE = 1000;
+
+    private static final LogLevel[] LEVELS = new LogLevel[8];
+
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            LEVELS[level.getPriority()] = level;
+        }
+    }
+
+    @NonNull private final File mDirectory;
+    private final long mSegmentSize;
+
+    @GuardedBy("this")
+    private final List<String> mStrings = new ArrayList<>();
+
+    @GuardedBy("this")
+    private final Map<String, Integer> mStringIds = new HashMap<>();
+
+    @GuardedBy("this")
+    private final List<Header> mHeaders = new ArrayList<>();
+
+    @GuardedBy("this")
+    private final Map<Header, Integer> mHeaderIds = new HashMap<>();
+
+    @GuardedBy("this")
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    @GuardedBy("this")
+    private DataOutputStream mStringsOut;
+
+    @GuardedBy("this")
+    private DataOutputStream mHeadersOut;
+
+    @GuardedBy("this")
+    private DataOutputStream mDataOut;
+
+    @GuardedBy("this")
+    private DataOutputStream mIndexOut;
+
+    /** Size of the data file of the last segment. */
+    @GuardedBy("this")
+    private long mDataSize;
+
+    /**
+     * Opens the store in a directory, creating it if needed, with the default segment size. The
+     * messages already in the store are kept.
+     */
+    public LogCatStore(@NonNull File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in a directory, creating it if needed. The messages already in the store
+     * are kept, except for the ones that were not completely written.
+     *
+     * @param directory the directory of the store.
+     * @param segmentSize the size of the text of the messages of a segment, beyond which a new
+     *     segment is started.
+     */
+    public LogCatStore(@NonNull File directory, long segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+
+        synchronized (this) {
+            loadStrings();
+            loadHeaders();
+            loadSegments();
+            mStringsOut = openForAppend(new File(mDirectory, STRINGS_FILE));
+            mHeadersOut = openForAppend(new File(mDirectory, HEADERS_FILE));
+        }
+    }
+
+    /** Appends messages to the store. Implements {@link LogCatListener#log(List)}. */
+    @Override
+    public synchronized void log(List<LogCatMessage> msgList) {
+        try {
+            for (LogCatMessage message : msgList) {
+                append(message);
+            }
+            flush();
+        } catch (IOException e) {
+            Log.e("LogCatStore", e); //$NON-NLS-1$
+        }
+    }
+
+    /** Appends a message to the store. */
+    public synchronized void append(@NonNull LogCatMessage message) throws IOException {
+        int headerId =
+                getHeaderId(
+                        message.getLogLevel(),
+                        message.getPid(),
+                        getStringId(message.getTag()),
+                        getStringId(message.getAppName()));
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        long key = message.getTimestamp().toKey();
+
+        if (mDataOut == null || mDataSize >= mSegmentSize) {
+            startSegment();
+        }
+        mDataOut.write(text);
+        mIndexOut.writeInt((int) mDataSize);
+        mIndexOut.writeInt(text.length);
+        mIndexOut.writeLong(key);
+        mIndexOut.writeInt(message.getTid());
+        mIndexOut.writeInt(headerId);
+        mDataSize += text.length;
+        mSegments.get(mSegments.size() - 1).add(key, headerId);
+    }
+
+    /**
+     * Finds the messages of the store that match filters and a time range, and gives them to a
+     * listener in batches, in the order in which they were appended. Only the messages appended
+     * before the query starts are found, and appending to the store does not wait for the end
+     * of the query.
+     *
+     * @param filters the filters the messages must all match.
+     * @param from the timestamp from which the messages are found, or null.
+     * @param to the timestamp up to which the messages are found, inclusive, or null.
+     * @param listener the listener the messages are given to.
+     */
+    public void query(
+            @NonNull List<LogCatFilter> filters,
+            @Nullable LogCatTimestamp from,
+            @Nullable LogCatTimestamp to,
+            @NonNull LogCatListener listener)
+            throws IOException {
+        List<String> strings;
+        List<Header> headers;
+        List<Segment> segments = new ArrayList<>();
+        synchronized (this) {
+            flush();
+            strings = new ArrayList<>(mStrings);
+            headers = new ArrayList<>(mHeaders);
+            for (Segment segment : mSegments) {
+                segments.add(segment.copy());
+            }
+        }
+
+        long fromKey = from != null ? from.toKey() : Long.MIN_VALUE;
+        long toKey = to != null ? to.toKey() : Long.MAX_VALUE;
+        HeaderMatcher matcher = new HeaderMatcher(filters, strings, headers);
+        List<LogCatMessage> batch = new ArrayList<>();
+
+        for (Segment segment : segments) {
+            if (segment.mCount == 0
+                    || segment.mMaxKey < fromKey
+                    || segment.mMinKey > toKey
+                    || !matcher.matchesAny(segment.mHeaderIds)) {
+                continue;
+            }
+            try (FileChannel index = FileChannel.open(segment.getIndexFile().toPath());
+                    FileChannel data = FileChannel.open(segment.getDataFile().toPath())) {
+                ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 4096);
+                ByteBuffer text = ByteBuffer.allocate(4096);
+                long remaining = (long) segment.mCount * INDEX_ENTRY_SIZE;
+                while (remaining > 0) {
+                    entries.clear();
+                    entries.limit((int) Math.min(entries.capacity(), remaining));
+                    readFully(index, entries, index.position());
+                    index.position(index.position() + entries.limit());
+                    remaining -= entries.limit();
+                    entries.flip();
+
+                    while (entries.hasRemaining()) {
+                        int offset = entries.getInt();
+                        int length = entries.getInt();
+                        long key = entries.getLong();
+                        int tid = entries.getInt();
+                        int headerId = entries.getInt();
+                        if (key < fromKey || key > toKey || !matcher.matches(headerId)) {
+                            continue;
+                        }
+
+                        if (text.capacity() < length) {
+                            text = ByteBuffer.allocate(Math.max(length, text.capacity() * 2));
+                        }
+                        text.clear();
+                        text.limit(length);
+                        readFully(data, text, offset);
+                        String message =
+                                new String(text.array(), 0, length, StandardCharsets.UTF_8);
+                        if (!matcher.matchesText(message)) {
+                            continue;
+                        }
+
+                        Header header = headers.get(headerId);
+                        LogCatHeader messageHeader =
+                                new LogCatHeader(
+                                        header.mLevel,
+                                        header.mPid,
+                                        tid,
+                                        strings.get(header.mAppNameId),
+                                        strings.get(header.mTagId),
+                                        LogCatTimestamp.fromKey(key));
+                        batch.add(new LogCatMessage(messageHeader, message));
+                        if (batch.size() == QUERY_BATCH_SIZE) {
+                            listener.log(batch);
+                            batch = new ArrayList<>();
+                        }
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            listener.log(batch);
+        }
+    }
+
+    /** Writes the appended messages to the files of the store. */
+    public synchronized void flush() throws IOException {
+        // Dictionaries first, and indices last, so that an index never refers to missing data.
+        mStringsOut.flush();
+        mHeadersOut.flush();
+        if (mDataOut != null) {
+            mDataOut.flush();
+            mIndexOut.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mStringsOut.close();
+            mHeadersOut.close();
+            if (mDataOut != null) {
+                mDataOut.close();
+                mIndexOut.close();
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private int getStringId(@NonNull String string) throws IOException {
+        Integer id = mStringIds.get(string);
+        if (id == null) {
+            id = mStrings.size();
+            mStrings.add(string);
+            mStringIds.put(string, id);
+            mStringsOut.writeUTF(string);
+        }
+        return id;
+    }
+
+    @GuardedBy("this")
+    private int getHeaderId(@NonNull LogLevel level, int pid, int tagId, int appNameId)
+            throws IOException {
+        Header header = new Header(level, pid, tagId, appNameId);
+        Integer id = mHeaderIds.get(header);
+        if (id == null) {
+            id = mHeaders.size();
+            mHeaders.add(header);
+            mHeaderIds.put(header, id);
+            mHeadersOut.writeByte(level.getPriority());
+            mHeadersOut.writeInt(pid);
+            mHeadersOut.writeInt(tagId);
+            mHeadersOut.writeInt(appNameId);
+        }
+        return id;
+    }
+
+    @GuardedBy("this")
+    private void startSegment() throws IOException {
+        if (mDataOut != null) {
+            mDataOut.close();
+            mIndexOut.close();
+        }
+        int number = mSegments.isEmpty() ? 0 : mSegments.get(mSegments.size() - 1).mNumber + 1;
+        Segment segment = new Segment(number);
+        mSegments.add(segment);
+        mDataOut = openForAppend(segment.getDataFile());
+        mIndexOut = openForAppend(segment.getIndexFile());
+        mDataSize = 0;
+    }
+
+    @GuardedBy("this")
+    private void loadStrings() throws IOException {
+        File file = new File(mDirectory, STRINGS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
+        DataInputStream input = new DataInputStream(stream);
+        int valid = 0;
+        try {
+            while (stream.available() > 0) {
+                String string = input.readUTF();
+                mStringIds.put(string, mStrings.size());
+                mStrings.add(string);
+                valid = bytes.length - stream.available();
+            }
+        } catch (IOException e) {
+            // The last string was not completely written.
+        }
+        truncate(file, valid);
+    }
+
+    @GuardedBy("this")
+    private void loadHeaders() throws IOException {
+        File file = new File(mDirectory, HEADERS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int priority = buffer.get();
+            int pid = buffer.getInt();
+            int tagId = buffer.getInt();
+            int appNameId = buffer.getInt();
+            LogLevel level = priority >= 0 && priority < LEVELS.length ? LEVELS[priority] : null;
+            if (level == null || tagId >= mStrings.size() || appNameId >= mStrings.size()) {
+                break;
+            }
+            Header header = new Header(level, pid, tagId, appNameId);
+            mHeaderIds.put(header, mHeaders.size());
+            mHeaders.add(header);
+        }
+        truncate(file, (long) mHeaders.size() * HEADER_SIZE);
+    }
+
+    @GuardedBy("this")
+    private void loadSegments() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        File[] files = mDirectory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            Matcher matcher = INDEX_FILE_PATTERN.matcher(file.getName());
+            if (matcher.matches()) {
+                numbers.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        Collections.sort(numbers);
+
+        for (int number : numbers) {
+            Segment segment = new Segment(number);
+            mSegments.add(segment);
+            long dataSize = segment.getDataFile().length();
+            long validDataSize = 0;
+            try (FileChannel index = FileChannel.open(segment.getIndexFile().toPath())) {
+                ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 4096);
+                boolean valid = true;
+                while (valid && index.read(entries) > 0) {
+                    entries.flip();
+                    while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+                        long offset = entries.getInt() & 0xFFFFFFFFL;
+                        long length = entries.getInt() & 0xFFFFFFFFL;
+                        long key = entries.getLong();
+                        entries.getInt();
+                        int headerId = entries.getInt();
+                        if (offset != validDataSize
+                                || offset + length > dataSize
+                                || headerId < 0
+                                || headerId >= mHeaders.size()) {
+                            // The entry was not completely written.
+                            valid = false;
+                            break;
+                        }
+                        validDataSize = offset + length;
+                        segment.add(key, headerId);
+                    }
+                    entries.compact();
+                }
+            }
+            truncate(segment.getIndexFile(), (long) segment.mCount * INDEX_ENTRY_SIZE);
+            truncate(segment.getDataFile(), validDataSize);
+            mDataSize = validDataSize;
+        }
+
+        if (!mSegments.isEmpty()) {
+            // Keep appending to the last segment.
+            Segment last = mSegments.get(mSegments.size() - 1);
+            mDataOut = openForAppend(last.getDataFile());
+            mIndexOut = openForAppend(last.getIndexFile());
+        }
+    }
+
+    @NonNull
+    private static DataOutputStream openForAppend(@NonNull File file) throws IOException {
+        return new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+    }
+
+    private static void truncate(@NonNull File file, long size) throws IOException {
+        if (file.length() > size) {
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) { //$NON-NLS-1$
+                f.setLength(size);
+            }
+        }
+    }
+
+    private static void readFully(
+            @NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of the log store");
+            }
+            position += count;
+        }
+    }
+
+    /** The fields shared by many messages, stored once. */
+    private static final class Header {
+        @NonNull private final LogLevel mLevel;
+        private final int mPid;
+        private final int mTagId;
+        private final int mAppNameId;
+
+        private Header(@NonNull LogLevel level, int pid, int tagId, int appNameId) {
+            mLevel = level;
+            mPid = pid;
+            mTagId = tagId;
+            mAppNameId = appNameId;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object object) {
+            if (!(object instanceof Header)) {
+                return false;
+            }
+            Header header = (Header) object;
+            return mLevel == header.mLevel
+                    && mPid == header.mPid
+                    && mTagId == header.mTagId
+                    && mAppNameId == header.mAppNameId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new int[] {mLevel.ordinal(), mPid, mTagId, mAppNameId});
+        }
+    }
+
+    /** A segment of the store, and the summary of its messages used to skip it in queries. */
+    private final class Segment {
+        private final int mNumber;
+        private int mCount;
+        private long mMinKey = Long.MAX_VALUE;
+        private long mMaxKey = Long.MIN_VALUE;
+        private final BitSet mHeaderIds = new BitSet();
+
+        private Segment(int number) {
+            mNumber = number;
+        }
+
+        /** Returns a copy of the segment, which is not updated by later appends. */
+        @NonNull
+        private Segment copy() {
+            Segment copy = new Segment(mNumber);
+            copy.mCount = mCount;
+            copy.mMinKey = mMinKey;
+            copy.mMaxKey = mMaxKey;
+            copy.mHeaderIds.or(mHeaderIds);
+            return copy;
+        }
+
+        private void add(long key, int headerId) {
+            mCount++;
+            mMinKey = Math.min(mMinKey, key);
+            mMaxKey = Math.max(mMaxKey, key);
+            mHeaderIds.set(headerId);
+        }
+
+        @NonNull
+        private File getDataFile() {
+            return new File(mDirectory, String.format("%08d%s", mNumber, DATA_SUFFIX));
+        }
+
+        @NonNull
+        private File getIndexFile() {
+            return new File(mDirectory, String.format("%08d%s", mNumber, INDEX_SUFFIX));
+        }
+    }
+
+    /**
+     * Matches the headers of a snapshot of the dictionaries against filters, evaluating them once
+     * per header.
+     */
+    private static final class HeaderMatcher {
+        @NonNull private final List<LogCatFilter> mFilters;
+        @NonNull private final List<String> mStrings;
+        @NonNull private final List<Header> mHeaders;
+        private final BitSet mEvaluated = new BitSet();
+        private final BitSet mMatching = new BitSet();
+
+        private HeaderMatcher(
+                @NonNull List<LogCatFilter> filters,
+                @NonNull List<String> strings,
+                @NonNull List<Header> headers) {
+            mFilters = filters;
+            mStrings = strings;
+            mHeaders = headers;
+        }
+
+        private boolean matches(int headerId) {
+            if (!mEvaluated.get(headerId)) {
+                mEvaluated.set(headerId);
+                Header header = mHeaders.get(headerId);
+                String appName = mStrings.get(header.mAppNameId);
+                String tag = mStrings.get(header.mTagId);
+                boolean matches = true;
+                for (LogCatFilter filter : mFilters) {
+                    matches &= filter.matchesHeader(header.mLevel, header.mPid, appName, tag);
+                }
+                mMatching.set(headerId, matches);
+            }
+            return mMatching.get(headerId);
+        }
+
+        private boolean matchesAny(@NonNull BitSet headerIds) {
+            for (int id = headerIds.nextSetBit(0); id >= 0; id = headerIds.nextSetBit(id + 1)) {
+                if (matches(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesText(@NonNull String text) {
+            for (LogCatFilter filter : mFilters) {
+                if (!filter.matchesText(text)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
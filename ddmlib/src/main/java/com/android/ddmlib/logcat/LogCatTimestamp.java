@@ -101,6 +101,31 @@ public final class LogCatTimestamp {
         mMilli = milli;
     }
 
+    /**
+     * Returns a key that orders the timestamps of a year, and from which the timestamp can be
+     * recovered with {@link #fromKey(long)}.
+     */
+    long toKey() {
+        return ((((mMonth * 32L + mDay) * 24 + mHour) * 60 + mMinute) * 60 + mSecond) * 1000
+                + mMilli;
+    }
+
+    /** Returns the timestamp of a key returned by {@link #toKey()}. */
+    @NonNull
+    static LogCatTimestamp fromKey(long key) {
+        int milli = (int) (key % 1000);
+        key /= 1000;
+        int second = (int) (key % 60);
+        key /= 60;
+        int minute = (int) (key % 60);
+        key /= 60;
+        int hour = (int) (key % 24);
+        key /= 24;
+        int day = (int) (key % 32);
+        int month = (int) (key / 32);
+        return new LogCatTimestamp(month, day, hour, minute, second, milli);
+    }
+
     public boolean isBefore(@NonNull LogCatTimestamp other) {
         if (mMonth == 12 && other.mMonth == 1) {
             // Timestamps don't indicate year, so in practice, if you get two timestamps in short
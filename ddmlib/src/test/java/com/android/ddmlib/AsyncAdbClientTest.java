@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.log.LogReceiver;
+import com.android.fakeadbserver.DeviceState;
+import com.android.fakeadbserver.FakeAdbServer;
+import com.android.fakeadbserver.devicecommandhandlers.DeviceCommandHandler;
+import com.android.fakeadbserver.shellcommandhandlers.GetPropCommandHandler;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests the {@link AsyncAdbClient} against a {@link FakeAdbServer}. */
+public class AsyncAdbClientTest {
+
+    private static final String SERIAL = "test_device_001";
+
+    private FakeAdbServer mServer;
+    private AsyncAdbClient mClient;
+    private DeviceState mDeviceState;
+    private Device mDevice;
+
+    /** The arguments of the reboot requests received by the server. */
+    private final List<String> mRebootArguments = new ArrayList<>();
+
+    /** The number of getprop commands running on the server, and the highest it reached. */
+    private final AtomicInteger mRunningGetProps = new AtomicInteger();
+    private final AtomicInteger mMaxRunningGetProps = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        FakeAdbServer.Builder builder = new FakeAdbServer.Builder();
+        builder.installDefaultCommandHandlers();
+        builder.setShellCommandHandler(
+                GetPropCommandHandler.COMMAND, () -> new CountingGetPropCommandHandler());
+        builder.setDeviceCommandHandler("reboot", () -> new RebootCommandHandler());
+        builder.setDeviceCommandHandler("log", LogCommandHandler::new);
+        mServer = builder.build();
+        mDeviceState =
+                mServer.connectDevice(
+                                SERIAL,
+                                "Google",
+                                "Nexus Silver",
+                                "8.0",
+                                "26",
+                                DeviceState.HostConnectionType.USB)
+                        .get();
+        mDeviceState.setDeviceStatus(DeviceState.DeviceStatus.ONLINE);
+        mServer.start();
+
+        // A single I/O thread and two commands per device, to exercise the queueing.
+        mClient =
+                new AsyncAdbClient(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getPort()),
+                        1,
+                        2,
+                        2);
+        mDevice = new Device(null, SERIAL, IDevice.DeviceState.ONLINE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.close();
+        mServer.close();
+    }
+
+    @Test
+    public void testQueryHost() throws Exception {
+        String devices = mClient.queryHost("host:devices").get(10, TimeUnit.SECONDS);
+        assertThat(devices).isEqualTo(SERIAL + "\tdevice");
+    }
+
+    @Test
+    public void testExecuteShellCommand() throws Exception {
+        String output = mClient.executeShellCommand(mDevice, "getprop").get(10, TimeUnit.SECONDS);
+        assertThat(output).contains("[ro.product.model]: [Nexus Silver]");
+    }
+
+    @Test
+    public void testExecuteManyShellCommands() throws Exception {
+        List<CompletableFuture<String>> outputs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            outputs.add(mClient.executeShellCommand(mDevice, "getprop"));
+        }
+        for (CompletableFuture<String> output : outputs) {
+            assertThat(output.get(10, TimeUnit.SECONDS)).contains("[ro.build.version.sdk]: [26]");
+        }
+        // The client runs at most two commands at the same time on the device.
+        assertThat(mMaxRunningGetProps.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testForward() throws Exception {
+        mClient.createForward(mDevice, "tcp:8000", "tcp:9000").get(10, TimeUnit.SECONDS);
+        assertThat(mDeviceState.getAllPortForwarders().keySet()).containsExactly(8000);
+        assertThat(mDeviceState.getAllPortForwarders().get(8000).getDestination().getPort())
+                .isEqualTo(9000);
+
+        mClient.removeForward(mDevice, "tcp:8000").get(10, TimeUnit.SECONDS);
+        assertThat(mDeviceState.getAllPortForwarders()).isEmpty();
+    }
+
+    @Test
+    public void testReboot() throws Exception {
+        mClient.reboot(mDevice, null).get(10, TimeUnit.SECONDS);
+        mClient.reboot(mDevice, "bootloader").get(10, TimeUnit.SECONDS);
+        synchronized (mRebootArguments) {
+            assertThat(mRebootArguments).containsExactly("", "bootloader").inOrder();
+        }
+    }
+
+    @Test
+    public void testRunLogService() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        LogReceiver receiver =
+                new LogReceiver(
+                        new LogReceiver.ILogListener() {
+                            @Override
+                            public void newEntry(LogReceiver.LogEntry entry) {}
+
+                            @Override
+                            public void newData(byte[] bytes, int offset, int length) {
+                                data.write(bytes, offset, length);
+                            }
+                        });
+        mClient.runLogService(mDevice, "events", receiver).get(10, TimeUnit.SECONDS);
+        assertThat(new String(data.toByteArray(), StandardCharsets.UTF_8)).isEqualTo("events");
+    }
+
+    @Test
+    public void testUnknownDevice() throws Exception {
+        Device device = new Device(null, "unknown_device", IDevice.DeviceState.ONLINE);
+        try {
+            mClient.executeShellCommand(device, "getprop").get(10, TimeUnit.SECONDS);
+            throw new AssertionError("Expected an AdbCommandRejectedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(AdbCommandRejectedException.class);
+            assertThat(((AdbCommandRejectedException) e.getCause()).wasErrorDuringDeviceSelection())
+                    .isTrue();
+        }
+    }
+
+    @Test
+    public void testRejectedShellCommand() throws Exception {
+        try {
+            mClient.executeShellCommand(mDevice, "unknown").get(10, TimeUnit.SECONDS);
+            throw new AssertionError("Expected an AdbCommandRejectedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(AdbCommandRejectedException.class);
+            assertThat(((AdbCommandRejectedException) e.getCause()).wasErrorDuringDeviceSelection())
+                    .isFalse();
+        }
+    }
+
+    @Test
+    public void testCommandsFailOnceClosed() throws Exception {
+        mClient.close();
+        CompletableFuture<String> output = mClient.executeShellCommand(mDevice, "getprop");
+        assertThat(output.isCompletedExceptionally()).isTrue();
+    }
+
+    /** A reboot handler that records its argument. */
+    private final class RebootCommandHandler extends DeviceCommandHandler {
+        @Override
+        public boolean invoke(
+                @NonNull FakeAdbServer fakeAdbServer,
+                @NonNull Socket responseSocket,
+                @NonNull DeviceState device,
+                @NonNull String args) {
+            synchronized (mRebootArguments) {
+                mRebootArguments.add(args);
+            }
+            try {
+                writeOkay(responseSocket.getOutputStream());
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /** A log handler that outputs the name of the log. */
+    private static final class LogCommandHandler extends DeviceCommandHandler {
+        @Override
+        public boolean invoke(
+                @NonNull FakeAdbServer fakeAdbServer,
+                @NonNull Socket responseSocket,
+                @NonNull DeviceState device,
+                @NonNull String args) {
+            try {
+                OutputStream stream = responseSocket.getOutputStream();
+                writeOkay(stream);
+                stream.write(args.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /** A getprop handler that takes some time, and counts the commands running concurrently. */
+    private final class CountingGetPropCommandHandler extends GetPropCommandHandler {
+        @Override
+        public boolean invoke(
+                @NonNull FakeAdbServer fakeAdbServer,
+                @NonNull Socket responseSocket,
+                @NonNull DeviceState device,
+                @Nullable String args) {
+            mMaxRunningGetProps.accumulateAndGet(mRunningGetProps.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+                return super.invoke(fakeAdbServer, responseSocket, device, args);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                // Before the connection is closed, so before the client starts another command.
+                mRunningGetProps.decrementAndGet();
+            }
+        }
+    }
+}
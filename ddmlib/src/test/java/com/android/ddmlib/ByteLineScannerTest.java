@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class ByteLineScannerTest extends TestCase {
+
+    private static final String OUTPUT = "first\r\n\nthird é中 line\nunfinished";
+
+    public void testLinesInOneChunk() {
+        assertEquals(Arrays.asList("first", "", "third é中 line", "unfinished"),
+                scan(OUTPUT, Integer.MAX_VALUE));
+    }
+
+    public void testLinesSpreadOverChunks() {
+        for (int chunkSize = 1; chunkSize < 10; chunkSize++) {
+            assertEquals(Arrays.asList("first", "", "third é中 line", "unfinished"),
+                    scan(OUTPUT, chunkSize));
+        }
+    }
+
+    public void testTerminatedOutput() {
+        assertEquals(Arrays.asList("a", "b"), scan("a\nb\n", 1));
+    }
+
+    public void testMultiLineReceiverDecodesCharactersSpreadOverChunks() {
+        List<String> lines = new ArrayList<>();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            public void processNewLines(String[] newLines) {
+                lines.addAll(Arrays.asList(newLines));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        byte[] output = OUTPUT.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < output.length; i++) {
+            receiver.addOutput(output, i, 1);
+        }
+        receiver.flush();
+        assertEquals(Arrays.asList("first", "", "third é中 line", "unfinished"), lines);
+    }
+
+    private static List<String> scan(String output, int chunkSize) {
+        List<String> lines = new ArrayList<>();
+        ByteLineScanner.LineHandler handler =
+                (data, offset, length) ->
+                        lines.add(new String(data, offset, length, StandardCharsets.UTF_8));
+        ByteLineScanner scanner = new ByteLineScanner();
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            scanner.scan(bytes, offset, Math.min(chunkSize, bytes.length - offset), handler);
+        }
+        scanner.flush(handler);
+        return lines;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.FileListingService.FileEntry;
+import com.android.fakeadbserver.DeviceState;
+import com.android.fakeadbserver.FakeAdbServer;
+import com.google.common.io.Files;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests the file transfers of {@link SyncService} against a {@link FakeAdbServer}. */
+public class SyncServiceTest {
+
+    private static final String SERIAL = "test_device_001";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer mServer;
+    private DeviceState mDeviceState;
+    private Device mDevice;
+    private SyncService mSyncService;
+
+    @Before
+    public void setUp() throws Exception {
+        FakeAdbServer.Builder builder = new FakeAdbServer.Builder();
+        builder.installDefaultCommandHandlers();
+        mServer = builder.build();
+        mDeviceState =
+                mServer.connectDevice(
+                                SERIAL,
+                                "Google",
+                                "Nexus Silver",
+                                "8.0",
+                                "26",
+                                DeviceState.HostConnectionType.USB)
+                        .get();
+        mServer.start();
+
+        mDevice = new Device(null, SERIAL, IDevice.DeviceState.ONLINE);
+        mSyncService =
+                new SyncService(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getPort()),
+                        mDevice);
+        assertThat(mSyncService.openSync()).isTrue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSyncService.close();
+        mServer.close();
+    }
+
+    @Test
+    public void testPushAndPullFile() throws Exception {
+        // Several chunks, the last one partial.
+        byte[] content = randomBytes(3 * 64 * 1024 + 123);
+        File local = mTemporaryFolder.newFile("local.bin");
+        Files.write(content, local);
+
+        mSyncService.pushFile(
+                local.getPath(), "/data/local/tmp/file.bin", SyncService.getNullProgressMonitor());
+        assertThat(mDeviceState.getFile("/data/local/tmp/file.bin")).isEqualTo(content);
+
+        File pulled = new File(mTemporaryFolder.getRoot(), "pulled.bin");
+        mSyncService.pullFile(
+                "/data/local/tmp/file.bin", pulled.getPath(), SyncService.getNullProgressMonitor());
+        assertThat(Files.toByteArray(pulled)).isEqualTo(content);
+    }
+
+    @Test
+    public void testPushEmptyFile() throws Exception {
+        File local = mTemporaryFolder.newFile("empty.bin");
+
+        mSyncService.pushFile(
+                local.getPath(), "/data/local/tmp/empty.bin", SyncService.getNullProgressMonitor());
+        assertThat(mDeviceState.getFile("/data/local/tmp/empty.bin")).isEmpty();
+    }
+
+    @Test
+    public void testPullMissingFile() throws Exception {
+        File pulled = new File(mTemporaryFolder.getRoot(), "pulled.bin");
+        try {
+            mSyncService.pullFile(
+                    "/data/local/tmp/missing.bin",
+                    pulled.getPath(),
+                    SyncService.getNullProgressMonitor());
+            throw new AssertionError("Expected a SyncException");
+        } catch (SyncException e) {
+            assertThat(e.getErrorCode()).isEqualTo(SyncException.SyncError.NO_REMOTE_OBJECT);
+        }
+    }
+
+    @Test
+    public void testPushTreeOverSeveralSessions() throws Exception {
+        File root = mTemporaryFolder.newFolder("root");
+        File sub = new File(root, "sub");
+        assertThat(sub.mkdir()).isTrue();
+        byte[] big = randomBytes(200 * 1024);
+        byte[] small = randomBytes(10);
+        byte[] other = randomBytes(70 * 1024);
+        Files.write(big, new File(root, "big.bin"));
+        Files.write(small, new File(root, "small.bin"));
+        Files.write(other, new File(sub, "other.bin"));
+
+        FileEntry remote = mDevice.getFileListingService().getRoot();
+        mSyncService.push(
+                new String[] {root.getPath()}, remote, SyncService.getNullProgressMonitor(), 3);
+
+        // The remote paths are the full path of the remote directory, "/", followed by "/name".
+        assertThat(mDeviceState.getFile("//root/big.bin")).isEqualTo(big);
+        assertThat(mDeviceState.getFile("//root/small.bin")).isEqualTo(small);
+        assertThat(mDeviceState.getFile("//root/sub/other.bin")).isEqualTo(other);
+    }
+
+    @NonNull
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
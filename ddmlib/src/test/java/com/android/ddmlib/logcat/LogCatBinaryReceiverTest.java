@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.Log.LogLevel;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import junit.framework.TestCase;
+
+/** Unit tests for {@link LogCatBinaryReceiver}. */
+public final class LogCatBinaryReceiverTest extends TestCase {
+
+    /** 2017-08-11 19:11:07.132 UTC. */
+    private static final int SECONDS = 1502478667;
+    private static final int NANOS = 132000000;
+
+    private byte[] mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(entry(0, 3, "dtag", "debug message\nsecond line\n"));
+        output.write(entry(24, 6, "etag", "error message"));
+        output.write(entry(28, 4, "itag", "info message with é and 中"));
+        output.write(entry(20, 9, "tag", "unknown priority"));
+        output.write(entry(24, 2, "", "message with an empty tag"));
+        mOutput = output.toByteArray();
+    }
+
+    public void testReceiveAtOnce() {
+        List<LogCatMessage> messages = receive(mOutput.length);
+        checkMessages(messages);
+    }
+
+    public void testReceiveInChunks() {
+        for (int chunkSize = 1; chunkSize < mOutput.length; chunkSize++) {
+            List<LogCatMessage> messages = receive(chunkSize);
+            checkMessages(messages);
+        }
+    }
+
+    public void testNonTextEntryIsSkipped() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // An event log entry: a binary payload without a tag.
+        ByteBuffer entry = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putShort((short) 4).putShort((short) 0);
+        entry.putInt(495).putInt(495).putInt(SECONDS).putInt(NANOS);
+        entry.putInt(0x01020304);
+        output.write(entry.array());
+        output.write(entry(0, 6, "etag", "error message"));
+
+        List<LogCatMessage> messages = new ArrayList<>();
+        LogCatBinaryReceiver receiver = newReceiver(messages);
+        byte[] bytes = output.toByteArray();
+        receiver.addOutput(bytes, 0, bytes.length);
+
+        assertEquals(1, messages.size());
+        assertEquals("error message", messages.get(0).getMessage());
+    }
+
+    private void checkMessages(@NonNull List<LogCatMessage> messages) {
+        assertEquals(6, messages.size());
+
+        LogCatMessage message = messages.get(0);
+        assertEquals(LogLevel.DEBUG, message.getLogLevel());
+        assertEquals(495, message.getPid());
+        assertEquals(496, message.getTid());
+        assertEquals("?", message.getAppName());
+        assertEquals("dtag", message.getTag());
+        assertEquals(new LogCatTimestamp(8, 11, 19, 11, 7, 132), message.getTimestamp());
+        assertEquals("debug message", message.getMessage());
+        assertEquals("second line", messages.get(1).getMessage());
+        assertSame(message.getHeader(), messages.get(1).getHeader());
+
+        assertEquals(LogLevel.ERROR, messages.get(2).getLogLevel());
+        assertEquals("error message", messages.get(2).getMessage());
+        assertEquals(LogLevel.INFO, messages.get(3).getLogLevel());
+        assertEquals("info message with é and 中", messages.get(3).getMessage());
+        assertEquals(LogLevel.WARN, messages.get(4).getLogLevel());
+        assertEquals("", messages.get(5).getTag());
+        assertEquals("message with an empty tag", messages.get(5).getMessage());
+    }
+
+    @NonNull
+    private List<LogCatMessage> receive(int chunkSize) {
+        List<LogCatMessage> messages = new ArrayList<>();
+        LogCatBinaryReceiver receiver = newReceiver(messages);
+        for (int offset = 0; offset < mOutput.length; offset += chunkSize) {
+            // Copy each chunk, to check that the receiver does not keep references to them.
+            byte[] chunk = new byte[chunkSize];
+            int length = Math.min(chunkSize, mOutput.length - offset);
+            System.arraycopy(mOutput, offset, chunk, 0, length);
+            receiver.addOutput(chunk, 0, length);
+        }
+        receiver.flush();
+        return messages;
+    }
+
+    @NonNull
+    private static LogCatBinaryReceiver newReceiver(@NonNull final List<LogCatMessage> messages) {
+        return new LogCatBinaryReceiver(null, TimeZone.getTimeZone("UTC")) {
+            @Override
+            protected void processLogMessages(@NonNull List<LogCatMessage> newMessages) {
+                messages.addAll(newMessages);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a logger_entry, with a header of a given size, or of the v1 format if it is 0.
+     */
+    @NonNull
+    private static byte[] entry(int headerSize, int priority, String tag, String message) {
+        byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int payloadSize = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+        int actualHeaderSize = headerSize == 0 ? 20 : headerSize;
+        ByteBuffer entry =
+                ByteBuffer.allocate(actualHeaderSize + payloadSize).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putShort((short) payloadSize);
+        entry.putShort((short) headerSize);
+        entry.putInt(495).putInt(496).putInt(SECONDS).putInt(NANOS);
+        // Fields of the later formats, such as the log ID.
+        while (entry.position() < actualHeaderSize) {
+            entry.put((byte) 0x7F);
+        }
+        entry.put((byte) priority);
+        entry.put(tagBytes).put((byte) 0);
+        entry.put(messageBytes).put((byte) 0);
+        return entry.array();
+    }
+}
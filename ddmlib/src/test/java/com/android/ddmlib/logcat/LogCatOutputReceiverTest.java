@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.easymock.EasyMock;
+
+/**
+ * Unit tests for {@link LogCatOutputReceiver}, checked against {@link LogCatMessageParser}.
+ */
+public final class LogCatOutputReceiverTest extends TestCase {
+
+    private static final String[] LINES = new String[] {
+            "Log[0] line without a header",                  //$NON-NLS-1$
+            "",                                              //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:0x1ef D/dtag     ]", //$NON-NLS-1$
+            "debug message",                                 //$NON-NLS-1$
+            "second line of the debug message",              //$NON-NLS-1$
+            "",                                              //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:  234 E/etag     ]", //$NON-NLS-1$
+            "error message",                                 //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:0x1ef F/wtftag   ]", //$NON-NLS-1$
+            "wtf message",                                   //$NON-NLS-1$
+            "[ 08-11 21:15:35.754123   540:0x21c I/itag ]",  //$NON-NLS-1$
+            "info message with é and 中",           //$NON-NLS-1$
+            "[ 09-11 14:18:30.992   524:  524 E/         ]", //$NON-NLS-1$
+            "message with an empty tag",                     //$NON-NLS-1$
+            "[ 09-11 14:18:30.992   524:  524 W/my tag with spaces  ]", //$NON-NLS-1$
+            "my tag with spaces message",                    //$NON-NLS-1$
+            "[ 09-11 14:18:30.992    :  524 V/täg ]",   //$NON-NLS-1$
+            "message without a pid",                         //$NON-NLS-1$
+            "[ 09-11 14:18:30.992   524:  524  V/tag ]",     //$NON-NLS-1$
+            "[ 09-11 14:18:30.992   524:  524 X/tag ]",      //$NON-NLS-1$
+            "[09-11 14:18:30.992   524:  524 V/tag ]",       //$NON-NLS-1$
+    };
+
+    private IDevice mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mDevice.getClientName(495)).andStubReturn("com.example.name");
+        EasyMock.expect(mDevice.getClientName(EasyMock.anyInt())).andStubReturn("");
+        EasyMock.replay(mDevice);
+    }
+
+    /** Check that the messages are the ones of the regex parser, however the output is split. */
+    public void testSameMessagesAsParser() {
+        List<LogCatMessage> expected =
+                new LogCatMessageParser().processLogLines(LINES, mDevice);
+        assertEquals(11, expected.size());
+
+        byte[] output = toOutput(LINES, "\r\n");
+        for (int chunkSize = 1; chunkSize <= output.length; chunkSize++) {
+            assertEquals("chunk size " + chunkSize, describe(expected),
+                    describe(receive(output, chunkSize, null)));
+        }
+    }
+
+    public void testHeaderFields() {
+        List<LogCatMessage> messages = receive(toOutput(LINES, "\n"), 1000, null);
+
+        assertEquals(LogLevel.DEBUG, messages.get(0).getLogLevel());
+        assertEquals("dtag", messages.get(0).getTag());
+        assertEquals(0x1ef, messages.get(0).getTid());
+        assertEquals("com.example.name", messages.get(0).getAppName());
+        assertEquals("second line of the debug message", messages.get(1).getMessage());
+        assertEquals(234, messages.get(2).getTid());
+        assertEquals(LogLevel.ASSERT, messages.get(3).getLogLevel());
+        assertEquals("08-11 21:15:35.754", messages.get(4).getTimestamp().toString());
+        assertEquals("info message with é and 中", messages.get(4).getMessage());
+        assertEquals("?", messages.get(4).getAppName());
+        assertEquals("", messages.get(5).getTag());
+        assertEquals("my tag with spaces", messages.get(6).getTag());
+        assertEquals(-1, messages.get(7).getPid());
+        assertEquals("täg", messages.get(7).getTag());
+        // The last three lines are not headers, and belong to the previous message.
+        assertEquals("[ 09-11 14:18:30.992   524:  524  V/tag ]",
+                messages.get(8).getMessage());
+        assertEquals(11, messages.size());
+    }
+
+    public void testSameMessagesAsFilter() {
+        List<LogCatMessage> all = receive(toOutput(LINES, "\n"), 1000, null);
+        for (String query : Arrays.asList(
+                "tag:etag", "pid:495", "app:example", "text:message", "tag:TÄG", "line",
+                "pid:-1", "tag:[")) {
+            for (LogLevel level : LogLevel.values()) {
+                LogCatFilter filter = LogCatFilter.fromString(query, level).get(0);
+                List<LogCatMessage> expected = new ArrayList<>();
+                for (LogCatMessage message : all) {
+                    if (filter.matches(message)) {
+                        expected.add(message);
+                    }
+                }
+                assertEquals(query + " " + level, describe(expected),
+                        describe(receive(toOutput(LINES, "\n"), 7, filter)));
+            }
+        }
+    }
+
+    /** Returns the fields of messages, which do not implement equals. */
+    @NonNull
+    private static List<String> describe(@NonNull List<LogCatMessage> messages) {
+        List<String> fields = new ArrayList<>();
+        for (LogCatMessage message : messages) {
+            fields.add(message.getHeader() + " " + message.getAppName() + " "
+                    + message.getTid() + " " + message.getMessage());
+        }
+        return fields;
+    }
+
+    @NonNull
+    private static byte[] toOutput(@NonNull String[] lines, @NonNull String terminator) {
+        StringBuilder output = new StringBuilder();
+        for (String line : lines) {
+            output.append(line).append(terminator);
+        }
+        return output.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    private List<LogCatMessage> receive(
+            @NonNull byte[] output, int chunkSize, @Nullable LogCatFilter filter) {
+        List<LogCatMessage> messages = new ArrayList<>();
+        LogCatOutputReceiver receiver = new LogCatOutputReceiver(mDevice, filter) {
+            @Override
+            protected void processLogMessages(@NonNull List<LogCatMessage> newMessages) {
+                messages.addAll(newMessages);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        for (int offset = 0; offset < output.length; offset += chunkSize) {
+            receiver.addOutput(output, offset, Math.min(chunkSize, output.length - offset));
+        }
+        receiver.flush();
+        return messages;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log.LogLevel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+/** Unit tests for {@link LogCatStore}. */
+public final class LogCatStoreTest extends TestCase {
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("logcat").toFile(); //$NON-NLS-1$
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    public void testQueryAll() throws IOException {
+        List<LogCatMessage> messages = createMessages(100);
+        try (LogCatStore store = new LogCatStore(mDirectory)) {
+            store.log(messages);
+            assertMessages(messages, query(store, Collections.emptyList(), null, null));
+        }
+    }
+
+    public void testQueryWithFilters() throws IOException {
+        List<LogCatMessage> messages = createMessages(100);
+        try (LogCatStore store = new LogCatStore(mDirectory)) {
+            store.log(messages);
+
+            List<LogCatFilter> filters = LogCatFilter.fromString("tag:tag1", LogLevel.WARN);
+            List<LogCatMessage> expected = new ArrayList<>();
+            for (LogCatMessage message : messages) {
+                if (filters.get(0).matches(message)) {
+                    expected.add(message);
+                }
+            }
+            assertFalse(expected.isEmpty());
+            assertMessages(expected, query(store, filters, null, null));
+
+            filters = LogCatFilter.fromString("text:e\\s1. pid:101", LogLevel.VERBOSE);
+            expected.clear();
+            for (LogCatMessage message : messages) {
+                if (filters.get(0).matches(message) && filters.get(1).matches(message)) {
+                    expected.add(message);
+                }
+            }
+            assertFalse(expected.isEmpty());
+            assertMessages(expected, query(store, filters, null, null));
+        }
+    }
+
+    public void testQueryTimeRange() throws IOException {
+        List<LogCatMessage> messages = createMessages(100);
+        try (LogCatStore store = new LogCatStore(mDirectory, 256)) {
+            store.log(messages);
+            assertMessages(
+                    messages.subList(20, 41),
+                    query(
+                            store,
+                            Collections.emptyList(),
+                            messages.get(20).getTimestamp(),
+                            messages.get(40).getTimestamp()));
+        }
+    }
+
+    public void testSegments() throws IOException {
+        List<LogCatMessage> messages = createMessages(1000);
+        try (LogCatStore store = new LogCatStore(mDirectory, 256)) {
+            for (LogCatMessage message : messages) {
+                store.append(message);
+            }
+            assertMessages(messages, query(store, Collections.emptyList(), null, null));
+        }
+        File[] indices = mDirectory.listFiles((dir, name) -> name.endsWith(".idx"));
+        assertTrue(indices.length > 10);
+    }
+
+    public void testReopen() throws IOException {
+        List<LogCatMessage> messages = createMessages(200);
+        try (LogCatStore store = new LogCatStore(mDirectory, 1024)) {
+            store.log(messages.subList(0, 100));
+        }
+        try (LogCatStore store = new LogCatStore(mDirectory, 1024)) {
+            store.log(messages.subList(100, 200));
+            assertMessages(messages, query(store, Collections.emptyList(), null, null));
+        }
+    }
+
+    public void testReopenAfterPartialWrite() throws IOException {
+        List<LogCatMessage> messages = createMessages(10);
+        try (LogCatStore store = new LogCatStore(mDirectory)) {
+            store.log(messages);
+        }
+        // Simulate a crash while the last index entry was written.
+        File index = new File(mDirectory, "00000000.idx");
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        try (LogCatStore store = new LogCatStore(mDirectory)) {
+            assertMessages(
+                    messages.subList(0, 9), query(store, Collections.emptyList(), null, null));
+            store.log(messages.subList(9, 10));
+            assertMessages(messages, query(store, Collections.emptyList(), null, null));
+        }
+    }
+
+    public void testAppendDuringQuery() throws Exception {
+        List<LogCatMessage> messages = createMessages(200);
+        try (LogCatStore store = new LogCatStore(mDirectory, 1024)) {
+            store.log(messages.subList(0, 100));
+            List<LogCatMessage> found = new ArrayList<>();
+            store.query(
+                    Collections.emptyList(),
+                    null,
+                    null,
+                    batch -> {
+                        // The query does not hold the lock of the store while calling the listener.
+                        Thread appender = new Thread(() -> store.log(messages.subList(100, 200)));
+                        appender.start();
+                        try {
+                            appender.join(10000);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        assertFalse(appender.isAlive());
+                        found.addAll(batch);
+                    });
+            assertMessages(messages.subList(0, 100), found);
+            assertMessages(messages, query(store, Collections.emptyList(), null, null));
+        }
+    }
+
+    @NonNull
+    private static List<LogCatMessage> query(
+            @NonNull LogCatStore store,
+            @NonNull List<LogCatFilter> filters,
+            @Nullable LogCatTimestamp from,
+            @Nullable LogCatTimestamp to)
+            throws IOException {
+        List<LogCatMessage> messages = new ArrayList<>();
+        store.query(filters, from, to, messages::addAll);
+        return messages;
+    }
+
+    @NonNull
+    private static List<LogCatMessage> createMessages(int count) {
+        LogLevel[] levels = LogLevel.values();
+        List<LogCatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            LogCatTimestamp timestamp =
+                    new LogCatTimestamp(12, 31, 23, i / 60000 % 60, i / 1000 % 60, i % 1000);
+            messages.add(
+                    new LogCatMessage(
+                            levels[i % levels.length],
+                            100 + i % 3,
+                            200 + i,
+                            "com.example.app" + i % 3,
+                            "tag" + i % 5,
+                            timestamp,
+                            "message " + i + (i % 7 == 0 ? " with é" : "")));
+        }
+        return messages;
+    }
+
+    private static void assertMessages(
+            @NonNull List<LogCatMessage> expected, @NonNull List<LogCatMessage> actual) {
+        assertEquals(describe(expected), describe(actual));
+    }
+
+    @NonNull
+    private static List<String> describe(@NonNull List<LogCatMessage> messages) {
+        List<String> descriptions = new ArrayList<>();
+        for (LogCatMessage message : messages) {
+            descriptions.add(
+                    message.getHeader()
+                            + " "
+                            + message.getAppName()
+                            + " "
+                            + message.getTid()
+                            + " "
+                            + message.getMessage());
+        }
+        return descriptions;
+    }
+}
@@ -18,6 +18,7 @@ package com.android.fakeadbserver;
 
 import com.android.annotations.NonNull;
 import com.android.fakeadbserver.devicecommandhandlers.DeviceCommandHandler;
+import com.android.fakeadbserver.devicecommandhandlers.SyncCommandHandler;
 import com.android.fakeadbserver.devicecommandhandlers.TrackJdwpCommandHandler;
 import com.android.fakeadbserver.hostcommandhandlers.ForwardCommandHandler;
 import com.android.fakeadbserver.hostcommandhandlers.HostCommandHandler;
@@ -331,6 +332,7 @@ public final class FakeAdbServer implements AutoCloseable {
                     KillForwardAllCommandHandler.COMMAND, KillForwardAllCommandHandler::new);
 
             setDeviceCommandHandler(TrackJdwpCommandHandler.COMMAND, TrackJdwpCommandHandler::new);
+            setDeviceCommandHandler(SyncCommandHandler.COMMAND, SyncCommandHandler::new);
 
             setShellCommandHandler(LogcatCommandHandler.COMMAND, LogcatCommandHandler::new);
             setShellCommandHandler(GetPropCommandHandler.COMMAND, GetPropCommandHandler::new);
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fakeadbserver.devicecommandhandlers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.annotations.NonNull;
+import com.android.fakeadbserver.DeviceState;
+import com.android.fakeadbserver.FakeAdbServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * sync: switches the connection to the file sync protocol, and serves the SEND, RECV and STAT
+ * requests from the files of the device, until QUIT is received or the connection is closed.
+ */
+public class SyncCommandHandler extends DeviceCommandHandler {
+
+    public static final String COMMAND = "sync";
+
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+
+    /** Mode reported by STAT for the files of the device: a regular file, rw-r--r--. */
+    private static final int FILE_MODE = 0x8000 | 0644;
+
+    @Override
+    public boolean invoke(
+            @NonNull FakeAdbServer fakeAdbServer,
+            @NonNull Socket responseSocket,
+            @NonNull DeviceState device,
+            @NonNull String args) {
+        try {
+            DataInputStream input =
+                    new DataInputStream(
+                            new BufferedInputStream(responseSocket.getInputStream()));
+            OutputStream output = new BufferedOutputStream(responseSocket.getOutputStream());
+            writeOkay(output);
+            output.flush();
+
+            while (true) {
+                String id;
+                int length;
+                try {
+                    id = readId(input);
+                    length = readLength(input);
+                } catch (EOFException ignored) {
+                    return false;
+                }
+
+                switch (id) {
+                    case "SEND":
+                        handleSend(device, input, output, readString(input, length));
+                        break;
+                    case "RECV":
+                        handleRecv(device, output, readString(input, length));
+                        break;
+                    case "STAT":
+                        handleStat(device, output, readString(input, length));
+                        break;
+                    case "QUIT":
+                        return false;
+                    default:
+                        writeSyncFail(output, "Unsupported sync request: " + id);
+                        output.flush();
+                        return false;
+                }
+                output.flush();
+            }
+        } catch (IOException ignored) {
+            return false;
+        }
+    }
+
+    private static void handleSend(
+            @NonNull DeviceState device,
+            @NonNull DataInputStream input,
+            @NonNull OutputStream output,
+            @NonNull String pathAndMode)
+            throws IOException {
+        int comma = pathAndMode.lastIndexOf(',');
+        String path = comma >= 0 ? pathAndMode.substring(0, comma) : pathAndMode;
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] data = new byte[SYNC_DATA_MAX];
+        while (true) {
+            String id = readId(input);
+            int length = readLength(input);
+            if (id.equals("DONE")) {
+                break;
+            }
+            if (!id.equals("DATA") || length > SYNC_DATA_MAX) {
+                writeSyncFail(output, "Invalid data message: " + id);
+                return;
+            }
+            input.readFully(data, 0, length);
+            content.write(data, 0, length);
+        }
+
+        device.createFile(path, content.toByteArray());
+        writeOkay(output);
+        output.write(toLittleEndian(0));
+    }
+
+    private static void handleRecv(
+            @NonNull DeviceState device, @NonNull OutputStream output, @NonNull String path)
+            throws IOException {
+        byte[] content = device.getFile(path);
+        if (content == null) {
+            writeSyncFail(output, "No such file: " + path);
+            return;
+        }
+
+        for (int offset = 0; offset < content.length; offset += SYNC_DATA_MAX) {
+            int length = Math.min(SYNC_DATA_MAX, content.length - offset);
+            writeString(output, "DATA");
+            output.write(toLittleEndian(length));
+            output.write(content, offset, length);
+        }
+        writeString(output, "DONE");
+        output.write(toLittleEndian(0));
+    }
+
+    private static void handleStat(
+            @NonNull DeviceState device, @NonNull OutputStream output, @NonNull String path)
+            throws IOException {
+        byte[] content = device.getFile(path);
+        writeString(output, "STAT");
+        output.write(toLittleEndian(content != null ? FILE_MODE : 0));
+        output.write(toLittleEndian(content != null ? content.length : 0));
+        output.write(toLittleEndian(0));
+    }
+
+    private static void writeSyncFail(@NonNull OutputStream output, @NonNull String message)
+            throws IOException {
+        byte[] bytes = message.getBytes(UTF_8);
+        writeFail(output);
+        output.write(toLittleEndian(bytes.length));
+        output.write(bytes);
+    }
+
+    @NonNull
+    private static String readId(@NonNull DataInputStream input) throws IOException {
+        byte[] id = new byte[4];
+        input.readFully(id);
+        return new String(id, UTF_8);
+    }
+
+    private static int readLength(@NonNull DataInputStream input) throws IOException {
+        return Integer.reverseBytes(input.readInt());
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream input, int length)
+            throws IOException {
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @NonNull
+    private static byte[] toLittleEndian(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+}
@@ -25,6 +25,19 @@ public interface DataBuffer {
 
     void dispose();
 
+    /**
+     * Returns a buffer over the same data with its own independent position, so that several
+     * threads can read concurrently. Disposing of the duplicate does not release the data.
+     *
+     * <p>The default implementation reads this buffer under its lock, saving and restoring its
+     * position around each read, which is correct but serializes the readers. Implementations
+     * should return a buffer that reads the data directly.
+     */
+    @NonNull
+    default DataBuffer duplicate() {
+        return new SynchronizedDuplicateBuffer(this);
+    }
+
     void append(@NonNull byte[] data);
 
     void read(@NonNull byte[] out);
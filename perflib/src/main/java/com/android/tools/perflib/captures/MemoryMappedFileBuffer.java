@@ -47,6 +47,9 @@ public class MemoryMappedFileBuffer implements DataBuffer {
 
     private long mCurrentPosition;
 
+    // Duplicates share the mapped shards of the original buffer, which owns them.
+    private final boolean mIsDuplicate;
+
     @VisibleForTesting
     public MemoryMappedFileBuffer(@NonNull File f, int bufferSize,
             int padding) throws IOException {
@@ -67,11 +70,25 @@ public class MemoryMappedFileBuffer implements DataBuffer {
                 offset += mBufferSize;
             }
             mCurrentPosition = 0;
+            mIsDuplicate = false;
         } finally {
             inputStream.close();
         }
     }
 
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer original) {
+        mBufferSize = original.mBufferSize;
+        mPadding = original.mPadding;
+        mLength = original.mLength;
+        mByteBuffers = new ByteBuffer[original.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = original.mByteBuffers[i].duplicate();
+            mByteBuffers[i].order(HPROF_BYTE_ORDER);
+        }
+        mCurrentPosition = 0;
+        mIsDuplicate = true;
+    }
+
     /**
      * Creates a buffer by memory-mapping file {@code f}.
      *
@@ -91,6 +108,9 @@ public class MemoryMappedFileBuffer implements DataBuffer {
      */
     @Override
     public void dispose() {
+        if (mIsDuplicate) {
+            return;
+        }
         try {
             for (int i = 0; i < mByteBuffers.length; i++) {
                 ((DirectBuffer) mByteBuffers[i]).cleaner().clean();
@@ -100,6 +120,12 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         }
     }
 
+    @NonNull
+    @Override
+    public DataBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     @Override
     public byte readByte() {
         byte result = mByteBuffers[getIndex()].get(getOffset());
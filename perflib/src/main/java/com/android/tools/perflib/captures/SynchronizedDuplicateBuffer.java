@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.captures;
+
+import com.android.annotations.NonNull;
+
+/**
+ * The default {@link DataBuffer#duplicate()}: a buffer with its own position, which reads the
+ * original buffer under its lock, moving it to that position for each read.
+ */
+final class SynchronizedDuplicateBuffer implements DataBuffer {
+
+    @NonNull private final DataBuffer mBuffer;
+
+    private long mPosition;
+
+    SynchronizedDuplicateBuffer(@NonNull DataBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public void dispose() {
+        // The data belongs to the original buffer.
+    }
+
+    @NonNull
+    @Override
+    public DataBuffer duplicate() {
+        SynchronizedDuplicateBuffer duplicate = new SynchronizedDuplicateBuffer(mBuffer);
+        duplicate.mPosition = mPosition;
+        return duplicate;
+    }
+
+    @Override
+    public void append(@NonNull byte[] data) {
+        synchronized (mBuffer) {
+            mBuffer.append(data);
+        }
+    }
+
+    @Override
+    public void read(@NonNull byte[] out) {
+        synchronized (mBuffer) {
+            long saved = seek();
+            mBuffer.read(out);
+            restore(saved);
+        }
+    }
+
+    @Override
+    public void readSubSequence(byte[] b, int sourceStart, int sourceEnd) {
+        synchronized (mBuffer) {
+            long saved = seek();
+            mBuffer.readSubSequence(b, sourceStart, sourceEnd);
+            mBuffer.setPosition(saved);
+            // Not every buffer moves when reading a subsequence, so advance past the bytes read
+            // the way MemoryMappedFileBuffer does.
+            mPosition += sourceStart + Math.min(b.length, sourceEnd);
+        }
+    }
+
+    @Override
+    public byte readByte() {
+        synchronized (mBuffer) {
+            long saved = seek();
+            byte value = mBuffer.readByte();
+            restore(saved);
+            return value;
+        }
+    }
+
+    @Override
+    public char readChar() {
+        synchronized (mBuffer) {
+            long saved = seek();
+            char value = mBuffer.readChar();
+            restore(saved);
+            return value;
+        }
+    }
+
+    @Override
+    public short readShort() {
+        synchronized (mBuffer) {
+            long saved = seek();
+            short value = mBuffer.readShort();
+            restore(saved);
+            return value;
+        }
+    }
+
+    @Override
+    public int readInt() {
+        synchronized (mBuffer) {
+            long saved = seek();
+            int value = mBuffer.readInt();
+            restore(saved);
+            return value;
+        }
+    }
+
+    @Override
+    public long readLong() {
+        synchronized (mBuffer) {
+            long saved = seek();
+            long value = mBuffer.readLong();
+            restore(saved);
+            return value;
+        }
+    }
+
+    @Override
+    public float readFloat() {
+        synchronized (mBuffer) {
+            long saved = seek();
+            float value = mBuffer.readFloat();
+            restore(saved);
+            return value;
+        }
+    }
+
+    @Override
+    public double readDouble() {
+        synchronized (mBuffer) {
+            long saved = seek();
+            double value = mBuffer.readDouble();
+            restore(saved);
+            return value;
+        }
+    }
+
+    @Override
+    public void setPosition(long position) {
+        mPosition = position;
+    }
+
+    @Override
+    public long position() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return remaining() > 0;
+    }
+
+    @Override
+    public long remaining() {
+        synchronized (mBuffer) {
+            return mBuffer.position() + mBuffer.remaining() - mPosition;
+        }
+    }
+
+    /** Moves the original buffer to the position of this one, and returns its own position. */
+    private long seek() {
+        long saved = mBuffer.position();
+        mBuffer.setPosition(mPosition);
+        return saved;
+    }
+
+    /** Records the position reached by a read, and moves the original buffer back. */
+    private void restore(long saved) {
+        mPosition = mBuffer.position();
+        mBuffer.setPosition(saved);
+    }
+}
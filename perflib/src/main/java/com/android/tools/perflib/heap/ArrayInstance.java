@@ -37,6 +37,13 @@ public class ArrayInstance extends Instance {
         mValuesOffset = valuesOffset;
     }
 
+    /**
+     * Position of the elements in the buffer of the snapshot.
+     */
+    long getValuesOffset() {
+        return mValuesOffset;
+    }
+
     @NonNull
     public Object[] getValues() {
         Object[] values = new Object[mLength];
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Differences between the reachable instances of a class in two snapshots, computed by
+ * {@link SnapshotDiff}. Classes are identified by name, and the instances of all the classes of
+ * the same name are counted together.
+ */
+public final class ClassDiff {
+
+    @NonNull
+    private final String mClassName;
+
+    private final int mCountBefore;
+
+    private final int mCountAfter;
+
+    private final long mShallowSizeBefore;
+
+    private final long mShallowSizeAfter;
+
+    private final long mRetainedSizeBefore;
+
+    private final long mRetainedSizeAfter;
+
+    private final int mMatchedCount;
+
+    @NonNull
+    private final List<Instance> mNewInstances;
+
+    ClassDiff(@NonNull String className, int countBefore, int countAfter,
+            long shallowSizeBefore, long shallowSizeAfter, long retainedSizeBefore,
+            long retainedSizeAfter, int matchedCount, @NonNull List<Instance> newInstances) {
+        mClassName = className;
+        mCountBefore = countBefore;
+        mCountAfter = countAfter;
+        mShallowSizeBefore = shallowSizeBefore;
+        mShallowSizeAfter = shallowSizeAfter;
+        mRetainedSizeBefore = retainedSizeBefore;
+        mRetainedSizeAfter = retainedSizeAfter;
+        mMatchedCount = matchedCount;
+        mNewInstances = newInstances;
+    }
+
+    @NonNull
+    public String getClassName() {
+        return mClassName;
+    }
+
+    public int getCountBefore() {
+        return mCountBefore;
+    }
+
+    public int getCountAfter() {
+        return mCountAfter;
+    }
+
+    public int getCountDelta() {
+        return mCountAfter - mCountBefore;
+    }
+
+    public long getShallowSizeBefore() {
+        return mShallowSizeBefore;
+    }
+
+    public long getShallowSizeAfter() {
+        return mShallowSizeAfter;
+    }
+
+    public long getShallowSizeDelta() {
+        return mShallowSizeAfter - mShallowSizeBefore;
+    }
+
+    /**
+     * Sum of the retained sizes of the instances, which counts the instances retained by other
+     * instances of the same class more than once.
+     */
+    public long getRetainedSizeBefore() {
+        return mRetainedSizeBefore;
+    }
+
+    public long getRetainedSizeAfter() {
+        return mRetainedSizeAfter;
+    }
+
+    public long getRetainedSizeDelta() {
+        return mRetainedSizeAfter - mRetainedSizeBefore;
+    }
+
+    /**
+     * Number of instances of the second snapshot that were matched with an instance of the first.
+     */
+    public int getMatchedCount() {
+        return mMatchedCount;
+    }
+
+    /**
+     * Number of instances of the first snapshot that have no match in the second.
+     */
+    public int getRemovedCount() {
+        return mCountBefore - mMatchedCount;
+    }
+
+    /**
+     * Reachable instances of the second snapshot that have no match in the first, by decreasing
+     * retained size.
+     */
+    @NonNull
+    public List<Instance> getNewInstances() {
+        return Collections.unmodifiableList(mNewInstances);
+    }
+
+    /**
+     * Returns whether the class is the same in both snapshots, as far as the diff can tell.
+     */
+    public boolean isUnchanged() {
+        return mCountBefore == mCountAfter && mMatchedCount == mCountAfter
+                && mShallowSizeBefore == mShallowSizeAfter
+                && mRetainedSizeBefore == mRetainedSizeAfter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %+d instances, %+d shallow bytes, %+d retained bytes, %d new",
+                mClassName, getCountDelta(), getShallowSizeDelta(), getRetainedSizeDelta(),
+                mNewInstances.size());
+    }
+}
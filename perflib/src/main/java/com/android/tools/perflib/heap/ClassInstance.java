@@ -44,6 +44,13 @@ public class ClassInstance extends Instance {
         return result;
     }
 
+    /**
+     * Position of the field values in the buffer of the snapshot.
+     */
+    long getValuesOffset() {
+        return mValuesOffset;
+    }
+
     @NonNull
     public List<FieldValue> getValues() {
         ArrayList<FieldValue> result = new ArrayList<FieldValue>();
@@ -94,6 +94,22 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         heapData.mShallowSize += instance.getSize();
     }
 
+    /**
+     * Replaces the instances of this class in the given heap, used by compact snapshots to hand
+     * over lazily created instance lists.
+     */
+    final void setHeapInstances(int heapId, @NonNull List<Instance> instances, long shallowSize) {
+        HeapData heapData = new HeapData();
+        heapData.mInstances = instances;
+        // Shallow sizes are ints in this API, so a larger total saturates.
+        heapData.mShallowSize = (int) Math.min(shallowSize, Integer.MAX_VALUE);
+        mHeapData.put(heapId, heapData);
+    }
+
+    final long getStaticFieldsOffset() {
+        return mStaticFieldsOffset;
+    }
+
     public final void setSuperClassId(long superClass) {
         mSuperClassId = superClass;
     }
@@ -76,7 +76,11 @@ public class Heap {
     }
 
     public final Instance getInstance(long id) {
-        return mInstances.get(id);
+        Instance instance = mInstances.get(id);
+        if (instance == null && mSnapshot != null && mSnapshot.getInstanceTable() != null) {
+            instance = mSnapshot.getInstanceTable().findInstance(id, this);
+        }
+        return instance;
     }
 
     public final void addClass(long id, @NonNull ClassObj theClass) {
@@ -146,10 +150,19 @@ public class Heap {
     }
 
     public void forEachInstance(@NonNull TObjectProcedure<Instance> procedure) {
-        mInstances.forEachValue(procedure);
+        InstanceTable table = mSnapshot != null ? mSnapshot.getInstanceTable() : null;
+        if (table != null) {
+            table.forEachInstance(mSnapshot.getHeapIndex(this), procedure);
+        } else {
+            mInstances.forEachValue(procedure);
+        }
     }
 
     public int getInstancesCount() {
+        InstanceTable table = mSnapshot != null ? mSnapshot.getInstanceTable() : null;
+        if (table != null) {
+            return table.getInstanceCount(mSnapshot.getHeapIndex(this));
+        }
         return mInstances.size();
     }
 }
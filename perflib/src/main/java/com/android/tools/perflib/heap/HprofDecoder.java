@@ -0,0 +1,685 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.primitives.UnsignedInts;
+import gnu.trove.TLongArrayList;
+
+/**
+ * Decodes the records of a heap dump and hands their fields to the {@code visit} methods of a
+ * subclass. This is the only place that knows the layout of the records and of the GC roots, so
+ * that {@link HprofParser} and {@link HprofStreamParser} can't read them differently.
+ *
+ * The input is positioned after a record when it is visited; a subclass may move it, the decoder
+ * always continues with the next record.
+ */
+abstract class HprofDecoder {
+
+    static final int STRING_IN_UTF8 = 0x01;
+
+    static final int LOAD_CLASS = 0x02;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int UNLOAD_CLASS = 0x03;
+
+    static final int STACK_FRAME = 0x04;
+
+    static final int STACK_TRACE = 0x05;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int ALLOC_SITES = 0x06;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int HEAP_SUMMARY = 0x07;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int START_THREAD = 0x0a;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int END_THREAD = 0x0b;
+
+    static final int HEAP_DUMP = 0x0c;
+
+    static final int HEAP_DUMP_SEGMENT = 0x1c;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int HEAP_DUMP_END = 0x2c;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int CPU_SAMPLES = 0x0d;
+
+    @SuppressWarnings("UnusedDeclaration")
+    static final int CONTROL_SETTINGS = 0x0e;
+
+    static final int ROOT_UNKNOWN = 0xff;
+
+    static final int ROOT_JNI_GLOBAL = 0x01;
+
+    static final int ROOT_JNI_LOCAL = 0x02;
+
+    static final int ROOT_JAVA_FRAME = 0x03;
+
+    static final int ROOT_NATIVE_STACK = 0x04;
+
+    static final int ROOT_STICKY_CLASS = 0x05;
+
+    static final int ROOT_THREAD_BLOCK = 0x06;
+
+    static final int ROOT_MONITOR_USED = 0x07;
+
+    static final int ROOT_THREAD_OBJECT = 0x08;
+
+    static final int CLASS_DUMP = 0x20;
+
+    static final int INSTANCE_DUMP = 0x21;
+
+    static final int OBJECT_ARRAY_DUMP = 0x22;
+
+    static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+    /**
+     * Android format addition
+     *
+     * Specifies information about which heap certain objects came from. When a sub-tag of this type
+     * appears in a HPROF_HEAP_DUMP or HPROF_HEAP_DUMP_SEGMENT record, entries that follow it will
+     * be associated with the specified heap.  The HEAP_DUMP_INFO data is reset at the end of the
+     * HEAP_DUMP[_SEGMENT].  Multiple HEAP_DUMP_INFO entries may appear in a single
+     * HEAP_DUMP[_SEGMENT].
+     *
+     * Format: u1: Tag value (0xFE) u4: heap ID ID: heap name string ID
+     */
+    static final int HEAP_DUMP_INFO = 0xfe;
+
+    static final int ROOT_INTERNED_STRING = 0x89;
+
+    static final int ROOT_FINALIZING = 0x8a;
+
+    static final int ROOT_DEBUGGER = 0x8b;
+
+    static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+
+    static final int ROOT_VM_INTERNAL = 0x8d;
+
+    static final int ROOT_JNI_MONITOR = 0x8e;
+
+    static final int ROOT_UNREACHABLE = 0x90;
+
+    static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+
+    /** Kind of a span of top-level records, other than heap dumps. */
+    static final int SPAN_RECORDS = 0;
+
+    /** Kind of a span of heap dump sub-records, other than instance and array dumps. */
+    static final int SPAN_HEAP_DUMP_RECORDS = 1;
+
+    /** Kind of the empty span marking the end of a heap dump record. */
+    static final int SPAN_HEAP_DUMP_END = 2;
+
+    @NonNull
+    final DataBuffer mInput;
+
+    int mIdSize;
+
+    //  Position of the tag of the heap dump sub-record being visited.
+    long mRecordStart;
+
+    @NonNull
+    private final ObjectDump mObjectDump = new ObjectDump();
+
+    //  Set to record the spans of everything but the object dumps, see #recordSpans.
+    @Nullable
+    private TLongArrayList mSpans;
+
+    HprofDecoder(@NonNull DataBuffer input) {
+        mInput = input;
+    }
+
+    /**
+     * Records the spans of the dump that {@link #decode()} visits, except for the instance and
+     * array dumps, as {@code (kind, start, end)} triples into {@code spans}. Adjacent spans of the
+     * same kind are merged, so there are few of them even though there can be millions of roots.
+     */
+    final void recordSpans(@NonNull TLongArrayList spans) {
+        mSpans = spans;
+    }
+
+    /**
+     * Decodes the dump from the current position of the input, which must be its start.
+     */
+    final void decode() {
+        decodeHeader();
+        while (mInput.hasRemaining()) {
+            decodeRecord();
+        }
+    }
+
+    /**
+     * Decodes only the spans of the dump recorded by a previous {@link #decode()}, which is the
+     * same as decoding the whole dump without visiting the instance and array dumps, and without
+     * reading them.
+     */
+    final void decodeSpans(@NonNull long[] spans) {
+        decodeHeader();
+        for (int i = 0; i < spans.length; i += 3) {
+            mInput.setPosition(spans[i + 1]);
+            switch ((int) spans[i]) {
+                case SPAN_RECORDS:
+                    while (mInput.position() < spans[i + 2]) {
+                        decodeRecord();
+                    }
+                    break;
+                case SPAN_HEAP_DUMP_RECORDS:
+                    decodeHeapDump(spans[i + 2]);
+                    break;
+                case SPAN_HEAP_DUMP_END:
+                    visitHeapDumpEnd();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown span kind " + spans[i]);
+            }
+        }
+    }
+
+    private void decodeHeader() {
+        while (mInput.readByte() != 0) {
+            // Version, ignored.
+        }
+        mIdSize = mInput.readInt();
+        mInput.readLong(); // Timestamp, ignored.
+        visitHeader(mIdSize);
+    }
+
+    private void decodeRecord() {
+        long start = mInput.position();
+        int tag = readUnsignedByte();
+        mInput.readInt(); // Ignored: timestamp
+        long length = UnsignedInts.toLong(mInput.readInt());
+        long end = mInput.position() + length;
+
+        switch (tag) {
+            case STRING_IN_UTF8:
+                // String length is limited by Int.MAX_VALUE anyway.
+                visitString(readId(), (int) length - mIdSize);
+                break;
+
+            case LOAD_CLASS: {
+                int serial = mInput.readInt();
+                long id = readId();
+                int stackSerial = mInput.readInt();
+                visitLoadClass(serial, id, stackSerial, readId());
+                break;
+            }
+
+            case STACK_FRAME: {
+                long id = readId();
+                long methodNameId = readId();
+                long signatureId = readId();
+                long sourceFileId = readId();
+                int classSerial = mInput.readInt();
+                int lineNumber = mInput.readInt();
+                visitStackFrame(id, methodNameId, signatureId, sourceFileId, classSerial,
+                        lineNumber);
+                break;
+            }
+
+            case STACK_TRACE: {
+                int serial = mInput.readInt();
+                int threadSerial = mInput.readInt();
+                long[] frameIds = new long[mInput.readInt()];
+                for (int i = 0; i < frameIds.length; i++) {
+                    frameIds[i] = readId();
+                }
+                visitStackTrace(serial, threadSerial, frameIds);
+                break;
+            }
+
+            case HEAP_DUMP:
+            case HEAP_DUMP_SEGMENT:
+                if (isHeapDumpNeeded()) {
+                    decodeHeapDump(end);
+                }
+                visitHeapDumpEnd();
+                break;
+
+            default:
+                break;
+        }
+        mInput.setPosition(end);
+
+        if (mSpans != null) {
+            if (tag == HEAP_DUMP || tag == HEAP_DUMP_SEGMENT) {
+                addSpan(SPAN_HEAP_DUMP_END, end, end);
+            } else {
+                addSpan(SPAN_RECORDS, start, end);
+            }
+        }
+    }
+
+    private void decodeHeapDump(long end) {
+        while (mInput.position() < end) {
+            mRecordStart = mInput.position();
+            int tag = readUnsignedByte();
+            switch (tag) {
+                case ROOT_UNKNOWN:
+                    visitRoot(RootType.UNKNOWN, readId());
+                    break;
+
+                case ROOT_JNI_GLOBAL:
+                    visitRoot(RootType.NATIVE_STATIC, readId());
+                    readId(); // Ignored: JNI global ref ID.
+                    break;
+
+                case ROOT_JNI_LOCAL:
+                    decodeThreadRoot(RootType.NATIVE_LOCAL, true);
+                    break;
+
+                case ROOT_JAVA_FRAME:
+                    decodeThreadRoot(RootType.JAVA_LOCAL, true);
+                    break;
+
+                case ROOT_NATIVE_STACK:
+                    decodeThreadRoot(RootType.NATIVE_STACK, false);
+                    break;
+
+                case ROOT_STICKY_CLASS:
+                    visitRoot(RootType.SYSTEM_CLASS, readId());
+                    break;
+
+                case ROOT_THREAD_BLOCK:
+                    decodeThreadRoot(RootType.THREAD_BLOCK, false);
+                    break;
+
+                case ROOT_MONITOR_USED:
+                    visitRoot(RootType.BUSY_MONITOR, readId());
+                    break;
+
+                case ROOT_THREAD_OBJECT: {
+                    long id = readId();
+                    int threadSerial = mInput.readInt();
+                    visitThreadObject(id, threadSerial, mInput.readInt());
+                    break;
+                }
+
+                case ROOT_INTERNED_STRING:
+                    visitRoot(RootType.INTERNED_STRING, readId());
+                    break;
+
+                case ROOT_FINALIZING:
+                    visitRoot(RootType.FINALIZING, readId());
+                    break;
+
+                case ROOT_DEBUGGER:
+                    visitRoot(RootType.DEBUGGER, readId());
+                    break;
+
+                case ROOT_REFERENCE_CLEANUP:
+                    visitRoot(RootType.REFERENCE_CLEANUP, readId());
+                    break;
+
+                case ROOT_VM_INTERNAL:
+                    visitRoot(RootType.VM_INTERNAL, readId());
+                    break;
+
+                case ROOT_JNI_MONITOR:
+                    decodeThreadRoot(RootType.NATIVE_MONITOR, true);
+                    break;
+
+                case ROOT_UNREACHABLE:
+                    visitRoot(RootType.UNREACHABLE, readId());
+                    break;
+
+                case CLASS_DUMP:
+                    decodeClassDump();
+                    break;
+
+                case INSTANCE_DUMP:
+                case OBJECT_ARRAY_DUMP:
+                case PRIMITIVE_ARRAY_DUMP:
+                    if (isObjectDumpDeferred()) {
+                        skipObjectDump(mInput, mIdSize, tag);
+                        visitDeferredObjectDump(mRecordStart, mInput.position());
+                    } else {
+                        decodeObjectDump(mInput, mIdSize, tag, mObjectDump);
+                        visitObjectDump(mObjectDump);
+                        mInput.setPosition(mObjectDump.mEnd);
+                    }
+                    break;
+
+                case PRIMITIVE_ARRAY_NODATA:
+                    throw new IllegalArgumentException("Don't know how to load a nodata array");
+
+                case HEAP_DUMP_INFO: {
+                    int heapId = mInput.readInt();
+                    visitHeapDumpInfo(heapId, readId());
+                    break;
+                }
+
+                default:
+                    throw new IllegalArgumentException(
+                            "loadHeapDump loop with unknown tag " + tag
+                                    + " with " + mInput.remaining()
+                                    + " bytes possibly remaining");
+            }
+
+            if (mSpans != null && tag != INSTANCE_DUMP && tag != OBJECT_ARRAY_DUMP
+                    && tag != PRIMITIVE_ARRAY_DUMP) {
+                addSpan(SPAN_HEAP_DUMP_RECORDS, mRecordStart, mInput.position());
+            }
+        }
+    }
+
+    private void addSpan(int kind, long start, long end) {
+        int last = mSpans.size() - 3;
+        if (kind != SPAN_HEAP_DUMP_END && last >= 0 && mSpans.get(last) == kind
+                && mSpans.get(last + 2) == start) {
+            mSpans.set(last + 2, end);
+        } else {
+            mSpans.add(kind);
+            mSpans.add(start);
+            mSpans.add(end);
+        }
+    }
+
+    private void decodeThreadRoot(@NonNull RootType type, boolean hasStackDepth) {
+        long id = readId();
+        int threadSerial = mInput.readInt();
+        int stackDepth = hasStackDepth ? mInput.readInt() : -1;
+        visitThreadRoot(type, id, threadSerial, stackDepth);
+    }
+
+    private void decodeClassDump() {
+        long id = readId();
+        int stackSerial = mInput.readInt();
+        long superClassId = readId();
+        long classLoaderId = readId();
+        skip(4 * mIdSize); // Signers, protection domain and two reserved IDs.
+        int instanceSize = mInput.readInt();
+
+        int numEntries = readUnsignedShort(); // Constant pool, ignored.
+        for (int i = 0; i < numEntries; i++) {
+            readUnsignedShort();
+            skip(getTypeSize(Type.getType(readUnsignedByte())));
+        }
+
+        long staticFieldsPosition = mInput.position();
+        Field[] staticFields = new Field[readUnsignedShort()];
+        for (int i = 0; i < staticFields.length; i++) {
+            long nameId = readId();
+            Type type = Type.getType(mInput.readByte());
+            staticFields[i] = new Field(type, getFieldName(id, nameId));
+            skip(getTypeSize(type));
+        }
+
+        Field[] fields = new Field[readUnsignedShort()];
+        for (int i = 0; i < fields.length; i++) {
+            long nameId = readId();
+            Type type = Type.getType(readUnsignedByte());
+            fields[i] = new Field(type, getFieldName(id, nameId));
+        }
+
+        visitClassDump(id, stackSerial, superClassId, classLoaderId, instanceSize,
+                staticFieldsPosition, staticFields, fields);
+    }
+
+    /**
+     * Returns the name of a field of class {@code classId}, of which {@code nameId} is the UTF-8
+     * string ID.
+     */
+    @Nullable
+    abstract String getFieldName(long classId, long nameId);
+
+    void visitHeader(int idSize) {
+    }
+
+    /**
+     * Visits a UTF-8 string of {@code length} bytes, which the input is positioned at.
+     */
+    void visitString(long id, int length) {
+    }
+
+    void visitLoadClass(int serial, long classId, int stackSerial, long nameId) {
+    }
+
+    void visitStackFrame(long id, long methodNameId, long signatureId, long sourceFileId,
+            int classSerial, int lineNumber) {
+    }
+
+    void visitStackTrace(int serial, int threadSerial, @NonNull long[] frameIds) {
+    }
+
+    /**
+     * Returns whether the heap dump records are decoded, otherwise they are skipped as a whole.
+     */
+    boolean isHeapDumpNeeded() {
+        return true;
+    }
+
+    void visitHeapDumpEnd() {
+    }
+
+    void visitHeapDumpInfo(int heapId, long nameId) {
+    }
+
+    void visitRoot(@NonNull RootType type, long id) {
+    }
+
+    /**
+     * Visits a root in the stack of a thread, {@code stackDepth} frames deep, or -1 for the roots
+     * that have no depth. Visited as a plain root by default.
+     */
+    void visitThreadRoot(@NonNull RootType type, long id, int threadSerial, int stackDepth) {
+        visitRoot(type, id);
+    }
+
+    /**
+     * Visits a thread object. Visited as a plain root by default.
+     */
+    void visitThreadObject(long id, int threadSerial, int stackSerial) {
+        visitRoot(RootType.THREAD_OBJECT, id);
+    }
+
+    /**
+     * Visits a class dump. {@code staticFieldsPosition} is the position of its static field count.
+     */
+    void visitClassDump(long id, int stackSerial, long superClassId, long classLoaderId,
+            int instanceSize, long staticFieldsPosition, @NonNull Field[] staticFields,
+            @NonNull Field[] fields) {
+    }
+
+    /**
+     * Returns whether the instance and array dumps are skipped without being decoded, in which
+     * case only their location is visited, with {@link #visitDeferredObjectDump(long, long)}.
+     */
+    boolean isObjectDumpDeferred() {
+        return false;
+    }
+
+    /**
+     * Visits the location of an instance or array dump that was skipped, from its tag at {@code
+     * start} to {@code end}. It can be decoded later with {@link #decodeObjectDump}.
+     */
+    void visitDeferredObjectDump(long start, long end) {
+    }
+
+    private void visitObjectDump(@NonNull ObjectDump dump) {
+        switch (dump.mTag) {
+            case INSTANCE_DUMP:
+                visitInstanceDump(dump.mId, dump.mStackSerial, dump.mClassId, dump.mPosition,
+                        dump.mLength);
+                break;
+            case OBJECT_ARRAY_DUMP:
+                visitObjectArrayDump(dump.mId, dump.mStackSerial, dump.mClassId, dump.mPosition,
+                        dump.mLength);
+                break;
+            default:
+                visitPrimitiveArrayDump(dump.mId, dump.mStackSerial, dump.mType, dump.mPosition,
+                        dump.mLength);
+                break;
+        }
+    }
+
+    /**
+     * Visits an instance dump, of which the {@code length} bytes of field values start at
+     * {@code position}.
+     */
+    void visitInstanceDump(long id, int stackSerial, long classId, long position, int length) {
+    }
+
+    void visitObjectArrayDump(long id, int stackSerial, long arrayClassId, long position,
+            int numElements) {
+    }
+
+    void visitPrimitiveArrayDump(long id, int stackSerial, @NonNull Type type, long position,
+            int numElements) {
+    }
+
+    final int getTypeSize(@NonNull Type type) {
+        return getTypeSize(type, mIdSize);
+    }
+
+    static int getTypeSize(@NonNull Type type, int idSize) {
+        return type == Type.OBJECT ? idSize : type.getSize();
+    }
+
+    /**
+     * Decodes an instance or array dump of which {@code tag} was just read from {@code input},
+     * into {@code dump}, and moves the input after the dump.
+     */
+    static void decodeObjectDump(@NonNull DataBuffer input, int idSize, int tag,
+            @NonNull ObjectDump dump) {
+        dump.mTag = tag;
+        dump.mId = readId(input, idSize);
+        dump.mStackSerial = input.readInt();
+        long dataSize;
+        switch (tag) {
+            case INSTANCE_DUMP:
+                dump.mClassId = readId(input, idSize);
+                dump.mType = null;
+                dump.mLength = input.readInt();
+                dataSize = UnsignedInts.toLong(dump.mLength);
+                break;
+            case OBJECT_ARRAY_DUMP:
+                dump.mLength = input.readInt();
+                dump.mClassId = readId(input, idSize);
+                dump.mType = Type.OBJECT;
+                dataSize = (long) dump.mLength * idSize;
+                break;
+            case PRIMITIVE_ARRAY_DUMP:
+                dump.mLength = input.readInt();
+                dump.mClassId = 0;
+                dump.mType = Type.getType(UnsignedBytes.toInt(input.readByte()));
+                dataSize = (long) dump.mLength * getTypeSize(dump.mType, idSize);
+                break;
+            default:
+                throw new IllegalArgumentException("Not an object dump: " + tag);
+        }
+        dump.mPosition = input.position();
+        dump.mEnd = dump.mPosition + dataSize;
+        input.setPosition(dump.mEnd);
+    }
+
+    /**
+     * Moves {@code input} after an instance or array dump of which {@code tag} was just read,
+     * only reading the fields that give its size.
+     */
+    static void skipObjectDump(@NonNull DataBuffer input, int idSize, int tag) {
+        long position = input.position();
+        switch (tag) {
+            case INSTANCE_DUMP:
+                // ID, stack serial and class ID, then the length of the field values.
+                input.setPosition(position + 2 * idSize + 4);
+                position += 2 * idSize + 8 + UnsignedInts.toLong(input.readInt());
+                break;
+            case OBJECT_ARRAY_DUMP:
+                // ID and stack serial, then the number of elements and the array class ID.
+                input.setPosition(position + idSize + 4);
+                position += 2 * idSize + 8 + (long) input.readInt() * idSize;
+                break;
+            case PRIMITIVE_ARRAY_DUMP: {
+                // ID and stack serial, then the number of elements and their type.
+                input.setPosition(position + idSize + 4);
+                long numElements = input.readInt();
+                Type type = Type.getType(UnsignedBytes.toInt(input.readByte()));
+                position += idSize + 9 + numElements * getTypeSize(type, idSize);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Not an object dump: " + tag);
+        }
+        input.setPosition(position);
+    }
+
+    final long readId() {
+        return readId(mInput, mIdSize);
+    }
+
+    static long readId(@NonNull DataBuffer input, int idSize) {
+        // As long as we don't interpret IDs, reading signed values here is fine.
+        switch (idSize) {
+            case 1:
+                return input.readByte();
+            case 2:
+                return input.readShort();
+            case 4:
+                return input.readInt();
+            case 8:
+                return input.readLong();
+        }
+
+        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    }
+
+    final int readUnsignedByte() {
+        return UnsignedBytes.toInt(mInput.readByte());
+    }
+
+    final int readUnsignedShort() {
+        return mInput.readShort() & 0xffff;
+    }
+
+    final void skip(long bytes) {
+        mInput.setPosition(mInput.position() + bytes);
+    }
+
+    /**
+     * The fields of an instance or array dump. {@code mLength} is the number of bytes of field
+     * values of an instance, or the number of elements of an array, which start at {@code
+     * mPosition}. {@code mType} is null for an instance.
+     */
+    static final class ObjectDump {
+        int mTag;
+
+        long mId;
+
+        int mStackSerial;
+
+        long mClassId;
+
+        @Nullable
+        Type mType;
+
+        int mLength;
+
+        long mPosition;
+
+        long mEnd;
+    }
+}
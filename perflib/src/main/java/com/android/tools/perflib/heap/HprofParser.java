@@ -17,117 +17,47 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.captures.DataBuffer;
 import com.android.tools.proguard.ProguardMap;
+import com.google.common.base.Preconditions;
 import com.google.common.primitives.UnsignedBytes;
-import com.google.common.primitives.UnsignedInts;
 import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongArrayList;
 import gnu.trove.TLongObjectHashMap;
-import java.io.EOFException;
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-class HprofParser {
+class HprofParser extends HprofDecoder {
 
-    private static final int STRING_IN_UTF8 = 0x01;
+    //  Maximum number of object dumps decoded together by one task of a parallel parse.
+    private static final int MAX_RANGE_RECORDS = 1 << 14;
 
-    private static final int LOAD_CLASS = 0x02;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int UNLOAD_CLASS = 0x03;
-
-    private static final int STACK_FRAME = 0x04;
-
-    private static final int STACK_TRACE = 0x05;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int ALLOC_SITES = 0x06;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int HEAP_SUMMARY = 0x07;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int START_THREAD = 0x0a;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int END_THREAD = 0x0b;
-
-    private static final int HEAP_DUMP = 0x0c;
-
-    private static final int HEAP_DUMP_SEGMENT = 0x1c;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int HEAP_DUMP_END = 0x2c;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int CPU_SAMPLES = 0x0d;
-
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int CONTROL_SETTINGS = 0x0e;
-
-    private static final int ROOT_UNKNOWN = 0xff;
-
-    private static final int ROOT_JNI_GLOBAL = 0x01;
-
-    private static final int ROOT_JNI_LOCAL = 0x02;
-
-    private static final int ROOT_JAVA_FRAME = 0x03;
-
-    private static final int ROOT_NATIVE_STACK = 0x04;
-
-    private static final int ROOT_STICKY_CLASS = 0x05;
-
-    private static final int ROOT_THREAD_BLOCK = 0x06;
-
-    private static final int ROOT_MONITOR_USED = 0x07;
-
-    private static final int ROOT_THREAD_OBJECT = 0x08;
-
-    private static final int CLASS_DUMP = 0x20;
-
-    private static final int INSTANCE_DUMP = 0x21;
-
-    private static final int OBJECT_ARRAY_DUMP = 0x22;
-
-    private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
-
-    /**
-     * Android format addition
-     *
-     * Specifies information about which heap certain objects came from. When a sub-tag of this type
-     * appears in a HPROF_HEAP_DUMP or HPROF_HEAP_DUMP_SEGMENT record, entries that follow it will
-     * be associated with the specified heap.  The HEAP_DUMP_INFO data is reset at the end of the
-     * HEAP_DUMP[_SEGMENT].  Multiple HEAP_DUMP_INFO entries may appear in a single
-     * HEAP_DUMP[_SEGMENT].
-     *
-     * Format: u1: Tag value (0xFE) u4: heap ID ID: heap name string ID
-     */
-    private static final int HEAP_DUMP_INFO = 0xfe;
-
-    private static final int ROOT_INTERNED_STRING = 0x89;
-
-    private static final int ROOT_FINALIZING = 0x8a;
-
-    private static final int ROOT_DEBUGGER = 0x8b;
-
-    private static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+    Snapshot mSnapshot;
 
-    private static final int ROOT_VM_INTERNAL = 0x8d;
+    @NonNull
+    private final ProguardMap mProguardMap;
 
-    private static final int ROOT_JNI_MONITOR = 0x8e;
+    //  Set when parsing into a compact snapshot, in which case no Instance objects are created.
+    @Nullable
+    private final InstanceTable mInstanceTable;
 
-    private static final int ROOT_UNREACHABLE = 0x90;
+    //  Set for parallel parses of compact snapshots, in which case the first pass only locates the
+    //  instance and array dumps, which are then decoded on this pool.
+    @Nullable
+    private final ForkJoinPool mPool;
 
-    private static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+    //  Set when the instance table was read from a SnapshotIndex, in which case the instance,
+    //  array and class rows are already in the table and object dumps are skipped.
+    private final boolean mObjectsPreloaded;
 
     @NonNull
-    private final DataBuffer mInput;
+    private final List<ObjectRange> mObjectRanges = new ArrayList<ObjectRange>();
 
-    int mIdSize;
-
-    Snapshot mSnapshot;
-
-    @NonNull
-    private final ProguardMap mProguardMap;
+    private int mObjectCount;
 
     /*
      * These are only needed while parsing so are not kept as part of the
@@ -143,65 +73,50 @@ class HprofParser {
     TIntObjectHashMap<String> mClassNamesBySerial = new TIntObjectHashMap<String>();
 
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
-        new HprofParser(snapshot, buffer, map).parse();
+        new HprofParser(snapshot, buffer, map, null).parse();
     }
 
-    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
-        mInput = buffer;
+    /**
+     * Parses a compact snapshot in two passes: a sequential pass that loads everything but the
+     * instance and array dumps, which it skips and only records the location of, and a parallel
+     * pass that decodes those into the instance table on {@code pool}. Rows are added to the
+     * table in file order.
+     */
+    static void parseBufferInParallel(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull ForkJoinPool pool) {
+        new HprofParser(snapshot, buffer, map, pool).parse();
+    }
+
+    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @Nullable ForkJoinPool pool) {
+        super(buffer);
         mSnapshot = snapshot;
         mProguardMap = map;
+        mInstanceTable = snapshot.getInstanceTable();
+        mObjectsPreloaded = mInstanceTable != null && mInstanceTable.isFrozen();
+        Preconditions.checkArgument(pool == null || mInstanceTable != null,
+                "Only compact snapshots can be parsed in parallel");
+        mPool = pool;
     }
 
     private void parse() {
         try {
-            try {
-                readNullTerminatedString();  // Version, ignored for now.
-
-                mIdSize = mInput.readInt();
-                mSnapshot.setIdSize(mIdSize);
-
-                mInput.readLong();  // Timestamp, ignored for now.
-
-                while (mInput.hasRemaining()) {
-                    int tag = readUnsignedByte();
-                    mInput.readInt(); // Ignored: timestamp
-                    long length = readUnsignedInt();
-
-                    switch (tag) {
-                        case STRING_IN_UTF8:
-                            // String length is limited by Int.MAX_VALUE anyway.
-                            loadString((int) length - mIdSize);
-                            break;
-
-                        case LOAD_CLASS:
-                            loadClass();
-                            break;
-
-                        case STACK_FRAME:
-                            loadStackFrame();
-                            break;
-
-                        case STACK_TRACE:
-                            loadStackTrace();
-                            break;
-
-                        case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
-                        case HEAP_DUMP_SEGMENT:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
-                        default:
-                            skipFully(length);
-                    }
-
-                }
-            } catch (EOFException eof) {
-                //  this is fine
+            if (mObjectsPreloaded && mInstanceTable.getRecordSpans() != null) {
+                // Only what is not in the table is left to decode, and the table knows where.
+                decodeSpans(mInstanceTable.getRecordSpans());
+            } else if (mInstanceTable != null && !mObjectsPreloaded) {
+                TLongArrayList spans = new TLongArrayList();
+                recordSpans(spans);
+                decode();
+                mInstanceTable.setRecordSpans(spans.toNativeArray());
+            } else {
+                decode();
+            }
+            if (mPool != null && !mObjectsPreloaded) {
+                decodeObjectRanges();
+            }
+            if (mInstanceTable != null && !mObjectsPreloaded) {
+                mInstanceTable.freeze();
             }
             mSnapshot.resolveClasses();
             mSnapshot.identifySoftReferences();
@@ -216,426 +131,245 @@ class HprofParser {
         mStrings.clear();
     }
 
-    @NonNull
-    private String readNullTerminatedString() throws IOException {
-        StringBuilder s = new StringBuilder();
-        for (byte c = mInput.readByte(); c != 0; c = mInput.readByte()) {
-            s.append((char) c);
-        }
-        return s.toString();
-    }
-
-    private long readId() throws IOException {
-        // As long as we don't interpret IDs, reading signed values here is fine.
-        switch (mIdSize) {
-            case 1:
-                return mInput.readByte();
-            case 2:
-                return mInput.readShort();
-            case 4:
-                return mInput.readInt();
-            case 8:
-                return mInput.readLong();
-        }
-
-        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    @Override
+    void visitHeader(int idSize) {
+        mSnapshot.setIdSize(idSize);
     }
 
-    @NonNull
-    private String readUTF8(int length) throws IOException {
+    @Override
+    void visitString(long id, int length) {
         byte[] b = new byte[length];
-
         mInput.read(b);
-
-        return new String(b, "utf-8");
-    }
-
-    private int readUnsignedByte() throws IOException {
-        return UnsignedBytes.toInt(mInput.readByte());
-    }
-
-    private int readUnsignedShort() throws IOException {
-        return mInput.readShort() & 0xffff;
-    }
-
-    private long readUnsignedInt() throws IOException {
-        return UnsignedInts.toLong(mInput.readInt());
+        mStrings.put(id, new String(b, StandardCharsets.UTF_8));
     }
 
-    private void loadString(int length) throws IOException {
-        long id = readId();
-        String string = readUTF8(length);
-
-        mStrings.put(id, string);
-    }
-
-    private void loadClass() throws IOException {
-        int serial = mInput.readInt();
-        long id = readId();
-        mInput.readInt(); // Ignored: Stack trace serial number.
-        String name = mStrings.get(readId());
-
-        String className = mProguardMap.getClassName(name);
-        mClassNamesById.put(id, className);
+    @Override
+    void visitLoadClass(int serial, long classId, int stackSerial, long nameId) {
+        String className = mProguardMap.getClassName(mStrings.get(nameId));
+        mClassNamesById.put(classId, className);
         mClassNamesBySerial.put(serial, className);
     }
 
-    private void loadStackFrame() throws IOException {
-        long id = readId();
-        String methodName = mStrings.get(readId());
-        String methodSignature = mStrings.get(readId());
-        String sourceFile = mStrings.get(readId());
-        int serial = mInput.readInt();
-        int lineNumber = mInput.readInt();
-
-        String className = mClassNamesBySerial.get(serial);
-        ProguardMap.Frame frame = mProguardMap.getFrame(className, methodName, methodSignature, sourceFile, lineNumber);
+    @Override
+    void visitStackFrame(long id, long methodNameId, long signatureId, long sourceFileId,
+            int classSerial, int lineNumber) {
+        String className = mClassNamesBySerial.get(classSerial);
+        ProguardMap.Frame frame = mProguardMap.getFrame(className, mStrings.get(methodNameId),
+                mStrings.get(signatureId), mStrings.get(sourceFileId), lineNumber);
         StackFrame stackFrame = new StackFrame(id, frame.methodName, frame.signature,
-                frame.filename, serial, frame.line);
+                frame.filename, classSerial, frame.line);
 
         mSnapshot.addStackFrame(stackFrame);
     }
 
-    private void loadStackTrace() throws IOException {
-        int serialNumber = mInput.readInt();
-        int threadSerialNumber = mInput.readInt();
-        final int numFrames = mInput.readInt();
-        StackFrame[] frames = new StackFrame[numFrames];
-
-        for (int i = 0; i < numFrames; i++) {
-            frames[i] = mSnapshot.getStackFrame(readId());
+    @Override
+    void visitStackTrace(int serial, int threadSerial, @NonNull long[] frameIds) {
+        StackFrame[] frames = new StackFrame[frameIds.length];
+        for (int i = 0; i < frameIds.length; i++) {
+            frames[i] = mSnapshot.getStackFrame(frameIds[i]);
         }
 
-        StackTrace trace = new StackTrace(serialNumber, threadSerialNumber, frames);
-
-        mSnapshot.addStackTrace(trace);
+        mSnapshot.addStackTrace(new StackTrace(serial, threadSerial, frames));
     }
 
-    private void loadHeapDump(long length) throws IOException {
-        while (length > 0) {
-            int tag = readUnsignedByte();
-            length--;
-
-            switch (tag) {
-                case ROOT_UNKNOWN:
-                    length -= loadBasicObj(RootType.UNKNOWN);
-                    break;
-
-                case ROOT_JNI_GLOBAL:
-                    length -= loadBasicObj(RootType.NATIVE_STATIC);
-                    readId();   //  ignored
-                    length -= mIdSize;
-                    break;
-
-                case ROOT_JNI_LOCAL:
-                    length -= loadJniLocal();
-                    break;
-
-                case ROOT_JAVA_FRAME:
-                    length -= loadJavaFrame();
-                    break;
-
-                case ROOT_NATIVE_STACK:
-                    length -= loadNativeStack();
-                    break;
-
-                case ROOT_STICKY_CLASS:
-                    length -= loadBasicObj(RootType.SYSTEM_CLASS);
-                    break;
-
-                case ROOT_THREAD_BLOCK:
-                    length -= loadThreadBlock();
-                    break;
-
-                case ROOT_MONITOR_USED:
-                    length -= loadBasicObj(RootType.BUSY_MONITOR);
-                    break;
-
-                case ROOT_THREAD_OBJECT:
-                    length -= loadThreadObject();
-                    break;
-
-                case CLASS_DUMP:
-                    length -= loadClassDump();
-                    break;
-
-                case INSTANCE_DUMP:
-                    length -= loadInstanceDump();
-                    break;
-
-                case OBJECT_ARRAY_DUMP:
-                    length -= loadObjectArrayDump();
-                    break;
-
-                case PRIMITIVE_ARRAY_DUMP:
-                    length -= loadPrimitiveArrayDump();
-                    break;
-
-                case PRIMITIVE_ARRAY_NODATA:
-                    System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
-                    length -= loadPrimitiveArrayDump();
-
-                    throw new IllegalArgumentException(
-                            "Don't know how to load a nodata array");
-
-                case HEAP_DUMP_INFO:
-                    int heapId = mInput.readInt();
-                    long heapNameId = readId();
-                    String heapName = mStrings.get(heapNameId);
-
-                    mSnapshot.setHeapTo(heapId, heapName);
-                    length -= 4 + mIdSize;
-                    break;
-
-                case ROOT_INTERNED_STRING:
-                    length -= loadBasicObj(RootType.INTERNED_STRING);
-                    break;
-
-                case ROOT_FINALIZING:
-                    length -= loadBasicObj(RootType.FINALIZING);
-                    break;
-
-                case ROOT_DEBUGGER:
-                    length -= loadBasicObj(RootType.DEBUGGER);
-                    break;
-
-                case ROOT_REFERENCE_CLEANUP:
-                    length -= loadBasicObj(RootType.REFERENCE_CLEANUP);
-                    break;
-
-                case ROOT_VM_INTERNAL:
-                    length -= loadBasicObj(RootType.VM_INTERNAL);
-                    break;
-
-                case ROOT_JNI_MONITOR:
-                    length -= loadJniMonitor();
-                    break;
-
-                case ROOT_UNREACHABLE:
-                    length -= loadBasicObj(RootType.UNREACHABLE);
-                    break;
-
-                default:
-                    throw new IllegalArgumentException(
-                            "loadHeapDump loop with unknown tag " + tag
-                                    + " with " + mInput.remaining()
-                                    + " bytes possibly remaining");
-            }
-        }
+    @Override
+    void visitHeapDumpEnd() {
+        mSnapshot.setToDefaultHeap();
     }
 
-    private int loadJniLocal() throws IOException {
-        long id = readId();
-        int threadSerialNumber = mInput.readInt();
-        int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
-
-        return mIdSize + 4 + 4;
+    @Override
+    void visitHeapDumpInfo(int heapId, long nameId) {
+        mSnapshot.setHeapTo(heapId, mStrings.get(nameId));
     }
 
-    private int loadJavaFrame() throws IOException {
-        long id = readId();
-        int threadSerialNumber = mInput.readInt();
-        int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
-
-        return mIdSize + 4 + 4;
+    @Override
+    void visitRoot(@NonNull RootType type, long id) {
+        mSnapshot.addRoot(new RootObj(type, id));
     }
 
-    private int loadNativeStack() throws IOException {
-        long id = readId();
-        int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
-
-        return mIdSize + 4;
+    @Override
+    void visitThreadRoot(@NonNull RootType type, long id, int threadSerial, int stackDepth) {
+        ThreadObj thread = mSnapshot.getThread(threadSerial);
+        StackTrace trace = stackDepth >= 0
+                ? mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth)
+                : mSnapshot.getStackTrace(thread.mStackTrace);
+        mSnapshot.addRoot(new RootObj(type, id, threadSerial, trace));
     }
 
-    private int loadBasicObj(RootType type) throws IOException {
-        long id = readId();
-        RootObj root = new RootObj(type, id);
+    @Override
+    void visitThreadObject(long id, int threadSerial, int stackSerial) {
+        ThreadObj thread = new ThreadObj(id, stackSerial);
+        StackTrace stack = mSnapshot.getStackTrace(stackSerial);
+        RootObj root = new RootObj(RootType.THREAD_OBJECT, id, threadSerial, stack);
 
+        mSnapshot.addThread(thread, threadSerial);
         mSnapshot.addRoot(root);
-
-        return mIdSize;
     }
 
-    private int loadThreadBlock() throws IOException {
-        long id = readId();
-        int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
-
-        mSnapshot.addRoot(root);
-
-        return mIdSize + 4;
-    }
-
-    private int loadThreadObject() throws IOException {
-        long id = readId();
-        int threadSerialNumber = mInput.readInt();
-        int stackSerialNumber = mInput.readInt();
-        ThreadObj thread = new ThreadObj(id, stackSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
-        RootObj root = new RootObj(RootType.THREAD_OBJECT, id, threadSerialNumber, stack);
-
-        mSnapshot.addThread(thread, threadSerialNumber);
-        mSnapshot.addRoot(root);
-
-        return mIdSize + 4 + 4;
+    @Nullable
+    @Override
+    String getFieldName(long classId, long nameId) {
+        return mProguardMap.getFieldName(mClassNamesById.get(classId), mStrings.get(nameId));
     }
 
-    private int loadClassDump() throws IOException {
-        final long id = readId();
-        int stackSerialNumber = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
-        final long superClassId = readId();
-        final long classLoaderId = readId();
-        readId(); // Ignored: Signeres ID.
-        readId(); // Ignored: Protection domain ID.
-        readId(); // RESERVED.
-        readId(); // RESERVED.
-        int instanceSize = mInput.readInt();
-
-        int bytesRead = (7 * mIdSize) + 4 + 4;
-
-        //  Skip over the constant pool
-        int numEntries = readUnsignedShort();
-        bytesRead += 2;
-
-        for (int i = 0; i < numEntries; i++) {
-            readUnsignedShort();
-            bytesRead += 2 + skipValue();
-        }
-
+    @Override
+    void visitClassDump(long id, int stackSerial, long superClassId, long classLoaderId,
+            int instanceSize, long staticFieldsPosition, @NonNull Field[] staticFields,
+            @NonNull Field[] fields) {
+        StackTrace stack = mSnapshot.getStackTrace(stackSerial);
         String className = mClassNamesById.get(id);
-        final ClassObj theClass = new ClassObj(id, stack, className, mInput.position());
+        ClassObj theClass = new ClassObj(id, stack, className, staticFieldsPosition);
         theClass.setSuperClassId(superClassId);
         theClass.setClassLoaderId(classLoaderId);
-
-        //  Skip over static fields
-        numEntries = readUnsignedShort();
-        bytesRead += 2;
-
-        Field[] staticFields = new Field[numEntries];
-
-        for (int i = 0; i < numEntries; i++) {
-            String name = mProguardMap.getFieldName(className, mStrings.get(readId()));
-            Type type = Type.getType(mInput.readByte());
-
-            staticFields[i] = new Field(type, name);
-            skipFully(mSnapshot.getTypeSize(type));
-
-            bytesRead += mIdSize + 1 + mSnapshot.getTypeSize(type);
-        }
-
         theClass.setStaticFields(staticFields);
-
-        //  Instance fields
-        numEntries = readUnsignedShort();
-        bytesRead += 2;
-
-        Field[] fields = new Field[numEntries];
-
-        for (int i = 0; i < numEntries; i++) {
-            String name = mProguardMap.getFieldName(className, mStrings.get(readId()));
-            Type type = Type.getType(readUnsignedByte());
-
-            fields[i] = new Field(type, name);
-
-            bytesRead += mIdSize + 1;
-        }
-
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
         mSnapshot.addClass(id, theClass);
+        if (mInstanceTable != null && !mObjectsPreloaded) {
+            mInstanceTable.add(mSnapshot.getCurrentHeapIndex(), id, stackSerial, 0,
+                    InstanceTable.TYPE_CLASS_OBJECT, 0, theClass.getStaticFieldsOffset());
+        }
+    }
 
-        return bytesRead;
+    @Override
+    boolean isObjectDumpDeferred() {
+        return mObjectsPreloaded || mPool != null;
     }
 
-    private int loadInstanceDump() throws IOException {
-        long id = readId();
-        int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
-        long classId = readId();
-        int remaining = mInput.readInt();
+    /**
+     * Records the location of an object dump for the parallel pass, unless it was preloaded.
+     */
+    @Override
+    void visitDeferredObjectDump(long start, long end) {
+        if (mObjectsPreloaded) {
+            return;
+        }
 
-        long position = mInput.position();
-        ClassInstance instance = new ClassInstance(id, stack, position);
-        instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        int heapIndex = mSnapshot.getCurrentHeapIndex();
+        ObjectRange range = mObjectRanges.isEmpty()
+                ? null : mObjectRanges.get(mObjectRanges.size() - 1);
+        if (range == null || range.mEnd != start || range.mHeapIndex != heapIndex
+                || range.mCount == MAX_RANGE_RECORDS) {
+            range = new ObjectRange(start, heapIndex, mObjectCount);
+            mObjectRanges.add(range);
+        }
 
-        skipFully(remaining);
-        return mIdSize + 4 + mIdSize + 4 + remaining;
+        range.mCount++;
+        range.mEnd = end;
+        mObjectCount++;
     }
 
-    private int loadObjectArrayDump() throws IOException {
-        final long id = readId();
-        int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
-        int numElements = mInput.readInt();
-        long classId = readId();
-        ArrayInstance array =
-                new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
-        array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
-
-        int remaining = numElements * mIdSize;
-        skipFully(remaining);
-        return mIdSize + 4 + 4 + mIdSize + remaining;
+    @Override
+    void visitInstanceDump(long id, int stackSerial, long classId, long position, int length) {
+        if (mInstanceTable != null) {
+            mInstanceTable.add(mSnapshot.getCurrentHeapIndex(), id, stackSerial, classId,
+                    InstanceTable.TYPE_CLASS_INSTANCE, 0, position);
+        } else {
+            ClassInstance instance =
+                    new ClassInstance(id, mSnapshot.getStackTrace(stackSerial), position);
+            instance.setClassId(classId);
+            mSnapshot.addInstance(id, instance);
+        }
     }
 
-    private int loadPrimitiveArrayDump() throws IOException {
-        long id = readId();
-        int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
-        int numElements = mInput.readInt();
-        Type type = Type.getType(readUnsignedByte());
-        int size = mSnapshot.getTypeSize(type);
-        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
-
-        int remaining = numElements * size;
-        skipFully(remaining);
-        return mIdSize + 4 + 4 + 1 + remaining;
+    @Override
+    void visitObjectArrayDump(long id, int stackSerial, long arrayClassId, long position,
+            int numElements) {
+        if (mInstanceTable != null) {
+            mInstanceTable.add(mSnapshot.getCurrentHeapIndex(), id, stackSerial, arrayClassId,
+                    (byte) Type.OBJECT.getTypeId(), numElements, position);
+        } else {
+            ArrayInstance array = new ArrayInstance(id, mSnapshot.getStackTrace(stackSerial),
+                    Type.OBJECT, numElements, position);
+            array.setClassId(arrayClassId);
+            mSnapshot.addInstance(id, array);
+        }
     }
 
-    private int loadJniMonitor() throws IOException {
-        long id = readId();
-        int threadSerialNumber = mInput.readInt();
-        int stackDepth = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
-        RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
+    @Override
+    void visitPrimitiveArrayDump(long id, int stackSerial, @NonNull Type type, long position,
+            int numElements) {
+        if (mInstanceTable != null) {
+            mInstanceTable.add(mSnapshot.getCurrentHeapIndex(), id, stackSerial, 0,
+                    (byte) type.getTypeId(), numElements, position);
+        } else {
+            ArrayInstance array = new ArrayInstance(id, mSnapshot.getStackTrace(stackSerial),
+                    type, numElements, position);
+            mSnapshot.addInstance(id, array);
+        }
+    }
 
-        mSnapshot.addRoot(root);
+    private void decodeObjectRanges() {
+        int base = mInstanceTable.reserve(mObjectCount);
+        mPool.invoke(new DecodeTask(base, 0, mObjectRanges.size()));
+        mObjectRanges.clear();
+    }
 
-        return mIdSize + 4 + 4;
+    /**
+     * Decodes the object dumps of a range with its own view of the buffer, into rows {@code
+     * base + range.mFirstRecord...} of the instance table.
+     */
+    private void decodeObjectRange(@NonNull ObjectRange range, int base) {
+        DataBuffer input = mInput.duplicate();
+        input.setPosition(range.mStart);
+        ObjectDump dump = new ObjectDump();
+        for (int i = 0; i < range.mCount; i++) {
+            decodeObjectDump(input, mIdSize, UnsignedBytes.toInt(input.readByte()), dump);
+            byte type = dump.mType == null
+                    ? InstanceTable.TYPE_CLASS_INSTANCE : (byte) dump.mType.getTypeId();
+            int length = dump.mType == null ? 0 : dump.mLength;
+            mInstanceTable.set(base + range.mFirstRecord + i, range.mHeapIndex, dump.mId,
+                    dump.mStackSerial, dump.mClassId, type, length, dump.mPosition);
+        }
     }
 
-    private int skipValue() throws IOException {
-        Type type = Type.getType(readUnsignedByte());
-        int size = mSnapshot.getTypeSize(type);
+    /**
+     * A run of consecutive instance and array dumps in the same heap.
+     */
+    private static final class ObjectRange {
+        final long mStart;
+
+        final int mHeapIndex;
+
+        //  Index of the first dump of this range among all the object dumps of the file.
+        final int mFirstRecord;
+
+        long mEnd;
 
-        skipFully(size);
+        int mCount;
 
-        return size + 1;
+        ObjectRange(long start, int heapIndex, int firstRecord) {
+            mStart = start;
+            mEnd = start;
+            mHeapIndex = heapIndex;
+            mFirstRecord = firstRecord;
+        }
     }
 
-    private void skipFully(long numBytes) throws IOException {
-        mInput.setPosition(mInput.position() + numBytes);
+    private final class DecodeTask extends RecursiveAction {
+        private final int mBase;
+
+        private final int mFrom;
+
+        private final int mTo;
+
+        DecodeTask(int base, int from, int to) {
+            mBase = base;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= 1) {
+                for (int i = mFrom; i < mTo; i++) {
+                    decodeObjectRange(mObjectRanges.get(i), mBase);
+                }
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new DecodeTask(mBase, mFrom, mid), new DecodeTask(mBase, mid, mTo));
+        }
     }
 }
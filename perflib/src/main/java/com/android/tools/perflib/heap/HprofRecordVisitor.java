@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.DataBuffer;
+import java.util.Set;
+
+/**
+ * Receives the records of a heap dump as {@link HprofStreamParser} reads them, in file order.
+ *
+ * Only the methods of the record types returned by {@link #getRecordTypes()} are called. Methods
+ * given a {@link DataBuffer} may move and read within the record, and must not keep the buffer
+ * past the call.
+ */
+public interface HprofRecordVisitor {
+
+    enum RecordType {
+        /** Names of classes, through {@link #visitLoadClass}. */
+        LOAD_CLASS,
+        /** Class definitions, through {@link #visitClassDump}. */
+        CLASS_DUMP,
+        /** Instances of classes, through {@link #visitInstance}. */
+        INSTANCE,
+        /** Arrays of objects, through {@link #visitObjectArray}. */
+        OBJECT_ARRAY,
+        /** Arrays of primitives, through {@link #visitPrimitiveArray}. */
+        PRIMITIVE_ARRAY,
+        /** GC roots, through {@link #visitRoot}. */
+        ROOT
+    }
+
+    /**
+     * Returns the record types this visitor needs. The parser skips the records no visitor needs
+     * without decoding them.
+     */
+    @NonNull
+    Set<RecordType> getRecordTypes();
+
+    /**
+     * Called first, with the size of object ids in the dump.
+     */
+    default void visitHeader(int idSize) {
+    }
+
+    /**
+     * Called when objects start to be dumped from another heap. Objects are in the heap of id 0
+     * until the first call.
+     */
+    default void visitHeapDumpInfo(int heapId, @NonNull String heapName) {
+    }
+
+    default void visitLoadClass(long classId, @NonNull String className) {
+    }
+
+    /**
+     * @param fields the instance fields declared by the class, in the order of their values in
+     *               the instances, before the fields of the superclass.
+     */
+    default void visitClassDump(int heapId, long classId, long superClassId, int instanceSize,
+            @NonNull Field[] fields) {
+    }
+
+    /**
+     * @param values positioned at the field values of the instance
+     * @param length number of bytes of field values
+     */
+    default void visitInstance(int heapId, long id, long classId, @NonNull DataBuffer values,
+            int length) {
+    }
+
+    /**
+     * @param elements positioned at the ids of the elements
+     */
+    default void visitObjectArray(int heapId, long id, long arrayClassId,
+            @NonNull DataBuffer elements, int length) {
+    }
+
+    /**
+     * @param elements positioned at the elements
+     */
+    default void visitPrimitiveArray(int heapId, long id, @NonNull Type type,
+            @NonNull DataBuffer elements, int length) {
+    }
+
+    default void visitRoot(@NonNull RootType type, long id) {
+    }
+
+    /**
+     * Called once all the records have been read.
+     */
+    default void visitEnd() {
+    }
+}
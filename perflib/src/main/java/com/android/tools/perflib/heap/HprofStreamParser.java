@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.HprofRecordVisitor.RecordType;
+import com.android.tools.proguard.ProguardMap;
+import gnu.trove.TLongObjectHashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Reads a heap dump sequentially and hands its records to {@link HprofRecordVisitor}s, without
+ * building a {@link Snapshot}.
+ *
+ * Memory use only depends on the visitors: the parser itself only keeps the UTF-8 strings of the
+ * dump (class, field and heap names) and the class names, and only when a visitor needs them.
+ * Heap dump records that contain nothing any visitor needs are skipped as a whole.
+ */
+public final class HprofStreamParser extends HprofDecoder {
+
+    @NonNull
+    private final ProguardMap mProguardMap;
+
+    // Visitors interested in each record type, indexed by ordinal.
+    @NonNull
+    private final HprofRecordVisitor[][] mVisitors;
+
+    @NonNull
+    private final HprofRecordVisitor[] mAllVisitors;
+
+    private final boolean mNeedsNames;
+
+    private final boolean mNeedsHeapDumps;
+
+    @NonNull
+    private final TLongObjectHashMap<String> mStrings = new TLongObjectHashMap<String>();
+
+    @NonNull
+    private final TLongObjectHashMap<String> mClassNamesById = new TLongObjectHashMap<String>();
+
+    private int mHeapId;
+
+    private HprofStreamParser(@NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            @NonNull Collection<? extends HprofRecordVisitor> visitors) {
+        super(buffer);
+        mProguardMap = map;
+        mAllVisitors = visitors.toArray(new HprofRecordVisitor[visitors.size()]);
+        mVisitors = new HprofRecordVisitor[RecordType.values().length][];
+        for (RecordType type : RecordType.values()) {
+            List<HprofRecordVisitor> interested = new ArrayList<HprofRecordVisitor>();
+            for (HprofRecordVisitor visitor : visitors) {
+                if (visitor.getRecordTypes().contains(type)) {
+                    interested.add(visitor);
+                }
+            }
+            mVisitors[type.ordinal()] = interested.toArray(new HprofRecordVisitor[0]);
+        }
+        mNeedsNames = isNeeded(EnumSet.of(RecordType.LOAD_CLASS, RecordType.CLASS_DUMP));
+        mNeedsHeapDumps = isNeeded(EnumSet.complementOf(EnumSet.of(RecordType.LOAD_CLASS)));
+    }
+
+    public static void parse(@NonNull DataBuffer buffer,
+            @NonNull Collection<? extends HprofRecordVisitor> visitors) {
+        parse(buffer, new ProguardMap(), visitors);
+    }
+
+    /**
+     * Reads {@code buffer} from its current position, which must be the start of the dump.
+     */
+    public static void parse(@NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            @NonNull Collection<? extends HprofRecordVisitor> visitors) {
+        new HprofStreamParser(buffer, map, visitors).parse();
+    }
+
+    private boolean isNeeded(@NonNull EnumSet<RecordType> types) {
+        for (RecordType type : types) {
+            if (mVisitors[type.ordinal()].length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void parse() {
+        decode();
+        for (HprofRecordVisitor visitor : mAllVisitors) {
+            visitor.visitEnd();
+        }
+    }
+
+    @Override
+    void visitHeader(int idSize) {
+        for (HprofRecordVisitor visitor : mAllVisitors) {
+            visitor.visitHeader(idSize);
+        }
+    }
+
+    @Override
+    void visitString(long id, int length) {
+        if (mNeedsNames) {
+            mStrings.put(id, readUtf8(length));
+        }
+    }
+
+    @Override
+    void visitLoadClass(int serial, long classId, int stackSerial, long nameId) {
+        if (!mNeedsNames) {
+            return;
+        }
+        String className = mProguardMap.getClassName(mStrings.get(nameId));
+        mClassNamesById.put(classId, className);
+        for (HprofRecordVisitor visitor : mVisitors[RecordType.LOAD_CLASS.ordinal()]) {
+            visitor.visitLoadClass(classId, className);
+        }
+    }
+
+    @Override
+    boolean isHeapDumpNeeded() {
+        return mNeedsHeapDumps;
+    }
+
+    @Override
+    void visitHeapDumpEnd() {
+        mHeapId = 0;
+    }
+
+    @Override
+    void visitHeapDumpInfo(int heapId, long nameId) {
+        mHeapId = heapId;
+        String heapName = mStrings.get(nameId);
+        if (heapName == null) {
+            heapName = Integer.toString(heapId);
+        }
+        for (HprofRecordVisitor visitor : mAllVisitors) {
+            visitor.visitHeapDumpInfo(heapId, heapName);
+        }
+    }
+
+    @Override
+    void visitRoot(@NonNull RootType type, long id) {
+        for (HprofRecordVisitor visitor : mVisitors[RecordType.ROOT.ordinal()]) {
+            visitor.visitRoot(type, id);
+        }
+    }
+
+    @Nullable
+    @Override
+    String getFieldName(long classId, long nameId) {
+        if (mVisitors[RecordType.CLASS_DUMP.ordinal()].length == 0) {
+            return null;
+        }
+        return mProguardMap.getFieldName(mClassNamesById.get(classId), mStrings.get(nameId));
+    }
+
+    @Override
+    void visitClassDump(long id, int stackSerial, long superClassId, long classLoaderId,
+            int instanceSize, long staticFieldsPosition, @NonNull Field[] staticFields,
+            @NonNull Field[] fields) {
+        for (HprofRecordVisitor visitor : mVisitors[RecordType.CLASS_DUMP.ordinal()]) {
+            visitor.visitClassDump(mHeapId, id, superClassId, instanceSize, fields);
+        }
+    }
+
+    @Override
+    void visitInstanceDump(long id, int stackSerial, long classId, long position, int length) {
+        for (HprofRecordVisitor visitor : mVisitors[RecordType.INSTANCE.ordinal()]) {
+            mInput.setPosition(position);
+            visitor.visitInstance(mHeapId, id, classId, mInput, length);
+        }
+    }
+
+    @Override
+    void visitObjectArrayDump(long id, int stackSerial, long arrayClassId, long position,
+            int numElements) {
+        for (HprofRecordVisitor visitor : mVisitors[RecordType.OBJECT_ARRAY.ordinal()]) {
+            mInput.setPosition(position);
+            visitor.visitObjectArray(mHeapId, id, arrayClassId, mInput, numElements);
+        }
+    }
+
+    @Override
+    void visitPrimitiveArrayDump(long id, int stackSerial, @NonNull Type type, long position,
+            int numElements) {
+        for (HprofRecordVisitor visitor : mVisitors[RecordType.PRIMITIVE_ARRAY.ordinal()]) {
+            mInput.setPosition(position);
+            visitor.visitPrimitiveArray(mHeapId, id, type, mInput, numElements);
+        }
+    }
+
+    @NonNull
+    private String readUtf8(int length) {
+        byte[] bytes = new byte[length];
+        mInput.read(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,1136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TObjectProcedure;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Columnar, object-free store of all the objects of a heap dump.
+ *
+ * Instead of materializing one {@link Instance} per heap object, every object (including class
+ * objects) is assigned a dense int ordinal and its id, class id, heap, size, and the offset of its
+ * values in the {@link DataBuffer} are kept in primitive arrays. Ordinals are assigned in
+ * ascending id order, so looking up an id is a binary search. Outgoing hard references are kept in
+ * compressed sparse row form once {@link #resolveReferences()} has run.
+ *
+ * The columns are NIO buffers, which wrap arrays when the table is parsed, and are views over the
+ * memory-mapped {@link SnapshotIndex} when it is read from there, so that they are paged in on
+ * demand rather than copied to the Java heap.
+ *
+ * {@link Instance} objects are only created, and then cached, for the ordinals a query touches.
+ * These views answer graph questions (distance to GC root, dominator, retained sizes, hard
+ * references) from the table, but their own reference lists are not populated, so
+ * {@link Visitor}-based traversals only see what has been explicitly queried.
+ */
+public final class InstanceTable {
+    /** Value of {@link #getType(int)} for instances of classes. */
+    public static final byte TYPE_CLASS_INSTANCE = 0;
+
+    /** Value of {@link #getType(int)} for class objects. Arrays use their element type id. */
+    public static final byte TYPE_CLASS_OBJECT = 1;
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    // Number of rows added while parsing. The columns are trimmed to this size by freeze().
+    private int mCount;
+
+    private boolean mFrozen;
+
+    // Columns, indexed by ordinal once frozen.
+    private LongBuffer mIds;
+    private LongBuffer mClassIds;
+    private LongBuffer mOffsets;
+    private IntBuffer mStackSerials;
+    private IntBuffer mLengths;
+    private ByteBuffer mTypes;
+    private ByteBuffer mHeapIndexes;
+    private IntBuffer mSizes;
+
+    // Instances grouped by (class, heap), filled by resolveClasses(). A slot is the index of a
+    // class in mByClassIds times the number of heaps, plus the heap index.
+    private long[] mByClassIds;
+    private IntBuffer mByClass;
+    private IntBuffer mByClassStarts;
+    private long[] mByClassShallowSizes;
+
+    // Outgoing hard references in CSR form, filled by resolveReferences().
+    private IntBuffer mReferenceStarts;
+    private IntBuffer mReferenceTargets;
+
+    // Incoming hard references in CSR form, filled on demand by resolveReverseReferences().
+    private int[] mReverseReferenceStarts;
+    private int[] mReverseReferenceSources;
+
+    // Referent of soft/weak/phantom reference instances.
+    @NonNull
+    private final TIntIntHashMap mSoftReferents = new TIntIntHashMap();
+
+    // Native sizes registered by post processors, which are rare enough to be kept sparse.
+    @NonNull
+    private final TIntLongHashMap mNativeSizes = new TIntLongHashMap();
+
+    @Nullable
+    private CompactDominators mDominators;
+
+    // Spans of the dump holding everything but the object dumps, see HprofDecoder#recordSpans.
+    @Nullable
+    private long[] mRecordSpans;
+
+    InstanceTable(@NonNull Snapshot snapshot) {
+        mSnapshot = snapshot;
+        resize(1024);
+    }
+
+    void add(int heapIndex, long id, int stackSerial, long classId, byte type, int length,
+            long valuesOffset) {
+        set(reserve(1), heapIndex, id, stackSerial, classId, type, length, valuesOffset);
+    }
+
+    /**
+     * Appends {@code count} uninitialized rows and returns the index of the first one, so that
+     * the rows can be filled concurrently with {@link #set}.
+     */
+    int reserve(int count) {
+        assert !mFrozen : "Cannot add to a frozen table";
+        int first = mCount;
+        int capacity = mIds.limit();
+        if (first + count > capacity) {
+            resize(Math.max(first + count, capacity + (capacity >> 1)));
+        }
+        mCount += count;
+        return first;
+    }
+
+    void set(int index, int heapIndex, long id, int stackSerial, long classId, byte type,
+            int length, long valuesOffset) {
+        mIds.put(index, id);
+        mClassIds.put(index, classId);
+        mOffsets.put(index, valuesOffset);
+        mStackSerials.put(index, stackSerial);
+        mLengths.put(index, length);
+        mTypes.put(index, type);
+        mHeapIndexes.put(index, (byte) heapIndex);
+    }
+
+    private void resize(int capacity) {
+        mIds = resize(mIds, capacity);
+        mClassIds = resize(mClassIds, capacity);
+        mOffsets = resize(mOffsets, capacity);
+        mStackSerials = resize(mStackSerials, capacity);
+        mLengths = resize(mLengths, capacity);
+        mTypes = resize(mTypes, capacity);
+        mHeapIndexes = resize(mHeapIndexes, capacity);
+    }
+
+    @NonNull
+    private static LongBuffer resize(@Nullable LongBuffer column, int capacity) {
+        return LongBuffer.wrap(
+                column == null ? new long[capacity] : Arrays.copyOf(column.array(), capacity));
+    }
+
+    @NonNull
+    private static IntBuffer resize(@Nullable IntBuffer column, int capacity) {
+        return IntBuffer.wrap(
+                column == null ? new int[capacity] : Arrays.copyOf(column.array(), capacity));
+    }
+
+    @NonNull
+    private static ByteBuffer resize(@Nullable ByteBuffer column, int capacity) {
+        return ByteBuffer.wrap(
+                column == null ? new byte[capacity] : Arrays.copyOf(column.array(), capacity));
+    }
+
+    /**
+     * Trims the columns and sorts them by id, so that ordinals can be looked up.
+     */
+    void freeze() {
+        resize(mCount);
+        mFrozen = true;
+
+        int n = mIds.limit();
+        for (int i = 1; i < n; i++) {
+            if (mIds.get(i - 1) > mIds.get(i)) {
+                sortById(0, n - 1);
+                break;
+            }
+        }
+    }
+
+    boolean isFrozen() {
+        return mFrozen;
+    }
+
+    void writeColumns(@NonNull SnapshotIndex.Writer writer) throws IOException {
+        writer.putLongs(mIds);
+        writer.putLongs(mClassIds);
+        writer.putLongs(mOffsets);
+        writer.putInts(mStackSerials);
+        writer.putInts(mLengths);
+        writer.putBytes(mTypes);
+        writer.putBytes(mHeapIndexes);
+        int spanCount = mRecordSpans != null ? mRecordSpans.length : 0;
+        writer.putInt(spanCount);
+        if (mRecordSpans != null) {
+            writer.putLongs(mRecordSpans, spanCount);
+        }
+    }
+
+    /**
+     * Replaces the columns with views of {@code count} rows previously written with {@link
+     * #writeColumns}, and freezes the table.
+     */
+    void readColumns(@NonNull SnapshotIndex.Reader reader, int count) throws IOException {
+        assert mCount == 0 : "Cannot read into a non-empty table";
+        mIds = reader.mapLongs(count);
+        mClassIds = reader.mapLongs(count);
+        mOffsets = reader.mapLongs(count);
+        mStackSerials = reader.mapInts(count);
+        mLengths = reader.mapInts(count);
+        mTypes = reader.mapBytes(count);
+        mHeapIndexes = reader.mapBytes(count);
+        int spanCount = reader.getInt();
+        mRecordSpans = spanCount > 0 ? reader.getLongs(spanCount) : null;
+        mCount = count;
+        mFrozen = true;
+    }
+
+    void writeClasses(@NonNull SnapshotIndex.Writer writer) throws IOException {
+        writer.putInt(mByClassIds.length);
+        writer.putLongs(mByClassIds, mByClassIds.length);
+        writer.putInts(mSizes);
+        writer.putInts(mByClassStarts);
+        writer.putInts(mByClass);
+        writer.putLongs(mByClassShallowSizes, mByClassShallowSizes.length);
+    }
+
+    /**
+     * Reads the shallow sizes and the grouping of the instances by class written with {@link
+     * #writeClasses}, so that {@link #resolveClasses()} only has to hand them to the classes.
+     */
+    void readClasses(@NonNull SnapshotIndex.Reader reader, int heapCount) throws IOException {
+        mByClassIds = reader.getLongs(reader.getInt());
+        mSizes = reader.mapInts(mIds.limit());
+        int slotCount = mByClassIds.length * heapCount;
+        mByClassStarts = reader.mapInts(slotCount + 1);
+        mByClass = reader.mapInts(mByClassStarts.get(slotCount));
+        mByClassShallowSizes = reader.getLongs(slotCount);
+    }
+
+    void writeReferences(@NonNull SnapshotIndex.Writer writer) throws IOException {
+        writer.putInts(mReferenceStarts);
+        writer.putInt(mReferenceTargets.limit());
+        writer.putInts(mReferenceTargets);
+        writer.putInt(mSoftReferents.size());
+        writer.putInts(mSoftReferents.keys(), mSoftReferents.size());
+        writer.putInts(mSoftReferents.getValues(), mSoftReferents.size());
+    }
+
+    void readReferences(@NonNull SnapshotIndex.Reader reader) throws IOException {
+        mReferenceStarts = reader.mapInts(mIds.limit() + 1);
+        mReferenceTargets = reader.mapInts(reader.getInt());
+        int softReferenceCount = reader.getInt();
+        int[] softReferences = reader.getInts(softReferenceCount);
+        int[] softReferents = reader.getInts(softReferenceCount);
+        mSoftReferents.clear();
+        mSoftReferents.ensureCapacity(softReferenceCount);
+        for (int i = 0; i < softReferenceCount; i++) {
+            mSoftReferents.put(softReferences[i], softReferents[i]);
+        }
+    }
+
+    public int getInstanceCount() {
+        return mIds.limit();
+    }
+
+    public int getHeapCount() {
+        return mSnapshot.mHeaps.size();
+    }
+
+    /**
+     * Returns the ordinal of the object with the given id, or -1 if there is none.
+     */
+    public int getOrdinal(long id) {
+        int low = 0;
+        int high = mIds.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = mIds.get(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public long getId(int ordinal) {
+        return mIds.get(ordinal);
+    }
+
+    public long getClassId(int ordinal) {
+        return mClassIds.get(ordinal);
+    }
+
+    public int getHeapIndex(int ordinal) {
+        return mHeapIndexes.get(ordinal);
+    }
+
+    /**
+     * Returns {@link #TYPE_CLASS_INSTANCE}, {@link #TYPE_CLASS_OBJECT}, or the {@link Type} id of
+     * the elements for arrays.
+     */
+    public byte getType(int ordinal) {
+        return mTypes.get(ordinal);
+    }
+
+    public boolean isClassObject(int ordinal) {
+        return mTypes.get(ordinal) == TYPE_CLASS_OBJECT;
+    }
+
+    public long getValuesOffset(int ordinal) {
+        return mOffsets.get(ordinal);
+    }
+
+    public int getArrayLength(int ordinal) {
+        return mLengths.get(ordinal);
+    }
+
+    /**
+     * Returns the shallow size of the object. Only valid after the classes have been resolved.
+     */
+    public int getSize(int ordinal) {
+        return mSizes.get(ordinal);
+    }
+
+    public long getNativeSize(int ordinal) {
+        return mNativeSizes.get(ordinal);
+    }
+
+    void setNativeSize(int ordinal, long nativeSize) {
+        mNativeSizes.put(ordinal, nativeSize);
+    }
+
+    /**
+     * Index of the first outgoing hard reference of {@code ordinal}, to be used with
+     * {@link #getReferenceTarget(int)}. Only valid after {@link #resolveReferences()}.
+     */
+    public int getReferencesStart(int ordinal) {
+        return mReferenceStarts.get(ordinal);
+    }
+
+    /**
+     * Index one past the last outgoing hard reference of {@code ordinal}.
+     */
+    public int getReferencesEnd(int ordinal) {
+        return mReferenceStarts.get(ordinal + 1);
+    }
+
+    public int getReferenceTarget(int referenceIndex) {
+        return mReferenceTargets.get(referenceIndex);
+    }
+
+    /**
+     * Returns the ordinal of the referent of a soft/weak/phantom reference, or -1.
+     */
+    public int getSoftReferent(int ordinal) {
+        return mSoftReferents.containsKey(ordinal) ? mSoftReferents.get(ordinal) : -1;
+    }
+
+    public boolean hasResolvedReferences() {
+        return mReferenceStarts != null;
+    }
+
+    /**
+     * Index of the first incoming hard reference of {@code ordinal}, to be used with
+     * {@link #getReverseReferenceSource(int)}. Only valid after {@link
+     * #resolveReverseReferences()}.
+     */
+    public int getReverseReferencesStart(int ordinal) {
+        return mReverseReferenceStarts[ordinal];
+    }
+
+    /**
+     * Index one past the last incoming hard reference of {@code ordinal}.
+     */
+    public int getReverseReferencesEnd(int ordinal) {
+        return mReverseReferenceStarts[ordinal + 1];
+    }
+
+    public int getReverseReferenceSource(int referenceIndex) {
+        return mReverseReferenceSources[referenceIndex];
+    }
+
+    public boolean hasResolvedReverseReferences() {
+        return mReverseReferenceStarts != null;
+    }
+
+    @Nullable
+    public CompactDominators getDominators() {
+        return mDominators;
+    }
+
+    void setDominators(@Nullable CompactDominators dominators) {
+        mDominators = dominators;
+    }
+
+    /**
+     * Returns the spans of the dump that hold its strings, classes, stack traces and GC roots, or
+     * null if they were not recorded when the table was parsed.
+     */
+    @Nullable
+    long[] getRecordSpans() {
+        return mRecordSpans;
+    }
+
+    void setRecordSpans(@Nullable long[] recordSpans) {
+        mRecordSpans = recordSpans;
+    }
+
+    /**
+     * Returns the (cached) {@link Instance} view of the object with the given id in the given
+     * heap, or null.
+     */
+    @Nullable
+    Instance findInstance(long id, @NonNull Heap heap) {
+        if (!mFrozen) {
+            return null;
+        }
+        int ordinal = getOrdinal(id);
+        if (ordinal < 0 || mTypes.get(ordinal) == TYPE_CLASS_OBJECT
+                || mSnapshot.mHeaps.get(mHeapIndexes.get(ordinal)) != heap) {
+            return null;
+        }
+        return getInstance(ordinal);
+    }
+
+    /**
+     * Returns the {@link Instance} for {@code ordinal}. Views are cheap and created on each call,
+     * so that iterating over the whole heap does not keep an object per instance; two views of the
+     * same ordinal are equal. Class objects are always returned as the {@link ClassObj} held by
+     * the snapshot.
+     */
+    @NonNull
+    public Instance getInstance(int ordinal) {
+        Instance instance;
+        Heap heap = mSnapshot.mHeaps.get(mHeapIndexes.get(ordinal));
+        byte type = mTypes.get(ordinal);
+        if (type == TYPE_CLASS_OBJECT) {
+            instance = heap.getClass(mIds.get(ordinal));
+        } else {
+            StackTrace stack = mSnapshot.getStackTrace(mStackSerials.get(ordinal));
+            if (type == TYPE_CLASS_INSTANCE) {
+                instance = new ClassInstanceView(this, ordinal, stack);
+            } else {
+                instance = new ArrayInstanceView(this, ordinal, stack);
+            }
+            instance.setClassId(mClassIds.get(ordinal));
+            instance.setHeap(heap);
+            if (mSizes != null) {
+                instance.setSize(mSizes.get(ordinal));
+            }
+        }
+        return instance;
+    }
+
+    int getInstanceCount(int heapIndex) {
+        int count = 0;
+        for (int i = 0; i < mIds.limit(); i++) {
+            if (mHeapIndexes.get(i) == heapIndex && mTypes.get(i) != TYPE_CLASS_OBJECT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    boolean forEachInstance(int heapIndex, @NonNull TObjectProcedure<Instance> procedure) {
+        for (int i = 0; i < mIds.limit(); i++) {
+            if (mHeapIndexes.get(i) == heapIndex && mTypes.get(i) != TYPE_CLASS_OBJECT) {
+                if (!procedure.execute(getInstance(i))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes shallow sizes and hands each {@link ClassObj} lazy lists of its instances.
+     */
+    void resolveClasses() {
+        if (mByClass == null) {
+            groupByClass();
+        }
+
+        List<Heap> heaps = mSnapshot.mHeaps;
+        int heapCount = heaps.size();
+        for (int c = 0; c < mByClassIds.length; c++) {
+            ClassObj classObj = mSnapshot.findClass(mByClassIds[c]);
+            if (classObj == null) {
+                continue;
+            }
+            for (int h = 0; h < heapCount; h++) {
+                int slot = c * heapCount + h;
+                int start = mByClassStarts.get(slot);
+                int end = mByClassStarts.get(slot + 1);
+                if (start != end) {
+                    classObj.setHeapInstances(heaps.get(h).getId(),
+                            new OrdinalList(this, mByClass, start, end),
+                            mByClassShallowSizes[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the shallow sizes, and groups the ordinals by class and heap.
+     */
+    private void groupByClass() {
+        List<Heap> heaps = mSnapshot.mHeaps;
+        int heapCount = heaps.size();
+
+        // Dense indexes for all the classes, and the class of each primitive array type.
+        TLongIntHashMap classIndexes = new TLongIntHashMap();
+        List<ClassObj> classes = new ArrayList<ClassObj>();
+        for (Heap heap : heaps) {
+            for (ClassObj classObj : heap.getClasses()) {
+                classIndexes.put(classObj.getId(), classes.size());
+                classes.add(classObj);
+            }
+        }
+        long[] primitiveArrayClassIds = new long[Type.LONG.getTypeId() + 1];
+        for (Type type : Type.values()) {
+            if (type != Type.OBJECT) {
+                ClassObj classObj = mSnapshot.findClass(type.getClassNameOfPrimitiveArray(false));
+                if (classObj == null) {
+                    classObj = mSnapshot.findClass(type.getClassNameOfPrimitiveArray(true));
+                }
+                primitiveArrayClassIds[type.getTypeId()] = classObj != null ? classObj.getId() : 0;
+            }
+        }
+
+        TLongObjectHashMap<ClassObj> classesById = new TLongObjectHashMap<ClassObj>();
+        for (ClassObj classObj : classes) {
+            classesById.put(classObj.getId(), classObj);
+        }
+
+        int n = mIds.limit();
+        int[] slots = new int[n];
+        int[] slotCounts = new int[classes.size() * heapCount + 1];
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            byte type = mTypes.get(i);
+            if (type == TYPE_CLASS_OBJECT) {
+                ClassObj classObj = classesById.get(mIds.get(i));
+                sizes[i] = classObj != null ? classObj.getSize() : 0;
+                slots[i] = -1;
+                continue;
+            }
+
+            long classId = mClassIds.get(i);
+            if (type == TYPE_CLASS_INSTANCE) {
+                ClassObj classObj = classesById.get(classId);
+                sizes[i] = classObj != null ? classObj.getInstanceSize() : 0;
+            } else {
+                long arraySize =
+                        (long) mLengths.get(i) * mSnapshot.getTypeSize(Type.getType(type));
+                sizes[i] = (int) Math.min(arraySize, Integer.MAX_VALUE);
+                if (type != Type.OBJECT.getTypeId()) {
+                    classId = primitiveArrayClassIds[type];
+                }
+            }
+
+            if (classIndexes.containsKey(classId)) {
+                slots[i] = classIndexes.get(classId) * heapCount + mHeapIndexes.get(i);
+                slotCounts[slots[i] + 1]++;
+            } else {
+                slots[i] = -1;
+            }
+        }
+
+        // Counting sort of the ordinals by (class, heap), keeping ordinals ascending in each slot.
+        for (int i = 1; i < slotCounts.length; i++) {
+            slotCounts[i] += slotCounts[i - 1];
+        }
+        int[] starts = slotCounts.clone();
+        int[] byClass = new int[slotCounts[slotCounts.length - 1]];
+        for (int i = 0; i < n; i++) {
+            if (slots[i] >= 0) {
+                byClass[slotCounts[slots[i]]++] = i;
+            }
+        }
+
+        mByClassShallowSizes = new long[slotCounts.length - 1];
+        for (int slot = 0; slot < mByClassShallowSizes.length; slot++) {
+            for (int i = starts[slot]; i < starts[slot + 1]; i++) {
+                mByClassShallowSizes[slot] += sizes[byClass[i]];
+            }
+        }
+        mSizes = IntBuffer.wrap(sizes);
+        mByClassStarts = IntBuffer.wrap(starts);
+        mByClass = IntBuffer.wrap(byClass);
+        mByClassIds = new long[classes.size()];
+        for (int c = 0; c < classes.size(); c++) {
+            mByClassIds[c] = classes.get(c).getId();
+        }
+    }
+
+    /**
+     * Reads all the object fields of all the objects and records the outgoing hard references,
+     * and the referents of soft references, in compressed sparse row form.
+     */
+    void resolveReferences() {
+        if (mReferenceStarts != null) {
+            return;
+        }
+
+        DataBuffer buffer = mSnapshot.getBuffer();
+        int idSize = mSnapshot.getTypeSize(Type.OBJECT);
+        TLongObjectHashMap<Type[]> fieldTypesByClass = new TLongObjectHashMap<Type[]>();
+        TLongObjectHashMap<int[]> referentIndexByClass = new TLongObjectHashMap<int[]>();
+
+        int n = mIds.limit();
+        int[] starts = new int[n + 1];
+        TIntArrayList targets = new TIntArrayList(n);
+        for (int i = 0; i < n; i++) {
+            starts[i] = targets.size();
+            byte type = mTypes.get(i);
+            if (type == TYPE_CLASS_INSTANCE) {
+                long classId = mClassIds.get(i);
+                Type[] fieldTypes = fieldTypesByClass.get(classId);
+                if (fieldTypes == null) {
+                    ClassObj classObj = mSnapshot.findClass(classId);
+                    fieldTypes = getAllFieldTypes(classObj);
+                    fieldTypesByClass.put(classId, fieldTypes);
+                    referentIndexByClass.put(classId,
+                            new int[] {getReferentFieldIndex(classObj)});
+                }
+                int referentField = referentIndexByClass.get(classId)[0];
+                buffer.setPosition(mOffsets.get(i));
+                for (int f = 0; f < fieldTypes.length; f++) {
+                    if (fieldTypes[f] != Type.OBJECT) {
+                        buffer.setPosition(buffer.position() + mSnapshot.getTypeSize(fieldTypes[f]));
+                        continue;
+                    }
+                    int target = getOrdinal(readId(buffer, idSize));
+                    if (target < 0) {
+                        continue;
+                    }
+                    if (f == referentField) {
+                        mSoftReferents.put(i, target);
+                    } else {
+                        targets.add(target);
+                    }
+                }
+            } else if (type == Type.OBJECT.getTypeId()) {
+                buffer.setPosition(mOffsets.get(i));
+                for (int e = 0; e < mLengths.get(i); e++) {
+                    int target = getOrdinal(readId(buffer, idSize));
+                    if (target >= 0) {
+                        targets.add(target);
+                    }
+                }
+            } else if (type == TYPE_CLASS_OBJECT) {
+                ClassObj classObj = mSnapshot.findClass(mIds.get(i));
+                if (classObj != null) {
+                    for (Object value : classObj.getStaticFieldValues().values()) {
+                        if (value instanceof Instance) {
+                            int target = getOrdinal(((Instance) value).getId());
+                            if (target >= 0) {
+                                targets.add(target);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        starts[n] = targets.size();
+        mReferenceStarts = IntBuffer.wrap(starts);
+        mReferenceTargets = IntBuffer.wrap(targets.toNativeArray());
+    }
+
+    /**
+     * Inverts the outgoing hard references into incoming ones, in compressed sparse row form. The
+     * sources of each instance are in ascending order, without duplicates nor self references,
+     * like the lists deduped by {@link Instance#dedupeReferences()}. Requires resolved references.
+     */
+    public synchronized void resolveReverseReferences() {
+        if (mReverseReferenceStarts != null) {
+            return;
+        }
+
+        int n = mIds.limit();
+        int referenceCount = mReferenceTargets.limit();
+        int[] starts = new int[n + 1];
+        for (int i = 0; i < referenceCount; i++) {
+            starts[mReferenceTargets.get(i) + 1]++;
+        }
+        for (int i = 1; i <= n; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] sources = new int[referenceCount];
+        int[] fill = Arrays.copyOf(starts, n);
+        for (int source = 0; source < n; source++) {
+            int end = mReferenceStarts.get(source + 1);
+            for (int i = mReferenceStarts.get(source); i < end; i++) {
+                int target = mReferenceTargets.get(i);
+                int last = fill[target] - 1;
+                // Sources are visited in ascending order, so duplicates are adjacent.
+                if (target != source && (last < starts[target] || sources[last] != source)) {
+                    sources[fill[target]++] = source;
+                }
+            }
+        }
+
+        // Close the gaps left by the duplicates.
+        int count = 0;
+        for (int target = 0; target < n; target++) {
+            int start = starts[target];
+            starts[target] = count;
+            for (int i = start; i < fill[target]; i++) {
+                sources[count++] = sources[i];
+            }
+        }
+        starts[n] = count;
+        mReverseReferenceSources =
+                count == sources.length ? sources : Arrays.copyOf(sources, count);
+        mReverseReferenceStarts = starts;
+    }
+
+    /**
+     * Ordinals of all the hard references of {@code ordinal}, in field order.
+     */
+    @NonNull
+    public int[] getHardReferences(int ordinal) {
+        int start = mReferenceStarts.get(ordinal);
+        int[] result = new int[mReferenceStarts.get(ordinal + 1) - start];
+        IntBuffer targets = mReferenceTargets.duplicate();
+        targets.position(start);
+        targets.get(result);
+        return result;
+    }
+
+    @NonNull
+    private static Type[] getAllFieldTypes(@Nullable ClassObj classObj) {
+        List<Type> types = new ArrayList<Type>();
+        for (ClassObj clazz = classObj; clazz != null; clazz = clazz.getSuperClassObj()) {
+            for (Field field : clazz.getFields()) {
+                types.add(field.getType());
+            }
+        }
+        return types.toArray(new Type[types.size()]);
+    }
+
+    /**
+     * Index in {@link #getAllFieldTypes} order of the field holding the referent of a soft
+     * reference class, or -1 if the class is not a soft reference.
+     */
+    private static int getReferentFieldIndex(@Nullable ClassObj classObj) {
+        if (classObj == null || !classObj.getIsSoftReference()) {
+            return -1;
+        }
+        int index = 0;
+        for (ClassObj clazz = classObj; clazz != null; clazz = clazz.getSuperClassObj()) {
+            for (Field field : clazz.getFields()) {
+                if (field.getName().equals("referent")) {
+                    return index;
+                }
+                index++;
+            }
+        }
+        return -1;
+    }
+
+    private static long readId(@NonNull DataBuffer buffer, int idSize) {
+        switch (idSize) {
+            case 1:
+                return buffer.readByte();
+            case 2:
+                return buffer.readShort();
+            case 4:
+                return buffer.readInt();
+            case 8:
+                return buffer.readLong();
+        }
+        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    }
+
+    private void sortById(int low, int high) {
+        // Quicksort that keeps all the columns in sync; falls back to insertion sort for short
+        // ranges and recurses only into the smaller half to bound the stack depth.
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            if (mIds.get(mid) < mIds.get(low)) {
+                swap(mid, low);
+            }
+            if (mIds.get(high) < mIds.get(low)) {
+                swap(high, low);
+            }
+            if (mIds.get(high) < mIds.get(mid)) {
+                swap(high, mid);
+            }
+            long pivot = mIds.get(mid);
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (mIds.get(i) < pivot) {
+                    i++;
+                }
+                while (mIds.get(j) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (j - low < high - i) {
+                sortById(low, j);
+                low = i;
+            } else {
+                sortById(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && mIds.get(j - 1) > mIds.get(j); j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        long id = mIds.get(a);
+        mIds.put(a, mIds.get(b));
+        mIds.put(b, id);
+        long classId = mClassIds.get(a);
+        mClassIds.put(a, mClassIds.get(b));
+        mClassIds.put(b, classId);
+        long offset = mOffsets.get(a);
+        mOffsets.put(a, mOffsets.get(b));
+        mOffsets.put(b, offset);
+        int stack = mStackSerials.get(a);
+        mStackSerials.put(a, mStackSerials.get(b));
+        mStackSerials.put(b, stack);
+        int length = mLengths.get(a);
+        mLengths.put(a, mLengths.get(b));
+        mLengths.put(b, length);
+        byte type = mTypes.get(a);
+        mTypes.put(a, mTypes.get(b));
+        mTypes.put(b, type);
+        byte heap = mHeapIndexes.get(a);
+        mHeapIndexes.put(a, mHeapIndexes.get(b));
+        mHeapIndexes.put(b, heap);
+    }
+
+    /**
+     * Immutable list of the views for a range of ordinals.
+     */
+    static final class OrdinalList extends AbstractList<Instance> implements RandomAccess {
+        @NonNull
+        private final InstanceTable mTable;
+
+        @NonNull
+        private final IntBuffer mOrdinals;
+
+        private final int mStart;
+
+        private final int mEnd;
+
+        OrdinalList(@NonNull InstanceTable table, @NonNull IntBuffer ordinals, int start,
+                int end) {
+            mTable = table;
+            mOrdinals = ordinals;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public Instance get(int index) {
+            if (index < 0 || index >= mEnd - mStart) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return mTable.getInstance(mOrdinals.get(mStart + index));
+        }
+
+        @Override
+        public int size() {
+            return mEnd - mStart;
+        }
+
+        /**
+         * Returns the ordinal of the element at {@code index}, without creating its view.
+         */
+        int getOrdinal(int index) {
+            return mOrdinals.get(mStart + index);
+        }
+    }
+
+    /**
+     * Copies the graph data computed on the table into a view, when it is first requested.
+     */
+    private static void fillHardForwardReferences(@NonNull InstanceTable table, int ordinal,
+            @NonNull ArrayList<Instance> references) {
+        if (references.isEmpty() && table.hasResolvedReferences()) {
+            int end = table.getReferencesEnd(ordinal);
+            references.ensureCapacity(end - table.getReferencesStart(ordinal));
+            for (int i = table.getReferencesStart(ordinal); i < end; i++) {
+                references.add(table.getInstance(table.getReferenceTarget(i)));
+            }
+        }
+    }
+
+    private static void fillHardReverseReferences(@NonNull InstanceTable table, int ordinal,
+            @NonNull ArrayList<Instance> references) {
+        if (references.isEmpty() && table.hasResolvedReferences()) {
+            table.resolveReverseReferences();
+            int end = table.getReverseReferencesEnd(ordinal);
+            references.ensureCapacity(end - table.getReverseReferencesStart(ordinal));
+            for (int i = table.getReverseReferencesStart(ordinal); i < end; i++) {
+                references.add(table.getInstance(table.getReverseReferenceSource(i)));
+            }
+        }
+    }
+
+    @Nullable
+    private static Instance getDominatorView(@NonNull InstanceTable table, int ordinal) {
+        CompactDominators dominators = table.mDominators;
+        if (dominators == null) {
+            return null;
+        }
+        int dominator = dominators.getImmediateDominator(ordinal);
+        if (dominator == CompactDominators.SENTINEL) {
+            return Snapshot.SENTINEL_ROOT;
+        }
+        return dominator < 0 ? null : table.getInstance(dominator);
+    }
+
+    @Nullable
+    private static Instance getNextInstanceToGcRoot(@NonNull InstanceTable table, int ordinal) {
+        int next = table.mDominators == null
+                ? -1 : table.mDominators.getNextInstanceToGcRoot(ordinal);
+        return next < 0 ? null : table.getInstance(next);
+    }
+
+    private static int getDistanceToGcRoot(@NonNull InstanceTable table, int ordinal) {
+        return table.mDominators == null
+                ? Integer.MAX_VALUE : table.mDominators.getDistanceToGcRoot(ordinal);
+    }
+
+    private static long getRetainedSize(@NonNull InstanceTable table, int ordinal, int heapIndex) {
+        if (table.mDominators != null) {
+            return table.mDominators.getRetainedSize(heapIndex, ordinal);
+        }
+        // Like Instance#resetRetainedSize(), before dominators are computed.
+        return heapIndex == table.getHeapIndex(ordinal)
+                ? table.getSize(ordinal) + table.getNativeSize(ordinal) : 0;
+    }
+
+    private static long getTotalRetainedSize(@NonNull InstanceTable table, int ordinal) {
+        return table.mDominators == null
+                ? table.getSize(ordinal) + table.getNativeSize(ordinal)
+                : table.mDominators.getTotalRetainedSize(ordinal);
+    }
+
+    private static final class ClassInstanceView extends ClassInstance {
+        @NonNull
+        private final InstanceTable mTable;
+
+        private final int mOrdinal;
+
+        ClassInstanceView(@NonNull InstanceTable table, int ordinal, @NonNull StackTrace stack) {
+            super(table.mIds.get(ordinal), stack, table.mOffsets.get(ordinal));
+            mTable = table;
+            mOrdinal = ordinal;
+        }
+
+        @NonNull
+        @Override
+        public ArrayList<Instance> getHardForwardReferences() {
+            fillHardForwardReferences(mTable, mOrdinal, mHardForwardReferences);
+            return mHardForwardReferences;
+        }
+
+        @NonNull
+        @Override
+        public ArrayList<Instance> getHardReverseReferences() {
+            fillHardReverseReferences(mTable, mOrdinal, mHardReverseReferences);
+            return mHardReverseReferences;
+        }
+
+        @Nullable
+        @Override
+        public Instance getSoftForwardReference() {
+            int referent = mTable.getSoftReferent(mOrdinal);
+            return referent < 0 ? null : mTable.getInstance(referent);
+        }
+
+        @Nullable
+        @Override
+        public Instance getImmediateDominator() {
+            return getDominatorView(mTable, mOrdinal);
+        }
+
+        @Override
+        public int getDistanceToGcRoot() {
+            return InstanceTable.getDistanceToGcRoot(mTable, mOrdinal);
+        }
+
+        @Override
+        public Instance getNextInstanceToGcRoot() {
+            return InstanceTable.getNextInstanceToGcRoot(mTable, mOrdinal);
+        }
+
+        @Override
+        public boolean isReachable() {
+            return getDistanceToGcRoot() != Integer.MAX_VALUE;
+        }
+
+        @Override
+        public long getRetainedSize(int heapIndex) {
+            return InstanceTable.getRetainedSize(mTable, mOrdinal, heapIndex);
+        }
+
+        @Override
+        public long getTotalRetainedSize() {
+            return InstanceTable.getTotalRetainedSize(mTable, mOrdinal);
+        }
+
+        @Override
+        public long getNativeSize() {
+            return mTable.getNativeSize(mOrdinal);
+        }
+
+        @Override
+        public void setNativeSize(long nativeSize) {
+            mTable.setNativeSize(mOrdinal, nativeSize);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ClassInstanceView
+                    && ((ClassInstanceView) o).mTable == mTable
+                    && ((ClassInstanceView) o).mOrdinal == mOrdinal;
+        }
+
+        @Override
+        public int hashCode() {
+            return mOrdinal;
+        }
+    }
+
+    private static final class ArrayInstanceView extends ArrayInstance {
+        @NonNull
+        private final InstanceTable mTable;
+
+        private final int mOrdinal;
+
+        ArrayInstanceView(@NonNull InstanceTable table, int ordinal, @NonNull StackTrace stack) {
+            super(table.mIds.get(ordinal), stack, Type.getType(table.mTypes.get(ordinal)),
+                    table.mLengths.get(ordinal), table.mOffsets.get(ordinal));
+            mTable = table;
+            mOrdinal = ordinal;
+        }
+
+        @NonNull
+        @Override
+        public ArrayList<Instance> getHardForwardReferences() {
+            fillHardForwardReferences(mTable, mOrdinal, mHardForwardReferences);
+            return mHardForwardReferences;
+        }
+
+        @NonNull
+        @Override
+        public ArrayList<Instance> getHardReverseReferences() {
+            fillHardReverseReferences(mTable, mOrdinal, mHardReverseReferences);
+            return mHardReverseReferences;
+        }
+
+        @Nullable
+        @Override
+        public Instance getImmediateDominator() {
+            return getDominatorView(mTable, mOrdinal);
+        }
+
+        @Override
+        public int getDistanceToGcRoot() {
+            return InstanceTable.getDistanceToGcRoot(mTable, mOrdinal);
+        }
+
+        @Override
+        public Instance getNextInstanceToGcRoot() {
+            return InstanceTable.getNextInstanceToGcRoot(mTable, mOrdinal);
+        }
+
+        @Override
+        public boolean isReachable() {
+            return getDistanceToGcRoot() != Integer.MAX_VALUE;
+        }
+
+        @Override
+        public long getRetainedSize(int heapIndex) {
+            return InstanceTable.getRetainedSize(mTable, mOrdinal, heapIndex);
+        }
+
+        @Override
+        public long getTotalRetainedSize() {
+            return InstanceTable.getTotalRetainedSize(mTable, mOrdinal);
+        }
+
+        @Override
+        public long getNativeSize() {
+            return mTable.getNativeSize(mOrdinal);
+        }
+
+        @Override
+        public void setNativeSize(long nativeSize) {
+            mTable.setNativeSize(mOrdinal, nativeSize);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ArrayInstanceView
+                    && ((ArrayInstanceView) o).mTable == mTable
+                    && ((ArrayInstanceView) o).mOrdinal == mOrdinal;
+        }
+
+        @Override
+        public int hashCode() {
+            return mOrdinal;
+        }
+    }
+}
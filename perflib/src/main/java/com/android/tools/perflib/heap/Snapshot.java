@@ -29,10 +29,12 @@ import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TLongObjectHashMap;
 
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /*
  * A snapshot of all of the heaps, and related meta-data, for the runtime at a given instant.
@@ -122,6 +124,13 @@ public class Snapshot extends Capture {
 
     private long mIdSizeMask = 0x00000000ffffffffL;
 
+    //  Columnar store of all the instances, only used by compact snapshots.
+    @Nullable
+    private InstanceTable mInstanceTable;
+
+    @Nullable
+    private CompactDominators mCompactDominators;
+
     @NonNull
     public static Snapshot createSnapshot(@NonNull DataBuffer buffer) {
         return createSnapshot(buffer, new ProguardMap());
@@ -137,9 +146,61 @@ public class Snapshot extends Capture {
             @NonNull DataBuffer buffer,
             @NonNull ProguardMap map,
             @NonNull List<SnapshotPostProcessor> postProcessors) {
+        return createSnapshot(buffer, map, postProcessors, false, null);
+    }
+
+    /**
+     * Creates a snapshot that keeps its instances in an {@link InstanceTable} rather than as
+     * {@link Instance} objects, to analyze dumps that are too large to be fully materialized.
+     *
+     * Instances are created on demand as views over the table, and reference resolution,
+     * dominators and retained sizes are computed on the table with {@link CompactDominators}.
+     */
+    @NonNull
+    public static Snapshot createCompactSnapshot(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors) {
+        return createSnapshot(buffer, map, postProcessors, true, null);
+    }
+
+    /**
+     * Same as {@link #createCompactSnapshot(DataBuffer, ProguardMap, List)}, but fills the
+     * instance table on {@code pool}, each worker decoding the instance and array dumps from its
+     * own {@link DataBuffer#duplicate()} of the buffer.
+     */
+    @NonNull
+    public static Snapshot createCompactSnapshot(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors,
+            @NonNull ForkJoinPool pool) {
+        return createSnapshot(buffer, map, postProcessors, true, pool);
+    }
+
+    @NonNull
+    public static Snapshot createCompactSnapshot(@NonNull DataBuffer buffer) {
+        return createCompactSnapshot(buffer, new ProguardMap(),
+                Arrays.asList(new NativeRegistryPostProcessor()));
+    }
+
+    @NonNull
+    private static Snapshot createSnapshot(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors,
+            boolean compact,
+            @Nullable ForkJoinPool pool) {
         try {
             Snapshot snapshot = new Snapshot(buffer);
-            HprofParser.parseBuffer(snapshot, buffer, map);
+            if (compact) {
+                snapshot.mInstanceTable = new InstanceTable(snapshot);
+            }
+            if (pool != null) {
+                HprofParser.parseBufferInParallel(snapshot, buffer, map, pool);
+            } else {
+                HprofParser.parseBuffer(snapshot, buffer, map);
+            }
             for (SnapshotPostProcessor processor : postProcessors) {
                 processor.postProcess(snapshot);
             }
@@ -190,6 +251,26 @@ public class Snapshot extends Capture {
         return mHeaps.indexOf(heap);
     }
 
+    void setInstanceTable(@NonNull InstanceTable instanceTable) {
+        mInstanceTable = instanceTable;
+    }
+
+    final int getCurrentHeapIndex() {
+        return mHeaps.indexOf(mCurrentHeap);
+    }
+
+    /**
+     * Returns the columnar instance store if this is a compact snapshot, or null otherwise.
+     */
+    @Nullable
+    public InstanceTable getInstanceTable() {
+        return mInstanceTable;
+    }
+
+    public boolean isCompact() {
+        return mInstanceTable != null;
+    }
+
     @Nullable
     public Heap getHeap(int id) {
         //noinspection ForLoopReplaceableByForEach
@@ -383,6 +464,10 @@ public class Snapshot extends Capture {
                 classObj.setSize(classSize);
             }
 
+            if (mInstanceTable != null) {
+                continue;
+            }
+
             final int heapId = heap.getId();
             heap.forEachInstance(instance -> {
                 ClassObj classObj = instance.getClassObj();
@@ -392,6 +477,10 @@ public class Snapshot extends Capture {
                 return true;
             });
         }
+
+        if (mInstanceTable != null) {
+            mInstanceTable.resolveClasses();
+        }
     }
 
     public void identifySoftReferences() {
@@ -404,6 +493,11 @@ public class Snapshot extends Capture {
     }
 
     public void resolveReferences() {
+        if (mInstanceTable != null) {
+            mInstanceTable.resolveReferences();
+            return;
+        }
+
         for (Heap heap : getHeaps()) {
             for (ClassObj clazz : heap.getClasses()) {
                 clazz.resolveReferences();
@@ -416,6 +510,10 @@ public class Snapshot extends Capture {
     }
 
     public void compactMemory() {
+        if (mInstanceTable != null) {
+            return;
+        }
+
         for (Heap heap : getHeaps()) {
             heap.forEachInstance(instance -> {
                 instance.compactMemory();
@@ -435,10 +533,97 @@ public class Snapshot extends Capture {
     }
 
     public void computeDominators() {
+        if (mInstanceTable != null) {
+            computeCompactDominators(null);
+            return;
+        }
+
         prepareDominatorComputation();
         doComputeDominators(new LinkEvalDominators(this));
     }
 
+    /**
+     * Same as {@link #computeDominators()}, but computes the dominators with {@link
+     * ParallelDominators} on {@code pool}.
+     */
+    public void computeDominators(@NonNull ForkJoinPool pool) {
+        if (mInstanceTable != null) {
+            computeCompactDominators(pool);
+            return;
+        }
+        if (mDominators != null) {
+            return;
+        }
+
+        prepareDominatorComputation();
+        doComputeDominators(new ParallelDominators(this, pool));
+    }
+
+    private void computeCompactDominators(@Nullable ForkJoinPool pool) {
+        if (mCompactDominators != null) {
+            return;
+        }
+
+        mDominatorComputationStage = DominatorComputationStage.RESOLVING_REFERENCES;
+        mInstanceTable.resolveReferences();
+
+        CompactDominators dominators = new CompactDominators(mInstanceTable, mRoots);
+        mCompactDominators = dominators;
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_SHORTEST_DISTANCE;
+        dominators.computeDistancesToGcRoot();
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_TOPOLOGICAL_SORT;
+        dominators.computeTopologicalOrder();
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_DOMINATORS;
+        if (pool != null) {
+            dominators.computeDominators(pool);
+        } else {
+            dominators.computeDominators();
+        }
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_RETAINED_SIZES;
+        dominators.computeRetainedSizes();
+        setCompactDominators(dominators);
+    }
+
+    /**
+     * Sets the results of the dominator computation of a compact snapshot.
+     */
+    void setCompactDominators(@NonNull CompactDominators dominators) {
+        mCompactDominators = dominators;
+        mInstanceTable.setDominators(dominators);
+
+        // Class objects are not views, so copy their results over.
+        for (Heap heap : mHeaps) {
+            for (ClassObj classObj : heap.getClasses()) {
+                int ordinal = mInstanceTable.getOrdinal(classObj.getId());
+                if (ordinal < 0) {
+                    continue;
+                }
+                classObj.resetRetainedSize();
+                for (int i = 0; i < mHeaps.size(); i++) {
+                    classObj.addRetainedSize(i,
+                            dominators.getRetainedSize(i, ordinal) - classObj.getRetainedSize(i));
+                }
+                int distance = dominators.getDistanceToGcRoot(ordinal);
+                if (distance != Integer.MAX_VALUE) {
+                    classObj.setDistanceToGcRoot(distance);
+                    int next = dominators.getNextInstanceToGcRoot(ordinal);
+                    classObj.setNextInstanceToGcRoot(
+                            next < 0 ? null : mInstanceTable.getInstance(next));
+                }
+                int dominator = dominators.getImmediateDominator(ordinal);
+                if (dominator == CompactDominators.SENTINEL) {
+                    classObj.setImmediateDominator(SENTINEL_ROOT);
+                } else if (dominator >= 0) {
+                    classObj.setImmediateDominator(mInstanceTable.getInstance(dominator));
+                }
+            }
+        }
+    }
+
     @VisibleForTesting
     public void prepareDominatorComputation() {
         if (mDominators != null) {
@@ -476,7 +661,10 @@ public class Snapshot extends Capture {
 
     @NonNull
     public ComputationProgress getComputationProgress() {
-        if (mDominatorComputationStage == DominatorComputationStage.COMPUTING_DOMINATORS) {
+        if (mDominatorComputationStage == DominatorComputationStage.COMPUTING_DOMINATORS
+                && mCompactDominators != null) {
+            return mCompactDominators.getComputationProgress();
+        } else if (mDominatorComputationStage == DominatorComputationStage.COMPUTING_DOMINATORS) {
             return mDominators.getComputationProgress();
         } else {
             return mDominatorComputationStage.getInitialProgress();
@@ -489,6 +677,15 @@ public class Snapshot extends Capture {
 
     @NonNull
     public List<Instance> getReachableInstances() {
+        if (mCompactDominators != null) {
+            IntBuffer order = mCompactDominators.getTopologicalOrder();
+            List<Instance> result = new ArrayList<Instance>(order.limit());
+            for (int i = 0; i < order.limit(); i++) {
+                result.add(mInstanceTable.getInstance(order.get(i)));
+            }
+            return result;
+        }
+
         List<Instance> result = new ArrayList<Instance>(mTopSort.size());
         for (Instance node : mTopSort) {
             if (node.getImmediateDominator() != null) {
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongLongHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compares the reachable instances of two snapshots, typically dumped before and after a
+ * scenario, class by class.
+ *
+ * Object ids are not stable between dumps, so classes are matched by name, and instances by a
+ * fingerprint of their content: primitive field values and array elements, and for references,
+ * the class of the referenced object, or the content of referenced primitive arrays (which tells
+ * strings apart). Instances of the second snapshot whose fingerprint isn't found in the first are
+ * reported as new.
+ *
+ * Classes are diffed in parallel, each one reading both dumps through its own duplicates of
+ * their buffers. Compact snapshots are read through their {@link InstanceTable}, without
+ * creating {@link Instance} views except for the new instances.
+ */
+public final class SnapshotDiff {
+
+    /**
+     * Receives the diff of each class as soon as it is computed. Calls are serialized, but may
+     * come from any thread of the pool.
+     */
+    public interface Listener {
+        void onClassDiff(@NonNull ClassDiff diff);
+    }
+
+    // Number of array elements included in fingerprints.
+    private static final int MAX_FINGERPRINT_ELEMENTS = 256;
+
+    // Field of java.lang.Object holding the lock word, which includes the identity hash code.
+    private static final String MONITOR_FIELD_NAME = "shadow$_monitor_";
+
+    @NonNull
+    private final Snapshot mBefore;
+
+    @NonNull
+    private final Snapshot mAfter;
+
+    public SnapshotDiff(@NonNull Snapshot before, @NonNull Snapshot after) {
+        mBefore = before;
+        mAfter = after;
+    }
+
+    /**
+     * Computes the dominators of both snapshots if needed, then diffs all the classes on
+     * {@code pool}. Only the classes that changed are given to {@code listener}.
+     */
+    public void compute(@NonNull ForkJoinPool pool, @NonNull Listener listener) {
+        mBefore.computeDominators(pool);
+        mAfter.computeDominators(pool);
+
+        Map<String, List<ClassObj>> classesBefore = getClassesByName(mBefore);
+        Map<String, List<ClassObj>> classesAfter = getClassesByName(mAfter);
+        Set<String> names = new HashSet<String>(classesBefore.keySet());
+        names.addAll(classesAfter.keySet());
+
+        pool.invoke(new DiffTask(new ArrayList<String>(names), 0, names.size(), classesBefore,
+                classesAfter, listener));
+    }
+
+    /**
+     * Same as {@link #compute(ForkJoinPool, Listener)}, returning the diffs by decreasing retained
+     * size delta.
+     */
+    @NonNull
+    public List<ClassDiff> compute(@NonNull ForkJoinPool pool) {
+        List<ClassDiff> diffs = new ArrayList<ClassDiff>();
+        compute(pool, diffs::add);
+        Collections.sort(diffs,
+                (a, b) -> Long.compare(b.getRetainedSizeDelta(), a.getRetainedSizeDelta()));
+        return diffs;
+    }
+
+    @NonNull
+    private static Map<String, List<ClassObj>> getClassesByName(@NonNull Snapshot snapshot) {
+        Map<String, List<ClassObj>> classes = new HashMap<String, List<ClassObj>>();
+        for (Heap heap : snapshot.getHeaps()) {
+            for (ClassObj classObj : heap.getClasses()) {
+                List<ClassObj> sameName = classes.get(classObj.getClassName());
+                if (sameName == null) {
+                    sameName = new ArrayList<ClassObj>(1);
+                    classes.put(classObj.getClassName(), sameName);
+                }
+                sameName.add(classObj);
+            }
+        }
+        return classes;
+    }
+
+    @NonNull
+    private ClassDiff diffClass(@NonNull String className, @Nullable List<ClassObj> classesBefore,
+            @Nullable List<ClassObj> classesAfter) {
+        TLongIntHashMap fingerprints = new TLongIntHashMap();
+        int countBefore = 0;
+        long shallowSizeBefore = 0;
+        long retainedSizeBefore = 0;
+        if (classesBefore != null) {
+            Reader reader = new Reader(mBefore);
+            for (ClassObj classObj : classesBefore) {
+                Field[] fields = getAllFields(classObj);
+                for (Heap heap : mBefore.getHeaps()) {
+                    List<Instance> instances = classObj.getHeapInstances(heap.getId());
+                    for (int i = 0; i < instances.size(); i++) {
+                        if (reader.select(instances, i)) {
+                            countBefore++;
+                            shallowSizeBefore += reader.getSize();
+                            retainedSizeBefore += reader.getRetainedSize();
+                            fingerprints.adjustOrPutValue(reader.getFingerprint(fields), 1, 1);
+                        }
+                    }
+                }
+            }
+        }
+
+        int countAfter = 0;
+        long shallowSizeAfter = 0;
+        long retainedSizeAfter = 0;
+        int matchedCount = 0;
+        List<Instance> newInstances = new ArrayList<Instance>();
+        if (classesAfter != null) {
+            Reader reader = new Reader(mAfter);
+            for (ClassObj classObj : classesAfter) {
+                Field[] fields = getAllFields(classObj);
+                for (Heap heap : mAfter.getHeaps()) {
+                    List<Instance> instances = classObj.getHeapInstances(heap.getId());
+                    for (int i = 0; i < instances.size(); i++) {
+                        if (!reader.select(instances, i)) {
+                            continue;
+                        }
+                        countAfter++;
+                        shallowSizeAfter += reader.getSize();
+                        retainedSizeAfter += reader.getRetainedSize();
+                        long fingerprint = reader.getFingerprint(fields);
+                        if (fingerprints.get(fingerprint) > 0) {
+                            fingerprints.adjustValue(fingerprint, -1);
+                            matchedCount++;
+                        } else {
+                            newInstances.add(reader.getInstance());
+                        }
+                    }
+                }
+            }
+        }
+        Collections.sort(newInstances,
+                (a, b) -> Long.compare(b.getTotalRetainedSize(), a.getTotalRetainedSize()));
+
+        return new ClassDiff(className, countBefore, countAfter, shallowSizeBefore,
+                shallowSizeAfter, retainedSizeBefore, retainedSizeAfter, matchedCount,
+                newInstances);
+    }
+
+    /**
+     * Fields of the class and of its superclasses, in the order of their values in instances.
+     */
+    @NonNull
+    private static Field[] getAllFields(@NonNull ClassObj classObj) {
+        List<Field> fields = new ArrayList<Field>();
+        for (ClassObj clazz = classObj; clazz != null; clazz = clazz.getSuperClassObj()) {
+            Collections.addAll(fields, clazz.getFields());
+        }
+        return fields.toArray(new Field[fields.size()]);
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private final class DiffTask extends RecursiveAction {
+        @NonNull
+        private final List<String> mNames;
+
+        private final int mStart;
+
+        private final int mEnd;
+
+        @NonNull
+        private final Map<String, List<ClassObj>> mClassesBefore;
+
+        @NonNull
+        private final Map<String, List<ClassObj>> mClassesAfter;
+
+        @NonNull
+        private final Listener mListener;
+
+        private DiffTask(@NonNull List<String> names, int start, int end,
+                @NonNull Map<String, List<ClassObj>> classesBefore,
+                @NonNull Map<String, List<ClassObj>> classesAfter, @NonNull Listener listener) {
+            mNames = names;
+            mStart = start;
+            mEnd = end;
+            mClassesBefore = classesBefore;
+            mClassesAfter = classesAfter;
+            mListener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > 1) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(
+                        new DiffTask(mNames, mStart, middle, mClassesBefore, mClassesAfter,
+                                mListener),
+                        new DiffTask(mNames, middle, mEnd, mClassesBefore, mClassesAfter,
+                                mListener));
+                return;
+            }
+            for (int i = mStart; i < mEnd; i++) {
+                String name = mNames.get(i);
+                ClassDiff diff = diffClass(name, mClassesBefore.get(name), mClassesAfter.get(name));
+                if (!diff.isUnchanged()) {
+                    synchronized (mListener) {
+                        mListener.onClassDiff(diff);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the instances of a snapshot for a single thread. An instance is selected from the
+     * instance list of its class, then read either through its view or, for compact snapshots,
+     * through the instance table.
+     */
+    private static final class Reader {
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        @Nullable
+        private final InstanceTable mTable;
+
+        @Nullable
+        private final CompactDominators mDominators;
+
+        @NonNull
+        private final DataBuffer mBuffer;
+
+        private final int mIdSize;
+
+        @NonNull
+        private final TLongLongHashMap mClassNameHashes = new TLongLongHashMap();
+
+        private int mOrdinal;
+
+        @Nullable
+        private Instance mInstance;
+
+        private Reader(@NonNull Snapshot snapshot) {
+            mSnapshot = snapshot;
+            mTable = snapshot.getInstanceTable();
+            mDominators = mTable != null ? mTable.getDominators() : null;
+            mBuffer = snapshot.getBuffer().duplicate();
+            mIdSize = snapshot.getTypeSize(Type.OBJECT);
+        }
+
+        /**
+         * Selects the instance at {@code index}, and returns whether it is reachable.
+         */
+        private boolean select(@NonNull List<Instance> instances, int index) {
+            if (instances instanceof InstanceTable.OrdinalList) {
+                mOrdinal = ((InstanceTable.OrdinalList) instances).getOrdinal(index);
+                mInstance = null;
+                return mDominators.getDistanceToGcRoot(mOrdinal) != Integer.MAX_VALUE;
+            }
+            mInstance = instances.get(index);
+            return mInstance.isReachable();
+        }
+
+        @NonNull
+        private Instance getInstance() {
+            return mInstance != null ? mInstance : mTable.getInstance(mOrdinal);
+        }
+
+        private int getSize() {
+            return mInstance != null ? mInstance.getSize() : mTable.getSize(mOrdinal);
+        }
+
+        private long getRetainedSize() {
+            return mInstance != null
+                    ? mInstance.getTotalRetainedSize()
+                    : mDominators.getTotalRetainedSize(mOrdinal);
+        }
+
+        /**
+         * Fingerprint of the selected instance, whose class has the given {@code fields}.
+         */
+        private long getFingerprint(@NonNull Field[] fields) {
+            if (mInstance == null) {
+                return getFingerprint(mTable.getType(mOrdinal), mTable.getValuesOffset(mOrdinal),
+                        mTable.getArrayLength(mOrdinal), fields);
+            }
+            if (mInstance instanceof ArrayInstance) {
+                ArrayInstance array = (ArrayInstance) mInstance;
+                return getFingerprint((byte) array.getArrayType().getTypeId(),
+                        array.getValuesOffset(), array.getLength(), fields);
+            }
+            return getFingerprint(InstanceTable.TYPE_CLASS_INSTANCE,
+                    ((ClassInstance) mInstance).getValuesOffset(), 0, fields);
+        }
+
+        private long getFingerprint(byte type, long offset, int length, @NonNull Field[] fields) {
+            if (type == InstanceTable.TYPE_CLASS_INSTANCE) {
+                long hash = fields.length;
+                mBuffer.setPosition(offset);
+                for (Field field : fields) {
+                    long value = readValue(field.getType());
+                    if (field.getType() == Type.OBJECT) {
+                        value = getReferenceHash(value);
+                    } else if (MONITOR_FIELD_NAME.equals(field.getName())) {
+                        continue;
+                    }
+                    hash = mix(hash, value);
+                }
+                return hash;
+            }
+            if (type == Type.OBJECT.getTypeId()) {
+                long hash = mix(type, length);
+                int count = Math.min(length, MAX_FINGERPRINT_ELEMENTS);
+                for (int i = 0; i < count; i++) {
+                    mBuffer.setPosition(offset + (long) i * mIdSize);
+                    hash = mix(hash, getReferenceHash(readValue(Type.OBJECT)));
+                }
+                return hash;
+            }
+            return getPrimitiveArrayHash(Type.getType(type), offset, length);
+        }
+
+        /**
+         * Hash identifying the object of the given id without depending on ids, that keeps the
+         * position of the buffer.
+         */
+        private long getReferenceHash(long id) {
+            if (id == 0) {
+                return 0;
+            }
+            long position = mBuffer.position();
+            long hash;
+            if (mTable != null) {
+                int ordinal = mTable.getOrdinal(id);
+                if (ordinal < 0) {
+                    return 1;
+                }
+                byte type = mTable.getType(ordinal);
+                if (type == InstanceTable.TYPE_CLASS_OBJECT) {
+                    hash = getClassNameHash(id);
+                } else if (type == InstanceTable.TYPE_CLASS_INSTANCE) {
+                    hash = getClassNameHash(mTable.getClassId(ordinal));
+                } else if (type == Type.OBJECT.getTypeId()) {
+                    hash = mix(getClassNameHash(mTable.getClassId(ordinal)),
+                            mTable.getArrayLength(ordinal));
+                } else {
+                    hash = getPrimitiveArrayHash(Type.getType(type),
+                            mTable.getValuesOffset(ordinal), mTable.getArrayLength(ordinal));
+                }
+            } else {
+                Instance instance = mSnapshot.findInstance(id);
+                if (instance == null) {
+                    return 1;
+                } else if (instance instanceof ClassObj) {
+                    hash = getClassNameHash(id);
+                } else if (instance instanceof ArrayInstance) {
+                    ArrayInstance array = (ArrayInstance) instance;
+                    hash = array.getArrayType() == Type.OBJECT
+                            ? mix(getClassNameHash(array.mClassId), array.getLength())
+                            : getPrimitiveArrayHash(array.getArrayType(), array.getValuesOffset(),
+                                    array.getLength());
+                } else {
+                    hash = getClassNameHash(instance.mClassId);
+                }
+            }
+            mBuffer.setPosition(position);
+            return hash;
+        }
+
+        private long getPrimitiveArrayHash(@NonNull Type type, long offset, int length) {
+            long hash = mix(type.getTypeId(), length);
+            int bytes = Math.min(length, MAX_FINGERPRINT_ELEMENTS) * type.getSize();
+            mBuffer.setPosition(offset);
+            int i = 0;
+            for (; i + 8 <= bytes; i += 8) {
+                hash = mix(hash, mBuffer.readLong());
+            }
+            for (; i < bytes; i++) {
+                hash = mix(hash, mBuffer.readByte());
+            }
+            return hash;
+        }
+
+        private long getClassNameHash(long classId) {
+            if (mClassNameHashes.containsKey(classId)) {
+                return mClassNameHashes.get(classId);
+            }
+            ClassObj classObj = mSnapshot.findClass(classId);
+            long hash = 2;
+            if (classObj != null && classObj.getClassName() != null) {
+                String name = classObj.getClassName();
+                for (int i = 0; i < name.length(); i++) {
+                    hash = mix(hash, name.charAt(i));
+                }
+            }
+            mClassNameHashes.put(classId, hash);
+            return hash;
+        }
+
+        private long readValue(@NonNull Type type) {
+            switch (mSnapshot.getTypeSize(type)) {
+                case 1:
+                    return mBuffer.readByte();
+                case 2:
+                    return mBuffer.readShort();
+                case 4:
+                    return mBuffer.readInt();
+                case 8:
+                    return mBuffer.readLong();
+            }
+            throw new IllegalArgumentException("Unexpected size of " + type);
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
+import com.android.tools.perflib.heap.ext.NativeRegistryPostProcessor;
+import com.android.tools.perflib.heap.ext.SnapshotPostProcessor;
+import com.android.tools.proguard.ProguardMap;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar index of a heap dump, which persists what a compact snapshot computes (its
+ * {@link InstanceTable} with its grouping by class, reference graph, dominators and retained sizes)
+ * so that later opens of the same dump skip decoding the objects and all the graph analyses.
+ *
+ * The index starts with a versioned header holding the length, modification time and a sampled
+ * checksum of the dump it was built from, and is ignored if any of them doesn't match. The checksum
+ * only covers the start and end of the dump and evenly spaced blocks in between, so that checking
+ * the index costs a few hundred kilobytes of I/O rather than a pass over the whole dump.
+ *
+ * The rest of the file is a sequence of primitive arrays. When read, the large ones are served as
+ * buffers over a mapping of the index rather than copied. Strings, classes, stack traces and GC
+ * roots are still parsed from the dump, as they are needed to materialize {@link ClassObj}s and
+ * {@link Instance} views, but the index records where they are so that the object dumps in between
+ * are not walked.
+ */
+public final class SnapshotIndex {
+    /** Suffix appended to the path of a dump to name its index. */
+    public static final String FILE_SUFFIX = ".perflib-index";
+
+    @VisibleForTesting
+    static final int MAGIC = 0x50464958; // "PFIX"
+
+    @VisibleForTesting
+    static final int VERSION = 5;
+
+    private static final int FLAG_REFERENCES = 1;
+
+    private static final int FLAG_DOMINATORS = 1 << 1;
+
+    // Size of the buffer used to write the index, and of the head and tail of the dump checksummed.
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    // Number and size of the blocks checksummed between the head and tail of the dump.
+    private static final int CHECKSUM_SAMPLES = 64;
+
+    private static final int CHECKSUM_SAMPLE_SIZE = 1 << 12;
+
+    private SnapshotIndex() {
+    }
+
+    @NonNull
+    public static File getIndexFile(@NonNull File dump) {
+        return new File(dump.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Opens a compact snapshot of {@code dump}, with its dominators computed. The snapshot is read
+     * from the index next to the dump if it is up to date, otherwise the dump is parsed and the
+     * index (re)written for next time.
+     */
+    @NonNull
+    public static Snapshot openSnapshot(@NonNull File dump) throws IOException {
+        File indexFile = getIndexFile(dump);
+        Snapshot snapshot = read(dump, indexFile);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        snapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(dump));
+        snapshot.computeDominators();
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            write(snapshot, dump, tmpFile);
+            if (!tmpFile.renameTo(indexFile)) {
+                indexFile.delete();
+                tmpFile.renameTo(indexFile);
+            }
+        } catch (IOException e) {
+            // The index is only a cache, the snapshot is still usable.
+            tmpFile.delete();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the index of a compact snapshot parsed from {@code dump}. References and dominators
+     * are only included if they have been computed.
+     */
+    public static void write(@NonNull Snapshot snapshot, @NonNull File dump, @NonNull File index)
+            throws IOException {
+        InstanceTable table = snapshot.getInstanceTable();
+        if (table == null) {
+            throw new IllegalArgumentException("Only compact snapshots can be indexed");
+        }
+        CompactDominators dominators = table.getDominators();
+        int n = table.getInstanceCount();
+        int heapCount = table.getHeapCount();
+
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.setLength(0);
+            Writer writer = new Writer(file.getChannel());
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putLong(dump.length());
+            writer.putLong(dump.lastModified());
+            writer.putLong(computeChecksum(dump));
+            writer.putInt(n);
+            writer.putInt(heapCount);
+            writer.putInt((table.hasResolvedReferences() ? FLAG_REFERENCES : 0)
+                    | (dominators != null ? FLAG_DOMINATORS : 0));
+
+            table.writeColumns(writer);
+            table.writeClasses(writer);
+            if (table.hasResolvedReferences()) {
+                table.writeReferences(writer);
+            }
+            if (dominators != null) {
+                for (int i = 0; i < n; i++) {
+                    writer.putInt(dominators.getDistanceToGcRoot(i));
+                }
+                for (int i = 0; i < n; i++) {
+                    writer.putInt(dominators.getNextInstanceToGcRoot(i));
+                }
+                for (int i = 0; i < n; i++) {
+                    writer.putInt(dominators.getImmediateDominator(i));
+                }
+                IntBuffer order = dominators.getTopologicalOrder();
+                writer.putInt(order.limit());
+                writer.putInts(order);
+                for (int heap = 0; heap < heapCount; heap++) {
+                    for (int i = 0; i < n; i++) {
+                        writer.putLong(dominators.getRetainedSize(heap, i));
+                    }
+                }
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * Reads the compact snapshot of {@code dump} from its index, or returns null if the index
+     * doesn't exist, has another version or was built from another dump.
+     */
+    @Nullable
+    public static Snapshot read(@NonNull File dump, @NonNull File index) throws IOException {
+        return read(dump, index, new ProguardMap(),
+                Arrays.asList(new NativeRegistryPostProcessor()));
+    }
+
+    @Nullable
+    public static Snapshot read(
+            @NonNull File dump,
+            @NonNull File index,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors) throws IOException {
+        if (!index.isFile()) {
+            return null;
+        }
+
+        try (Reader reader = new Reader(index)) {
+            int n;
+            int heapCount;
+            int flags;
+            try {
+                if (reader.getInt() != MAGIC || reader.getInt() != VERSION
+                        || reader.getLong() != dump.length()
+                        || reader.getLong() != dump.lastModified()
+                        || reader.getLong() != computeChecksum(dump)) {
+                    return null;
+                }
+                n = reader.getInt();
+                heapCount = reader.getInt();
+                flags = reader.getInt();
+            } catch (BufferUnderflowException e) {
+                return null;
+            }
+
+            DataBuffer buffer = new MemoryMappedFileBuffer(dump);
+            try {
+                Snapshot snapshot = new Snapshot(buffer);
+                InstanceTable table = new InstanceTable(snapshot);
+                table.readColumns(reader, n);
+                table.readClasses(reader, heapCount);
+                snapshot.setInstanceTable(table);
+                HprofParser.parseBuffer(snapshot, buffer, map);
+                for (SnapshotPostProcessor processor : postProcessors) {
+                    processor.postProcess(snapshot);
+                }
+
+                if ((flags & FLAG_REFERENCES) != 0) {
+                    table.readReferences(reader);
+                }
+                if ((flags & FLAG_DOMINATORS) != 0) {
+                    IntBuffer distances = reader.mapInts(n);
+                    IntBuffer nextToGcRoot = reader.mapInts(n);
+                    IntBuffer immediateDominators = reader.mapInts(n);
+                    IntBuffer order = reader.mapInts(reader.getInt());
+                    LongBuffer[] retainedSizes = new LongBuffer[heapCount];
+                    for (int heap = 0; heap < heapCount; heap++) {
+                        retainedSizes[heap] = reader.mapLongs(n);
+                    }
+                    snapshot.setCompactDominators(CompactDominators.restore(table,
+                            snapshot.getGCRoots(), distances, nextToGcRoot, order,
+                            immediateDominators, retainedSizes));
+                }
+                return snapshot;
+            } catch (BufferUnderflowException e) {
+                // Truncated index.
+                buffer.dispose();
+                return null;
+            } catch (RuntimeException e) {
+                buffer.dispose();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the CRC32 of the first and last {@link #IO_BUFFER_SIZE} bytes of {@code dump} and of
+     * {@link #CHECKSUM_SAMPLES} blocks evenly spaced in between, or of the whole dump if it is
+     * smaller than that.
+     */
+    @VisibleForTesting
+    static long computeChecksum(@NonNull File dump) throws IOException {
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile file = new RandomAccessFile(dump, "r")) {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+            long sampled = 2L * IO_BUFFER_SIZE + (long) CHECKSUM_SAMPLES * CHECKSUM_SAMPLE_SIZE;
+            if (length <= sampled) {
+                updateChecksum(crc, channel, buffer, 0, length);
+            } else {
+                updateChecksum(crc, channel, buffer, 0, IO_BUFFER_SIZE);
+                long stride = (length - 2L * IO_BUFFER_SIZE) / CHECKSUM_SAMPLES;
+                for (int i = 0; i < CHECKSUM_SAMPLES; i++) {
+                    updateChecksum(crc, channel, buffer, IO_BUFFER_SIZE + i * stride,
+                            CHECKSUM_SAMPLE_SIZE);
+                }
+                updateChecksum(crc, channel, buffer, length - IO_BUFFER_SIZE, IO_BUFFER_SIZE);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void updateChecksum(@NonNull CRC32 crc, @NonNull FileChannel channel,
+            @NonNull ByteBuffer buffer, long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+    }
+
+    /**
+     * Buffered writer of big-endian primitives and primitive arrays.
+     */
+    static final class Writer {
+        @NonNull
+        private final FileChannel mChannel;
+
+        @NonNull
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+
+        Writer(@NonNull FileChannel channel) {
+            mChannel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensureRemaining(4);
+            mBuffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensureRemaining(8);
+            mBuffer.putLong(value);
+        }
+
+        void putInts(@NonNull int[] values, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                putInt(values[i]);
+            }
+        }
+
+        void putLongs(@NonNull long[] values, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                putLong(values[i]);
+            }
+        }
+
+        /** Writes the elements of {@code values} from index 0 to its limit. */
+        void putBytes(@NonNull ByteBuffer values) throws IOException {
+            ByteBuffer source = values.duplicate();
+            source.position(0);
+            while (source.hasRemaining()) {
+                ensureRemaining(1);
+                int length = Math.min(source.remaining(), mBuffer.remaining());
+                ByteBuffer chunk = source.slice();
+                chunk.limit(length);
+                mBuffer.put(chunk);
+                source.position(source.position() + length);
+            }
+        }
+
+        /** Writes the elements of {@code values} from index 0 to its limit. */
+        void putInts(@NonNull IntBuffer values) throws IOException {
+            for (int i = 0; i < values.limit(); i++) {
+                putInt(values.get(i));
+            }
+        }
+
+        /** Writes the elements of {@code values} from index 0 to its limit. */
+        void putLongs(@NonNull LongBuffer values) throws IOException {
+            for (int i = 0; i < values.limit(); i++) {
+                putLong(values.get(i));
+            }
+        }
+
+        void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (mBuffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Reads primitives and primitive arrays written by {@link Writer}. The large arrays are
+     * returned as views over a read-only mapping of their part of the index, which stays valid
+     * after the reader is closed, the small ones are copied. Every count is checked against the
+     * remaining size of the file before mapping or allocating, so that a corrupt index throws
+     * {@link BufferUnderflowException}.
+     */
+    static final class Reader implements Closeable {
+        @NonNull
+        private final RandomAccessFile mFile;
+
+        @NonNull
+        private final ByteBuffer mScalar = ByteBuffer.allocate(8);
+
+        private final long mLength;
+
+        private long mPosition;
+
+        Reader(@NonNull File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            mLength = mFile.length();
+        }
+
+        int getInt() throws IOException {
+            return readScalar(4).getInt(0);
+        }
+
+        long getLong() throws IOException {
+            return readScalar(8).getLong(0);
+        }
+
+        @NonNull
+        int[] getInts(int count) throws IOException {
+            int[] values = new int[count];
+            mapInts(count).get(values);
+            return values;
+        }
+
+        @NonNull
+        long[] getLongs(int count) throws IOException {
+            long[] values = new long[count];
+            mapLongs(count).get(values);
+            return values;
+        }
+
+        @NonNull
+        ByteBuffer mapBytes(int count) throws IOException {
+            return map(count, 1);
+        }
+
+        @NonNull
+        IntBuffer mapInts(int count) throws IOException {
+            return map(count, 4).asIntBuffer();
+        }
+
+        @NonNull
+        LongBuffer mapLongs(int count) throws IOException {
+            return map(count, 8).asLongBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+
+        @NonNull
+        private ByteBuffer readScalar(int size) throws IOException {
+            checkRemaining(1, size);
+            mScalar.clear();
+            mScalar.limit(size);
+            while (mScalar.hasRemaining()) {
+                if (mFile.getChannel().read(mScalar, mPosition + mScalar.position()) < 0) {
+                    throw new BufferUnderflowException();
+                }
+            }
+            mPosition += size;
+            return mScalar;
+        }
+
+        @NonNull
+        private ByteBuffer map(int count, int elementSize) throws IOException {
+            checkRemaining(count, elementSize);
+            long size = (long) count * elementSize;
+            ByteBuffer buffer =
+                    mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, mPosition, size);
+            mPosition += size;
+            return buffer;
+        }
+
+        private void checkRemaining(int count, int elementSize) {
+            if (count < 0 || (long) count * elementSize > mLength - mPosition) {
+                throw new BufferUnderflowException();
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.InstanceTable;
+import com.android.tools.perflib.heap.RootObj;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shortest distances to GC roots, topological order, dominators and retained sizes computed
+ * directly on the int ordinals of an {@link InstanceTable}, without any {@link
+ * com.android.tools.perflib.heap.Instance} objects.
+ *
+ * Dominators are computed with the iterative algorithm of Cooper, Harvey and Kennedy ("A Simple,
+ * Fast Dominance Algorithm") over the reverse post-order of the hard reference graph, rooted at a
+ * virtual sentinel node that points to all GC roots.
+ *
+ * Results are kept in NIO buffers, so that they can also be views over a memory-mapped
+ * {@link com.android.tools.perflib.heap.SnapshotIndex}, see {@link #restore}.
+ */
+public final class CompactDominators {
+    /** Immediate dominator of the objects only dominated by the sentinel root. */
+    public static final int SENTINEL = -2;
+
+    /** Immediate dominator of unreachable objects. */
+    public static final int UNREACHABLE = -1;
+
+    @NonNull
+    private final InstanceTable mTable;
+
+    @NonNull
+    private final int[] mRoots;
+
+    @NonNull
+    private final ComputationProgress mCurrentProgress =
+            new ComputationProgress("Starting dominator computation", 0.0);
+
+    private IntBuffer mDistances;
+
+    private IntBuffer mNextToGcRoot;
+
+    // Reachable ordinals in reverse post-order. Position k in this buffer is node k + 1 of the
+    // dominator computation, node 0 being the sentinel root.
+    private IntBuffer mTopologicalOrder;
+
+    // Node of each ordinal in the dominator computation, or -1 if unreachable. Only kept until
+    // the dominators are computed.
+    private int[] mNodes;
+
+    // Immediate dominator of each ordinal, SENTINEL or UNREACHABLE.
+    private IntBuffer mImmediateDominators;
+
+    // Retained sizes, indexed by heap then ordinal.
+    private LongBuffer[] mRetainedSizes;
+
+    private volatile int mPass = 0;
+
+    private volatile int mPassProgress = 0;
+
+    //  Set when dominators are computed in parallel.
+    @Nullable
+    private volatile ParallelDominators.Solver mSolver;
+
+    public CompactDominators(@NonNull InstanceTable table, @NonNull Collection<RootObj> roots) {
+        mTable = table;
+        int[] rootOrdinals = new int[roots.size()];
+        int count = 0;
+        for (RootObj root : roots) {
+            int ordinal = table.getOrdinal(root.getId());
+            if (ordinal >= 0) {
+                rootOrdinals[count++] = ordinal;
+            }
+        }
+        mRoots = Arrays.copyOf(rootOrdinals, count);
+    }
+
+    /**
+     * Recreates the results of a previous computation, as returned by the getters of this class.
+     * The buffers are used as is, and are indexed from 0 regardless of their position.
+     */
+    @NonNull
+    public static CompactDominators restore(
+            @NonNull InstanceTable table,
+            @NonNull Collection<RootObj> roots,
+            @NonNull IntBuffer distances,
+            @NonNull IntBuffer nextToGcRoot,
+            @NonNull IntBuffer topologicalOrder,
+            @NonNull IntBuffer immediateDominators,
+            @NonNull LongBuffer[] retainedSizes) {
+        CompactDominators dominators = new CompactDominators(table, roots);
+        dominators.mDistances = distances;
+        dominators.mNextToGcRoot = nextToGcRoot;
+        dominators.mTopologicalOrder = topologicalOrder;
+        dominators.mImmediateDominators = immediateDominators;
+        dominators.mRetainedSizes = retainedSizes;
+        return dominators;
+    }
+
+    @NonNull
+    public ComputationProgress getComputationProgress() {
+        ParallelDominators.Solver solver = mSolver;
+        if (solver != null) {
+            return solver.getComputationProgress(mCurrentProgress);
+        }
+        int total = mTopologicalOrder == null ? 0 : mTopologicalOrder.limit();
+        mCurrentProgress.setMessage(String.format("Calculating dominators (pass %d) %d/%d",
+                mPass, mPassProgress, total));
+        // The number of passes is not known in advance, but is small in practice.
+        double progress = total == 0 ? 0 : (double) mPassProgress / total;
+        mCurrentProgress.setProgress(Math.min(1.0, (mPass - 1 + progress) / 3));
+        return mCurrentProgress;
+    }
+
+    /**
+     * Breadth-first search over hard references from the GC roots.
+     */
+    public void computeDistancesToGcRoot() {
+        int n = mTable.getInstanceCount();
+        int[] distances = new int[n];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        int[] nextToGcRoot = new int[n];
+        Arrays.fill(nextToGcRoot, -1);
+
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int root : mRoots) {
+            if (distances[root] == Integer.MAX_VALUE) {
+                distances[root] = 0;
+                queue[tail++] = root;
+            }
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            int distance = distances[node] + 1;
+            int end = mTable.getReferencesEnd(node);
+            for (int i = mTable.getReferencesStart(node); i < end; i++) {
+                int target = mTable.getReferenceTarget(i);
+                if (distances[target] == Integer.MAX_VALUE) {
+                    distances[target] = distance;
+                    nextToGcRoot[target] = node;
+                    queue[tail++] = target;
+                }
+            }
+        }
+        mDistances = IntBuffer.wrap(distances);
+        mNextToGcRoot = IntBuffer.wrap(nextToGcRoot);
+    }
+
+    /**
+     * Iterative depth-first search computing the reverse post-order of the reachable objects.
+     */
+    public void computeTopologicalOrder() {
+        int n = mTable.getInstanceCount();
+        mNodes = new int[n];
+        Arrays.fill(mNodes, -1);
+
+        // mNodes doubles as the visited marker: -2 while on the stack, -1 when never seen.
+        int[] postOrder = new int[n];
+        int postCount = 0;
+        int[] nodeStack = new int[n];
+        int[] edgeStack = new int[n];
+        for (int root : mRoots) {
+            if (mNodes[root] != -1) {
+                continue;
+            }
+            int depth = 0;
+            nodeStack[0] = root;
+            edgeStack[0] = mTable.getReferencesStart(root);
+            mNodes[root] = -2;
+            while (depth >= 0) {
+                int node = nodeStack[depth];
+                int edge = edgeStack[depth];
+                if (edge < mTable.getReferencesEnd(node)) {
+                    edgeStack[depth] = edge + 1;
+                    int target = mTable.getReferenceTarget(edge);
+                    if (mNodes[target] == -1) {
+                        mNodes[target] = -2;
+                        depth++;
+                        nodeStack[depth] = target;
+                        edgeStack[depth] = mTable.getReferencesStart(target);
+                    }
+                } else {
+                    postOrder[postCount++] = node;
+                    depth--;
+                }
+            }
+        }
+
+        int[] order = new int[postCount];
+        for (int i = 0; i < postCount; i++) {
+            int ordinal = postOrder[postCount - 1 - i];
+            order[i] = ordinal;
+            mNodes[ordinal] = i + 1;
+        }
+        mTopologicalOrder = IntBuffer.wrap(order);
+    }
+
+    public void computeDominators() {
+        int nodeCount = mTopologicalOrder.limit() + 1;
+        int[] predecessorStarts = new int[nodeCount + 1];
+        int[] predecessors = computePredecessors(predecessorStarts);
+
+        int[] dominators = new int[nodeCount];
+        Arrays.fill(dominators, -1);
+        dominators[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            mPass++;
+            for (int node = 1; node < nodeCount; node++) {
+                int newDominator = -1;
+                for (int i = predecessorStarts[node]; i < predecessorStarts[node + 1]; i++) {
+                    int predecessor = predecessors[i];
+                    if (dominators[predecessor] == -1) {
+                        continue;
+                    }
+                    newDominator = newDominator == -1
+                            ? predecessor
+                            : intersect(dominators, predecessor, newDominator);
+                }
+                if (dominators[node] != newDominator) {
+                    dominators[node] = newDominator;
+                    changed = true;
+                }
+                mPassProgress = node;
+            }
+        }
+        setNodeDominators(dominators);
+    }
+
+    /**
+     * Same as {@link #computeDominators()}, with the passes split across {@code pool}.
+     */
+    public void computeDominators(@NonNull ForkJoinPool pool) {
+        int[] predecessorStarts = new int[mTopologicalOrder.limit() + 2];
+        int[] predecessors = computePredecessors(predecessorStarts);
+        mSolver = new ParallelDominators.Solver(predecessorStarts, predecessors, pool);
+        setNodeDominators(mSolver.solve());
+    }
+
+    /**
+     * Translates the immediate dominators of the nodes into ordinal space, and drops the nodes.
+     */
+    private void setNodeDominators(@NonNull int[] nodeDominators) {
+        int[] immediateDominators = new int[mTable.getInstanceCount()];
+        Arrays.fill(immediateDominators, UNREACHABLE);
+        for (int node = 1; node < nodeDominators.length; node++) {
+            int dominatorNode = nodeDominators[node];
+            immediateDominators[mTopologicalOrder.get(node - 1)] =
+                    dominatorNode == 0 ? SENTINEL : mTopologicalOrder.get(dominatorNode - 1);
+        }
+        mImmediateDominators = IntBuffer.wrap(immediateDominators);
+        mNodes = null;
+    }
+
+    /**
+     * Returns the predecessors of each node, in node space, in compressed sparse row form.
+     */
+    @NonNull
+    private int[] computePredecessors(@NonNull int[] predecessorStarts) {
+        int nodeCount = mTopologicalOrder.limit() + 1;
+        for (int root : mRoots) {
+            predecessorStarts[mNodes[root] + 1]++;
+        }
+        for (int k = 0; k < nodeCount - 1; k++) {
+            int ordinal = mTopologicalOrder.get(k);
+            int end = mTable.getReferencesEnd(ordinal);
+            for (int i = mTable.getReferencesStart(ordinal); i < end; i++) {
+                predecessorStarts[mNodes[mTable.getReferenceTarget(i)] + 1]++;
+            }
+        }
+        for (int i = 1; i <= nodeCount; i++) {
+            predecessorStarts[i] += predecessorStarts[i - 1];
+        }
+        int[] predecessors = new int[predecessorStarts[nodeCount]];
+        int[] fill = Arrays.copyOf(predecessorStarts, nodeCount);
+        for (int root : mRoots) {
+            predecessors[fill[mNodes[root]]++] = 0;
+        }
+        for (int k = 0; k < nodeCount - 1; k++) {
+            int ordinal = mTopologicalOrder.get(k);
+            int node = mNodes[ordinal];
+            int end = mTable.getReferencesEnd(ordinal);
+            for (int i = mTable.getReferencesStart(ordinal); i < end; i++) {
+                predecessors[fill[mNodes[mTable.getReferenceTarget(i)]]++] = node;
+            }
+        }
+        return predecessors;
+    }
+
+    static int intersect(@NonNull int[] dominators, int a, int b) {
+        while (a != b) {
+            while (a > b) {
+                a = dominators[a];
+            }
+            while (b > a) {
+                b = dominators[b];
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Accumulates the retained sizes per heap up the dominator tree. Only call this AFTER
+     * dominator computation.
+     */
+    public void computeRetainedSizes() {
+        int n = mTable.getInstanceCount();
+        long[][] retainedSizes = new long[mTable.getHeapCount()][n];
+        for (int ordinal = 0; ordinal < n; ordinal++) {
+            retainedSizes[mTable.getHeapIndex(ordinal)][ordinal] =
+                    mTable.getSize(ordinal) + mTable.getNativeSize(ordinal);
+        }
+
+        // Children come after their dominators in the topological order.
+        for (int k = mTopologicalOrder.limit() - 1; k >= 0; k--) {
+            int ordinal = mTopologicalOrder.get(k);
+            int dominator = mImmediateDominators.get(ordinal);
+            if (dominator == SENTINEL) {
+                continue;
+            }
+            for (long[] heapSizes : retainedSizes) {
+                heapSizes[dominator] += heapSizes[ordinal];
+            }
+        }
+
+        mRetainedSizes = new LongBuffer[retainedSizes.length];
+        for (int heap = 0; heap < retainedSizes.length; heap++) {
+            mRetainedSizes[heap] = LongBuffer.wrap(retainedSizes[heap]);
+        }
+    }
+
+    public int getDistanceToGcRoot(int ordinal) {
+        return mDistances.get(ordinal);
+    }
+
+    /**
+     * Returns the ordinal of the previous object on a shortest path to a GC root, or -1.
+     */
+    public int getNextInstanceToGcRoot(int ordinal) {
+        return mNextToGcRoot.get(ordinal);
+    }
+
+    /**
+     * Returns the ordinal of the immediate dominator, {@link #SENTINEL} or {@link #UNREACHABLE}.
+     */
+    public int getImmediateDominator(int ordinal) {
+        return mImmediateDominators == null ? UNREACHABLE : mImmediateDominators.get(ordinal);
+    }
+
+    public long getRetainedSize(int heapIndex, int ordinal) {
+        return mRetainedSizes[heapIndex].get(ordinal);
+    }
+
+    public long getTotalRetainedSize(int ordinal) {
+        long total = 0;
+        for (LongBuffer heapSizes : mRetainedSizes) {
+            total += heapSizes.get(ordinal);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the ordinals of all the objects reachable from GC roots, in topological order, as
+     * a read-only buffer of which the limit is their number.
+     */
+    @NonNull
+    public IntBuffer getTopologicalOrder() {
+        return mTopologicalOrder.asReadOnlyBuffer();
+    }
+}
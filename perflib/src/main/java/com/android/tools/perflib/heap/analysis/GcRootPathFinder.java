@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceTable;
+import gnu.trove.TIntArrayList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the shortest paths of hard references from the GC roots to the objects of a compact
+ * snapshot. The referents of soft, weak and phantom references are not followed, as they don't
+ * keep objects alive.
+ *
+ * Paths are enumerated by increasing length with a best-first search from the object towards
+ * the roots, guided by the distances to GC roots computed with the dominators. The incoming
+ * references of each object are sorted by distance once, when the finder is created, so that each
+ * step of a query only looks at the next best incoming reference, however many references point
+ * to the objects of the path. The finder is immutable and can be queried from several threads.
+ */
+public final class GcRootPathFinder {
+
+    @NonNull
+    private final InstanceTable mTable;
+
+    @NonNull
+    private final CompactDominators mDominators;
+
+    // Incoming hard references from reachable objects, sorted by distance to GC roots.
+    @NonNull
+    private final int[] mSourceStarts;
+
+    @NonNull
+    private final int[] mSources;
+
+    /**
+     * Creates a finder for a table whose dominators have been computed.
+     */
+    public GcRootPathFinder(@NonNull InstanceTable table) {
+        CompactDominators dominators = table.getDominators();
+        if (dominators == null) {
+            throw new IllegalStateException("Dominators must be computed first");
+        }
+        mTable = table;
+        mDominators = dominators;
+        table.resolveReverseReferences();
+
+        int n = table.getInstanceCount();
+        mSourceStarts = new int[n + 1];
+        TIntArrayList sources = new TIntArrayList(n);
+        long[] keys = new long[16];
+        for (int target = 0; target < n; target++) {
+            mSourceStarts[target] = sources.size();
+            if (!isReachable(target)) {
+                continue;
+            }
+            int start = table.getReverseReferencesStart(target);
+            int end = table.getReverseReferencesEnd(target);
+            if (end - start > keys.length) {
+                keys = new long[end - start];
+            }
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                int source = table.getReverseReferenceSource(i);
+                if (isReachable(source)) {
+                    keys[count++] = ((long) dominators.getDistanceToGcRoot(source) << 32) | source;
+                }
+            }
+            Arrays.sort(keys, 0, count);
+            for (int i = 0; i < count; i++) {
+                sources.add((int) keys[i]);
+            }
+        }
+        mSourceStarts[n] = sources.size();
+        mSources = sources.toNativeArray();
+    }
+
+    /**
+     * Returns up to {@code maxPaths} shortest paths from a GC root to the object of the given
+     * ordinal, by increasing length. Each path lists the ordinals of its objects, from the root to
+     * the object, and goes through each object at most once. The list is empty if the object is
+     * not reachable.
+     */
+    @NonNull
+    public List<int[]> findShortestPaths(int ordinal, int maxPaths) {
+        if (maxPaths <= 0 || !isReachable(ordinal)) {
+            return Collections.emptyList();
+        }
+
+        Query query = new Query();
+        query.push(ordinal, -1, 0, -1);
+        List<int[]> paths = new ArrayList<int[]>();
+        while (paths.size() < maxPaths && !query.mQueue.isEmpty()) {
+            int state = (int) query.mQueue.poll().longValue();
+            int parent = query.mParents.get(state);
+            if (parent >= 0) {
+                // The next best incoming reference of the parent, after the one of this state.
+                query.pushNextSource(parent, query.mSourceIndexes.get(state) + 1);
+            }
+            int node = query.mNodes.get(state);
+            if (mDominators.getDistanceToGcRoot(node) == 0) {
+                paths.add(query.getPath(state));
+            } else {
+                query.pushNextSource(state, mSourceStarts[node]);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Same as {@link #findShortestPaths(int, int)}, with the objects of the paths.
+     */
+    @NonNull
+    public List<List<Instance>> findShortestPaths(@NonNull Instance instance, int maxPaths) {
+        int ordinal = mTable.getOrdinal(instance.getId());
+        if (ordinal < 0) {
+            return Collections.emptyList();
+        }
+        List<List<Instance>> result = new ArrayList<List<Instance>>();
+        for (int[] path : findShortestPaths(ordinal, maxPaths)) {
+            List<Instance> instances = new ArrayList<Instance>(path.length);
+            for (int node : path) {
+                instances.add(mTable.getInstance(node));
+            }
+            result.add(instances);
+        }
+        return result;
+    }
+
+    private boolean isReachable(int ordinal) {
+        return mDominators.getDistanceToGcRoot(ordinal) != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Search state of a query. Each state is a partial path, from an object (its node) to the
+     * queried object, linked through its parent state.
+     */
+    private final class Query {
+        private final TIntArrayList mNodes = new TIntArrayList();
+
+        private final TIntArrayList mParents = new TIntArrayList();
+
+        private final TIntArrayList mLengths = new TIntArrayList();
+
+        // Index in mSources of the reference from the node to the node of the parent.
+        private final TIntArrayList mSourceIndexes = new TIntArrayList();
+
+        // States by length of their shortest possible path, then by creation order.
+        private final PriorityQueue<Long> mQueue = new PriorityQueue<Long>();
+
+        private void push(int node, int parent, int length, int sourceIndex) {
+            int state = mNodes.size();
+            mNodes.add(node);
+            mParents.add(parent);
+            mLengths.add(length);
+            mSourceIndexes.add(sourceIndex);
+            long bound = length + (long) mDominators.getDistanceToGcRoot(node);
+            mQueue.add((bound << 32) | state);
+        }
+
+        /**
+         * Extends the path of {@code state} with the first incoming reference of its node, from
+         * {@code sourceIndex}, that doesn't come from an object already on the path.
+         */
+        private void pushNextSource(int state, int sourceIndex) {
+            int end = mSourceStarts[mNodes.get(state) + 1];
+            for (int i = sourceIndex; i < end; i++) {
+                if (!isOnPath(state, mSources[i])) {
+                    push(mSources[i], state, mLengths.get(state) + 1, i);
+                    return;
+                }
+            }
+        }
+
+        private boolean isOnPath(int state, int node) {
+            for (; state >= 0; state = mParents.get(state)) {
+                if (mNodes.get(state) == node) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @NonNull
+        private int[] getPath(int state) {
+            int[] path = new int[mLengths.get(state) + 1];
+            for (int i = 0; state >= 0; i++, state = mParents.get(state)) {
+                path[i] = mNodes.get(state);
+            }
+            return path;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes dominators with the iterative algorithm of Cooper, Harvey and Kennedy, running each
+ * pass over the nodes on a {@link ForkJoinPool}.
+ *
+ * The sequential algorithm needs the nodes to be visited in order so that each node sees the
+ * dominators of its predecessors in the DFS tree. Here the dominator tree instead starts as a
+ * spanning tree of the graph, which is an over-approximation of it, so that every node can be
+ * relaxed independently and concurrently. A node only ever reads dominators of nodes with a lower
+ * topological order, so concurrent updates cannot break the tree walks.
+ */
+public final class ParallelDominators extends DominatorsBase {
+    @NonNull
+    private final Solver mSolver;
+
+    public ParallelDominators(@NonNull Snapshot snapshot, @NonNull ForkJoinPool pool) {
+        super(snapshot);
+
+        // Node 0 is the sentinel root, and node i the instance of topological order i.
+        int nodeCount = mTopSort.size() + 1;
+        boolean[] isRoot = new boolean[nodeCount];
+        for (RootObj root : snapshot.getGCRoots()) {
+            Instance instance = root.getReferredInstance();
+            if (instance != null && instance.isReachable()) {
+                isRoot[instance.getTopologicalOrder()] = true;
+            }
+        }
+
+        int[] predecessorStarts = new int[nodeCount + 1];
+        for (Instance instance : mTopSort) {
+            int node = instance.getTopologicalOrder();
+            int count = isRoot[node] ? 1 : 0;
+            for (Instance predecessor : instance.getHardReverseReferences()) {
+                if (predecessor.isReachable()) {
+                    count++;
+                }
+            }
+            predecessorStarts[node + 1] = count;
+        }
+        for (int i = 1; i <= nodeCount; i++) {
+            predecessorStarts[i] += predecessorStarts[i - 1];
+        }
+        int[] predecessors = new int[predecessorStarts[nodeCount]];
+        for (Instance instance : mTopSort) {
+            int node = instance.getTopologicalOrder();
+            int i = predecessorStarts[node];
+            if (isRoot[node]) {
+                predecessors[i++] = 0;
+            }
+            for (Instance predecessor : instance.getHardReverseReferences()) {
+                if (predecessor.isReachable()) {
+                    predecessors[i++] = predecessor.getTopologicalOrder();
+                }
+            }
+        }
+
+        mSolver = new Solver(predecessorStarts, predecessors, pool);
+    }
+
+    @NonNull
+    @Override
+    public ComputationProgress getComputationProgress() {
+        return mSolver.getComputationProgress(mCurrentProgress);
+    }
+
+    @Override
+    public void computeDominators() {
+        int[] dominators = mSolver.solve();
+        for (Instance instance : mTopSort) {
+            int dominator = dominators[instance.getTopologicalOrder()];
+            instance.setImmediateDominator(
+                    dominator == 0 ? Snapshot.SENTINEL_ROOT : mTopSort.get(dominator - 1));
+        }
+    }
+
+    /**
+     * Dominators of a graph given as the predecessors of each node, in compressed sparse row form.
+     * Nodes must be numbered in topological order (reverse post-order of a depth-first search)
+     * from the root, which is node 0, and all be reachable from it.
+     */
+    static final class Solver {
+        // Number of nodes relaxed by a single task.
+        private static final int CHUNK_SIZE = 4096;
+
+        @NonNull
+        private final int[] mPredecessorStarts;
+
+        @NonNull
+        private final int[] mPredecessors;
+
+        @NonNull
+        private final ForkJoinPool mPool;
+
+        @NonNull
+        private final int[] mDominators;
+
+        @NonNull
+        private final AtomicInteger mPassProgress = new AtomicInteger();
+
+        private volatile int mPass = 0;
+
+        private volatile boolean mChanged;
+
+        Solver(@NonNull int[] predecessorStarts, @NonNull int[] predecessors,
+                @NonNull ForkJoinPool pool) {
+            mPredecessorStarts = predecessorStarts;
+            mPredecessors = predecessors;
+            mPool = pool;
+            mDominators = new int[predecessorStarts.length - 1];
+        }
+
+        /**
+         * Returns the immediate dominator of each node, the root being its own dominator.
+         */
+        @NonNull
+        int[] solve() {
+            int nodeCount = mDominators.length;
+            mPool.invoke(new PassTask(1, nodeCount, true));
+            do {
+                mChanged = false;
+                mPassProgress.set(0);
+                mPass++;
+                mPool.invoke(new PassTask(1, nodeCount, false));
+            } while (mChanged);
+            return mDominators;
+        }
+
+        @NonNull
+        ComputationProgress getComputationProgress(@NonNull ComputationProgress progress) {
+            int total = mDominators.length;
+            int passProgress = mPassProgress.get();
+            progress.setMessage(String.format("Calculating dominators (pass %d) %d/%d",
+                    mPass, passProgress, total));
+            // The number of passes is not known in advance, but is small in practice.
+            double passFraction = total == 0 ? 0 : (double) passProgress / total;
+            progress.setProgress(Math.min(1.0, (Math.max(0, mPass - 1) + passFraction) / 3));
+            return progress;
+        }
+
+        /**
+         * Links every node to its predecessor of lowest topological order, which is lower than its
+         * own. Following those links from any node gives a path from the root, which goes through
+         * all of the node's dominators.
+         */
+        private void initialize(int from, int to) {
+            for (int node = from; node < to; node++) {
+                int dominator = node;
+                for (int i = mPredecessorStarts[node]; i < mPredecessorStarts[node + 1]; i++) {
+                    dominator = Math.min(dominator, mPredecessors[i]);
+                }
+                assert dominator < node;
+                mDominators[node] = dominator;
+            }
+        }
+
+        private void relax(int from, int to) {
+            boolean changed = false;
+            for (int node = from; node < to; node++) {
+                int newDominator = -1;
+                for (int i = mPredecessorStarts[node]; i < mPredecessorStarts[node + 1]; i++) {
+                    int predecessor = mPredecessors[i];
+                    newDominator = newDominator == -1
+                            ? predecessor
+                            : CompactDominators.intersect(mDominators, predecessor, newDominator);
+                }
+                if (mDominators[node] != newDominator) {
+                    mDominators[node] = newDominator;
+                    changed = true;
+                }
+            }
+            mPassProgress.addAndGet(to - from);
+            if (changed) {
+                mChanged = true;
+            }
+        }
+
+        private final class PassTask extends RecursiveAction {
+            private final int mFrom;
+
+            private final int mTo;
+
+            private final boolean mInitialize;
+
+            PassTask(int from, int to, boolean initialize) {
+                mFrom = from;
+                mTo = to;
+                mInitialize = initialize;
+            }
+
+            @Override
+            protected void compute() {
+                if (mTo - mFrom <= CHUNK_SIZE) {
+                    if (mInitialize) {
+                        initialize(mFrom, mTo);
+                    } else {
+                        relax(mFrom, mTo);
+                    }
+                    return;
+                }
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new PassTask(mFrom, mid, mInitialize),
+                        new PassTask(mid, mTo, mInitialize));
+            }
+        }
+    }
+}
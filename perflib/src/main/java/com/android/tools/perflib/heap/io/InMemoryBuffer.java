@@ -44,6 +44,12 @@ public class InMemoryBuffer implements DataBuffer {
     @Override
     public void dispose() {}
 
+    @NonNull
+    @Override
+    public DataBuffer duplicate() {
+        return new InMemoryBuffer(mBuffer.duplicate().order(mBuffer.order()));
+    }
+
     public ByteBuffer getDirectBuffer() {
         return mBuffer;
     }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.Type;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongLongHashMap;
+import gnu.trove.TLongObjectHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts the instances of each class and their shallow size, and reports the classes using the
+ * most memory.
+ */
+public class ClassHistogramStreamingTask extends StreamingMemoryAnalyzerTask {
+
+    public static final int DEFAULT_TOP_COUNT = 20;
+
+    private final int mTopCount;
+
+    @NonNull
+    private final TLongObjectHashMap<String> mClassNames = new TLongObjectHashMap<String>();
+
+    @NonNull
+    private final TLongIntHashMap mInstanceSizes = new TLongIntHashMap();
+
+    // Instance and array counts are kept by class id, as class dumps may come after instances.
+    @NonNull
+    private final TLongIntHashMap mInstanceCounts = new TLongIntHashMap();
+
+    @NonNull
+    private final TLongIntHashMap mObjectArrayCounts = new TLongIntHashMap();
+
+    @NonNull
+    private final TLongLongHashMap mObjectArrayElements = new TLongLongHashMap();
+
+    @NonNull
+    private final int[] mPrimitiveArrayCounts = new int[Type.values().length];
+
+    @NonNull
+    private final long[] mPrimitiveArraySizes = new long[Type.values().length];
+
+    public ClassHistogramStreamingTask() {
+        this(DEFAULT_HEAP_NAME, DEFAULT_TOP_COUNT);
+    }
+
+    public ClassHistogramStreamingTask(@Nullable String heapName, int topCount) {
+        super(heapName);
+        mTopCount = topCount;
+    }
+
+    @NonNull
+    @Override
+    public String getTaskName() {
+        return "Class Histogram";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskDescription() {
+        return "Lists the classes whose instances use the most memory.";
+    }
+
+    @NonNull
+    @Override
+    public Set<RecordType> getRecordTypes() {
+        return EnumSet.of(RecordType.LOAD_CLASS, RecordType.CLASS_DUMP, RecordType.INSTANCE,
+                RecordType.OBJECT_ARRAY, RecordType.PRIMITIVE_ARRAY);
+    }
+
+    @Override
+    public void visitLoadClass(long classId, @NonNull String className) {
+        mClassNames.put(classId, className);
+    }
+
+    @Override
+    public void visitClassDump(int heapId, long classId, long superClassId, int instanceSize,
+            @NonNull Field[] fields) {
+        mInstanceSizes.put(classId, instanceSize);
+    }
+
+    @Override
+    public void visitInstance(int heapId, long id, long classId, @NonNull DataBuffer values,
+            int length) {
+        if (isHeapIncluded(heapId)) {
+            mInstanceCounts.adjustOrPutValue(classId, 1, 1);
+        }
+    }
+
+    @Override
+    public void visitObjectArray(int heapId, long id, long arrayClassId,
+            @NonNull DataBuffer elements, int length) {
+        if (isHeapIncluded(heapId)) {
+            mObjectArrayCounts.adjustOrPutValue(arrayClassId, 1, 1);
+            mObjectArrayElements.adjustOrPutValue(arrayClassId, length, length);
+        }
+    }
+
+    @Override
+    public void visitPrimitiveArray(int heapId, long id, @NonNull Type type,
+            @NonNull DataBuffer elements, int length) {
+        if (isHeapIncluded(heapId)) {
+            mPrimitiveArrayCounts[type.ordinal()]++;
+            mPrimitiveArraySizes[type.ordinal()] += (long) length * type.getSize();
+        }
+    }
+
+    /**
+     * Returns the histogram of all classes, sorted by decreasing shallow size.
+     */
+    @NonNull
+    public List<ClassHistogramEntry> getHistogram() {
+        // Classes of the same name, loaded by different class loaders, are merged.
+        Map<String, ClassHistogramEntry> entries = new HashMap<String, ClassHistogramEntry>();
+        for (long classId : mInstanceCounts.keys()) {
+            int count = mInstanceCounts.get(classId);
+            add(entries, getClassName(classId), count, (long) count * mInstanceSizes.get(classId));
+        }
+        for (long classId : mObjectArrayCounts.keys()) {
+            add(entries, getClassName(classId), mObjectArrayCounts.get(classId),
+                    mObjectArrayElements.get(classId) * mIdSize);
+        }
+        for (Type type : Type.values()) {
+            if (mPrimitiveArrayCounts[type.ordinal()] > 0) {
+                add(entries, type.getClassNameOfPrimitiveArray(false),
+                        mPrimitiveArrayCounts[type.ordinal()],
+                        mPrimitiveArraySizes[type.ordinal()]);
+            }
+        }
+
+        List<ClassHistogramEntry> histogram = new ArrayList<ClassHistogramEntry>(entries.values());
+        Collections.sort(histogram, (a, b) -> Long.compare(b.getShallowSize(), a.getShallowSize()));
+        return histogram;
+    }
+
+    @NonNull
+    @Override
+    public List<AnalysisResultEntry<?>> getResults() {
+        List<ClassHistogramEntry> histogram = getHistogram();
+        return new ArrayList<AnalysisResultEntry<?>>(
+                histogram.subList(0, Math.min(mTopCount, histogram.size())));
+    }
+
+    @NonNull
+    private String getClassName(long classId) {
+        String name = mClassNames.get(classId);
+        return name != null ? name : String.format("0x%x", classId);
+    }
+
+    private static void add(@NonNull Map<String, ClassHistogramEntry> entries,
+            @NonNull String className, int count, long shallowSize) {
+        ClassHistogramEntry entry = entries.get(className);
+        if (entry != null) {
+            count += entry.getInstanceCount();
+            shallowSize += entry.getShallowSize();
+        }
+        entries.put(className, new ClassHistogramEntry(className, count, shallowSize));
+    }
+
+    public static class ClassHistogramEntry extends StreamingResultEntry {
+
+        private final int mInstanceCount;
+
+        private final long mShallowSize;
+
+        private ClassHistogramEntry(@NonNull String className, int instanceCount,
+                long shallowSize) {
+            super("Class Histogram",
+                    String.format("%d instances of %s, %d bytes", instanceCount, className,
+                            shallowSize),
+                    className, Collections.<Long>emptyList());
+            mInstanceCount = instanceCount;
+            mShallowSize = shallowSize;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return getOffender().getOffendingDescription();
+        }
+
+        public int getInstanceCount() {
+            return mInstanceCount;
+        }
+
+        public long getShallowSize() {
+            return mShallowSize;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.Type;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongLongHashMap;
+import gnu.trove.TLongObjectHashMap;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the instances of a class whose primitive array field holds the same content, such as
+ * strings with the same characters.
+ *
+ * Contents are grouped by a 64-bit hash of their elements, and the contents with the same hash are
+ * then compared byte by byte against the first owner of each group, so that hash collisions don't
+ * report different contents as duplicates. An owner and its array can come in any order in the
+ * dump: the owners visited before their array wait for it, and the position of each array is kept
+ * so that owners visited after it can read it again.
+ *
+ * Memory use doesn't depend on the contents, but it isn't bounded either: it is proportional to
+ * the number of arrays of the array type in the whole dump (about 35 bytes each, in all heaps
+ * since owners can reference arrays of other heaps), plus the number of owners (about 120 bytes
+ * for each distinct content, and 8 bytes for each duplicate), plus the owners that wait for an
+ * array later in the dump. For a dump of a million distinct strings, this is about 150 MB.
+ *
+ * Owner classes are expected to be dumped before their instances, as ART does.
+ */
+public abstract class DuplicatedArrayStreamingTask extends StreamingMemoryAnalyzerTask {
+
+    private static final int NO_FIELD = -1;
+
+    @NonNull
+    private final String mOwnerClassName;
+
+    @NonNull
+    private final String mArrayFieldName;
+
+    @NonNull
+    private final Type mArrayType;
+
+    @Nullable
+    private final String mOffsetFieldName;
+
+    @Nullable
+    private final String mCountFieldName;
+
+    @NonNull
+    private final TLongHashSet mOwnerClassIds = new TLongHashSet();
+
+    // Offsets in the instance values of the array, offset and count fields, by owner class id.
+    @NonNull
+    private final TLongObjectHashMap<int[]> mFieldOffsets = new TLongObjectHashMap<int[]>();
+
+    // Position in the dump of the elements of the arrays already visited. Their length is read
+    // back from the dump, where it precedes the type and elements of the array.
+    @NonNull
+    private final TLongLongHashMap mArrayPositions = new TLongLongHashMap();
+
+    // Owners waiting for their array, as (owner id, offset, count) triples by array id.
+    @NonNull
+    private final TLongObjectHashMap<TLongArrayList> mPendingOwners =
+            new TLongObjectHashMap<TLongArrayList>();
+
+    // Groups of owners with the same content, by hash of the content.
+    @NonNull
+    private final TLongObjectHashMap<ContentGroup> mGroups = new TLongObjectHashMap<ContentGroup>();
+
+    @Nullable
+    private DataBuffer mBuffer;
+
+    /**
+     * @param offsetFieldName name of the int field holding the index of the first element used by
+     *                        the owner, or null if it uses the array from its start.
+     * @param countFieldName  name of the int field holding the number of elements used by the
+     *                        owner, or null if it uses the array up to its end.
+     */
+    protected DuplicatedArrayStreamingTask(@Nullable String heapName,
+            @NonNull String ownerClassName, @NonNull String arrayFieldName,
+            @NonNull Type arrayType, @Nullable String offsetFieldName,
+            @Nullable String countFieldName) {
+        super(heapName);
+        mOwnerClassName = ownerClassName;
+        mArrayFieldName = arrayFieldName;
+        mArrayType = arrayType;
+        mOffsetFieldName = offsetFieldName;
+        mCountFieldName = countFieldName;
+    }
+
+    /**
+     * Returns a readable description of duplicated contents.
+     *
+     * @param elements positioned at the first element of the contents
+     */
+    @NonNull
+    protected abstract String describe(@NonNull DataBuffer elements, int count);
+
+    @NonNull
+    protected abstract String getCategory();
+
+    @NonNull
+    @Override
+    public Set<RecordType> getRecordTypes() {
+        return EnumSet.of(RecordType.LOAD_CLASS, RecordType.CLASS_DUMP, RecordType.INSTANCE,
+                RecordType.PRIMITIVE_ARRAY);
+    }
+
+    @Override
+    protected void startAnalysis(@NonNull DataBuffer buffer) {
+        mBuffer = buffer.duplicate();
+    }
+
+    @Override
+    public void visitLoadClass(long classId, @NonNull String className) {
+        if (mOwnerClassName.equals(className)) {
+            mOwnerClassIds.add(classId);
+        }
+    }
+
+    @Override
+    public void visitClassDump(int heapId, long classId, long superClassId, int instanceSize,
+            @NonNull Field[] fields) {
+        if (!mOwnerClassIds.contains(classId)) {
+            return;
+        }
+        // The values of the fields declared by the class come first in instances.
+        int[] offsets = {NO_FIELD, NO_FIELD, NO_FIELD};
+        int offset = 0;
+        for (Field field : fields) {
+            if (mArrayFieldName.equals(field.getName()) && field.getType() == Type.OBJECT) {
+                offsets[0] = offset;
+            } else if (field.getName().equals(mOffsetFieldName) && field.getType() == Type.INT) {
+                offsets[1] = offset;
+            } else if (field.getName().equals(mCountFieldName) && field.getType() == Type.INT) {
+                offsets[2] = offset;
+            }
+            offset += field.getType() == Type.OBJECT ? mIdSize : field.getType().getSize();
+        }
+        if (offsets[0] != NO_FIELD) {
+            mFieldOffsets.put(classId, offsets);
+        }
+    }
+
+    @Override
+    public void visitInstance(int heapId, long id, long classId, @NonNull DataBuffer values,
+            int length) {
+        int[] offsets = mFieldOffsets.get(classId);
+        if (offsets == null || !isHeapIncluded(heapId)) {
+            return;
+        }
+        long start = values.position();
+        values.setPosition(start + offsets[0]);
+        long arrayId = readId(values);
+        if (arrayId == 0) {
+            return;
+        }
+        int offset = 0;
+        if (offsets[1] != NO_FIELD) {
+            values.setPosition(start + offsets[1]);
+            offset = values.readInt();
+        }
+        int count = -1;
+        if (offsets[2] != NO_FIELD) {
+            values.setPosition(start + offsets[2]);
+            count = values.readInt();
+        }
+
+        if (mArrayPositions.containsKey(arrayId)) {
+            if (mBuffer != null) {
+                long position = mArrayPositions.get(arrayId);
+                // The number of elements is followed by the type of the array.
+                mBuffer.setPosition(position - 5);
+                addOwner(id, mBuffer, position, mBuffer.readInt(), offset, count);
+            }
+        } else {
+            TLongArrayList pending = mPendingOwners.get(arrayId);
+            if (pending == null) {
+                pending = new TLongArrayList(3);
+                mPendingOwners.put(arrayId, pending);
+            }
+            pending.add(id);
+            pending.add(offset);
+            pending.add(count);
+        }
+    }
+
+    @Override
+    public void visitPrimitiveArray(int heapId, long id, @NonNull Type type,
+            @NonNull DataBuffer elements, int length) {
+        if (type != mArrayType) {
+            return;
+        }
+        long position = elements.position();
+        TLongArrayList pending = mPendingOwners.remove(id);
+        if (pending != null) {
+            for (int i = 0; i < pending.size(); i += 3) {
+                addOwner(pending.get(i), elements, position, length, (int) pending.get(i + 1),
+                        (int) pending.get(i + 2));
+            }
+        }
+        if (mBuffer != null) {
+            mArrayPositions.put(id, position);
+        }
+    }
+
+    @Override
+    public void visitEnd() {
+        mPendingOwners.clear();
+        mArrayPositions.clear();
+        mBuffer = null;
+    }
+
+    @NonNull
+    @Override
+    public List<AnalysisResultEntry<?>> getResults() {
+        List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
+        for (ContentGroup first : mGroups.getValues(new ContentGroup[mGroups.size()])) {
+            for (ContentGroup group = first; group != null; group = group.mNext) {
+                if (group.mDescription == null) {
+                    continue;
+                }
+                List<Long> ids = new ArrayList<Long>();
+                for (long id : group.mOwners.toNativeArray()) {
+                    ids.add(id);
+                }
+                results.add(new StreamingResultEntry(getCategory(),
+                        String.format("%d instances: \"%s\"", ids.size(), group.mDescription),
+                        group.mDescription, ids));
+            }
+        }
+        return results;
+    }
+
+    private void addOwner(long ownerId, @NonNull DataBuffer buffer, long arrayPosition,
+            int arrayLength, int offset, int count) {
+        offset = Math.max(0, Math.min(offset, arrayLength));
+        count = count < 0 ? arrayLength - offset : Math.min(count, arrayLength - offset);
+        long start = arrayPosition + (long) offset * mArrayType.getSize();
+
+        int bytes = count * mArrayType.getSize();
+
+        buffer.setPosition(start);
+        long hash = hash(buffer, bytes);
+        ContentGroup first = mGroups.get(hash);
+        ContentGroup group = first;
+        while (group != null
+                && (group.mBytes != bytes || !contentEquals(buffer, group.mStart, start, bytes))) {
+            group = group.mNext;
+        }
+        if (group == null) {
+            group = new ContentGroup(start, bytes, first);
+            mGroups.put(hash, group);
+        }
+        group.mOwners.add(ownerId);
+        if (group.mOwners.size() == 2) {
+            buffer.setPosition(start);
+            group.mDescription = describe(buffer, count);
+        }
+    }
+
+    private static boolean contentEquals(@NonNull DataBuffer buffer, long first, long second,
+            int bytes) {
+        if (first == second) {
+            return true;
+        }
+        int i = 0;
+        for (; i + 8 <= bytes; i += 8) {
+            buffer.setPosition(first + i);
+            long value = buffer.readLong();
+            buffer.setPosition(second + i);
+            if (value != buffer.readLong()) {
+                return false;
+            }
+        }
+        for (; i < bytes; i++) {
+            buffer.setPosition(first + i);
+            byte value = buffer.readByte();
+            buffer.setPosition(second + i);
+            if (value != buffer.readByte()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(@NonNull DataBuffer buffer, int bytes) {
+        long hash = bytes * 0x9E3779B97F4A7C15L;
+        int i = 0;
+        for (; i + 8 <= bytes; i += 8) {
+            hash = mix(hash ^ buffer.readLong());
+        }
+        for (; i < bytes; i++) {
+            hash = mix(hash ^ buffer.readByte());
+        }
+        return hash;
+    }
+
+    private static long mix(long value) {
+        value *= 0x9E3779B97F4A7C15L;
+        return value ^ (value >>> 29);
+    }
+
+    private long readId(@NonNull DataBuffer buffer) {
+        switch (mIdSize) {
+            case 1:
+                return buffer.readByte();
+            case 2:
+                return buffer.readShort();
+            case 4:
+                return buffer.readInt();
+            default:
+                return buffer.readLong();
+        }
+    }
+
+    /**
+     * Owners whose contents are the same as the contents at {@link #mStart} in the dump, which are
+     * those of the first owner.
+     */
+    private static final class ContentGroup {
+        final long mStart;
+
+        final int mBytes;
+
+        @NonNull
+        final TLongArrayList mOwners = new TLongArrayList(1);
+
+        // Set once the group has duplicates.
+        @Nullable
+        String mDescription;
+
+        // The next group whose contents have the same hash.
+        @Nullable
+        final ContentGroup mNext;
+
+        ContentGroup(long start, int bytes, @Nullable ContentGroup next) {
+            mStart = start;
+            mBytes = bytes;
+            mNext = next;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.BitmapDecoder;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.Type;
+
+/**
+ * Streaming version of {@link DuplicatedBitmapAnalyzerTask}.
+ */
+public class DuplicatedBitmapStreamingTask extends DuplicatedArrayStreamingTask {
+
+    public DuplicatedBitmapStreamingTask() {
+        this(DEFAULT_HEAP_NAME);
+    }
+
+    public DuplicatedBitmapStreamingTask(@Nullable String heapName) {
+        super(heapName, BitmapDecoder.BITMAP_FQCN, "mBuffer", Type.BYTE, null, null);
+    }
+
+    @NonNull
+    @Override
+    protected String describe(@NonNull DataBuffer elements, int count) {
+        return String.format("%d bytes", count);
+    }
+
+    @NonNull
+    @Override
+    protected String getCategory() {
+        return "Duplicated Bitmaps";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskName() {
+        return "Duplicated Bitmaps";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskDescription() {
+        return "Detects duplicated bitmaps in a heap dump, without loading it.";
+    }
+}
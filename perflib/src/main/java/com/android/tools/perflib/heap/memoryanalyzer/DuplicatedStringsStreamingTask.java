@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.Type;
+
+/**
+ * Streaming version of {@link DuplicatedStringsAnalyzerTask}.
+ */
+public class DuplicatedStringsStreamingTask extends DuplicatedArrayStreamingTask {
+
+    // Duplicated strings longer than this are truncated in results.
+    private static final int MAX_DESCRIPTION_LENGTH = 200;
+
+    public DuplicatedStringsStreamingTask() {
+        this(DEFAULT_HEAP_NAME);
+    }
+
+    public DuplicatedStringsStreamingTask(@Nullable String heapName) {
+        super(heapName, "java.lang.String", "value", Type.CHAR, "offset", "count");
+    }
+
+    @NonNull
+    @Override
+    protected String describe(@NonNull DataBuffer elements, int count) {
+        StringBuilder builder = new StringBuilder(Math.min(count, MAX_DESCRIPTION_LENGTH));
+        for (int i = 0; i < count && i < MAX_DESCRIPTION_LENGTH; i++) {
+            builder.append(elements.readChar());
+        }
+        return builder.toString();
+    }
+
+    @NonNull
+    @Override
+    protected String getCategory() {
+        return "Duplicated Strings";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskName() {
+        return "Find Duplicate Strings";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskDescription() {
+        return "Detects duplicate strings in a heap dump, without loading it.";
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.AnalyzerTask;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.HprofRecordVisitor;
+import com.android.tools.perflib.heap.HprofStreamParser;
+import com.android.tools.proguard.ProguardMap;
+import gnu.trove.TIntObjectHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Memory analysis computed in a single sequential read of a heap dump, from the records given by
+ * {@link HprofStreamParser}, instead of from a {@link com.android.tools.perflib.heap.Snapshot}.
+ *
+ * The memory used is bounded by what the task keeps, not by the size of the object graph, which
+ * makes it usable on dumps too large to be loaded. In exchange, reachability isn't known: unlike
+ * {@link MemoryAnalyzerTask}s, these tasks also report objects that are garbage.
+ */
+public abstract class StreamingMemoryAnalyzerTask implements AnalyzerTask, HprofRecordVisitor {
+
+    public static final String DEFAULT_HEAP_NAME = "app";
+
+    @Nullable
+    private final String mHeapName;
+
+    @NonNull
+    private final TIntObjectHashMap<String> mHeapNames = new TIntObjectHashMap<String>();
+
+    protected int mIdSize;
+
+    protected StreamingMemoryAnalyzerTask() {
+        this(DEFAULT_HEAP_NAME);
+    }
+
+    /**
+     * @param heapName the heap to analyze the objects of, or null to analyze all heaps.
+     */
+    protected StreamingMemoryAnalyzerTask(@Nullable String heapName) {
+        mHeapName = heapName;
+    }
+
+    /**
+     * Runs all the {@code tasks} in a single read of {@code buffer}, and returns their results.
+     */
+    @NonNull
+    public static List<AnalysisResultEntry<?>> analyze(@NonNull DataBuffer buffer,
+            @NonNull Collection<? extends StreamingMemoryAnalyzerTask> tasks) {
+        return analyze(buffer, new ProguardMap(), tasks);
+    }
+
+    @NonNull
+    public static List<AnalysisResultEntry<?>> analyze(@NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull Collection<? extends StreamingMemoryAnalyzerTask> tasks) {
+        for (StreamingMemoryAnalyzerTask task : tasks) {
+            task.startAnalysis(buffer);
+        }
+        HprofStreamParser.parse(buffer, map, tasks);
+
+        List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
+        for (StreamingMemoryAnalyzerTask task : tasks) {
+            results.addAll(task.getResults());
+        }
+        return results;
+    }
+
+    /**
+     * Called before the dump is read, with the buffer it will be read from. Tasks that need to
+     * read records again after they have been visited can keep a
+     * {@link DataBuffer#duplicate() duplicate} of it.
+     */
+    protected void startAnalysis(@NonNull DataBuffer buffer) {
+    }
+
+    /**
+     * Returns the results of the analysis, once all the records have been visited.
+     */
+    @NonNull
+    public abstract List<AnalysisResultEntry<?>> getResults();
+
+    @Override
+    public void visitHeader(int idSize) {
+        mIdSize = idSize;
+    }
+
+    @Override
+    public final void visitHeapDumpInfo(int heapId, @NonNull String heapName) {
+        mHeapNames.put(heapId, heapName);
+    }
+
+    /**
+     * Returns whether the objects of the given heap are analyzed.
+     */
+    protected boolean isHeapIncluded(int heapId) {
+        return mHeapName == null || mHeapName.equals(mHeapNames.get(heapId));
+    }
+}
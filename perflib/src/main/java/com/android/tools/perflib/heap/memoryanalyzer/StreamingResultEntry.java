@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.Offender;
+
+import java.util.List;
+
+/**
+ * Result of a {@link StreamingMemoryAnalyzerTask}. As there is no snapshot to get instances from,
+ * offenders are the ids of the objects in the heap dump.
+ */
+public class StreamingResultEntry implements AnalysisResultEntry<Long> {
+
+    @NonNull
+    private final String mCategory;
+
+    @NonNull
+    private final String mWarningMessage;
+
+    @NonNull
+    private final Offender<Long> mOffender;
+
+    public StreamingResultEntry(@NonNull String category, @NonNull String warningMessage,
+            @NonNull String offenseDescription, @NonNull List<Long> offendingIds) {
+        mCategory = category;
+        mWarningMessage = warningMessage;
+        mOffender = new Offender<Long>(offenseDescription, offendingIds);
+    }
+
+    @NonNull
+    @Override
+    public String getWarningMessage() {
+        return mWarningMessage;
+    }
+
+    @NonNull
+    @Override
+    public String getCategory() {
+        return mCategory;
+    }
+
+    @NonNull
+    @Override
+    public Offender<Long> getOffender() {
+        return mOffender;
+    }
+}
@@ -2,11 +2,16 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceTable;
 import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * Gets the top memory offenders from a Snapshot in sorted order by retained size.
@@ -27,10 +32,16 @@ public final class TopMemoryOffendersAnalyzerTask extends MemoryAnalyzerTask {
 
     @Override
     protected List<AnalysisResultEntry<?>> analyze(Configuration configuration, Snapshot snapshot) {
-        List<Instance> reachableInstances = snapshot.getReachableInstances();
-        Collections.sort(reachableInstances,
-                (a, b) -> Long.compare(a.getTotalRetainedSize(), b.getTotalRetainedSize()));
-        Collections.reverse(reachableInstances);
+        List<Instance> reachableInstances;
+        InstanceTable table = snapshot.getInstanceTable();
+        if (table != null && table.getDominators() != null) {
+            reachableInstances = getLargestInstances(table, table.getDominators());
+        } else {
+            reachableInstances = snapshot.getReachableInstances();
+            Collections.sort(reachableInstances,
+                    (a, b) -> Long.compare(a.getTotalRetainedSize(), b.getTotalRetainedSize()));
+            Collections.reverse(reachableInstances);
+        }
 
         List<AnalysisResultEntry<?>> entries = new ArrayList<>();
         for (Instance instance : reachableInstances
@@ -45,6 +56,33 @@ public final class TopMemoryOffendersAnalyzerTask extends MemoryAnalyzerTask {
         return entries;
     }
 
+    /**
+     * Selects the largest instances of a compact snapshot without creating an {@link Instance}
+     * for every reachable object.
+     */
+    private List<Instance> getLargestInstances(InstanceTable table, CompactDominators dominators) {
+        PriorityQueue<Integer> largest = new PriorityQueue<>(mNumEntries + 1,
+                Comparator.comparingLong(dominators::getTotalRetainedSize));
+        IntBuffer order = dominators.getTopologicalOrder();
+        for (int i = 0; i < order.limit(); i++) {
+            int ordinal = order.get(i);
+            if (largest.size() < mNumEntries) {
+                largest.add(ordinal);
+            } else if (mNumEntries > 0 && dominators.getTotalRetainedSize(ordinal)
+                    > dominators.getTotalRetainedSize(largest.peek())) {
+                largest.poll();
+                largest.add(ordinal);
+            }
+        }
+
+        List<Instance> result = new ArrayList<>(largest.size());
+        while (!largest.isEmpty()) {
+            result.add(table.getInstance(largest.poll()));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
     @Override
     public String getTaskName() {
         return "Top Memory Offenders";
@@ -16,12 +16,13 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableTable;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Table;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongObjectHashMap;
 
 import java.util.Map;
 import java.util.Set;
@@ -45,12 +46,31 @@ public class MethodProfileData {
     private final boolean mIsRecursive;
 
     private MethodProfileData(Builder b) {
-        mPerThreadCumulativeStats = ImmutableMap.copyOf(b.mPerThreadCumulativeStats);
-        mPerThreadStatsByCallee = ImmutableTable.copyOf(b.mPerThreadStatsByCallee);
-        mPerThreadStatsByCaller = ImmutableTable.copyOf(b.mPerThreadStatsByCaller);
+        ImmutableMap.Builder<Integer, MethodStats> perThreadStats = ImmutableMap.builder();
+        b.mPerThreadCumulativeStats.forEachEntry((threadId, stats) -> {
+            perThreadStats.put(threadId, stats);
+            return true;
+        });
+        mPerThreadCumulativeStats = perThreadStats.build();
+        mPerThreadStatsByCallee = toTable(b.mPerThreadStatsByCallee);
+        mPerThreadStatsByCaller = toTable(b.mPerThreadStatsByCaller);
         mIsRecursive = b.mRecursive;
     }
 
+    @NonNull
+    private static Table<Integer, Long, MethodStats> toTable(
+            @NonNull TIntObjectHashMap<TLongObjectHashMap<MethodStats>> statsByThread) {
+        ImmutableTable.Builder<Integer, Long, MethodStats> table = ImmutableTable.builder();
+        statsByThread.forEachEntry((threadId, statsByMethod) -> {
+            statsByMethod.forEachEntry((methodId, stats) -> {
+                table.put(threadId, methodId, stats);
+                return true;
+            });
+            return true;
+        });
+        return table.build();
+    }
+
     /** Returns the number of invocations of this method in a given thread. */
     public long getInvocationCount(ThreadInfo thread) {
         MethodStats stats = mPerThreadCumulativeStats.get(thread.getId());
@@ -147,49 +167,79 @@ public class MethodProfileData {
         private long getInvocationCount() {
             return mInvocationCount;
         }
+
+        private void add(@NonNull MethodStats other) {
+            mInclusiveThreadTime += other.mInclusiveThreadTime;
+            mExclusiveThreadTime += other.mExclusiveThreadTime;
+            mInclusiveGlobalTime += other.mInclusiveGlobalTime;
+            mExclusiveGlobalTime += other.mExclusiveGlobalTime;
+            mInvocationCount += other.mInvocationCount;
+        }
     }
 
     public static class Builder {
-        private final Map<Integer, MethodStats> mPerThreadCumulativeStats = Maps.newHashMap();
-        private final Table<Integer, Long, MethodStats> mPerThreadStatsByCaller =
-                HashBasedTable.create();
-        private final Table<Integer, Long, MethodStats> mPerThreadStatsByCallee =
-                HashBasedTable.create();
+        // Statistics are keyed by primitive thread and method ids while they are accumulated,
+        // and only boxed once into the immutable tables of the built MethodProfileData.
+        private final TIntObjectHashMap<MethodStats> mPerThreadCumulativeStats =
+                new TIntObjectHashMap<MethodStats>();
+        private final TIntObjectHashMap<TLongObjectHashMap<MethodStats>> mPerThreadStatsByCaller =
+                new TIntObjectHashMap<TLongObjectHashMap<MethodStats>>();
+        private final TIntObjectHashMap<TLongObjectHashMap<MethodStats>> mPerThreadStatsByCallee =
+                new TIntObjectHashMap<TLongObjectHashMap<MethodStats>>();
 
         private boolean mRecursive;
 
         public void addCallTime(Call call, Call parent, ThreadInfo thread) {
+            Long callerId = parent != null ? parent.getMethodId() : null;
             for (ClockType type: ClockType.values()) {
-                addExclusiveTime(call, parent, thread, type);
+                addExclusiveTime(thread.getId(), callerId,
+                        call.getExclusiveTime(type, DATA_TIME_UNITS), DATA_TIME_UNITS, type);
 
                 if (!call.isRecursive()) {
-                    addInclusiveTime(call, parent, thread, type);
+                    addInclusiveTime(thread.getId(), callerId,
+                            call.getInclusiveTime(type, DATA_TIME_UNITS), DATA_TIME_UNITS, type);
+                    for (Call callee: call.getCallees()) {
+                        addCalleeInclusiveTime(thread.getId(), callee.getMethodId(),
+                                callee.getInclusiveTime(type, DATA_TIME_UNITS), DATA_TIME_UNITS,
+                                type);
+                    }
                 }
             }
         }
 
-        private void addExclusiveTime(Call call, Call parent, ThreadInfo thread, ClockType type) {
-            long time = call.getExclusiveTime(type, DATA_TIME_UNITS);
-
-            addExclusiveTime(getPerThreadStats(thread), time, type);
-            if (parent != null) {
-                addExclusiveTime(getPerCallerStats(thread, parent), time, type);
+        /**
+         * Adds the exclusive time of one invocation of this method in the given thread, called
+         * from the given caller (or null for a top level call).
+         */
+        void addExclusiveTime(int threadId, @Nullable Long callerId, long time, TimeUnit unit,
+                ClockType type) {
+            time = DATA_TIME_UNITS.convert(time, unit);
+            addExclusiveTime(getPerThreadStats(threadId), time, type);
+            if (callerId != null) {
+                addExclusiveTime(getPerCallerStats(threadId, callerId), time, type);
             }
         }
 
-        private void addInclusiveTime(Call call, Call parent, ThreadInfo thread, ClockType type) {
-            long time = call.getInclusiveTime(type, DATA_TIME_UNITS);
-
-            addInclusiveTime(getPerThreadStats(thread), time, type);
-            if (parent != null) {
-                addInclusiveTime(getPerCallerStats(thread, parent), time, type);
-            }
-            for (Call callee: call.getCallees()) {
-                addInclusiveTime(getPerCalleeStats(thread, callee),
-                        callee.getInclusiveTime(type, DATA_TIME_UNITS), type);
+        /**
+         * Adds the inclusive time of one invocation of this method in the given thread, called
+         * from the given caller (or null for a top level call).
+         */
+        void addInclusiveTime(int threadId, @Nullable Long callerId, long time, TimeUnit unit,
+                ClockType type) {
+            time = DATA_TIME_UNITS.convert(time, unit);
+            addInclusiveTime(getPerThreadStats(threadId), time, type);
+            if (callerId != null) {
+                addInclusiveTime(getPerCallerStats(threadId, callerId), time, type);
             }
         }
 
+        /** Adds the inclusive time of one invocation of the given callee from this method. */
+        void addCalleeInclusiveTime(int threadId, long calleeId, long time, TimeUnit unit,
+                ClockType type) {
+            addInclusiveTime(getPerCalleeStats(threadId, calleeId),
+                    DATA_TIME_UNITS.convert(time, unit), type);
+        }
+
         private void addInclusiveTime(MethodStats stats, long time, ClockType type) {
             if (type == ClockType.THREAD) {
                 stats.mInclusiveThreadTime += time;
@@ -206,45 +256,87 @@ public class MethodProfileData {
             }
         }
 
-        private MethodStats getPerThreadStats(ThreadInfo thread) {
-            MethodStats stats = mPerThreadCumulativeStats.get(thread.getId());
+        private MethodStats getPerThreadStats(int threadId) {
+            MethodStats stats = mPerThreadCumulativeStats.get(threadId);
             if (stats == null) {
                 stats = new MethodStats();
-                mPerThreadCumulativeStats.put(thread.getId(), stats);
+                mPerThreadCumulativeStats.put(threadId, stats);
             }
             return stats;
         }
 
-        private MethodStats getPerCallerStats(ThreadInfo thread, Call parent) {
-            return getMethodStatsFromTable(thread.getId(), parent.getMethodId(),
-                    mPerThreadStatsByCaller);
+        private MethodStats getPerCallerStats(int threadId, long callerId) {
+            return getMethodStatsFromTable(threadId, callerId, mPerThreadStatsByCaller);
         }
 
-        private MethodStats getPerCalleeStats(ThreadInfo thread, Call callee) {
-            return getMethodStatsFromTable(thread.getId(), callee.getMethodId(),
-                    mPerThreadStatsByCallee);
+        private MethodStats getPerCalleeStats(int threadId, long calleeId) {
+            return getMethodStatsFromTable(threadId, calleeId, mPerThreadStatsByCallee);
         }
 
-        private MethodStats getMethodStatsFromTable(Integer threadId, Long methodId,
-                Table<Integer, Long, MethodStats> statsTable) {
-            MethodStats stats = statsTable.get(threadId, methodId);
+        private static MethodStats getMethodStatsFromTable(int threadId, long methodId,
+                TIntObjectHashMap<TLongObjectHashMap<MethodStats>> statsTable) {
+            TLongObjectHashMap<MethodStats> statsByMethod = statsTable.get(threadId);
+            if (statsByMethod == null) {
+                statsByMethod = new TLongObjectHashMap<MethodStats>();
+                statsTable.put(threadId, statsByMethod);
+            }
+            MethodStats stats = statsByMethod.get(methodId);
             if (stats == null) {
                 stats = new MethodStats();
-                statsTable.put(threadId, methodId, stats);
+                statsByMethod.put(methodId, stats);
             }
             return stats;
         }
 
         public void incrementInvocationCount(Call c, Call parent, ThreadInfo thread) {
-            getPerThreadStats(thread).mInvocationCount++;
-            if (parent != null) {
-                getPerCallerStats(thread, parent).mInvocationCount++;
-            }
+            incrementInvocationCount(thread.getId(), parent != null ? parent.getMethodId() : null);
             for (Call callee: c.getCallees()) {
-                getPerCalleeStats(thread, callee).mInvocationCount++;
+                incrementCalleeInvocationCount(thread.getId(), callee.getMethodId());
             }
         }
 
+        /**
+         * Counts one invocation of this method in the given thread, called from the given caller
+         * (or null for a top level call).
+         */
+        void incrementInvocationCount(int threadId, @Nullable Long callerId) {
+            getPerThreadStats(threadId).mInvocationCount++;
+            if (callerId != null) {
+                getPerCallerStats(threadId, callerId).mInvocationCount++;
+            }
+        }
+
+        /** Counts one invocation of the given callee from this method. */
+        void incrementCalleeInvocationCount(int threadId, long calleeId) {
+            getPerCalleeStats(threadId, calleeId).mInvocationCount++;
+        }
+
+        /**
+         * Adds the statistics accumulated by another builder of the same method, typically for
+         * other threads, to this builder.
+         */
+        public void merge(@NonNull Builder other) {
+            other.mPerThreadCumulativeStats.forEachEntry((threadId, stats) -> {
+                getPerThreadStats(threadId).add(stats);
+                return true;
+            });
+            mergeTable(other.mPerThreadStatsByCaller, mPerThreadStatsByCaller);
+            mergeTable(other.mPerThreadStatsByCallee, mPerThreadStatsByCallee);
+            mRecursive |= other.mRecursive;
+        }
+
+        private static void mergeTable(
+                @NonNull TIntObjectHashMap<TLongObjectHashMap<MethodStats>> from,
+                @NonNull TIntObjectHashMap<TLongObjectHashMap<MethodStats>> to) {
+            from.forEachEntry((threadId, statsByMethod) -> {
+                statsByMethod.forEachEntry((methodId, stats) -> {
+                    getMethodStatsFromTable(threadId, methodId, to).add(stats);
+                    return true;
+                });
+                return true;
+            });
+        }
+
         public MethodProfileData build() {
             return new MethodProfileData(this);
         }
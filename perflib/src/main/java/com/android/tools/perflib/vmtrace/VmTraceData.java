@@ -17,11 +17,13 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.SparseArray;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import gnu.trove.TLongObjectHashMap;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,6 +32,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -319,6 +323,14 @@ public class VmTraceData {
         }
 
         public VmTraceData build() {
+            return build(null);
+        }
+
+        /**
+         * Same as {@link #build()}, but computes the {@link MethodProfileData} of each thread on
+         * {@code pool}, since threads are independent.
+         */
+        public VmTraceData build(@Nullable ForkJoinPool pool) {
             for (int i = 0; i < mStackReconstructors.size(); i++) {
                 int threadId = mStackReconstructors.keyAt(i);
                 CallStackReconstructor reconstructor = mStackReconstructors.valueAt(i);
@@ -326,7 +338,7 @@ public class VmTraceData {
             }
 
             VmTraceData data = new VmTraceData(this);
-            computeTimingStatistics(data);
+            computeTimingStatistics(data, pool);
             return data;
         }
 
@@ -335,27 +347,44 @@ public class VmTraceData {
             mStartTimeUs =  startTimeUs;
         }
 
-        private void computeTimingStatistics(VmTraceData data) {
+        private void computeTimingStatistics(VmTraceData data, @Nullable ForkJoinPool pool) {
             ProfileDataBuilder builder = new ProfileDataBuilder();
-            for (ThreadInfo thread : data.getThreads()) {
-                Call c = thread.getTopLevelCall();
-                if (c == null) {
-                    continue;
+            if (pool == null) {
+                for (ThreadInfo thread : data.getThreads()) {
+                    Call c = thread.getTopLevelCall();
+                    if (c == null) {
+                        continue;
+                    }
+
+                    builder.computeCallStats(c, null, thread);
+                }
+            } else {
+                List<ForkJoinTask<ProfileDataBuilder>> tasks = Lists.newArrayList();
+                for (ThreadInfo thread : data.getThreads()) {
+                    Call c = thread.getTopLevelCall();
+                    if (c == null) {
+                        continue;
+                    }
+
+                    tasks.add(pool.submit(() -> {
+                        ProfileDataBuilder threadBuilder = new ProfileDataBuilder();
+                        threadBuilder.computeCallStats(c, null, thread);
+                        return threadBuilder;
+                    }));
+                }
+                for (ForkJoinTask<ProfileDataBuilder> task : tasks) {
+                    builder.merge(task.join());
                 }
-
-                builder.computeCallStats(c, null, thread);
             }
 
-            for (Long methodId : builder.getMethodsWithProfileData()) {
-                MethodInfo method = data.getMethod(methodId);
-                method.setProfileData(builder.getProfileData(methodId));
-            }
+            builder.setProfileData(data);
         }
     }
 
     private static class ProfileDataBuilder {
         /** Maps method ids to their corresponding method data builders */
-        private final Map<Long, MethodProfileData.Builder> mBuilderMap = Maps.newHashMap();
+        private final TLongObjectHashMap<MethodProfileData.Builder> mBuilderMap =
+                new TLongObjectHashMap<MethodProfileData.Builder>();
 
         public void computeCallStats(Call c, Call parent, ThreadInfo thread) {
             long methodId = c.getMethodId();
@@ -381,12 +410,25 @@ public class VmTraceData {
             return builder;
         }
 
-        public Set<Long> getMethodsWithProfileData() {
-            return mBuilderMap.keySet();
+        /** Adds the statistics computed by another builder, e.g. for other threads. */
+        public void merge(@NonNull ProfileDataBuilder other) {
+            other.mBuilderMap.forEachEntry((methodId, otherBuilder) -> {
+                MethodProfileData.Builder builder = mBuilderMap.get(methodId);
+                if (builder == null) {
+                    mBuilderMap.put(methodId, otherBuilder);
+                } else {
+                    builder.merge(otherBuilder);
+                }
+                return true;
+            });
         }
 
-        public MethodProfileData getProfileData(Long methodId) {
-            return mBuilderMap.get(methodId).build();
+        /** Sets the profile data of all the methods with statistics. */
+        public void setProfileData(@NonNull VmTraceData data) {
+            mBuilderMap.forEachEntry((methodId, builder) -> {
+                data.getMethod(methodId).setProfileData(builder.build());
+                return true;
+            });
         }
     }
 }
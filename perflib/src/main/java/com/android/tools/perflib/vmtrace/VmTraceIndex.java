@@ -0,0 +1,956 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.utils.SparseArray;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.UnsignedInts;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongIntHashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * A disk backed alternative to {@link VmTraceData} for traces that are too large to be held in
+ * memory as trees of {@link Call}s.
+ *
+ * <p>The {@link Builder} reconstructs the call stacks of each thread as the trace is parsed, using
+ * the same rules as {@link CallStackReconstructor}, but only keeps the currently open calls in
+ * memory: completed calls are streamed into columns of a scratch index file (method, entry and
+ * exit times, exclusive times, depth, parent and flags). The calls of a thread are stored in the
+ * order in which they exit, so their exit times are sorted and the calls overlapping any time
+ * window can be found with a binary search.
+ *
+ * <p>Once built, the index attaches {@link MethodProfileData} for the whole trace to each
+ * {@link MethodInfo}, like {@link VmTraceData} does, and answers the same questions for arbitrary
+ * time windows with {@link #getProfileData}, {@link #searchFor} and {@link
+ * #getDurationPercentage}.
+ *
+ * <p>One difference with {@link VmTraceData}: when a method exits without having been entered
+ * during the trace, the calls it is assumed to have made are not marked as recursive after the
+ * fact, even if they were calls to the same method.
+ */
+public class VmTraceIndex implements Closeable {
+
+    private static final int METHOD = 0;
+    private static final int ENTRY_THREAD_TIME = 1;
+    private static final int EXIT_THREAD_TIME = 2;
+    private static final int ENTRY_GLOBAL_TIME = 3;
+    private static final int EXIT_GLOBAL_TIME = 4;
+    private static final int DEPTH = 5;
+    private static final int PARENT = 6;
+    private static final int FLAGS = 7;
+    private static final int INT_COLUMNS = 8;
+
+    private static final int EXCLUSIVE_THREAD_TIME = 0;
+    private static final int EXCLUSIVE_GLOBAL_TIME = 1;
+    private static final int LONG_COLUMNS = 2;
+
+    private static final int FLAG_RECURSIVE = 1;
+
+    private static final CallTable EMPTY_TABLE =
+            new CallTable(0, new IntBuffer[INT_COLUMNS], new LongBuffer[LONG_COLUMNS], new long[0]);
+
+    private final File mIndexFile;
+    private final int mVersion;
+    private final boolean mDataFileOverflow;
+    private final VmClockType mVmClockType;
+    private final String mVm;
+    private final Map<String, String> mTraceProperties;
+    private final long mStartTimeUs;
+    private final long mElapsedTimeUs;
+
+    /** Map from method id to method info. */
+    private final Map<Long, MethodInfo> mMethods;
+
+    /** Map from thread name to thread info. */
+    private final Map<String, ThreadInfo> mThreadInfo;
+
+    /** Map from thread id to the calls on that thread. */
+    private final SparseArray<CallTable> mCallTables;
+
+    private VmTraceIndex(Builder b, SparseArray<CallTable> callTables) {
+        mIndexFile = b.mIndexFile;
+        mVersion = b.mVersion;
+        mDataFileOverflow = b.mDataFileOverflow;
+        mVmClockType = b.mVmClockType;
+        mVm = b.mVm;
+        mTraceProperties = b.mProperties;
+        mMethods = b.mMethods;
+        mStartTimeUs = b.mStartTimeUs;
+        mElapsedTimeUs = b.mElapsedTimeUs;
+        mCallTables = callTables;
+
+        mThreadInfo = Maps.newHashMapWithExpectedSize(b.mThreads.size());
+        for (int i = 0; i < b.mThreads.size(); i++) {
+            int id = b.mThreads.keyAt(i);
+            String name = b.mThreads.valueAt(i);
+
+            if (mThreadInfo.containsKey(name)) {
+                // there is already a thread with the same name
+                name = String.format("%1$s-%2$d", name, id);
+            }
+            mThreadInfo.put(name, new ThreadInfo(id, name, null));
+        }
+
+        Map<Long, MethodProfileData.Builder> builders = Maps.newHashMap();
+        for (ThreadInfo thread : mThreadInfo.values()) {
+            CallTable calls = getCalls(thread);
+            for (int call = 0; call < calls.size(); call++) {
+                addCallStats(calls, call, thread, builders);
+            }
+        }
+        for (Map.Entry<Long, MethodProfileData.Builder> entry : builders.entrySet()) {
+            mMethods.get(entry.getKey()).setProfileData(entry.getValue().build());
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public boolean isDataFileOverflow() {
+        return mDataFileOverflow;
+    }
+
+    public VmClockType getVmClockType() {
+        return mVmClockType;
+    }
+
+    public String getVm() {
+        return mVm;
+    }
+
+    public Map<String, String> getTraceProperties() {
+        return mTraceProperties;
+    }
+
+    public long getStartTimeUs() {
+        return mStartTimeUs;
+    }
+
+    public long getElapsedTimeUs() {
+        return mElapsedTimeUs;
+    }
+
+    public Collection<ThreadInfo> getThreads() {
+        return mThreadInfo.values();
+    }
+
+    public ThreadInfo getThread(String name) {
+        return mThreadInfo.get(name);
+    }
+
+    public Map<Long, MethodInfo> getMethods() {
+        return mMethods;
+    }
+
+    public MethodInfo getMethod(long methodId) {
+        return mMethods.get(methodId);
+    }
+
+    /** Returns the calls made on the given thread, including its top level call. */
+    @NonNull
+    public CallTable getCalls(@NonNull ThreadInfo thread) {
+        CallTable calls = mCallTables.get(thread.getId());
+        return calls != null ? calls : EMPTY_TABLE;
+    }
+
+    /**
+     * Returns the statistics of the methods called on the given thread, computed from the calls
+     * that overlap the window [start, end) on the given clock. The calls are accounted for their
+     * full duration, even if they start or end outside of the window.
+     */
+    @NonNull
+    public Map<Long, MethodProfileData> getProfileData(@NonNull ThreadInfo thread,
+            @NonNull ClockType clockType, long start, long end, @NonNull TimeUnit unit) {
+        CallTable calls = getCalls(thread);
+        Map<Long, MethodProfileData.Builder> builders = Maps.newHashMap();
+        calls.forEachCall(clockType, start, end, unit,
+                call -> addCallStats(calls, call, thread, builders));
+
+        Map<Long, MethodProfileData> profileData =
+                Maps.newHashMapWithExpectedSize(builders.size());
+        for (Map.Entry<Long, MethodProfileData.Builder> entry : builders.entrySet()) {
+            profileData.put(entry.getKey(), entry.getValue().build());
+        }
+        return profileData;
+    }
+
+    /**
+     * Returns the given duration as a percentage of the time spent in the top level call of the
+     * given thread within the window [start, end) on the given clock. The duration and the window
+     * are in the given time units. Returns 0 if the window does not overlap the top level call.
+     */
+    public double getDurationPercentage(long methodTime, @NonNull ThreadInfo thread,
+            @NonNull ClockType clockType, long start, long end, @NonNull TimeUnit unit) {
+        CallTable calls = getCalls(thread);
+        if (calls.size() == 0) {
+            return 100.;
+        }
+
+        int topCall = calls.size() - 1;
+        long topLevelTime = Math.min(calls.getExitTime(topCall, clockType, unit), end)
+                - Math.max(calls.getEntryTime(topCall, clockType, unit), start);
+        if (topLevelTime <= 0) {
+            return 0;
+        }
+        return (double) methodTime / topLevelTime * 100;
+    }
+
+    /**
+     * Finds the calls on the given thread to methods whose name contains the given pattern,
+     * among the calls that overlap the window [start, end) on the given clock.
+     */
+    @NonNull
+    public CallSearchResult searchFor(@NonNull String pattern, @NonNull ThreadInfo thread,
+            @NonNull ClockType clockType, long start, long end, @NonNull TimeUnit unit) {
+        String lowerCasePattern = pattern.toLowerCase(Locale.US);
+        CallTable calls = getCalls(thread);
+
+        Map<Long, Boolean> matches = new HashMap<Long, Boolean>();
+        Set<MethodInfo> methods = new HashSet<MethodInfo>();
+        TIntArrayList instances = new TIntArrayList();
+        calls.forEachCall(clockType, start, end, unit, call -> {
+            MethodInfo method = getMethod(calls.getMethodId(call));
+            Boolean match = matches.get(method.id);
+            if (match == null) {
+                match = method.getFullName().toLowerCase(Locale.US).contains(lowerCasePattern);
+                matches.put(method.id, match);
+            }
+            if (match) {
+                methods.add(method);
+                instances.add(call);
+            }
+        });
+        return new CallSearchResult(methods, instances.toNativeArray());
+    }
+
+    /**
+     * Releases the index. The index file is deleted, and the {@link CallTable}s must not be used
+     * anymore.
+     */
+    @Override
+    public void close() throws IOException {
+        mCallTables.clear();
+        if (!mIndexFile.delete() && mIndexFile.exists()) {
+            // The file may still be mapped, e.g. on Windows.
+            mIndexFile.deleteOnExit();
+        }
+    }
+
+    private void addCallStats(@NonNull CallTable calls, int call, @NonNull ThreadInfo thread,
+            @NonNull Map<Long, MethodProfileData.Builder> builders) {
+        int threadId = thread.getId();
+        long methodId = calls.getMethodId(call);
+        int parent = calls.getParent(call);
+        Long callerId = parent >= 0 ? calls.getMethodId(parent) : null;
+        boolean recursive = calls.isRecursive(call);
+
+        MethodProfileData.Builder builder = getProfileDataBuilder(builders, methodId);
+        for (ClockType type : ClockType.values()) {
+            TimeUnit unit = VmTraceData.getDefaultTimeUnits();
+            builder.addExclusiveTime(threadId, callerId,
+                    calls.getExclusiveTime(call, type, unit), unit, type);
+            if (!recursive) {
+                builder.addInclusiveTime(threadId, callerId,
+                        calls.getInclusiveTime(call, type, unit), unit, type);
+            }
+        }
+        builder.incrementInvocationCount(threadId, callerId);
+        if (recursive) {
+            builder.setRecursive();
+        }
+
+        // Callee statistics are attributed to the caller, which overlaps any window the call
+        // overlaps.
+        if (parent >= 0) {
+            MethodProfileData.Builder callerBuilder =
+                    getProfileDataBuilder(builders, calls.getMethodId(parent));
+            callerBuilder.incrementCalleeInvocationCount(threadId, methodId);
+            if (!calls.isRecursive(parent)) {
+                for (ClockType type : ClockType.values()) {
+                    TimeUnit unit = VmTraceData.getDefaultTimeUnits();
+                    callerBuilder.addCalleeInclusiveTime(threadId, methodId,
+                            calls.getInclusiveTime(call, type, unit), unit, type);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private static MethodProfileData.Builder getProfileDataBuilder(
+            @NonNull Map<Long, MethodProfileData.Builder> builders, long methodId) {
+        MethodProfileData.Builder builder = builders.get(methodId);
+        if (builder == null) {
+            builder = new MethodProfileData.Builder();
+            builders.put(methodId, builder);
+        }
+        return builder;
+    }
+
+    /**
+     * The calls made on a thread, stored in the order in which they exit. Calls are identified by
+     * their index in the table, and the top level call of the thread is the last one.
+     */
+    public static final class CallTable {
+        private final int mSize;
+        private final IntBuffer[] mIntColumns;
+        private final LongBuffer[] mLongColumns;
+
+        /** Map from the method indices stored in the table to method ids. */
+        private final long[] mMethodIds;
+
+        private CallTable(int size, @NonNull IntBuffer[] intColumns,
+                @NonNull LongBuffer[] longColumns, @NonNull long[] methodIds) {
+            mSize = size;
+            mIntColumns = intColumns;
+            mLongColumns = longColumns;
+            mMethodIds = methodIds;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public long getMethodId(int call) {
+            return mMethodIds[mIntColumns[METHOD].get(call)];
+        }
+
+        public int getDepth(int call) {
+            return mIntColumns[DEPTH].get(call);
+        }
+
+        /** Returns the index of the caller of the given call, or -1 for the top level call. */
+        public int getParent(int call) {
+            return mIntColumns[PARENT].get(call);
+        }
+
+        /**
+         * Returns true if the call is recursive (another call of the same method id is present
+         * in its backstack)
+         */
+        public boolean isRecursive(int call) {
+            return (mIntColumns[FLAGS].get(call) & FLAG_RECURSIVE) != 0;
+        }
+
+        public long getEntryTime(int call, ClockType clockType, TimeUnit units) {
+            int column = clockType == ClockType.THREAD ? ENTRY_THREAD_TIME : ENTRY_GLOBAL_TIME;
+            long entryTime = UnsignedInts.toLong(mIntColumns[column].get(call));
+            return units.convert(entryTime, VmTraceData.getDefaultTimeUnits());
+        }
+
+        public long getExitTime(int call, ClockType clockType, TimeUnit units) {
+            int column = clockType == ClockType.THREAD ? EXIT_THREAD_TIME : EXIT_GLOBAL_TIME;
+            long exitTime = UnsignedInts.toLong(mIntColumns[column].get(call));
+            return units.convert(exitTime, VmTraceData.getDefaultTimeUnits());
+        }
+
+        public long getInclusiveTime(int call, ClockType clockType, TimeUnit units) {
+            long inclusiveTime = clockType == ClockType.THREAD ?
+                    UnsignedInts.toLong(mIntColumns[EXIT_THREAD_TIME].get(call)
+                            - mIntColumns[ENTRY_THREAD_TIME].get(call)) :
+                    UnsignedInts.toLong(mIntColumns[EXIT_GLOBAL_TIME].get(call)
+                            - mIntColumns[ENTRY_GLOBAL_TIME].get(call));
+            return units.convert(inclusiveTime, VmTraceData.getDefaultTimeUnits());
+        }
+
+        public long getExclusiveTime(int call, ClockType clockType, TimeUnit units) {
+            int column = clockType == ClockType.THREAD ?
+                    EXCLUSIVE_THREAD_TIME : EXCLUSIVE_GLOBAL_TIME;
+            long exclusiveTime = mLongColumns[column].get(call);
+            return units.convert(exclusiveTime, VmTraceData.getDefaultTimeUnits());
+        }
+
+        /**
+         * Calls the visitor with the index of each call that overlaps the window [start, end) on
+         * the given clock, that is each call that exits after start and is entered before end.
+         * Calls are visited in the order in which they exit.
+         */
+        public void forEachCall(@NonNull ClockType clockType, long start, long end,
+                @NonNull TimeUnit unit, @NonNull IntConsumer visitor) {
+            if (end <= start) {
+                return;
+            }
+
+            // Since exit times are sorted, the calls that exit within the window are contiguous.
+            int first = findFirstExitAfter(clockType, start, unit, 0);
+            int last = findFirstExitAfter(clockType, end - 1, unit, first);
+            for (int call = first; call < last; call++) {
+                if (getEntryTime(call, clockType, unit) < end) {
+                    visitor.accept(call);
+                }
+            }
+
+            // The calls that exit after the window only overlap it if they are still on the stack
+            // when the first of them exits.
+            for (int call = last; call >= 0 && call < mSize; call = getParent(call)) {
+                if (getEntryTime(call, clockType, unit) < end) {
+                    visitor.accept(call);
+                }
+            }
+        }
+
+        /** Returns the index of the first call from the given index that exits after the time. */
+        private int findFirstExitAfter(@NonNull ClockType clockType, long time,
+                @NonNull TimeUnit unit, int from) {
+            int low = from;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (getExitTime(mid, clockType, unit) > time) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /** The result of {@link #searchFor}, where the instances are indices in a {@link CallTable}. */
+    public static class CallSearchResult {
+        private final Set<MethodInfo> mMethods;
+        private final int[] mInstances;
+
+        public CallSearchResult(@NonNull Set<MethodInfo> methods, @NonNull int[] instances) {
+            mMethods = methods;
+            mInstances = instances;
+        }
+
+        @NonNull
+        public Set<MethodInfo> getMethods() {
+            return mMethods;
+        }
+
+        @NonNull
+        public int[] getInstances() {
+            return mInstances;
+        }
+    }
+
+    /**
+     * Builds a {@link VmTraceIndex} from the events reported by a {@link VmTraceParser}. The calls
+     * of each thread are spilled to a temporary file as they complete, and are converted to the
+     * columns of the index file by {@link #build()}.
+     */
+    public static class Builder implements VmTraceHandler {
+        private static final String KEY_CLOCK = "clock";
+        private static final String KEY_DATA_OVERFLOW = "data-file-overflow";
+        private static final String KEY_VM = "vm";
+        private static final String KEY_ELAPSED_TIME_US = "elapsed-time-usec";
+
+        private final File mIndexFile;
+
+        private int mVersion;
+        private long mStartTimeUs;
+        private long mElapsedTimeUs;
+        private boolean mDataFileOverflow;
+        private VmClockType mVmClockType = VmClockType.THREAD_CPU;
+        private String mVm = "";
+        private final Map<String, String> mProperties = new HashMap<String, String>(10);
+
+        /** Map from thread ids to thread names. */
+        private final SparseArray<String> mThreads = new SparseArray<String>(10);
+
+        /** Map from method id to method info. */
+        private final Map<Long, MethodInfo> mMethods = new HashMap<Long, MethodInfo>(100);
+
+        /** Map from method id to the index of the method in {@link #mMethodIds}. */
+        private final TLongIntHashMap mMethodIndices = new TLongIntHashMap();
+
+        private long[] mMethodIds = new long[100];
+        private int mMethodCount;
+
+        /** Map from thread id to the writer of the calls made on that thread. */
+        private final SparseArray<CallWriter> mCallWriters = new SparseArray<CallWriter>(10);
+
+        /**
+         * Creates a builder for an index stored in the given file. The file is overwritten, and is
+         * deleted when the index is closed.
+         */
+        public Builder(@NonNull File indexFile) {
+            mIndexFile = indexFile;
+        }
+
+        @Override
+        public void setVersion(int version) {
+            mVersion = version;
+        }
+
+        @Override
+        public void setProperty(String key, String value) {
+            if (key.equals(KEY_CLOCK)) {
+                if (value.equals("thread-cpu")) {
+                    mVmClockType = VmClockType.THREAD_CPU;
+                } else if (value.equals("wall")) {
+                    mVmClockType = VmClockType.WALL;
+                } else if (value.equals("dual")) {
+                    mVmClockType = VmClockType.DUAL;
+                }
+            } else if (key.equals(KEY_DATA_OVERFLOW)) {
+                mDataFileOverflow = Boolean.parseBoolean(value);
+            } else if (key.equals(KEY_VM)) {
+                mVm = value;
+            } else if (key.equals(KEY_ELAPSED_TIME_US)) {
+                mElapsedTimeUs = Long.parseLong(value);
+            } else {
+                mProperties.put(key, value);
+            }
+        }
+
+        @Override
+        public void addThread(int id, String name) {
+            mThreads.put(id, name);
+        }
+
+        @Override
+        public void addMethod(long id, MethodInfo info) {
+            mMethods.put(id, info);
+        }
+
+        @Override
+        public void addMethodAction(
+                int threadId,
+                long methodId,
+                TraceAction methodAction,
+                int threadTime,
+                int globalTime) {
+            // create thread info if it doesn't exist
+            if (mThreads.get(threadId) == null) {
+                mThreads.put(threadId, String.format("Thread id: %1$d", threadId));
+            }
+
+            // create method info if it doesn't exist
+            if (mMethods.get(methodId) == null) {
+                MethodInfo info = new MethodInfo(methodId, "unknown", "unknown", "unknown",
+                        "unknown", -1);
+                mMethods.put(methodId, info);
+            }
+
+            try {
+                CallWriter writer = mCallWriters.get(threadId);
+                if (writer == null) {
+                    long topLevelCallId = createUniqueMethodIdForThread(threadId);
+                    writer = new CallWriter(getMethodIndex(topLevelCallId));
+                    mCallWriters.put(threadId, writer);
+                }
+
+                if (methodAction == TraceAction.METHOD_ENTER) {
+                    writer.enterMethod(getMethodIndex(methodId), threadTime, globalTime);
+                } else {
+                    writer.exitMethod(getMethodIndex(methodId), threadTime, globalTime);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private long createUniqueMethodIdForThread(int threadId) {
+            long id = Long.MAX_VALUE - threadId;
+            assert mMethods.get(id) == null :
+                    "Unexpected error while attempting to create a unique key - key already exists";
+            MethodInfo info = new MethodInfo(id, mThreads.get(threadId), "", "", "", 0);
+            mMethods.put(id, info);
+            return id;
+        }
+
+        private int getMethodIndex(long methodId) {
+            if (mMethodIndices.containsKey(methodId)) {
+                return mMethodIndices.get(methodId);
+            }
+            if (mMethodCount == mMethodIds.length) {
+                mMethodIds = Arrays.copyOf(mMethodIds, mMethodCount * 2);
+            }
+            mMethodIds[mMethodCount] = methodId;
+            mMethodIndices.put(methodId, mMethodCount);
+            return mMethodCount++;
+        }
+
+        @Override
+        public void setStartTimeUs(long startTimeUs) {
+            mStartTimeUs = startTimeUs;
+        }
+
+        /** Writes the index file and computes the profile data of the whole trace. */
+        public VmTraceIndex build() throws IOException {
+            long[] methodIds = Arrays.copyOf(mMethodIds, mMethodCount);
+            SparseArray<CallTable> callTables = new SparseArray<CallTable>(mCallWriters.size());
+            try (FileChannel channel = FileChannel.open(mIndexFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (int i = 0; i < mCallWriters.size(); i++) {
+                    CallWriter writer = mCallWriters.valueAt(i);
+                    writer.finish();
+                    CallTable calls = writer.writeColumns(channel, position, methodIds);
+                    callTables.put(mCallWriters.keyAt(i), calls);
+                    position += (long) calls.size() * (INT_COLUMNS * 4 + LONG_COLUMNS * 8);
+                }
+            } finally {
+                for (int i = 0; i < mCallWriters.size(); i++) {
+                    mCallWriters.valueAt(i).deleteSpillFile();
+                }
+            }
+
+            return new VmTraceIndex(this, callTables);
+        }
+
+        /**
+         * Reconstructs the call stack of a thread like {@link CallStackReconstructor}, writing
+         * each call to a spill file when it exits. Only the calls currently on the stack are kept
+         * in memory.
+         */
+        private final class CallWriter {
+            private final int mTopLevelMethod;
+            private final File mSpillFile;
+            private final DataOutputStream mOut;
+            private int mCallCount;
+
+            /** The calls currently on the stack, and the time spent so far in their callees. */
+            private int mStackSize;
+            private int[] mMethods = new int[16];
+            private int[] mEntryThreadTimes = new int[16];
+            private int[] mEntryGlobalTimes = new int[16];
+            private boolean[] mHasCallees = new boolean[16];
+            private int[] mLastCalleeExitThreadTimes = new int[16];
+            private int[] mLastCalleeExitGlobalTimes = new int[16];
+            private long[] mCalleeThreadTimes = new long[16];
+            private long[] mCalleeGlobalTimes = new long[16];
+
+            /** Summary of the calls that were made at the top of the stack. */
+            private boolean mHasTopLevelCalls;
+            private int mFirstTopLevelEntryThreadTime;
+            private int mFirstTopLevelEntryGlobalTime;
+            private int mLastTopLevelExitThreadTime;
+            private int mLastTopLevelExitGlobalTime;
+            private long mTopLevelThreadTime;
+            private long mTopLevelGlobalTime;
+
+            /**
+             * Number of exits from methods that were entered before tracing started. Each of them
+             * adds a level above the calls already written, so depths are written relative to it
+             * and fixed when the columns are written.
+             */
+            private int mUnmatchedExits;
+
+            private CallWriter(int topLevelMethod) throws IOException {
+                mTopLevelMethod = topLevelMethod;
+                mSpillFile = File.createTempFile("calls", ".tmp",
+                        mIndexFile.getAbsoluteFile().getParentFile());
+                mOut = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(mSpillFile)));
+            }
+
+            private void enterMethod(int method, int threadTime, int globalTime) {
+                if (mStackSize > 0) {
+                    mHasCallees[mStackSize - 1] = true;
+                } else if (!mHasTopLevelCalls) {
+                    mHasTopLevelCalls = true;
+                    mFirstTopLevelEntryThreadTime = threadTime;
+                    mFirstTopLevelEntryGlobalTime = globalTime;
+                }
+
+                if (mStackSize == mMethods.length) {
+                    int capacity = mStackSize * 2;
+                    mMethods = Arrays.copyOf(mMethods, capacity);
+                    mEntryThreadTimes = Arrays.copyOf(mEntryThreadTimes, capacity);
+                    mEntryGlobalTimes = Arrays.copyOf(mEntryGlobalTimes, capacity);
+                    mHasCallees = Arrays.copyOf(mHasCallees, capacity);
+                    mLastCalleeExitThreadTimes =
+                            Arrays.copyOf(mLastCalleeExitThreadTimes, capacity);
+                    mLastCalleeExitGlobalTimes =
+                            Arrays.copyOf(mLastCalleeExitGlobalTimes, capacity);
+                    mCalleeThreadTimes = Arrays.copyOf(mCalleeThreadTimes, capacity);
+                    mCalleeGlobalTimes = Arrays.copyOf(mCalleeGlobalTimes, capacity);
+                }
+
+                int top = mStackSize++;
+                mMethods[top] = method;
+                mEntryThreadTimes[top] = threadTime;
+                mEntryGlobalTimes[top] = globalTime;
+                mHasCallees[top] = false;
+                mCalleeThreadTimes[top] = 0;
+                mCalleeGlobalTimes[top] = 0;
+            }
+
+            private void exitMethod(int method, int threadTime, int globalTime)
+                    throws IOException {
+                if (mStackSize == 0) {
+                    exitUnenteredMethod(method, threadTime, globalTime);
+                    return;
+                }
+
+                int top = --mStackSize;
+                if (mMethods[top] != method) {
+                    String msg = String.format("Error during call stack reconstruction. "
+                                    + "Attempt to exit from method 0x%1$x while in method 0x%2$x",
+                            mMethodIds[mMethods[top]], mMethodIds[method]);
+                    throw new RuntimeException(msg);
+                }
+
+                boolean recursive = false;
+                for (int i = 0; i < top && !recursive; i++) {
+                    recursive = mMethods[i] == method;
+                }
+
+                long inclusiveThreadTime =
+                        UnsignedInts.toLong(threadTime - mEntryThreadTimes[top]);
+                long inclusiveGlobalTime =
+                        UnsignedInts.toLong(globalTime - mEntryGlobalTimes[top]);
+                writeCall(method, mEntryThreadTimes[top], threadTime, mEntryGlobalTimes[top],
+                        globalTime, inclusiveThreadTime - mCalleeThreadTimes[top],
+                        inclusiveGlobalTime - mCalleeGlobalTimes[top], top - mUnmatchedExits,
+                        recursive ? FLAG_RECURSIVE : 0);
+
+                if (top > 0) {
+                    mCalleeThreadTimes[top - 1] += inclusiveThreadTime;
+                    mCalleeGlobalTimes[top - 1] += inclusiveGlobalTime;
+                    mLastCalleeExitThreadTimes[top - 1] = threadTime;
+                    mLastCalleeExitGlobalTimes[top - 1] = globalTime;
+                } else {
+                    mTopLevelThreadTime += inclusiveThreadTime;
+                    mTopLevelGlobalTime += inclusiveGlobalTime;
+                    mLastTopLevelExitThreadTime = threadTime;
+                    mLastTopLevelExitGlobalTime = globalTime;
+                }
+            }
+
+            /**
+             * Handles the exit from a method that was entered before tracing started. All the
+             * previous top level calls are assumed to have been made by that method.
+             */
+            private void exitUnenteredMethod(int method, int threadTime, int globalTime)
+                    throws IOException {
+                // We don't know this method's entry times, so we guess them as in
+                // CallStackReconstructor.
+                int entryThreadTime = threadTime - 1;
+                int entryGlobalTime = globalTime - 1;
+                if (mHasTopLevelCalls) {
+                    entryThreadTime = Math.max(mFirstTopLevelEntryThreadTime - 1, 0);
+                    entryGlobalTime = Math.max(mFirstTopLevelEntryGlobalTime - 1, 0);
+                }
+
+                long inclusiveThreadTime = UnsignedInts.toLong(threadTime - entryThreadTime);
+                long inclusiveGlobalTime = UnsignedInts.toLong(globalTime - entryGlobalTime);
+                writeCall(method, entryThreadTime, threadTime, entryGlobalTime, globalTime,
+                        inclusiveThreadTime - mTopLevelThreadTime,
+                        inclusiveGlobalTime - mTopLevelGlobalTime, -mUnmatchedExits - 1, 0);
+                mUnmatchedExits++;
+
+                mHasTopLevelCalls = true;
+                mFirstTopLevelEntryThreadTime = entryThreadTime;
+                mFirstTopLevelEntryGlobalTime = entryGlobalTime;
+                mLastTopLevelExitThreadTime = threadTime;
+                mLastTopLevelExitGlobalTime = globalTime;
+                mTopLevelThreadTime = inclusiveThreadTime;
+                mTopLevelGlobalTime = inclusiveGlobalTime;
+            }
+
+            private void writeCall(int method, int entryThreadTime, int exitThreadTime,
+                    int entryGlobalTime, int exitGlobalTime, long exclusiveThreadTime,
+                    long exclusiveGlobalTime, int depth, int flags) throws IOException {
+                mOut.writeInt(method);
+                mOut.writeInt(entryThreadTime);
+                mOut.writeInt(exitThreadTime);
+                mOut.writeInt(entryGlobalTime);
+                mOut.writeInt(exitGlobalTime);
+                mOut.writeInt(depth);
+                mOut.writeInt(flags);
+                mOut.writeLong(exclusiveThreadTime);
+                mOut.writeLong(exclusiveGlobalTime);
+                mCallCount++;
+            }
+
+            /**
+             * Exits the methods still on the stack, since the trace doesn't have exit actions for
+             * them, and then moves all the calls under a single top level call.
+             */
+            private void finish() throws IOException {
+                while (mStackSize > 0) {
+                    int top = mStackSize - 1;
+                    // if the call doesn't have any callees, we assume that it just ran for 1 unit
+                    // of time, otherwise that it exited 1 unit of time after its last callee
+                    int exitThreadTime = mHasCallees[top] ?
+                            mLastCalleeExitThreadTimes[top] + 1 : mEntryThreadTimes[top] + 1;
+                    int exitGlobalTime = mHasCallees[top] ?
+                            mLastCalleeExitGlobalTimes[top] + 1 : mEntryGlobalTimes[top] + 1;
+                    exitMethod(mMethods[top], exitThreadTime, exitGlobalTime);
+                }
+
+                if (mHasTopLevelCalls) {
+                    exitMethod(mTopLevelMethod, mLastTopLevelExitThreadTime + 1,
+                            mLastTopLevelExitGlobalTime + 1);
+                } else {
+                    exitMethod(mTopLevelMethod, 1, 1);
+                }
+                mOut.close();
+            }
+
+            /**
+             * Converts the spilled calls into columns of the index file at the given position,
+             * and returns a table backed by the mapped columns.
+             */
+            @NonNull
+            private CallTable writeColumns(@NonNull FileChannel channel, long position,
+                    @NonNull long[] methodIds) throws IOException {
+                int size = mCallCount;
+                long[] intColumnOffsets = new long[INT_COLUMNS];
+                long[] longColumnOffsets = new long[LONG_COLUMNS];
+                long offset = position;
+                for (int i = 0; i < INT_COLUMNS; i++) {
+                    intColumnOffsets[i] = offset;
+                    offset += (long) size * 4;
+                }
+                for (int i = 0; i < LONG_COLUMNS; i++) {
+                    longColumnOffsets[i] = offset;
+                    offset += (long) size * 8;
+                }
+
+                ColumnWriter[] intColumns = new ColumnWriter[INT_COLUMNS];
+                for (int i = 0; i < INT_COLUMNS; i++) {
+                    intColumns[i] = new ColumnWriter(channel, intColumnOffsets[i]);
+                }
+                ColumnWriter[] longColumns = new ColumnWriter[LONG_COLUMNS];
+                for (int i = 0; i < LONG_COLUMNS; i++) {
+                    longColumns[i] = new ColumnWriter(channel, longColumnOffsets[i]);
+                }
+
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(mSpillFile)))) {
+                    for (int call = 0; call < size; call++) {
+                        intColumns[METHOD].putInt(in.readInt());
+                        intColumns[ENTRY_THREAD_TIME].putInt(in.readInt());
+                        intColumns[EXIT_THREAD_TIME].putInt(in.readInt());
+                        intColumns[ENTRY_GLOBAL_TIME].putInt(in.readInt());
+                        intColumns[EXIT_GLOBAL_TIME].putInt(in.readInt());
+                        intColumns[DEPTH].putInt(in.readInt() + mUnmatchedExits);
+                        // parents are filled in below, once the depths are known
+                        intColumns[PARENT].putInt(-1);
+                        intColumns[FLAGS].putInt(in.readInt());
+                        longColumns[EXCLUSIVE_THREAD_TIME].putLong(in.readLong());
+                        longColumns[EXCLUSIVE_GLOBAL_TIME].putLong(in.readLong());
+                    }
+                }
+                for (ColumnWriter column : intColumns) {
+                    column.flush();
+                }
+                for (ColumnWriter column : longColumns) {
+                    column.flush();
+                }
+
+                IntBuffer[] intBuffers = new IntBuffer[INT_COLUMNS];
+                for (int i = 0; i < INT_COLUMNS; i++) {
+                    FileChannel.MapMode mode = i == PARENT ?
+                            FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+                    intBuffers[i] =
+                            channel.map(mode, intColumnOffsets[i], (long) size * 4).asIntBuffer();
+                }
+                LongBuffer[] longBuffers = new LongBuffer[LONG_COLUMNS];
+                for (int i = 0; i < LONG_COLUMNS; i++) {
+                    longBuffers[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            longColumnOffsets[i], (long) size * 8).asLongBuffer();
+                }
+
+                // Calls are stored in post-order, so the caller of a call is the first call after
+                // it with a smaller depth.
+                IntBuffer depths = intBuffers[DEPTH];
+                IntBuffer parents = intBuffers[PARENT];
+                TIntArrayList stack = new TIntArrayList();
+                for (int call = size - 1; call >= 0; call--) {
+                    int depth = depths.get(call);
+                    while (!stack.isEmpty()
+                            && depths.get(stack.get(stack.size() - 1)) >= depth) {
+                        stack.remove(stack.size() - 1);
+                    }
+                    parents.put(call, stack.isEmpty() ? -1 : stack.get(stack.size() - 1));
+                    stack.add(call);
+                }
+                intBuffers[PARENT] = parents.asReadOnlyBuffer();
+
+                return new CallTable(size, intBuffers, longBuffers, methodIds);
+            }
+
+            private void deleteSpillFile() {
+                try {
+                    mOut.close();
+                } catch (IOException ignored) {
+                }
+                if (!mSpillFile.delete()) {
+                    mSpillFile.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /** Buffers the values of a column and writes them to a file channel from a given position. */
+    private static final class ColumnWriter {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(8192);
+        private long mPosition;
+
+        private ColumnWriter(@NonNull FileChannel channel, long position) {
+            mChannel = channel;
+            mPosition = position;
+        }
+
+        private void putInt(int value) throws IOException {
+            if (mBuffer.remaining() < 4) {
+                flush();
+            }
+            mBuffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            if (mBuffer.remaining() < 8) {
+                flush();
+            }
+            mBuffer.putLong(value);
+        }
+
+        private void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mPosition += mChannel.write(mBuffer, mPosition);
+            }
+            mBuffer.clear();
+        }
+    }
+}
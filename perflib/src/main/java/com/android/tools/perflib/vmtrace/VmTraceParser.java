@@ -19,6 +19,7 @@ package com.android.tools.perflib.vmtrace;
 import com.android.annotations.VisibleForTesting;
 import com.android.ddmlib.ByteBufferUtil;
 import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.common.primitives.UnsignedInts;
 import java.io.*;
@@ -406,12 +407,17 @@ public class VmTraceParser {
 
         private File mTraceFile;
         private DataInputStream mInputStream;
-        private ByteArrayOutputStream mByteOutputStream;
+        private File mDataFile;
+        private OutputStream mByteOutputStream;
 
         private StreamingTraceParser(File streamingTraceFile) throws IOException {
             mTraceFile = streamingTraceFile;
-            mInputStream = new DataInputStream(new FileInputStream(mTraceFile));
-            mByteOutputStream = new ByteArrayOutputStream();
+            mInputStream =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(mTraceFile)));
+            // The method trace data can be much larger than the heap, so it is copied to a
+            // scratch file which is then mapped like the data of non streaming traces.
+            mDataFile = File.createTempFile("trace", ".data");
+            mByteOutputStream = new BufferedOutputStream(new FileOutputStream(mDataFile));
         }
 
         /**
@@ -496,14 +502,21 @@ public class VmTraceParser {
                     // End of file reached
                 }
 
+                mByteOutputStream.close();
+                return ByteBufferUtil.mapFile(mDataFile, 0, ByteOrder.LITTLE_ENDIAN);
             } finally {
                 try {
                     Closeables.close(mInputStream, true /* swallowIOException */);
+                    Closeables.close(mByteOutputStream, true /* swallowIOException */);
                 } catch (IOException e) {
                     // cannot happen
                 }
+                // The mapping remains valid once the file is deleted, except on Windows where
+                // the file cannot be deleted while it is mapped.
+                if (!mDataFile.delete()) {
+                    mDataFile.deleteOnExit();
+                }
             }
-            return ByteBuffer.wrap(mByteOutputStream.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
         }
 
         /**
@@ -530,7 +543,7 @@ public class VmTraceParser {
          */
         private void copyBytes(int numBytes) throws IOException {
             byte[] bytesToCopy = new byte[numBytes];
-            int bytesRead = mInputStream.read(bytesToCopy);
+            int bytesRead = ByteStreams.read(mInputStream, bytesToCopy, 0, numBytes);
             if (bytesRead != numBytes) {
                 String msg =
                         String.format(
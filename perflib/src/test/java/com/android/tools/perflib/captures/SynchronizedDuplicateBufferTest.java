@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.captures;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import org.junit.Test;
+
+public class SynchronizedDuplicateBufferTest {
+
+    @Test
+    public void duplicateHasItsOwnPosition() {
+        DataBuffer buffer =
+                new DelegatingBuffer(new InMemoryBuffer(new byte[] {0, 0, 0, 1, 0, 0, 0, 2}));
+        buffer.setPosition(4);
+
+        DataBuffer duplicate = buffer.duplicate();
+        assertThat(duplicate).isInstanceOf(SynchronizedDuplicateBuffer.class);
+        assertThat(duplicate.position()).isEqualTo(0);
+        assertThat(duplicate.remaining()).isEqualTo(8);
+        assertThat(duplicate.readInt()).isEqualTo(1);
+        assertThat(duplicate.position()).isEqualTo(4);
+
+        // The original buffer did not move.
+        assertThat(buffer.position()).isEqualTo(4);
+        assertThat(buffer.readInt()).isEqualTo(2);
+
+        assertThat(duplicate.readInt()).isEqualTo(2);
+        assertThat(duplicate.hasRemaining()).isFalse();
+    }
+
+    @Test
+    public void readSubSequenceAdvancesPosition() {
+        DataBuffer buffer =
+                new DelegatingBuffer(
+                        new InMemoryBuffer(new byte[] {0, 1, 2, 3, 0, 0, 0, 7, 0, 0, 0, 8}));
+        buffer.setPosition(8);
+
+        DataBuffer duplicate = buffer.duplicate();
+        byte[] bytes = new byte[3];
+        duplicate.readSubSequence(bytes, 1, 3);
+        assertThat(bytes).isEqualTo(new byte[] {1, 2, 3});
+        assertThat(duplicate.position()).isEqualTo(4);
+        assertThat(duplicate.readInt()).isEqualTo(7);
+
+        // The original buffer did not move.
+        assertThat(buffer.position()).isEqualTo(8);
+        assertThat(buffer.readInt()).isEqualTo(8);
+    }
+
+    /** A buffer delegating to another one, but using the default {@code duplicate()}. */
+    private static final class DelegatingBuffer implements DataBuffer {
+        @NonNull private final DataBuffer mDelegate;
+
+        DelegatingBuffer(@NonNull DataBuffer delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void dispose() {
+            mDelegate.dispose();
+        }
+
+        @Override
+        public void append(@NonNull byte[] data) {
+            mDelegate.append(data);
+        }
+
+        @Override
+        public void read(@NonNull byte[] out) {
+            mDelegate.read(out);
+        }
+
+        @Override
+        public void readSubSequence(byte[] b, int sourceStart, int sourceEnd) {
+            mDelegate.readSubSequence(b, sourceStart, sourceEnd);
+        }
+
+        @Override
+        public byte readByte() {
+            return mDelegate.readByte();
+        }
+
+        @Override
+        public char readChar() {
+            return mDelegate.readChar();
+        }
+
+        @Override
+        public short readShort() {
+            return mDelegate.readShort();
+        }
+
+        @Override
+        public int readInt() {
+            return mDelegate.readInt();
+        }
+
+        @Override
+        public long readLong() {
+            return mDelegate.readLong();
+        }
+
+        @Override
+        public float readFloat() {
+            return mDelegate.readFloat();
+        }
+
+        @Override
+        public double readDouble() {
+            return mDelegate.readDouble();
+        }
+
+        @Override
+        public void setPosition(long position) {
+            mDelegate.setPosition(position);
+        }
+
+        @Override
+        public long position() {
+            return mDelegate.position();
+        }
+
+        @Override
+        public boolean hasRemaining() {
+            return mDelegate.hasRemaining();
+        }
+
+        @Override
+        public long remaining() {
+            return mDelegate.remaining();
+        }
+    }
+}
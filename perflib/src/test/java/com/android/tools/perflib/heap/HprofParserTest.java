@@ -18,6 +18,7 @@ package com.android.tools.perflib.heap;
 
 import com.android.testutils.TestResources;
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ext.SnapshotPostProcessor;
 import com.android.tools.perflib.heap.hprof.Hprof;
 import com.android.tools.perflib.heap.hprof.HprofClassDump;
 import com.android.tools.perflib.heap.hprof.HprofConstant;
@@ -44,8 +45,10 @@ import java.io.StringReader;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import junit.framework.TestCase;
 
 public class HprofParserTest extends TestCase {
@@ -233,6 +236,53 @@ public class HprofParserTest extends TestCase {
         assertTrue(subSubSoftReferenceClass.getIsSoftReference());
     }
 
+    public void testParallelParsing() throws IOException {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Snapshot parallel = Snapshot.createCompactSnapshot(
+                new MemoryMappedFileBuffer(file), new ProguardMap(),
+                Collections.<SnapshotPostProcessor>emptyList(), pool);
+        pool.shutdown();
+        Snapshot sequential = Snapshot.createCompactSnapshot(
+                new MemoryMappedFileBuffer(file), new ProguardMap(),
+                Collections.<SnapshotPostProcessor>emptyList());
+
+        try {
+            InstanceTable expectedTable = sequential.getInstanceTable();
+            InstanceTable actualTable = parallel.getInstanceTable();
+            assertEquals(expectedTable.getInstanceCount(), actualTable.getInstanceCount());
+            for (int i = 0; i < expectedTable.getInstanceCount(); i++) {
+                assertEquals(expectedTable.getId(i), actualTable.getId(i));
+                assertEquals(expectedTable.getClassId(i), actualTable.getClassId(i));
+                assertEquals(expectedTable.getSize(i), actualTable.getSize(i));
+            }
+
+            parallel.resolveReferences();
+            for (Heap heap : mSnapshot.getHeaps()) {
+                Heap parallelHeap = parallel.getHeap(heap.getId());
+                assertEquals(heap.getInstancesCount(), parallelHeap.getInstancesCount());
+                for (ClassObj classObj : heap.getClasses()) {
+                    List<Instance> expected = classObj.getHeapInstances(heap.getId());
+                    List<Instance> actual = parallelHeap.getClass(classObj.getId())
+                            .getHeapInstances(heap.getId());
+                    assertEquals(expected.size(), actual.size());
+                    for (int i = 0; i < expected.size(); i++) {
+                        Instance instance = parallel.findInstance(expected.get(i).getId());
+                        assertSame(parallelHeap, instance.getHeap());
+                        assertEquals(expected.get(i).getSize(), instance.getSize());
+                        assertEquals(expected.get(i).getStack().getSerialNumber(),
+                                instance.getStack().getSerialNumber());
+                        assertEquals(expected.get(i).getHardForwardReferences().size(),
+                                instance.getHardForwardReferences().size());
+                    }
+                }
+            }
+        } finally {
+            parallel.dispose();
+            sequential.dispose();
+        }
+    }
+
     public void testHprofParser() throws IOException, ParseException {
         // Set up a heap dump with a single stack frame, stack trace, class,
         // and instance to test deobfuscation.
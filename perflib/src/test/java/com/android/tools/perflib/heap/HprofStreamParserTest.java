@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.HprofRecordVisitor.RecordType;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongHashSet;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+
+public class HprofStreamParserTest extends TestCase {
+
+    private File mFile;
+
+    private Snapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshot.dispose();
+        super.tearDown();
+    }
+
+    public void testObjects() throws Exception {
+        CountingVisitor visitor = new CountingVisitor(EnumSet.allOf(RecordType.class));
+        DataBuffer buffer = new MemoryMappedFileBuffer(mFile);
+        HprofStreamParser.parse(buffer, Collections.singletonList(visitor));
+        buffer.dispose();
+
+        assertEquals(4, visitor.mIdSize);
+        assertTrue(visitor.mEnded);
+        assertEquals(mSnapshot.getGCRoots().size(), visitor.mRoots);
+        for (Heap heap : mSnapshot.getHeaps()) {
+            if (heap.getId() != 0) {
+                // The default heap has no heap dump info.
+                assertEquals(heap.getName(), visitor.mHeapNames.get(heap.getId()));
+            }
+            TLongHashSet classes = CountingVisitor.getIds(visitor.mClasses, heap.getId());
+            TLongHashSet instances = CountingVisitor.getIds(visitor.mInstances, heap.getId());
+            assertEquals(heap.getClasses().size(), classes.size());
+            assertEquals(heap.getInstancesCount(), instances.size());
+            heap.forEachInstance(instance -> {
+                assertTrue(instances.contains(instance.getId()));
+                return true;
+            });
+        }
+
+        ClassObj stringClass = mSnapshot.findClass("java.lang.String");
+        assertEquals(stringClass.getClassName(), visitor.mClassNames.get(stringClass.getId()));
+        assertEquals(stringClass.getFields().length,
+                visitor.mFieldCounts.get(stringClass.getId()).intValue());
+    }
+
+    public void testRecordTypeFiltering() throws Exception {
+        CountingVisitor classes = new CountingVisitor(EnumSet.of(RecordType.LOAD_CLASS));
+        CountingVisitor roots = new CountingVisitor(EnumSet.of(RecordType.ROOT));
+        DataBuffer buffer = new MemoryMappedFileBuffer(mFile);
+        HprofStreamParser.parse(buffer, Arrays.asList(classes, roots));
+        buffer.dispose();
+
+        assertFalse(classes.mClassNames.isEmpty());
+        assertEquals(0, classes.mRoots);
+        assertTrue(classes.mInstances.isEmpty());
+        assertTrue(classes.mEnded);
+
+        assertTrue(roots.mClassNames.isEmpty());
+        assertEquals(mSnapshot.getGCRoots().size(), roots.mRoots);
+        assertTrue(roots.mInstances.isEmpty());
+    }
+
+    private static class CountingVisitor implements HprofRecordVisitor {
+
+        private final Set<RecordType> mTypes;
+
+        private int mIdSize;
+
+        private final TIntObjectHashMap<String> mHeapNames = new TIntObjectHashMap<String>();
+
+        private final Map<Long, String> mClassNames = new HashMap<>();
+
+        private final Map<Long, Integer> mFieldCounts = new HashMap<>();
+
+        private final TIntObjectHashMap<TLongHashSet> mClasses =
+                new TIntObjectHashMap<TLongHashSet>();
+
+        private final TIntObjectHashMap<TLongHashSet> mInstances =
+                new TIntObjectHashMap<TLongHashSet>();
+
+        private int mRoots;
+
+        private boolean mEnded;
+
+        private CountingVisitor(@NonNull Set<RecordType> types) {
+            mTypes = types;
+        }
+
+        @NonNull
+        @Override
+        public Set<RecordType> getRecordTypes() {
+            return mTypes;
+        }
+
+        @Override
+        public void visitHeader(int idSize) {
+            mIdSize = idSize;
+        }
+
+        @Override
+        public void visitHeapDumpInfo(int heapId, @NonNull String heapName) {
+            mHeapNames.put(heapId, heapName);
+        }
+
+        @Override
+        public void visitLoadClass(long classId, @NonNull String className) {
+            mClassNames.put(classId, className);
+        }
+
+        @Override
+        public void visitClassDump(int heapId, long classId, long superClassId,
+                int instanceSize, @NonNull Field[] fields) {
+            getIds(mClasses, heapId).add(classId);
+            mFieldCounts.put(classId, fields.length);
+        }
+
+        @Override
+        public void visitInstance(int heapId, long id, long classId, @NonNull DataBuffer values,
+                int length) {
+            // Moving the buffer must not affect the parser.
+            values.readInt();
+            getIds(mInstances, heapId).add(id);
+        }
+
+        @Override
+        public void visitObjectArray(int heapId, long id, long arrayClassId,
+                @NonNull DataBuffer elements, int length) {
+            getIds(mInstances, heapId).add(id);
+        }
+
+        @Override
+        public void visitPrimitiveArray(int heapId, long id, @NonNull Type type,
+                @NonNull DataBuffer elements, int length) {
+            getIds(mInstances, heapId).add(id);
+        }
+
+        @Override
+        public void visitRoot(@NonNull RootType type, long id) {
+            mRoots++;
+        }
+
+        @Override
+        public void visitEnd() {
+            mEnded = true;
+        }
+
+        @NonNull
+        private static TLongHashSet getIds(@NonNull TIntObjectHashMap<TLongHashSet> ids,
+                int heapId) {
+            TLongHashSet set = ids.get(heapId);
+            if (set == null) {
+                set = new TLongHashSet();
+                ids.put(heapId, set);
+            }
+            return set;
+        }
+    }
+}
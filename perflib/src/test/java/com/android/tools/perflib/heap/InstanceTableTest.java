@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+
+public class InstanceTableTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private Snapshot mCompactSnapshot;
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        if (mSnapshot != null) {
+            mSnapshot.dispose();
+            mSnapshot = null;
+        }
+        if (mCompactSnapshot != null) {
+            mCompactSnapshot.dispose();
+            mCompactSnapshot = null;
+        }
+    }
+
+    public void testNoInstancesMaterialized() {
+        mCompactSnapshot = new SnapshotBuilder(4)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .addRoot(1)
+                .buildCompact();
+
+        assertTrue(mCompactSnapshot.isCompact());
+        InstanceTable table = mCompactSnapshot.getInstanceTable();
+        assertNotNull(table);
+        // 4 instances and 6 classes (4 node classes and the 2 reference classes).
+        assertEquals(10, table.getInstanceCount());
+        assertEquals(4, mCompactSnapshot.getHeap(13).getInstancesCount());
+
+        int ordinal = table.getOrdinal(3);
+        assertEquals(3, table.getId(ordinal));
+        assertEquals(103, table.getClassId(ordinal));
+        assertEquals(3, table.getSize(ordinal));
+        assertEquals(-1, table.getOrdinal(42));
+
+        Instance instance = mCompactSnapshot.findInstance(3);
+        assertNotNull(instance);
+        assertEquals(instance, mCompactSnapshot.findInstance(3));
+        assertEquals(instance, table.getInstance(ordinal));
+        assertEquals(3, instance.getSize());
+        assertEquals("Class1", instance.getClassObj().getClassName());
+    }
+
+    public void testOrdinalsSortedById() {
+        mCompactSnapshot = new SnapshotBuilder(20).addRoot(1).buildCompact();
+        InstanceTable table = mCompactSnapshot.getInstanceTable();
+        for (int i = 1; i < table.getInstanceCount(); i++) {
+            assertTrue(table.getId(i - 1) < table.getId(i));
+        }
+        for (int i = 0; i < table.getInstanceCount(); i++) {
+            assertEquals(i, table.getOrdinal(table.getId(i)));
+        }
+    }
+
+    public void testHardReferences() {
+        mCompactSnapshot = new SnapshotBuilder(5, 1, 0)
+                .addReferences(1, 2, 3)
+                .insertSoftReference(2, 4)
+                .addRoot(1)
+                .buildCompact();
+        mCompactSnapshot.resolveReferences();
+
+        InstanceTable table = mCompactSnapshot.getInstanceTable();
+        int[] references = table.getHardReferences(table.getOrdinal(1));
+        assertEquals(2, references.length);
+        assertEquals(2, table.getId(references[0]));
+        assertEquals(3, table.getId(references[1]));
+
+        // The soft reference node (id 6) only has its referent, which is not a hard reference.
+        int softReference = table.getOrdinal(6);
+        assertEquals(0, table.getHardReferences(softReference).length);
+        assertEquals(4, table.getId(table.getSoftReferent(softReference)));
+
+        List<Instance> forward = mCompactSnapshot.findInstance(1).getHardForwardReferences();
+        assertEquals(2, forward.size());
+        assertEquals(mCompactSnapshot.findInstance(2), forward.get(0));
+    }
+
+    public void testReverseReferences() {
+        mCompactSnapshot = new SnapshotBuilder(4, 1, 0)
+                .addReferences(1, 2, 3, 3)
+                .addReferences(2, 2, 3)
+                .insertSoftReference(3, 4)
+                .addRoot(1)
+                .buildCompact();
+        mCompactSnapshot.resolveReferences();
+
+        InstanceTable table = mCompactSnapshot.getInstanceTable();
+        table.resolveReverseReferences();
+        int ordinal = table.getOrdinal(3);
+        // Duplicates and self references are dropped, sources are sorted.
+        assertEquals(2, table.getReverseReferencesEnd(ordinal)
+                - table.getReverseReferencesStart(ordinal));
+        assertEquals(1, table.getId(
+                table.getReverseReferenceSource(table.getReverseReferencesStart(ordinal))));
+        assertEquals(2, table.getId(
+                table.getReverseReferenceSource(table.getReverseReferencesStart(ordinal) + 1)));
+        ordinal = table.getOrdinal(2);
+        assertEquals(1, table.getReverseReferencesEnd(ordinal)
+                - table.getReverseReferencesStart(ordinal));
+
+        // The referent of the soft reference (id 5) has no hard reverse reference.
+        assertTrue(mCompactSnapshot.findInstance(4).getHardReverseReferences().isEmpty());
+        assertEquals(1, mCompactSnapshot.findInstance(5).getHardReverseReferences().size());
+    }
+
+    public void testDominatorsMatchRegularSnapshot() {
+        SnapshotBuilder builder = new SnapshotBuilder(11, 2, 1)
+                .addReferences(1, 2, 3)
+                .insertSoftReference(1, 11)
+                .addReferences(2, 4)
+                .addReferences(3, 5, 6)
+                .insertSoftReference(4, 9)
+                .addReferences(5, 7)
+                .addReferences(6, 7)
+                .addReferences(7, 8, 10)
+                .insertSoftAndHardReference(8, 10, 9)
+                .addRoot(1);
+        mSnapshot = builder.build();
+        mCompactSnapshot = builder.buildCompact();
+        mSnapshot.computeDominators();
+        mCompactSnapshot.computeDominators();
+
+        assertEquals(mSnapshot.getReachableInstances().size(),
+                mCompactSnapshot.getReachableInstances().size());
+        for (int id = 1; id <= 14; id++) {
+            Instance expected = mSnapshot.findInstance(id);
+            Instance actual = mCompactSnapshot.findInstance(id);
+            assertEquals(expected.getDistanceToGcRoot(), actual.getDistanceToGcRoot());
+            assertEquals(expected.getTotalRetainedSize(), actual.getTotalRetainedSize());
+            assertEquals(expected.getRetainedSize(1), actual.getRetainedSize(1));
+            Instance expectedDominator = expected.getImmediateDominator();
+            Instance actualDominator = actual.getImmediateDominator();
+            if (expectedDominator == null || expectedDominator == Snapshot.SENTINEL_ROOT) {
+                assertSame(expectedDominator, actualDominator);
+            } else {
+                assertEquals(expectedDominator.getId(), actualDominator.getId());
+            }
+        }
+    }
+
+    public void testMultipleRoots() {
+        mCompactSnapshot = new SnapshotBuilder(6)
+                .addReferences(1, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 5)
+                .addReferences(4, 5)
+                .addReferences(5, 6)
+                .addRoot(1)
+                .addRoot(2)
+                .buildCompact();
+        mCompactSnapshot.computeDominators();
+
+        assertEquals(6, mCompactSnapshot.getReachableInstances().size());
+        assertSame(Snapshot.SENTINEL_ROOT,
+                mCompactSnapshot.findInstance(5).getImmediateDominator());
+        assertEquals(mCompactSnapshot.findInstance(5),
+                mCompactSnapshot.findInstance(6).getImmediateDominator());
+        assertEquals(mCompactSnapshot.findInstance(3),
+                mCompactSnapshot.findInstance(5).getNextInstanceToGcRoot());
+    }
+
+    public void testMatchesRegularSnapshotOnHprof() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mCompactSnapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(file));
+
+        ClassObj byteArray = mCompactSnapshot.findClass("byte[]");
+        assertEquals(1406, byteArray.getInstancesList().size());
+        assertEquals(681489, byteArray.getShallowSize());
+
+        ArrayInstance byteArrayInstance =
+                (ArrayInstance) mCompactSnapshot.findInstance(0xB0D60401);
+        assertEquals(byteArray, byteArrayInstance.getClassObj());
+        assertEquals(43224, byteArrayInstance.getSize());
+
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap compactHeap = mCompactSnapshot.getHeap(heap.getId());
+            assertEquals(heap.getInstancesCount(), compactHeap.getInstancesCount());
+            for (ClassObj classObj : heap.getClasses()) {
+                ClassObj compactClass = compactHeap.getClass(classObj.getId());
+                assertEquals(classObj.getInstanceCount(), compactClass.getInstanceCount());
+                assertEquals(classObj.getShallowSize(), compactClass.getShallowSize());
+            }
+        }
+
+        mSnapshot.computeDominators();
+        mCompactSnapshot.computeDominators();
+        for (Heap heap : mSnapshot.getHeaps()) {
+            heap.forEachInstance(expected -> {
+                Instance actual = mCompactSnapshot.findInstance(expected.getId());
+                // Only reachable instances have their self references removed.
+                Set<Long> expectedIds = getIds(expected.getHardReverseReferences());
+                expectedIds.remove(expected.getId());
+                assertEquals(expectedIds, getIds(actual.getHardReverseReferences()));
+                return true;
+            });
+        }
+        assertEquals(mSnapshot.getReachableInstances().size(),
+                mCompactSnapshot.getReachableInstances().size());
+        for (Instance expected : mSnapshot.getReachableInstances()) {
+            Instance actual = mCompactSnapshot.findInstance(expected.getId());
+            assertEquals(expected.getDistanceToGcRoot(), actual.getDistanceToGcRoot());
+            assertEquals(expected.getTotalRetainedSize(), actual.getTotalRetainedSize());
+        }
+    }
+
+    private static Set<Long> getIds(List<Instance> instances) {
+        Set<Long> ids = new HashSet<>();
+        for (Instance instance : instances) {
+            ids.add(instance.getId());
+        }
+        return ids;
+    }
+}
@@ -122,9 +122,19 @@ public class SnapshotBuilder {
     }
 
     public Snapshot build() {
-        InMemoryBuffer buffer = new InMemoryBuffer(getByteBuffer());
-        Snapshot snapshot = Snapshot.createSnapshot(buffer);
+        return setSoftReferenceClasses(
+                Snapshot.createSnapshot(new InMemoryBuffer(getByteBuffer())));
+    }
+
+    /**
+     * Builds a snapshot backed by an {@link InstanceTable}.
+     */
+    public Snapshot buildCompact() {
+        return setSoftReferenceClasses(
+                Snapshot.createCompactSnapshot(new InMemoryBuffer(getByteBuffer())));
+    }
 
+    private static Snapshot setSoftReferenceClasses(Snapshot snapshot) {
         // TODO: Should the parser be setting isSoftReference, not the builder?
         for (Heap heap : snapshot.getHeaps()) {
             ClassObj softClass = heap.getClass(SOFT_REFERENCE_ID);
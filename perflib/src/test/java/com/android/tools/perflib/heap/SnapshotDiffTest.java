@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.TestCase;
+
+public class SnapshotDiffTest extends TestCase {
+
+    private final List<Snapshot> mSnapshots = new ArrayList<Snapshot>();
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        for (Snapshot snapshot : mSnapshots) {
+            snapshot.dispose();
+        }
+        mSnapshots.clear();
+        super.tearDown();
+    }
+
+    public void testNewInstances() {
+        // Class names are "Class" + id / 2, and sizes are the ids.
+        SnapshotBuilder before = new SnapshotBuilder(4).addReferences(1, 2, 3).addRoot(1);
+        SnapshotBuilder after = new SnapshotBuilder(4).addReferences(1, 2, 3, 4).addRoot(1);
+        checkNewInstances(keep(before.build()), keep(after.build()));
+        checkNewInstances(keep(before.buildCompact()), keep(after.buildCompact()));
+        checkNewInstances(keep(before.build()), keep(after.buildCompact()));
+    }
+
+    private void checkNewInstances(Snapshot before, Snapshot after) {
+        List<ClassDiff> diffs = new SnapshotDiff(before, after).compute(mPool);
+        assertEquals(2, diffs.size());
+
+        ClassDiff added = find(diffs, "Class2");
+        assertEquals(0, added.getCountBefore());
+        assertEquals(1, added.getCountAfter());
+        assertEquals(4, added.getShallowSizeDelta());
+        assertEquals(4, added.getRetainedSizeDelta());
+        assertEquals(0, added.getMatchedCount());
+        assertEquals(1, added.getNewInstances().size());
+        assertEquals(4, added.getNewInstances().get(0).getId());
+
+        // The root gained a field, so it doesn't match anymore.
+        ClassDiff changed = find(diffs, "Class0");
+        assertEquals(0, changed.getCountDelta());
+        assertEquals(0, changed.getShallowSizeDelta());
+        assertEquals(6, changed.getRetainedSizeBefore());
+        assertEquals(10, changed.getRetainedSizeAfter());
+        assertEquals(1, changed.getRemovedCount());
+        assertEquals(1, changed.getNewInstances().get(0).getId());
+
+        assertNull(find(diffs, "Class1"));
+    }
+
+    public void testSameDump() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        Snapshot snapshot = keep(Snapshot.createSnapshot(new MemoryMappedFileBuffer(file)));
+        Snapshot compact = keep(Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(file)));
+        Snapshot other = keep(Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(file)));
+
+        List<ClassDiff> diffs = new ArrayList<ClassDiff>();
+        new SnapshotDiff(compact, other).compute(mPool, diffs::add);
+        assertEquals(diffs.toString(), 0, diffs.size());
+
+        assertEquals(0, new SnapshotDiff(snapshot, compact).compute(mPool).size());
+    }
+
+    private Snapshot keep(Snapshot snapshot) {
+        mSnapshots.add(snapshot);
+        return snapshot;
+    }
+
+    private static ClassDiff find(List<ClassDiff> diffs, String className) {
+        for (ClassDiff diff : diffs) {
+            if (diff.getClassName().equals(className)) {
+                return diff;
+            }
+        }
+        return null;
+    }
+}
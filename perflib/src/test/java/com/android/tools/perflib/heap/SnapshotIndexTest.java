@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.RandomAccessFile;
+import junit.framework.TestCase;
+
+public class SnapshotIndexTest extends TestCase {
+
+    private File mDir;
+
+    private File mDump;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = Files.createTempDir();
+        mDump = new File(mDir, "dialer.android-hprof");
+        Files.copy(TestResources.getFile(getClass(), "/dialer.android-hprof"), mDump);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        Snapshot expected = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(mDump));
+        expected.computeDominators();
+        File index = SnapshotIndex.getIndexFile(mDump);
+        SnapshotIndex.write(expected, mDump, index);
+
+        Snapshot actual = SnapshotIndex.read(mDump, index);
+        assertNotNull(actual);
+        assertTrue(actual.isCompact());
+
+        InstanceTable expectedTable = expected.getInstanceTable();
+        InstanceTable actualTable = actual.getInstanceTable();
+        assertEquals(expectedTable.getInstanceCount(), actualTable.getInstanceCount());
+        assertTrue(actualTable.hasResolvedReferences());
+        // Only the records that are not in the table were decoded again.
+        assertNotNull(actualTable.getRecordSpans());
+        assertEquals(expected.getGCRoots().size(), actual.getGCRoots().size());
+        for (int i = 0; i < expectedTable.getInstanceCount(); i++) {
+            assertEquals(expectedTable.getId(i), actualTable.getId(i));
+            assertEquals(expectedTable.getSize(i), actualTable.getSize(i));
+            assertEquals(expectedTable.getSoftReferent(i), actualTable.getSoftReferent(i));
+            assertEquals(expectedTable.getReferencesEnd(i), actualTable.getReferencesEnd(i));
+        }
+
+        for (Heap heap : expected.getHeaps()) {
+            Heap actualHeap = actual.getHeap(heap.getId());
+            assertEquals(heap.getInstancesCount(), actualHeap.getInstancesCount());
+            assertEquals(heap.getClasses().size(), actualHeap.getClasses().size());
+            for (ClassObj classObj : heap.getClasses()) {
+                ClassObj actualClass = actualHeap.getClass(classObj.getId());
+                assertEquals(classObj.getInstanceCount(), actualClass.getInstanceCount());
+                assertEquals(classObj.getShallowSize(heap.getId()),
+                        actualClass.getShallowSize(heap.getId()));
+                assertEquals(classObj.getTotalRetainedSize(), actualClass.getTotalRetainedSize());
+            }
+        }
+
+        assertEquals(expected.getReachableInstances().size(),
+                actual.getReachableInstances().size());
+        for (Instance instance : expected.getReachableInstances()) {
+            Instance actualInstance = actual.findInstance(instance.getId());
+            assertEquals(instance.getDistanceToGcRoot(), actualInstance.getDistanceToGcRoot());
+            assertEquals(instance.getTotalRetainedSize(), actualInstance.getTotalRetainedSize());
+            Instance dominator = instance.getImmediateDominator();
+            Instance actualDominator = actualInstance.getImmediateDominator();
+            if (dominator == Snapshot.SENTINEL_ROOT) {
+                assertSame(dominator, actualDominator);
+            } else {
+                assertEquals(dominator.getId(), actualDominator.getId());
+            }
+        }
+
+        expected.dispose();
+        actual.dispose();
+    }
+
+    public void testWithoutDominators() throws Exception {
+        Snapshot expected = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(mDump));
+        File index = SnapshotIndex.getIndexFile(mDump);
+        SnapshotIndex.write(expected, mDump, index);
+
+        Snapshot actual = SnapshotIndex.read(mDump, index);
+        assertNotNull(actual);
+        assertFalse(actual.getInstanceTable().hasResolvedReferences());
+        assertNull(actual.getInstanceTable().getDominators());
+
+        expected.computeDominators();
+        actual.computeDominators();
+        assertEquals(expected.getReachableInstances().size(),
+                actual.getReachableInstances().size());
+
+        expected.dispose();
+        actual.dispose();
+    }
+
+    public void testOpenSnapshotWritesIndex() throws Exception {
+        File index = SnapshotIndex.getIndexFile(mDump);
+        assertFalse(index.exists());
+
+        Snapshot first = SnapshotIndex.openSnapshot(mDump);
+        assertTrue(index.isFile());
+        long modified = index.lastModified();
+
+        Snapshot second = SnapshotIndex.openSnapshot(mDump);
+        assertEquals(modified, index.lastModified());
+        assertEquals(first.getReachableInstances().size(),
+                second.getReachableInstances().size());
+
+        first.dispose();
+        second.dispose();
+    }
+
+    public void testStaleIndex() throws Exception {
+        Snapshot snapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(mDump));
+        File index = SnapshotIndex.getIndexFile(mDump);
+        SnapshotIndex.write(snapshot, mDump, index);
+        snapshot.dispose();
+
+        // Same length and modification time, different contents.
+        long modified = mDump.lastModified();
+        try (RandomAccessFile file = new RandomAccessFile(mDump, "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 1);
+        }
+        assertTrue(mDump.setLastModified(modified));
+        assertNull(SnapshotIndex.read(mDump, index));
+    }
+
+    public void testModifiedDump() throws Exception {
+        Snapshot snapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(mDump));
+        File index = SnapshotIndex.getIndexFile(mDump);
+        SnapshotIndex.write(snapshot, mDump, index);
+        snapshot.dispose();
+
+        assertTrue(mDump.setLastModified(mDump.lastModified() - 10000));
+        assertNull(SnapshotIndex.read(mDump, index));
+    }
+
+    public void testVersionMismatch() throws Exception {
+        Snapshot snapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(mDump));
+        File index = SnapshotIndex.getIndexFile(mDump);
+        SnapshotIndex.write(snapshot, mDump, index);
+        snapshot.dispose();
+
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.seek(4);
+            file.writeInt(SnapshotIndex.VERSION + 1);
+        }
+        assertNull(SnapshotIndex.read(mDump, index));
+    }
+
+    public void testTruncatedIndex() throws Exception {
+        Snapshot snapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(mDump));
+        snapshot.computeDominators();
+        File index = SnapshotIndex.getIndexFile(mDump);
+        SnapshotIndex.write(snapshot, mDump, index);
+        snapshot.dispose();
+
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        assertNull(SnapshotIndex.read(mDump, index));
+    }
+
+    public void testCorruptCount() throws Exception {
+        Snapshot snapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(mDump));
+        File index = SnapshotIndex.getIndexFile(mDump);
+        SnapshotIndex.write(snapshot, mDump, index);
+        snapshot.dispose();
+
+        // The instance count follows the magic, version, dump length, mtime and checksum.
+        for (int count : new int[] {-1, Integer.MAX_VALUE}) {
+            try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+                file.seek(32);
+                file.writeInt(count);
+            }
+            assertNull(SnapshotIndex.read(mDump, index));
+        }
+    }
+}
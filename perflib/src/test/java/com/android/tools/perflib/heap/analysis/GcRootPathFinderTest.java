@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceTable;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class GcRootPathFinderTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mSnapshot != null) {
+            mSnapshot.dispose();
+            mSnapshot = null;
+        }
+        super.tearDown();
+    }
+
+    public void testShortestPathsFirst() {
+        GcRootPathFinder finder = createFinder(new SnapshotBuilder(5)
+                .addReferences(1, 2, 3, 5)
+                .addReferences(2, 4)
+                .addReferences(3, 4)
+                .addReferences(4, 5)
+                .addRoot(1));
+
+        List<List<Instance>> paths = finder.findShortestPaths(mSnapshot.findInstance(5), 10);
+        assertEquals(3, paths.size());
+        assertPath(paths.get(0), 1, 5);
+        assertPath(paths.get(1), 1, 2, 4, 5);
+        assertPath(paths.get(2), 1, 3, 4, 5);
+
+        assertEquals(1, finder.findShortestPaths(mSnapshot.findInstance(5), 1).size());
+        assertTrue(finder.findShortestPaths(mSnapshot.findInstance(5), 0).isEmpty());
+
+        paths = finder.findShortestPaths(mSnapshot.findInstance(1), 10);
+        assertEquals(1, paths.size());
+        assertPath(paths.get(0), 1);
+    }
+
+    public void testSoftReferencesIgnored() {
+        GcRootPathFinder finder = createFinder(new SnapshotBuilder(4, 2, 0)
+                .addReferences(1, 2)
+                .insertSoftReference(1, 3)
+                .insertSoftReference(1, 4)
+                .addReferences(2, 3)
+                .addRoot(1));
+
+        List<List<Instance>> paths = finder.findShortestPaths(mSnapshot.findInstance(3), 10);
+        assertEquals(1, paths.size());
+        assertPath(paths.get(0), 1, 2, 3);
+
+        // Only reachable through a soft reference.
+        assertTrue(finder.findShortestPaths(mSnapshot.findInstance(4), 10).isEmpty());
+    }
+
+    public void testCycles() {
+        GcRootPathFinder finder = createFinder(new SnapshotBuilder(4)
+                .addReferences(1, 2)
+                .addReferences(2, 3)
+                .addReferences(3, 2, 4)
+                .addReferences(4, 3)
+                .addRoot(1));
+
+        List<List<Instance>> paths = finder.findShortestPaths(mSnapshot.findInstance(4), 10);
+        assertEquals(1, paths.size());
+        assertPath(paths.get(0), 1, 2, 3, 4);
+    }
+
+    public void testRandomGraphs() {
+        Random random = new Random(7);
+        for (int graph = 0; graph < 20; graph++) {
+            // SnapshotBuilder class ids start at 100.
+            int nodeCount = 10 + random.nextInt(30);
+            SnapshotBuilder builder = new SnapshotBuilder(nodeCount);
+            for (int node = 1; node <= nodeCount; node++) {
+                int[] references = new int[random.nextInt(4)];
+                for (int i = 0; i < references.length; i++) {
+                    references[i] = 1 + random.nextInt(nodeCount);
+                }
+                builder.addReferences(node, references);
+            }
+            for (int i = 0; i < 2; i++) {
+                builder.addRoot(1 + random.nextInt(nodeCount));
+            }
+            GcRootPathFinder finder = createFinder(builder);
+            InstanceTable table = mSnapshot.getInstanceTable();
+
+            for (int node = 1; node <= nodeCount; node++) {
+                int ordinal = table.getOrdinal(node);
+                List<Integer> expected = new ArrayList<>();
+                collectPathLengths(table, ordinal, new ArrayList<>(), expected);
+                Collections.sort(expected);
+
+                List<int[]> paths = finder.findShortestPaths(ordinal, 5);
+                assertEquals(Math.min(5, expected.size()), paths.size());
+                for (int i = 0; i < paths.size(); i++) {
+                    int[] path = paths.get(i);
+                    assertEquals(expected.get(i).intValue(), path.length);
+                    assertEquals(0, table.getDominators().getDistanceToGcRoot(path[0]));
+                    assertEquals(ordinal, path[path.length - 1]);
+                    for (int j = 1; j < path.length; j++) {
+                        assertTrue(hasReference(table, path[j - 1], path[j]));
+                    }
+                }
+            }
+            mSnapshot.dispose();
+            mSnapshot = null;
+        }
+    }
+
+    public void testHprof() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(file));
+        mSnapshot.computeDominators();
+        GcRootPathFinder finder = new GcRootPathFinder(mSnapshot.getInstanceTable());
+
+        for (Instance instance : mSnapshot.getReachableInstances()) {
+            List<List<Instance>> paths = finder.findShortestPaths(instance, 3);
+            assertFalse(paths.isEmpty());
+            List<Instance> shortest = paths.get(0);
+            assertEquals(instance.getDistanceToGcRoot() + 1, shortest.size());
+            assertEquals(instance, shortest.get(shortest.size() - 1));
+            for (int i = 1; i < paths.size(); i++) {
+                assertTrue(paths.get(i - 1).size() <= paths.get(i).size());
+            }
+        }
+    }
+
+    private GcRootPathFinder createFinder(SnapshotBuilder builder) {
+        mSnapshot = builder.buildCompact();
+        mSnapshot.computeDominators();
+        return new GcRootPathFinder(mSnapshot.getInstanceTable());
+    }
+
+    private static void assertPath(List<Instance> path, long... ids) {
+        assertEquals(ids.length, path.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], path.get(i).getId());
+        }
+    }
+
+    /**
+     * Lengths of all the simple paths from a GC root to {@code ordinal}, by exhaustive search.
+     */
+    private static void collectPathLengths(InstanceTable table, int ordinal, List<Integer> path,
+            List<Integer> lengths) {
+        if (table.getDominators().getDistanceToGcRoot(ordinal) == Integer.MAX_VALUE
+                || path.contains(ordinal)) {
+            return;
+        }
+        path.add(ordinal);
+        if (table.getDominators().getDistanceToGcRoot(ordinal) == 0) {
+            lengths.add(path.size());
+        } else {
+            int end = table.getReverseReferencesEnd(ordinal);
+            for (int i = table.getReverseReferencesStart(ordinal); i < end; i++) {
+                collectPathLengths(table, table.getReverseReferenceSource(i), path, lengths);
+            }
+        }
+        path.remove(path.size() - 1);
+    }
+
+    private static boolean hasReference(InstanceTable table, int source, int target) {
+        for (int reference : table.getHardReferences(source)) {
+            if (reference == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
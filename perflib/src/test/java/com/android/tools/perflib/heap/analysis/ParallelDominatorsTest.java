@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.TestCase;
+
+public class ParallelDominatorsTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    public void testCyclicGraph() {
+        SnapshotBuilder builder = new SnapshotBuilder(8)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 5)
+                .addReferences(4, 5, 6)
+                .addReferences(5, 4, 7)
+                .addReferences(6, 8)
+                .addReferences(7, 8)
+                .addReferences(8, 2)
+                .addRoot(1);
+        assertSameDominators(builder);
+    }
+
+    public void testMultipleRoots() {
+        SnapshotBuilder builder = new SnapshotBuilder(6)
+                .addReferences(1, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 5)
+                .addReferences(4, 5)
+                .addReferences(5, 6)
+                .addRoot(1)
+                .addRoot(2);
+        assertSameDominators(builder);
+    }
+
+    public void testRandomGraphs() {
+        Random random = new Random(42);
+        for (int graph = 0; graph < 20; graph++) {
+            // SnapshotBuilder class ids start at 100.
+            int nodeCount = 20 + random.nextInt(79);
+            SnapshotBuilder builder = new SnapshotBuilder(nodeCount);
+            for (int node = 1; node <= nodeCount; node++) {
+                int[] references = new int[random.nextInt(4)];
+                for (int i = 0; i < references.length; i++) {
+                    references[i] = 1 + random.nextInt(nodeCount);
+                }
+                builder.addReferences(node, references);
+            }
+            for (int i = 0; i < 3; i++) {
+                builder.addRoot(1 + random.nextInt(nodeCount));
+            }
+            assertSameDominators(builder);
+        }
+    }
+
+    public void testCompactSnapshot() {
+        SnapshotBuilder builder = new SnapshotBuilder(11, 2, 1)
+                .addReferences(1, 2, 3)
+                .insertSoftReference(1, 11)
+                .addReferences(2, 4)
+                .addReferences(3, 5, 6)
+                .insertSoftReference(4, 9)
+                .addReferences(5, 7)
+                .addReferences(6, 7)
+                .addReferences(7, 8, 10)
+                .insertSoftAndHardReference(8, 10, 9)
+                .addRoot(1);
+        Snapshot expected = builder.buildCompact();
+        Snapshot actual = builder.buildCompact();
+        expected.computeDominators();
+        actual.computeDominators(mPool);
+        assertSameDominators(expected, actual);
+        expected.dispose();
+        actual.dispose();
+    }
+
+    public void testHprof() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+
+        Snapshot expected = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        expected.computeDominators();
+        Snapshot actual = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        actual.computeDominators(mPool);
+        assertSameDominators(expected, actual);
+        actual.dispose();
+
+        Snapshot compact = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(file));
+        compact.computeDominators(mPool);
+        assertSameDominators(expected, compact);
+        compact.dispose();
+        expected.dispose();
+    }
+
+    private void assertSameDominators(SnapshotBuilder builder) {
+        Snapshot expected = builder.build();
+        Snapshot actual = builder.build();
+        expected.computeDominators();
+        actual.computeDominators(mPool);
+        assertSameDominators(expected, actual);
+        expected.dispose();
+        actual.dispose();
+    }
+
+    private static void assertSameDominators(Snapshot expected, Snapshot actual) {
+        assertEquals(expected.getReachableInstances().size(),
+                actual.getReachableInstances().size());
+        for (Heap heap : expected.getHeaps()) {
+            for (Instance instance : heap.getClasses()) {
+                assertSameDominator(instance, actual.findInstance(instance.getId()));
+            }
+            heap.forEachInstance(instance -> {
+                assertSameDominator(instance, actual.findInstance(instance.getId()));
+                return true;
+            });
+        }
+    }
+
+    private static void assertSameDominator(Instance expected, Instance actual) {
+        assertEquals(expected.isReachable(), actual.isReachable());
+        if (!expected.isReachable()) {
+            assertNull(actual.getImmediateDominator());
+            return;
+        }
+        assertEquals(expected.getTotalRetainedSize(), actual.getTotalRetainedSize());
+        Instance expectedDominator = expected.getImmediateDominator();
+        Instance actualDominator = actual.getImmediateDominator();
+        if (expectedDominator == Snapshot.SENTINEL_ROOT) {
+            assertSame(expectedDominator, actualDominator);
+        } else {
+            assertEquals(expectedDominator.getId(), actualDominator.getId());
+        }
+    }
+}
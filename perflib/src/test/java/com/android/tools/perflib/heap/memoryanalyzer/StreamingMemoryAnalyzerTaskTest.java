@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.memoryanalyzer.ClassHistogramStreamingTask.ClassHistogramEntry;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StreamingMemoryAnalyzerTaskTest {
+
+    private File mFile;
+
+    private Snapshot mSnapshot;
+
+    private Heap mHeap;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile));
+        mHeap = mSnapshot.getHeap(StreamingMemoryAnalyzerTask.DEFAULT_HEAP_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mSnapshot.dispose();
+    }
+
+    @Test
+    public void testClassHistogram() throws Exception {
+        Map<String, Integer> expectedCounts = new HashMap<>();
+        Map<String, Long> expectedSizes = new HashMap<>();
+        mHeap.forEachInstance(instance -> {
+            String className = instance.getClassObj().getClassName();
+            expectedCounts.merge(className, 1, Integer::sum);
+            expectedSizes.merge(className, (long) instance.getSize(), Long::sum);
+            return true;
+        });
+
+        ClassHistogramStreamingTask task = new ClassHistogramStreamingTask();
+        List<AnalysisResultEntry<?>> results = analyze(task);
+        assertEquals(ClassHistogramStreamingTask.DEFAULT_TOP_COUNT, results.size());
+
+        List<ClassHistogramEntry> histogram = task.getHistogram();
+        assertEquals(expectedCounts.size(), histogram.size());
+        long previousSize = Long.MAX_VALUE;
+        for (ClassHistogramEntry entry : histogram) {
+            assertEquals(expectedCounts.get(entry.getClassName()).intValue(),
+                    entry.getInstanceCount());
+            assertEquals(expectedSizes.get(entry.getClassName()).longValue(),
+                    entry.getShallowSize());
+            assertTrue(entry.getShallowSize() <= previousSize);
+            previousSize = entry.getShallowSize();
+        }
+    }
+
+    @Test
+    public void testDuplicatedStrings() throws Exception {
+        // Unlike DuplicatedStringsAnalyzerTask, unreachable strings are included.
+        Map<String, Set<Long>> idsByString = new HashMap<>();
+        ClassObj stringClass = mSnapshot.findClass("java.lang.String");
+        for (Instance instance : stringClass.getHeapInstances(mHeap.getId())) {
+            char[] characters = ((ClassInstance) instance).getStringChars();
+            if (characters != null) {
+                idsByString.computeIfAbsent(new String(characters), key -> new HashSet<>())
+                        .add(instance.getId());
+            }
+        }
+        Set<Set<Long>> expected = new HashSet<>();
+        for (Set<Long> ids : idsByString.values()) {
+            if (ids.size() > 1) {
+                expected.add(ids);
+            }
+        }
+        assertFalse(expected.isEmpty());
+
+        Set<Set<Long>> actual = new HashSet<>();
+        for (AnalysisResultEntry<?> entry : analyze(new DuplicatedStringsStreamingTask())) {
+            assertEquals("Duplicated Strings", entry.getCategory());
+            Set<Long> ids = new HashSet<>();
+            for (Object id : entry.getOffender().getOffenders()) {
+                ids.add((Long) id);
+            }
+            String string = entry.getOffender().getOffendingDescription();
+            assertTrue(idsByString.get(string) != null || string.length() == 200);
+            actual.add(ids);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSinglePass() throws Exception {
+        ClassHistogramStreamingTask histogram = new ClassHistogramStreamingTask(null, 5);
+        DuplicatedStringsStreamingTask strings = new DuplicatedStringsStreamingTask(null);
+        List<AnalysisResultEntry<?>> results = analyze(histogram, strings);
+
+        int expectedInstances = 0;
+        for (Heap heap : mSnapshot.getHeaps()) {
+            expectedInstances += heap.getInstancesCount();
+        }
+        int instances = 0;
+        for (ClassHistogramEntry entry : histogram.getHistogram()) {
+            instances += entry.getInstanceCount();
+        }
+        assertEquals(expectedInstances, instances);
+        assertEquals(5 + strings.getResults().size(), results.size());
+    }
+
+    private List<AnalysisResultEntry<?>> analyze(StreamingMemoryAnalyzerTask... tasks)
+            throws Exception {
+        DataBuffer buffer = new MemoryMappedFileBuffer(mFile);
+        try {
+            return StreamingMemoryAnalyzerTask.analyze(buffer, Arrays.asList(tasks));
+        } finally {
+            buffer.dispose();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.testutils.TestResources;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class VmTraceIndexTest extends TestCase {
+    private File mIndexFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndexFile = File.createTempFile("vmtrace", ".index");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mIndexFile.delete();
+        super.tearDown();
+    }
+
+    public void testBasicTrace() throws IOException {
+        compareWithTraceData("/basic.trace");
+    }
+
+    public void testBasicApi10Trace() throws IOException {
+        compareWithTraceData("/basic-api10.trace");
+    }
+
+    public void testMisMatchedTrace() throws IOException {
+        compareWithTraceData("/mismatched.trace");
+    }
+
+    public void testExceptionTrace() throws IOException {
+        compareWithTraceData("/exception.trace");
+    }
+
+    public void testStreamingTrace() throws IOException {
+        compareWithTraceData("/streaming.trace");
+    }
+
+    public void testTimeWindows() throws IOException {
+        VmTraceIndex index = getVmTraceIndex("/basic.trace");
+        try {
+            ThreadInfo thread = index.getThread("AsyncTask #1");
+            VmTraceIndex.CallTable calls = index.getCalls(thread);
+            int topCall = calls.size() - 1;
+            long start = calls.getEntryTime(topCall, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+            long end = calls.getExitTime(topCall, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+
+            for (long windowStart = start - 1; windowStart <= end; windowStart += 7) {
+                for (long windowEnd = windowStart + 1; windowEnd <= end + 1; windowEnd += 13) {
+                    Set<Integer> expected = new HashSet<Integer>();
+                    for (int call = 0; call < calls.size(); call++) {
+                        if (calls.getExitTime(call, ClockType.GLOBAL, TimeUnit.MICROSECONDS)
+                                > windowStart
+                                && calls.getEntryTime(call, ClockType.GLOBAL,
+                                        TimeUnit.MICROSECONDS) < windowEnd) {
+                            expected.add(call);
+                        }
+                    }
+
+                    Set<Integer> actual = new HashSet<Integer>();
+                    calls.forEachCall(ClockType.GLOBAL, windowStart, windowEnd,
+                            TimeUnit.MICROSECONDS, actual::add);
+                    assertEquals(expected, actual);
+                }
+            }
+
+            // The whole trace
+            Map<Long, MethodProfileData> profileData = index.getProfileData(thread,
+                    ClockType.GLOBAL, 0, Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+            for (Map.Entry<Long, MethodProfileData> entry : profileData.entrySet()) {
+                MethodProfileData expected = index.getMethod(entry.getKey()).getProfileData();
+                assertEquals(expected.getInvocationCount(thread),
+                        entry.getValue().getInvocationCount(thread));
+                assertEquals(
+                        expected.getInclusiveTime(thread, ClockType.GLOBAL, TimeUnit.NANOSECONDS),
+                        entry.getValue().getInclusiveTime(thread, ClockType.GLOBAL,
+                                TimeUnit.NANOSECONDS));
+            }
+            assertEquals(100.,
+                    index.getDurationPercentage(end - start, thread, ClockType.GLOBAL, 0,
+                            Long.MAX_VALUE, TimeUnit.MICROSECONDS), 0.001);
+
+            // Windows covering half of the top level call
+            long middle = (start + end) / 2;
+            profileData = index.getProfileData(thread, ClockType.GLOBAL, middle, end,
+                    TimeUnit.MICROSECONDS);
+            long topMethodId = calls.getMethodId(topCall);
+            assertEquals(1, profileData.get(topMethodId).getInvocationCount(thread));
+            assertEquals(50.,
+                    index.getDurationPercentage((end - start) / 4, thread, ClockType.GLOBAL,
+                            start, middle, TimeUnit.MICROSECONDS), 1.);
+
+            // Windows outside of the top level call
+            assertEquals(0.,
+                    index.getDurationPercentage(0, thread, ClockType.GLOBAL, end + 1, end + 10,
+                            TimeUnit.MICROSECONDS), 0.);
+
+            VmTraceIndex.CallSearchResult result = index.searchFor("startMethodTracing", thread,
+                    ClockType.GLOBAL, 0, Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+            for (int call : result.getInstances()) {
+                assertTrue(result.getMethods().contains(index.getMethod(calls.getMethodId(call))));
+            }
+            assertEquals(0, index.searchFor("startMethodTracing", thread, ClockType.GLOBAL,
+                    end + 1, end + 10, TimeUnit.MICROSECONDS).getInstances().length);
+        } finally {
+            index.close();
+        }
+        assertFalse(mIndexFile.exists());
+    }
+
+    private void compareWithTraceData(String traceFilePath) throws IOException {
+        VmTraceData traceData = getVmTraceData(traceFilePath);
+        VmTraceIndex index = getVmTraceIndex(traceFilePath);
+        try {
+            assertEquals(traceData.getVersion(), index.getVersion());
+            assertEquals(traceData.getVmClockType(), index.getVmClockType());
+            assertEquals(traceData.getMethods().keySet(), index.getMethods().keySet());
+            assertEquals(traceData.getThreads().size(), index.getThreads().size());
+
+            for (ThreadInfo thread : traceData.getThreads()) {
+                ThreadInfo indexThread = index.getThread(thread.getName());
+                assertNotNull(indexThread);
+                compareCalls(thread, index.getCalls(indexThread));
+
+                for (MethodInfo method : traceData.getMethods().values()) {
+                    compareProfileData(method.getProfileData(),
+                            index.getMethod(method.id).getProfileData(), thread, indexThread);
+                }
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private static void compareCalls(ThreadInfo thread, VmTraceIndex.CallTable calls) {
+        List<Call> expected = new ArrayList<Call>();
+        if (thread.getTopLevelCall() != null) {
+            addCallsInExitOrder(thread.getTopLevelCall(), expected);
+        }
+
+        assertEquals(expected.size(), calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            Call call = expected.get(i);
+            assertEquals(call.getMethodId(), calls.getMethodId(i));
+            assertEquals(call.getDepth(), calls.getDepth(i));
+            assertEquals(call.isRecursive(), calls.isRecursive(i));
+            for (ClockType clockType : ClockType.values()) {
+                TimeUnit unit = TimeUnit.MICROSECONDS;
+                assertEquals(call.getEntryTime(clockType, unit),
+                        calls.getEntryTime(i, clockType, unit));
+                assertEquals(call.getExitTime(clockType, unit),
+                        calls.getExitTime(i, clockType, unit));
+                assertEquals(call.getInclusiveTime(clockType, unit),
+                        calls.getInclusiveTime(i, clockType, unit));
+                assertEquals(call.getExclusiveTime(clockType, unit),
+                        calls.getExclusiveTime(i, clockType, unit));
+            }
+            if (calls.getParent(i) >= 0) {
+                assertTrue(expected.get(calls.getParent(i)).getCallees().contains(call));
+            } else {
+                assertEquals(calls.size() - 1, i);
+            }
+        }
+    }
+
+    private static void addCallsInExitOrder(Call call, List<Call> calls) {
+        for (Call callee : call.getCallees()) {
+            addCallsInExitOrder(callee, calls);
+        }
+        calls.add(call);
+    }
+
+    private static void compareProfileData(MethodProfileData expected, MethodProfileData actual,
+            ThreadInfo thread, ThreadInfo indexThread) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+
+        assertEquals(expected.isRecursive(), actual.isRecursive());
+        assertEquals(expected.getInvocationCount(thread), actual.getInvocationCount(indexThread));
+        assertEquals(expected.getCallers(thread), actual.getCallers(indexThread));
+        assertEquals(expected.getCallees(thread), actual.getCallees(indexThread));
+        for (ClockType clockType : ClockType.values()) {
+            TimeUnit unit = TimeUnit.NANOSECONDS;
+            assertEquals(expected.getInclusiveTime(thread, clockType, unit),
+                    actual.getInclusiveTime(indexThread, clockType, unit));
+            assertEquals(expected.getExclusiveTime(thread, clockType, unit),
+                    actual.getExclusiveTime(indexThread, clockType, unit));
+            for (Long callerId : expected.getCallers(thread)) {
+                assertEquals(expected.getInvocationCountFromCaller(thread, callerId),
+                        actual.getInvocationCountFromCaller(indexThread, callerId));
+                assertEquals(expected.getInclusiveTimeByCaller(thread, callerId, clockType, unit),
+                        actual.getInclusiveTimeByCaller(indexThread, callerId, clockType, unit));
+                assertEquals(expected.getExclusiveTimeByCaller(thread, callerId, clockType, unit),
+                        actual.getExclusiveTimeByCaller(indexThread, callerId, clockType, unit));
+            }
+            for (Long calleeId : expected.getCallees(thread)) {
+                assertEquals(expected.getInclusiveTimeByCallee(thread, calleeId, clockType, unit),
+                        actual.getInclusiveTimeByCallee(indexThread, calleeId, clockType, unit));
+            }
+        }
+    }
+
+    private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
+        VmTraceData.Builder dataBuilder = new VmTraceData.Builder();
+        VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), dataBuilder);
+        parser.parse();
+        return dataBuilder.build();
+    }
+
+    private VmTraceIndex getVmTraceIndex(String traceFilePath) throws IOException {
+        VmTraceIndex.Builder indexBuilder = new VmTraceIndex.Builder(mIndexFile);
+        VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), indexBuilder);
+        parser.parse();
+        return indexBuilder.build();
+    }
+
+    private File getFile(String path) {
+        return TestResources.getFile(getClass(), path);
+    }
+}
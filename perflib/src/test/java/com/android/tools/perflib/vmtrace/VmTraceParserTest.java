@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 public class VmTraceParserTest extends TestCase {
@@ -364,6 +365,77 @@ public class VmTraceParserTest extends TestCase {
         doTestMethodProfilingData(traceData, okHttp);
     }
 
+    public void testParallelProfileData() {
+        // Generates nested calls on many threads, so that they are aggregated concurrently.
+        VmTraceData.Builder serialBuilder = new VmTraceData.Builder();
+        VmTraceData.Builder parallelBuilder = new VmTraceData.Builder();
+        Random random = new Random(42);
+        for (VmTraceData.Builder builder : Arrays.asList(serialBuilder, parallelBuilder)) {
+            for (long methodId = 4; methodId <= 40; methodId += 4) {
+                builder.addMethod(methodId, new MethodInfo(methodId, "Class", "m" + methodId,
+                        "()V", "Class.java", 1));
+            }
+        }
+        for (int threadId = 1; threadId <= 128; threadId++) {
+            int time = 0;
+            Deque<Long> stack = new ArrayDeque<Long>();
+            for (int action = 0; action < 200; action++) {
+                time += random.nextInt(10);
+                if (stack.isEmpty() || (stack.size() < 8 && random.nextBoolean())) {
+                    long methodId = 4 * (1 + random.nextInt(10));
+                    stack.push(methodId);
+                    serialBuilder.addMethodAction(threadId, methodId, TraceAction.METHOD_ENTER,
+                            time, time);
+                    parallelBuilder.addMethodAction(threadId, methodId, TraceAction.METHOD_ENTER,
+                            time, time);
+                } else {
+                    long methodId = stack.pop();
+                    serialBuilder.addMethodAction(threadId, methodId, TraceAction.METHOD_EXIT,
+                            time, time);
+                    parallelBuilder.addMethodAction(threadId, methodId, TraceAction.METHOD_EXIT,
+                            time, time);
+                }
+            }
+        }
+
+        VmTraceData serial = serialBuilder.build();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        VmTraceData parallel;
+        try {
+            parallel = parallelBuilder.build(pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(128, parallel.getThreads().size());
+        for (ThreadInfo thread : serial.getThreads()) {
+            for (MethodInfo method : serial.getMethods().values()) {
+                MethodProfileData expected = method.getProfileData();
+                MethodProfileData actual = parallel.getMethod(method.id).getProfileData();
+                if (expected == null) {
+                    assertNull(actual);
+                    continue;
+                }
+                assertEquals(expected.isRecursive(), actual.isRecursive());
+                assertEquals(expected.getInvocationCount(thread),
+                        actual.getInvocationCount(thread));
+                assertEquals(expected.getCallers(thread), actual.getCallers(thread));
+                assertEquals(expected.getCallees(thread), actual.getCallees(thread));
+                for (ClockType type : ClockType.values()) {
+                    TimeUnit unit = TimeUnit.MICROSECONDS;
+                    assertEquals(expected.getInclusiveTime(thread, type, unit),
+                            actual.getInclusiveTime(thread, type, unit));
+                    assertEquals(expected.getExclusiveTime(thread, type, unit),
+                            actual.getExclusiveTime(thread, type, unit));
+                    assertEquals(sumInclusiveTimesByCallee(expected, thread, type, unit),
+                            sumInclusiveTimesByCallee(actual, thread, type, unit));
+                    assertEquals(sumExclusiveTimesByCaller(expected, thread, type, unit),
+                            sumExclusiveTimesByCaller(actual, thread, type, unit));
+                }
+            }
+        }
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
         VmTraceData.Builder dataBuilder = new VmTraceData.Builder();
         VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), dataBuilder);
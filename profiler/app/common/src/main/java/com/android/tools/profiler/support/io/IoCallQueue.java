@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.profiler.support.io;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queue of the I/O calls tracked by {@link IoTracker}, which reports them in batches from a single
+ * background thread instead of reporting each of them from the thread that made it.
+ *
+ * <p>Each thread adds its calls to a ring buffer of its own, made of fixed-size records stored in
+ * a {@code long[]}. A buffer has a single writer, its thread, and a single reader, the thread
+ * draining the queue, so the positions in the buffer are published with atomic writes and adding
+ * a call neither takes a lock nor allocates. When the buffer of a thread is full, the call is
+ * reported directly from that thread.
+ *
+ * <p>The draining thread parks whenever the queue is empty, and is unparked by the first call
+ * added after that.
+ */
+final class IoCallQueue {
+
+    /** Receives the I/O calls of the queue. Its methods can be called from any thread. */
+    interface Receiver {
+        /**
+         * Receives a batch of I/O calls.
+         *
+         * @param records the calls, as {@link #RECORD_SIZE} values per call: the session ID, the
+         *     start timestamp, the end timestamp, and the number of bytes shifted left by one,
+         *     with the lowest bit set for a read. Only the first {@code count} records are valid,
+         *     and the array is reused once this method returns.
+         * @param count the number of calls in {@code records}.
+         */
+        void receive(long[] records, int count);
+
+        /** Receives a single I/O call, which could not be added to the queue. */
+        void receive(
+                long sessionId,
+                int numberOfBytes,
+                long startTimestamp,
+                long endTimestamp,
+                boolean read);
+    }
+
+    /** Number of {@code long} values used to store a call. */
+    static final int RECORD_SIZE = 4;
+
+    private static final int DEFAULT_BUFFER_CAPACITY = 256;
+    private static final int BATCH_CAPACITY = 1024;
+
+    private final Receiver myReceiver;
+    private final int myBufferCapacity;
+    private final boolean myDrainInBackground;
+    private final List<Buffer> myBuffers = new CopyOnWriteArrayList<Buffer>();
+    private final long[] myBatch = new long[BATCH_CAPACITY * RECORD_SIZE];
+    private int myBatchCount;
+
+    private final ThreadLocal<Buffer> myThreadBuffer =
+            new ThreadLocal<Buffer>() {
+                @Override
+                protected Buffer initialValue() {
+                    Buffer buffer = new Buffer(Thread.currentThread(), myBufferCapacity);
+                    myBuffers.add(buffer);
+                    if (myDrainInBackground) {
+                        startDrainingThread();
+                    }
+                    return buffer;
+                }
+            };
+
+    private volatile Thread myDrainingThread;
+
+    /** Whether the draining thread found the queue empty and parked, or is about to. */
+    private final AtomicBoolean myDrainingThreadIdle = new AtomicBoolean();
+
+    IoCallQueue(Receiver receiver) {
+        this(receiver, DEFAULT_BUFFER_CAPACITY, true);
+    }
+
+    /**
+     * @param bufferCapacity the number of calls that the buffer of each thread can hold, which
+     *     must be a power of two.
+     * @param drainInBackground whether a background thread drains the queue, or whether the
+     *     calls are only reported when {@link #drain()} is called.
+     */
+    IoCallQueue(Receiver receiver, int bufferCapacity, boolean drainInBackground) {
+        assert Integer.bitCount(bufferCapacity) == 1;
+        myReceiver = receiver;
+        myBufferCapacity = bufferCapacity;
+        myDrainInBackground = drainInBackground;
+    }
+
+    /** Adds a call made by the current thread to the queue. */
+    void add(long sessionId, int numberOfBytes, long startTimestamp, long endTimestamp,
+            boolean read) {
+        Buffer buffer = myThreadBuffer.get();
+        if (!buffer.add(sessionId, numberOfBytes, startTimestamp, endTimestamp, read)) {
+            myReceiver.receive(sessionId, numberOfBytes, startTimestamp, endTimestamp, read);
+        }
+        // Only the first call added to an empty queue pays for unparking the draining thread.
+        if (myDrainingThreadIdle.get() && myDrainingThreadIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(myDrainingThread);
+        }
+    }
+
+    /**
+     * Reports all the calls added to the queue so far to the receiver.
+     *
+     * @return whether any call was reported.
+     */
+    synchronized boolean drain() {
+        boolean drained = false;
+        for (Buffer buffer : myBuffers) {
+            drained |= buffer.drainTo(this);
+            if (buffer.isOrphan()) {
+                // Calls added by the thread before it died can still be in the buffer.
+                buffer.drainTo(this);
+                myBuffers.remove(buffer);
+            }
+        }
+        flushBatch();
+        return drained;
+    }
+
+    private boolean isEmpty() {
+        for (Buffer buffer : myBuffers) {
+            if (buffer.size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parks the draining thread until a call is added to the queue. The queue is checked again
+     * after the thread is marked idle, so that a call added concurrently either is seen here or
+     * sees the idle flag and unparks the thread.
+     */
+    private void awaitCalls() {
+        myDrainingThreadIdle.set(true);
+        if (isEmpty()) {
+            LockSupport.park(this);
+        }
+        myDrainingThreadIdle.set(false);
+    }
+
+    private void addToBatch(long[] records, int offset) {
+        System.arraycopy(
+                records, offset, myBatch, myBatchCount * RECORD_SIZE, RECORD_SIZE);
+        myBatchCount++;
+        if (myBatchCount == BATCH_CAPACITY) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        if (myBatchCount == 0) {
+            return;
+        }
+        myReceiver.receive(myBatch, myBatchCount);
+        myBatchCount = 0;
+    }
+
+    private synchronized void startDrainingThread() {
+        if (myDrainingThread != null) {
+            return;
+        }
+        Thread thread =
+                new Thread("Studio:IoCallQueue") {
+                    @Override
+                    public void run() {
+                        while (true) {
+                            if (!drain()) {
+                                awaitCalls();
+                            }
+                        }
+                    }
+                };
+        thread.setDaemon(true);
+        myDrainingThread = thread;
+        thread.start();
+    }
+
+    /** Single-producer, single-consumer ring buffer of the calls made by a thread. */
+    private static final class Buffer {
+        private final WeakReference<Thread> myThread;
+        private final long[] myRecords;
+        private final int myMask;
+
+        /** Index of the next call to read, only written by the draining thread. */
+        private final AtomicLong myHead = new AtomicLong();
+
+        /** Index of the next call to write, only written by the thread of the buffer. */
+        private final AtomicLong myTail = new AtomicLong();
+
+        private Buffer(Thread thread, int capacity) {
+            myThread = new WeakReference<Thread>(thread);
+            myRecords = new long[capacity * RECORD_SIZE];
+            myMask = capacity - 1;
+        }
+
+        private boolean add(long sessionId, int numberOfBytes, long startTimestamp,
+                long endTimestamp, boolean read) {
+            long tail = myTail.get();
+            if (tail - myHead.get() > myMask) {
+                return false;
+            }
+            int offset = (int) (tail & myMask) * RECORD_SIZE;
+            myRecords[offset] = sessionId;
+            myRecords[offset + 1] = startTimestamp;
+            myRecords[offset + 2] = endTimestamp;
+            myRecords[offset + 3] = ((long) numberOfBytes << 1) | (read ? 1 : 0);
+            // Publishes the record to the draining thread. This is a volatile write rather than an
+            // ordered one, so that it cannot be reordered with the check of the idle flag that
+            // follows in IoCallQueue#add.
+            myTail.set(tail + 1);
+            return true;
+        }
+
+        private long size() {
+            return myTail.get() - myHead.get();
+        }
+
+        private boolean drainTo(IoCallQueue queue) {
+            long head = myHead.get();
+            long tail = myTail.get();
+            for (long i = head; i < tail; i++) {
+                queue.addToBatch(myRecords, (int) (i & myMask) * RECORD_SIZE);
+            }
+            // Gives the slots back to the thread of the buffer.
+            myHead.lazySet(tail);
+            return tail != head;
+        }
+
+        private boolean isOrphan() {
+            Thread thread = myThread.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+}
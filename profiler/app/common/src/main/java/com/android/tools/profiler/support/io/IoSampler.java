@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.profiler.support.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which of the I/O calls of the file sessions are reported by {@link IoTracker}.
+ *
+ * <p>A call is a candidate for being reported if it is every Nth call of its session, and if it
+ * passes a probability check. The candidates are then throttled when there are more of them per
+ * second, across all the sessions, than a budget: in each second, only one candidate out of
+ * {@code ceil(rate / budget)} is reported, where the rate is the number of candidates of the
+ * previous second.
+ *
+ * <p>The calls that are not reported are not lost: {@link IoTracker} adds their bytes to the next
+ * reported call of the session, so that the number of bytes read and written stays exact.
+ *
+ * <p>Sampling is off unless it is enabled in the {@code IoConfig} of the agent config, which is
+ * passed to {@link IoTracker#setSamplingConfig(int, double, int)}.
+ */
+final class IoSampler {
+    /** Sampler used when sampling is off, which reports all the calls. */
+    static final IoSampler REPORT_ALL = new IoSampler(1, 1, 0);
+
+    private static final long WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int myInterval;
+    private final double myProbability;
+    private final int myBudget;
+
+    /** Start of the current window, or {@link Long#MIN_VALUE} before the first candidate. */
+    private final AtomicLong myWindowStart = new AtomicLong(Long.MIN_VALUE);
+
+    /** Number of candidates in the current window. */
+    private final AtomicInteger myWindowCount = new AtomicInteger();
+
+    /** One candidate out of this number is reported. */
+    private volatile int myThrottle = 1;
+
+    /**
+     * @param interval N, to report every Nth call of a session.
+     * @param probability the probability of a call to be reported.
+     * @param budget the number of calls that can be reported per second before throttling, or 0
+     *     to never throttle.
+     */
+    IoSampler(int interval, double probability, int budget) {
+        myInterval = Math.max(interval, 1);
+        myProbability = probability;
+        myBudget = Math.max(budget, 0);
+    }
+
+    /**
+     * Returns whether an I/O call should be reported.
+     *
+     * @param sessionId the ID of the file session of the call.
+     * @param callIndex the index of the call in its file session, starting at 0.
+     * @param timestamp the timestamp of the end of the call, in nanoseconds.
+     */
+    boolean shouldReport(long sessionId, long callIndex, long timestamp) {
+        if (callIndex % myInterval != 0) {
+            return false;
+        }
+        long hash = mix(sessionId * 31 + callIndex);
+        if (myProbability < 1 && (hash >>> 11) * 0x1.0p-53 >= myProbability) {
+            return false;
+        }
+        if (myBudget == 0) {
+            return true;
+        }
+        countCandidate(timestamp);
+        int throttle = myThrottle;
+        return throttle == 1 || (hash >>> 1) % throttle == 0;
+    }
+
+    private void countCandidate(long timestamp) {
+        long windowStart = myWindowStart.get();
+        if (windowStart == Long.MIN_VALUE || timestamp - windowStart >= WINDOW_NS) {
+            if (myWindowStart.compareAndSet(windowStart, timestamp)) {
+                int count = myWindowCount.getAndSet(0);
+                long elapsed = windowStart == Long.MIN_VALUE ? WINDOW_NS : timestamp - windowStart;
+                // A window without candidates, such as after an idle period, resets the throttle.
+                long rate = count * WINDOW_NS / elapsed;
+                myThrottle = (int) Math.max(1, (rate + myBudget - 1) / myBudget);
+            }
+        }
+        myWindowCount.incrementAndGet();
+    }
+
+    /** Returns the current throttle, for tests. */
+    int getThrottle() {
+        return myThrottle;
+    }
+
+    /** Mixes the bits of a value, to spread consecutive values over the whole range. */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+}
@@ -19,9 +19,39 @@ package com.android.tools.profiler.support.io;
 /**
  * This class is responsible for tracking I/O events, such as opening a file, reading,
  * writing and closing a file.
+ *
+ * <p>Timestamps of I/O calls are taken with {@link System#nanoTime()}, which reads the same
+ * monotonic clock as the native code timestamping the file sessions, without a JNI call.
  */
 public class IoTracker {
 
+    /**
+     * Queue of the I/O calls of all the file sessions, which are reported to the native layer in
+     * batches rather than through a JNI call each.
+     */
+    private static final IoCallQueue CALLS =
+            new IoCallQueue(
+                    new IoCallQueue.Receiver() {
+                        @Override
+                        public void receive(long[] records, int count) {
+                            trackIoCalls(records, count);
+                        }
+
+                        @Override
+                        public void receive(
+                                long sessionId,
+                                int numberOfBytes,
+                                long startTimestamp,
+                                long endTimestamp,
+                                boolean read) {
+                            trackIoCall(
+                                    sessionId, numberOfBytes, startTimestamp, endTimestamp, read);
+                        }
+                    });
+
+    /** Decides which of the I/O calls are reported. */
+    private static volatile IoSampler mySampler = IoSampler.REPORT_ALL;
+
     /**
      * Each file session has a globally unique ID to identify it.
      */
@@ -30,6 +60,18 @@ public class IoTracker {
      * Indicates that this file session is terminated.
      */
     private boolean myIsTerminated = false;
+    /**
+     * Number of I/O calls tracked in this file session.
+     */
+    private long myCallCount = 0;
+    /**
+     * Number of bytes of the I/O calls tracked but not reported yet, which are all reads or all
+     * writes, as indicated by {@link #myPendingRead}.
+     */
+    private long myPendingBytes = 0;
+    private long myPendingStartTimestamp;
+    private long myPendingEndTimestamp;
+    private boolean myPendingRead;
 
     public void trackNewFileSession(String filePath) {
         if (myIsTerminated) {
@@ -38,16 +80,50 @@ public class IoTracker {
         trackNewFileSession(mySessionId, filePath);
     }
 
+    /**
+     * Tracks an I/O call. Calls that are not sampled are aggregated with the next sampled call of
+     * the same type, or with the end of the file session, so that no bytes are lost.
+     */
     public void trackIoCall(int numberOfBytes, long startTimestamp, boolean read) {
-        if (numberOfBytes > 0 && !myIsTerminated) {
-            trackIoCall(mySessionId, numberOfBytes, startTimestamp, read);
+        if (numberOfBytes <= 0 || myIsTerminated) {
+            return;
+        }
+        long endTimestamp = System.nanoTime();
+        if (myPendingBytes > 0
+                && (myPendingRead != read
+                        || myPendingBytes + numberOfBytes > Integer.MAX_VALUE)) {
+            reportPendingCalls();
+        }
+        if (myPendingBytes == 0) {
+            myPendingStartTimestamp = startTimestamp;
+            myPendingRead = read;
+        }
+        myPendingBytes += numberOfBytes;
+        myPendingEndTimestamp = endTimestamp;
+        if (mySampler.shouldReport(mySessionId, myCallCount++, endTimestamp)) {
+            reportPendingCalls();
         }
     }
 
+    private void reportPendingCalls() {
+        CALLS.add(
+                mySessionId,
+                (int) myPendingBytes,
+                myPendingStartTimestamp,
+                myPendingEndTimestamp,
+                myPendingRead);
+        myPendingBytes = 0;
+    }
+
     public void trackTerminatingFileSession() {
         if (myIsTerminated) {
             return;
         }
+        if (myPendingBytes > 0) {
+            reportPendingCalls();
+        }
+        // Reports the calls of the session still in the queue before its end.
+        CALLS.drain();
         trackTerminatingFileSession(mySessionId);
         // This indicates that the file session is terminated and any future
         // operations will be discarded.
@@ -60,13 +136,17 @@ public class IoTracker {
     }
 
     /**
-     * Gets the current time from the device clock in nano seconds to be consistent with the native
-     * code that uses the same method to set some timestamps.
+     * Configures the sampling of the I/O calls, from the {@code IoConfig} of the agent config.
+     * Sampling is off, and all the calls are reported, unless this is called.
      *
-     * @return the current time in nano seconds.
+     * @param interval N, to report every Nth call of a file session.
+     * @param probability the probability of a call to be reported.
+     * @param budget the number of calls that can be reported per second before throttling, or 0
+     *     to never throttle.
      */
-
-    public static native long getTimeInNanos();
+    public static void setSamplingConfig(int interval, double probability, int budget) {
+        mySampler = new IoSampler(interval, probability, budget);
+    }
 
     /**
      * Gets the next available session ID.
@@ -89,10 +169,24 @@ public class IoTracker {
      * @param sessionId represents a file opening session
      * @param numberOfBytes the number of bytes read or written.
      * @param startTimestamp the timestamp when reading or writing started.
+     * @param endTimestamp the timestamp when reading or writing ended.
      * @param read true if the I/O call is reading from a file, and false if it's writing.
      */
-    private native void trackIoCall(
-            long sessionId, int numberOfBytes, long startTimestamp, boolean read);
+    private static native void trackIoCall(
+            long sessionId,
+            int numberOfBytes,
+            long startTimestamp,
+            long endTimestamp,
+            boolean read);
+
+    /**
+     * Sends info about a batch of I/O calls to be tracked.
+     *
+     * @param records the I/O calls, in the format described in {@link
+     *     IoCallQueue.Receiver#receive(long[], int)}.
+     * @param count the number of I/O calls in {@code records}.
+     */
+    private static native void trackIoCalls(long[] records, int count);
 
     /**
      * Sends info about terminating a file session.
@@ -43,7 +43,7 @@ public class FileInputStream$ extends FileInputStream {
 
     @Override
     public int read() throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int i = super.read();
         ioTracker.trackIoCall(Byte.BYTES, startTimestamp, true);
         return i;
@@ -51,7 +51,7 @@ public class FileInputStream$ extends FileInputStream {
 
     @Override
     public int read(byte[] b) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int numberOfBytes = super.read(b);
         ioTracker.trackIoCall(numberOfBytes, startTimestamp, true);
         return numberOfBytes;
@@ -59,7 +59,7 @@ public class FileInputStream$ extends FileInputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int numberOfBytes = super.read(b, off, len);
         ioTracker.trackIoCall(numberOfBytes, startTimestamp, true);
         return numberOfBytes;
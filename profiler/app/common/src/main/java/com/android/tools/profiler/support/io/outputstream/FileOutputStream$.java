@@ -54,21 +54,21 @@ public class FileOutputStream$ extends FileOutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(b);
         ioTracker.trackIoCall(Byte.BYTES, startTimestamp, false);
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(b);
         ioTracker.trackIoCall(b.length, startTimestamp, false);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(b, off, len);
         ioTracker.trackIoCall(len, startTimestamp, false);
     }
@@ -39,7 +39,7 @@ public class RandomAccessFile$ extends RandomAccessFile {
 
     @Override
     public int read() throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int i = super.read();
         ioTracker.trackIoCall(Byte.BYTES, startTimestamp, true);
         return i;
@@ -47,7 +47,7 @@ public class RandomAccessFile$ extends RandomAccessFile {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int numberOfBytes = super.read(b, off, len);
         ioTracker.trackIoCall(numberOfBytes, startTimestamp, true);
         return numberOfBytes;
@@ -55,7 +55,7 @@ public class RandomAccessFile$ extends RandomAccessFile {
 
     @Override
     public int read(byte[] b) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int numberOfBytes = super.read(b);
         ioTracker.trackIoCall(numberOfBytes, startTimestamp, true);
         return numberOfBytes;
@@ -63,21 +63,21 @@ public class RandomAccessFile$ extends RandomAccessFile {
 
     @Override
     public void write(int b) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(b);
         ioTracker.trackIoCall(Byte.BYTES, startTimestamp, false);
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(b);
         ioTracker.trackIoCall(b.length, startTimestamp, false);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(b, off, len);
         ioTracker.trackIoCall(len, startTimestamp, false);
     }
@@ -44,7 +44,7 @@ public class FileReader$ extends FileReader {
 
     @Override
     public int read() throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int i = super.read();
         ioTracker.trackIoCall(Character.BYTES, startTimestamp, true);
         return i;
@@ -52,7 +52,7 @@ public class FileReader$ extends FileReader {
 
     @Override
     public int read(char[] cbuf, int offset, int length) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int charactersRead = super.read(cbuf, offset, length);
         ioTracker.trackIoCall(charactersRead * Character.BYTES, startTimestamp, true);
         return charactersRead;
@@ -60,7 +60,7 @@ public class FileReader$ extends FileReader {
 
     @Override
     public int read(CharBuffer target) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int charactersRead = super.read(target);
         ioTracker.trackIoCall(charactersRead * Character.BYTES, startTimestamp, true);
         return charactersRead;
@@ -68,7 +68,7 @@ public class FileReader$ extends FileReader {
 
     @Override
     public int read(char[] cbuf) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int charactersRead = super.read(cbuf);
         ioTracker.trackIoCall(charactersRead * Character.BYTES, startTimestamp, true);
         return charactersRead;
@@ -110,7 +110,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static String wrapNext(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         String s = scanner.next();
         track(scanner, s.length() * Character.BYTES, startTimestamp);
         return s;
@@ -118,7 +118,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static String wrapNext(Scanner scanner, Pattern pattern) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         String s = scanner.next(pattern);
         track(scanner, s.length() * Character.BYTES, startTimestamp);
         return s;
@@ -126,7 +126,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static String wrapNext(Scanner scanner, String pattern) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         String s = scanner.next(pattern);
         track(scanner, s.length() * Character.BYTES, startTimestamp);
         return s;
@@ -134,7 +134,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static BigDecimal wrapNextBigDecimal(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         BigDecimal bigDecimal = scanner.nextBigDecimal();
         track(scanner, bigDecimal.unscaledValue().toByteArray().length, startTimestamp);
         return bigDecimal;
@@ -142,7 +142,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static BigInteger wrapNextBigInteger(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         BigInteger bigInteger = scanner.nextBigInteger();
         track(scanner, bigInteger.toByteArray().length, startTimestamp);
         return bigInteger;
@@ -150,7 +150,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static BigInteger wrapNextBigInteger(Scanner scanner, int radix) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         BigInteger bigInteger = scanner.nextBigInteger(radix);
         track(scanner, bigInteger.toByteArray().length, startTimestamp);
         return bigInteger;
@@ -158,7 +158,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static boolean wrapNextBoolean(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         boolean b = scanner.nextBoolean();
         track(scanner, Byte.BYTES, startTimestamp);
         return b;
@@ -166,7 +166,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static byte wrapNextByte(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         byte b = scanner.nextByte();
         track(scanner, Byte.BYTES, startTimestamp);
         return b;
@@ -174,7 +174,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static byte wrapNextByte(Scanner scanner, int radix) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         byte b = scanner.nextByte(radix);
         track(scanner, Byte.BYTES, startTimestamp);
         return b;
@@ -182,7 +182,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static double wrapNextDouble(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         double d = scanner.nextDouble();
         track(scanner, Double.BYTES, startTimestamp);
         return d;
@@ -190,7 +190,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static float wrapNextFloat(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         float f = scanner.nextFloat();
         track(scanner, Float.BYTES, startTimestamp);
         return f;
@@ -198,7 +198,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static int wrapNextInt(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int i = scanner.nextInt();
         track(scanner, Integer.BYTES, startTimestamp);
         return i;
@@ -206,7 +206,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static int wrapNextInt(Scanner scanner, int radix) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         int i = scanner.nextInt(radix);
         track(scanner, Integer.BYTES, startTimestamp);
         return i;
@@ -214,7 +214,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static String wrapNextLine(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         String s = scanner.nextLine();
         track(scanner, s.length() * Character.BYTES, startTimestamp);
         return s;
@@ -222,7 +222,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static long wrapNextLong(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         long l = scanner.nextLong();
         track(scanner, Long.BYTES, startTimestamp);
         return l;
@@ -230,7 +230,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static long wrapNextLong(Scanner scanner, int radix) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         long l = scanner.nextLong(radix);
         track(scanner, Long.BYTES, startTimestamp);
         return l;
@@ -238,7 +238,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static short wrapNextShort(Scanner scanner) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         short s = scanner.nextShort();
         track(scanner, Short.BYTES, startTimestamp);
         return s;
@@ -246,7 +246,7 @@ public class ScannerWrapper {
 
     @SuppressWarnings("unused") // Called in the ProfilerPlugin via reflection
     public static short wrapNextShort(Scanner scanner, int radix) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         short s = scanner.nextShort(radix);
         track(scanner, Short.BYTES, startTimestamp);
         return s;
@@ -54,42 +54,42 @@ public class FileWriter$ extends FileWriter {
 
     @Override
     public void write(int c) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(c);
         ioTracker.trackIoCall(Character.BYTES, startTimestamp, false);
     }
 
     @Override
     public void write(char[] cbuf, int off, int len) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(cbuf, off, len);
         ioTracker.trackIoCall(len * Character.BYTES, startTimestamp, false);
     }
 
     @Override
     public void write(String str, int off, int len) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(str, off, len);
         ioTracker.trackIoCall(len * Character.BYTES, startTimestamp, false);
     }
 
     @Override
     public void write(char[] cbuf) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(cbuf);
         ioTracker.trackIoCall(cbuf.length * Character.BYTES, startTimestamp, false);
     }
 
     @Override
     public void write(String str) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.write(str);
         ioTracker.trackIoCall(str.length() * Character.BYTES, startTimestamp, false);
     }
 
     @Override
     public Writer append(CharSequence csq) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.append(csq);
         ioTracker.trackIoCall(csq.length() * Character.BYTES, startTimestamp, false);
         return this;
@@ -97,7 +97,7 @@ public class FileWriter$ extends FileWriter {
 
     @Override
     public Writer append(CharSequence csq, int start, int end) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.append(csq, start, end);
         ioTracker.trackIoCall((end - start) * Character.BYTES, startTimestamp, false);
         return this;
@@ -105,7 +105,7 @@ public class FileWriter$ extends FileWriter {
 
     @Override
     public Writer append(char c) throws IOException {
-        long startTimestamp = IoTracker.getTimeInNanos();
+        long startTimestamp = System.nanoTime();
         super.append(c);
         ioTracker.trackIoCall(Character.BYTES, startTimestamp, false);
         return this;
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.profiler.support.io;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IoCallQueueTest {
+    @Test
+    public void drain_reportsCallsInOrder() throws Exception {
+        TestReceiver r = new TestReceiver();
+        IoCallQueue q = new IoCallQueue(r, 4, false);
+        q.add(1, 10, 100, 101, true);
+        q.add(1, 20, 102, 103, false);
+        q.add(2, 30, 104, 105, true);
+        Assert.assertThat(r.getBatched().size(), equalTo(0));
+
+        Assert.assertThat(q.drain(), equalTo(true));
+        Assert.assertThat(
+                r.getBatched(),
+                equalTo(Arrays.asList("1:10:100:101:R", "1:20:102:103:W", "2:30:104:105:R")));
+        Assert.assertThat(r.getDirect().size(), equalTo(0));
+    }
+
+    @Test
+    public void drain_noopIfQueueIsEmpty() throws Exception {
+        TestReceiver r = new TestReceiver();
+        IoCallQueue q = new IoCallQueue(r, 4, false);
+        Assert.assertThat(q.drain(), equalTo(false));
+        q.add(1, 10, 100, 101, true);
+        q.drain();
+        Assert.assertThat(q.drain(), equalTo(false));
+        Assert.assertThat(r.getBatched().size(), equalTo(1));
+    }
+
+    @Test
+    public void add_reportsCallDirectlyWhenBufferIsFull() throws Exception {
+        TestReceiver r = new TestReceiver();
+        IoCallQueue q = new IoCallQueue(r, 2, false);
+        q.add(1, 10, 100, 101, true);
+        q.add(1, 20, 102, 103, true);
+        q.add(1, 30, 104, 105, false);
+        Assert.assertThat(
+                r.getDirect(), equalTo(Collections.singletonList("1:30:104:105:W")));
+
+        q.drain();
+        q.add(1, 40, 106, 107, true);
+        q.drain();
+        Assert.assertThat(
+                r.getBatched(),
+                equalTo(Arrays.asList("1:10:100:101:R", "1:20:102:103:R", "1:40:106:107:R")));
+        Assert.assertThat(r.getDirect().size(), equalTo(1));
+    }
+
+    @Test
+    public void drain_reportsCallsOfAllThreads() throws Exception {
+        TestReceiver r = new TestReceiver();
+        final IoCallQueue q = new IoCallQueue(r, 16, false);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final int sessionId = i;
+            threads.add(
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            for (int j = 0; j < 8; j++) {
+                                q.add(sessionId, j, j, j + 1, true);
+                            }
+                        }
+                    });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+            thread.join();
+        }
+
+        q.drain();
+        Assert.assertThat(r.getBatched().size(), equalTo(32));
+        Assert.assertThat(r.getDirect().size(), equalTo(0));
+    }
+
+    @Test
+    public void add_callsAreEventuallyReportedInTheBackground() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        IoCallQueue q =
+                new IoCallQueue(
+                        new TestReceiver() {
+                            @Override
+                            public void receive(long[] records, int count) {
+                                super.receive(records, count);
+                                for (int i = 0; i < count; i++) {
+                                    latch.countDown();
+                                }
+                            }
+                        },
+                        4,
+                        true);
+        q.add(1, 10, 100, 101, true);
+        q.add(1, 20, 102, 103, true);
+        q.add(1, 30, 104, 105, true);
+        Assert.assertThat(latch.await(10, TimeUnit.SECONDS), equalTo(true));
+    }
+
+    private static class TestReceiver implements IoCallQueue.Receiver {
+
+        // Note: calls are recorded as strings, which are easier to test against than records
+        private final List<String> mBatched = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> mDirect = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void receive(long[] records, int count) {
+            for (int i = 0; i < count; i++) {
+                int offset = i * IoCallQueue.RECORD_SIZE;
+                mBatched.add(
+                        toString(
+                                records[offset],
+                                (int) (records[offset + 3] >> 1),
+                                records[offset + 1],
+                                records[offset + 2],
+                                (records[offset + 3] & 1) != 0));
+            }
+        }
+
+        @Override
+        public void receive(
+                long sessionId,
+                int numberOfBytes,
+                long startTimestamp,
+                long endTimestamp,
+                boolean read) {
+            mDirect.add(toString(sessionId, numberOfBytes, startTimestamp, endTimestamp, read));
+        }
+
+        private static String toString(
+                long sessionId,
+                int numberOfBytes,
+                long startTimestamp,
+                long endTimestamp,
+                boolean read) {
+            return sessionId + ":" + numberOfBytes + ":" + startTimestamp + ":" + endTimestamp
+                    + ":" + (read ? "R" : "W");
+        }
+
+        private List<String> getBatched() {
+            return mBatched;
+        }
+
+        private List<String> getDirect() {
+            return mDirect;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.profiler.support.io;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IoSamplerTest {
+    private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void shouldReport_reportsAllCallsByDefault() throws Exception {
+        IoSampler s = IoSampler.REPORT_ALL;
+        Assert.assertThat(countReported(s, 1, 0, 1000, 0), equalTo(1000));
+    }
+
+    @Test
+    public void shouldReport_reportsEveryNthCall() throws Exception {
+        IoSampler s = new IoSampler(4, 1, 0);
+        List<Long> reported = new ArrayList<Long>();
+        for (long i = 0; i < 10; i++) {
+            if (s.shouldReport(1, i, 0)) {
+                reported.add(i);
+            }
+        }
+        Assert.assertThat(reported, equalTo(Arrays.asList(0L, 4L, 8L)));
+    }
+
+    @Test
+    public void shouldReport_reportsCallsWithProbability() throws Exception {
+        IoSampler s = new IoSampler(1, 0.25, 0);
+        int reported = 0;
+        for (long session = 0; session < 10; session++) {
+            reported += countReported(s, session, 0, 1000, 0);
+        }
+        Assert.assertTrue(reported > 2250 && reported < 2750);
+    }
+
+    @Test
+    public void shouldReport_throttlesWhenRateIsOverBudget() throws Exception {
+        IoSampler s = new IoSampler(1, 1, 100);
+        Assert.assertThat(countReported(s, 1, 0, 1000, 0), equalTo(1000));
+        Assert.assertThat(s.getThrottle(), equalTo(1));
+
+        // The 1000 calls of the first second are over the budget of 100 calls per second.
+        int reported = countReported(s, 1, 1000, 2000, SECOND_NS);
+        Assert.assertThat(s.getThrottle(), equalTo(10));
+        Assert.assertTrue(reported > 50 && reported < 150);
+
+        // The next 1000 calls were made over two seconds.
+        countReported(s, 1, 2000, 2001, 3 * SECOND_NS);
+        Assert.assertThat(s.getThrottle(), equalTo(5));
+
+        // A single call was made over the next ten seconds.
+        countReported(s, 1, 2001, 2002, 13 * SECOND_NS);
+        Assert.assertThat(s.getThrottle(), equalTo(1));
+    }
+
+    private static int countReported(
+            IoSampler sampler, long sessionId, long fromCall, long toCall, long timestamp) {
+        int reported = 0;
+        for (long i = fromCall; i < toCall; i++) {
+            if (sampler.shouldReport(sessionId, i, timestamp)) {
+                reported++;
+            }
+        }
+        return reported;
+    }
+}
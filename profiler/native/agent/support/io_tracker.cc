@@ -16,6 +16,7 @@
  */
 #include <jni.h>
 #include <unistd.h>
+#include <vector>
 
 #include "agent/agent.h"
 #include "agent/support/jni_wrappers.h"
@@ -24,6 +25,7 @@
 using grpc::ClientContext;
 using grpc::Status;
 using profiler::Agent;
+using profiler::IoServiceTask;
 using profiler::JStringWrapper;
 using profiler::SteadyClock;
 using profiler::proto::EmptyIoReply;
@@ -35,22 +37,35 @@ using profiler::proto::IoSessionStartRequest;
 namespace {
 std::atomic_int id_generator_(1);
 
+// Number of values used to store an I/O call in the batches sent by IoTracker.
+const int kIoCallRecordSize = 4;
+
 const SteadyClock &GetClock() {
   static SteadyClock clock;
   return clock;
 }
-}  // namespace
 
-extern "C" {
-// This is implemented on the native side so the interceptors can retrieve
-// device time before calling the actual methods of the I/O-related Java classes
-// and use it as start timestamp.
-JNIEXPORT jlong JNICALL
-Java_com_android_tools_profiler_support_io_IoTracker_getTimeInNanos(
-    JNIEnv *env, jobject thiz) {
-  return GetClock().GetCurrentTime();
+IoServiceTask CreateIoCallTask(int32_t pid, int64_t session_id,
+                                         int32_t number_of_bytes,
+                                         int64_t start_timestamp,
+                                         int64_t end_timestamp, bool read) {
+  return [pid, session_id, number_of_bytes, start_timestamp, end_timestamp,
+          read](InternalIoService::Stub &stub, ClientContext &ctx) {
+    IoCallRequest io_call_request;
+    io_call_request.set_process_id(pid);
+    io_call_request.set_io_session_id(session_id);
+    io_call_request.set_bytes_count(number_of_bytes);
+    io_call_request.set_start_timestamp(start_timestamp);
+    io_call_request.set_end_timestamp(end_timestamp);
+    io_call_request.set_type(read ? profiler::proto::READ
+                                  : profiler::proto::WRITE);
+    EmptyIoReply reply;
+    return stub.TrackIoCall(&ctx, io_call_request, &reply);
+  };
 }
+}  // namespace
 
+extern "C" {
 JNIEXPORT jlong JNICALL
 Java_com_android_tools_profiler_support_io_IoTracker_nextId(JNIEnv *env,
                                                             jobject thiz) {
@@ -86,24 +101,32 @@ Java_com_android_tools_profiler_support_io_IoTracker_trackNewFileSession(
 
 JNIEXPORT void JNICALL
 Java_com_android_tools_profiler_support_io_IoTracker_trackIoCall(
-    JNIEnv *env, jobject thiz, jlong jsession_id, jint jnumber_of_bytes,
-    jlong jstart_timestamp, jboolean jread) {
+    JNIEnv *env, jclass clazz, jlong jsession_id, jint jnumber_of_bytes,
+    jlong jstart_timestamp, jlong jend_timestamp, jboolean jread) {
+  Agent::Instance().SubmitIoTasks({CreateIoCallTask(
+      getpid(), jsession_id, jnumber_of_bytes, jstart_timestamp,
+      jend_timestamp, jread)});
+}
+
+// Each I/O call is stored in |jrecords| as kIoCallRecordSize values: the
+// session ID, the start timestamp, the end timestamp, and the number of bytes
+// shifted left by one, with the lowest bit set for a read. All the calls of
+// the batch are submitted at once.
+JNIEXPORT void JNICALL
+Java_com_android_tools_profiler_support_io_IoTracker_trackIoCalls(
+    JNIEnv *env, jclass clazz, jlongArray jrecords, jint jcount) {
   int32_t pid = getpid();
-  int64_t end_timestamp = GetClock().GetCurrentTime();
-  Agent::Instance().SubmitIoTasks(
-      {[pid, jsession_id, jnumber_of_bytes, jstart_timestamp, end_timestamp,
-        jread](InternalIoService::Stub &stub, ClientContext &ctx) {
-        IoCallRequest io_call_request;
-        io_call_request.set_process_id(pid);
-        io_call_request.set_io_session_id(jsession_id);
-        io_call_request.set_bytes_count(jnumber_of_bytes);
-        io_call_request.set_start_timestamp(jstart_timestamp);
-        io_call_request.set_end_timestamp(end_timestamp);
-        io_call_request.set_type(jread ? profiler::proto::READ
-                                       : profiler::proto::WRITE);
-        EmptyIoReply reply;
-        return stub.TrackIoCall(&ctx, io_call_request, &reply);
-      }});
+  std::vector<jlong> records(jcount * kIoCallRecordSize);
+  env->GetLongArrayRegion(jrecords, 0, records.size(), records.data());
+
+  std::vector<IoServiceTask> tasks;
+  tasks.reserve(jcount);
+  for (size_t i = 0; i < records.size(); i += kIoCallRecordSize) {
+    tasks.push_back(CreateIoCallTask(pid, records[i], records[i + 3] >> 1,
+                                     records[i + 1], records[i + 2],
+                                     records[i + 3] & 1));
+  }
+  Agent::Instance().SubmitIoTasks(tasks);
 }
 
 JNIEXPORT void JNICALL
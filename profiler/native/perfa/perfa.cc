@@ -233,7 +233,9 @@ void LoadDex(jvmtiEnv* jvmti, JNIEnv* jni, AgentConfig* agent_config) {
   // available in all published O system images.
   if (is_io_profiling_enabled) {
     BindJNIMethod(jni, "com/android/tools/profiler/support/io/IoTracker",
-                  "trackIoCall", "(JIJZ)V");
+                  "trackIoCall", "(JIJJZ)V");
+    BindJNIMethod(jni, "com/android/tools/profiler/support/io/IoTracker",
+                  "trackIoCalls", "([JI)V");
     BindJNIMethod(jni, "com/android/tools/profiler/support/io/IoTracker",
                   "trackNewFileSession", "(JLjava/lang/String;)V");
     BindJNIMethod(jni, "com/android/tools/profiler/support/io/IoTracker",
@@ -345,6 +347,18 @@ void LoadDex(jvmtiEnv* jvmti, JNIEnv* jni, AgentConfig* agent_config) {
   bool network_request_payload = agent_config->profiler_network_request_payload();
   jni->CallStaticVoidMethod(service, initialize, !log_live_alloc_count,
       network_request_payload);
+
+  const auto& io_config = agent_config->io_config();
+  if (is_io_profiling_enabled && io_config.use_sampling()) {
+    jclass io_tracker =
+        jni->FindClass("com/android/tools/profiler/support/io/IoTracker");
+    jmethodID set_sampling_config =
+        jni->GetStaticMethodID(io_tracker, "setSamplingConfig", "(IDI)V");
+    jni->CallStaticVoidMethod(io_tracker, set_sampling_config,
+                              io_config.sampling_interval(),
+                              io_config.sampling_probability(),
+                              io_config.sampling_budget());
+  }
 }
 
 extern "C" JNIEXPORT jint JNICALL Agent_OnAttach(JavaVM* vm, char* options,
@@ -20,12 +20,10 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.utils.XmlUtils;
-import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -56,6 +54,7 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
         implements DataMap<I> {
 
     static final String FN_MERGER_XML = "merger.xml";
+    static final String FN_MERGER_BLOB = "merger.bin";
     static final String NODE_MERGER = "merger";
     static final String NODE_DATA_SET = "dataSet";
 
@@ -312,6 +311,9 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     /**
      * Writes a single blob file to store all that the DataMerger knows about.
      *
+     * The blob is written in the binary format of {@link MergerBlob}. Any blob previously written
+     * as XML is deleted.
+     *
      * @param blobRootFolder the root folder where blobs are store.
      * @param consumer the merge consumer that was used by the merge.
      * @param includeTimestamps true if the files should be tagged with lastModified timestamps
@@ -345,19 +347,21 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
             // write merged items
             writeAdditionalData(document, rootNode);
 
-            String content = XmlUtils.toXml(document);
-
             try {
                 createDir(blobRootFolder);
             } catch (IOException ioe) {
                 throw MergingException.wrapException(ioe).withFile(blobRootFolder).build();
             }
-            File file = new File(blobRootFolder, FN_MERGER_XML);
+            File file = new File(blobRootFolder, FN_MERGER_BLOB);
             try {
-                Files.write(content, file, Charsets.UTF_8);
+                MergerBlob.write(document, file);
             } catch (IOException ioe) {
                 throw MergingException.wrapException(ioe).withFile(file).build();
             }
+            File xmlFile = new File(blobRootFolder, FN_MERGER_XML);
+            if (xmlFile.isFile()) {
+                xmlFile.delete();
+            }
         } catch (ParserConfigurationException e) {
             throw MergingException.wrapException(e).build();
         }
@@ -382,6 +386,9 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     /**
      * Loads the merger state from a blob file.
      *
+     * The binary blob is loaded if there is one, otherwise this falls back to a blob written as
+     * XML, e.g. by an older version.
+     *
      * This can be loaded into two different ways that differ only by the state on the
      * {@link DataItem} objects.
      *
@@ -401,13 +408,28 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      */
     public boolean loadFromBlob(@NonNull File blobRootFolder, boolean incrementalState)
             throws MergingException {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
-        if (!file.isFile()) {
-            return false;
-        }
-
+        File file = new File(blobRootFolder, FN_MERGER_BLOB);
         try {
-            Document document = XmlUtils.parseUtfXmlFile(file, true /*namespaceAware*/);
+            Document document = null;
+            if (file.isFile()) {
+                // The merged items are only needed to update the merged folder.
+                try {
+                    document = MergerBlob.read(
+                            file,
+                            mFactory.newDocumentBuilder(),
+                            incrementalState ? null : getAdditionalDataTagName());
+                } catch (IOException e) {
+                    // A corrupted blob is ignored, so that the caller does a full merge.
+                    document = null;
+                }
+            }
+            if (document == null) {
+                file = new File(blobRootFolder, FN_MERGER_XML);
+                if (!file.isFile()) {
+                    return false;
+                }
+                document = XmlUtils.parseUtfXmlFile(file, true /*namespaceAware*/);
+            }
 
             // get the root node
             Node rootNode = document.getDocumentElement();
@@ -480,9 +502,11 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     }
 
     public void cleanBlob(@NonNull File blobRootFolder) {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
-        if (file.isFile()) {
-            file.delete();
+        for (String name : new String[] {FN_MERGER_BLOB, FN_MERGER_XML}) {
+            File file = new File(blobRootFolder, name);
+            if (file.isFile()) {
+                file.delete();
+            }
         }
     }
 
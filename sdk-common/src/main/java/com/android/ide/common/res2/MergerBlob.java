@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.res2;
+
+import static com.android.SdkConstants.XMLNS;
+import static com.android.SdkConstants.XMLNS_PREFIX;
+import static com.android.ide.common.util.CompactBinaryFormat.readFile;
+import static com.android.ide.common.util.CompactBinaryFormat.readHeader;
+import static com.android.ide.common.util.CompactBinaryFormat.readVarInt;
+import static com.android.ide.common.util.CompactBinaryFormat.writeHeader;
+import static com.android.ide.common.util.CompactBinaryFormat.writeVarInt;
+import static javax.xml.XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.util.CompactBinaryFormat.StringTable;
+import com.android.ide.common.util.CompactBinaryFormat.StringTableWriter;
+
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import javax.xml.parsers.DocumentBuilder;
+
+/**
+ * Binary encoding of the DOM written by {@link DataMerger#writeBlobTo(File, MergeConsumer,
+ * boolean)}, used instead of XML text to save and load the merger state.
+ *
+ * <p>All the names, namespaces, attribute values and texts of the document are interned in a
+ * string table, which is written once and referred to by index from the nodes. Strings are only
+ * decoded when first used. Each child of the root element is prefixed with its size, so that the
+ * children that are not needed, such as the merged items when the state is loaded to feed a
+ * repository, can be skipped without being decoded.
+ *
+ * <p>Loading a blob creates the DOM nodes directly, without going through an XML parser. The
+ * values of the value resources are still all decoded into DOM nodes on load, because {@link
+ * ResourceItem} holds its value as a {@link Node} that is compared with the new value as soon as
+ * the item is touched.
+ */
+final class MergerBlob {
+
+    private static final int MAGIC = 0x4d424c42;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte KIND_ELEMENT = 1;
+    private static final byte KIND_TEXT = 2;
+    private static final byte KIND_CDATA = 3;
+    private static final byte KIND_COMMENT = 4;
+
+    private MergerBlob() {
+    }
+
+    /**
+     * Writes a document to a file.
+     *
+     * @param document the document to write
+     * @param file the file to write to
+     * @throws IOException failed to write the file
+     */
+    static void write(@NonNull Document document, @NonNull File file) throws IOException {
+        Writer writer = new Writer();
+        Element root = document.getDocumentElement();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        writer.writeElementHeader(bodyOut, root);
+        NodeList children = root.getChildNodes();
+        writeVarInt(bodyOut, children.getLength());
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        for (int i = 0, n = children.getLength(); i < n; i++) {
+            section.reset();
+            writer.writeNode(new DataOutputStream(section), children.item(i));
+            writeVarInt(bodyOut, section.size());
+            section.writeTo(bodyOut);
+        }
+
+        try (OutputStream fileOut = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(fileOut);
+            writeHeader(out, MAGIC, FORMAT_VERSION);
+            writer.mStrings.writeTo(out);
+            body.writeTo(out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads a document from a file written by {@link #write(Document, File)}.
+     *
+     * @param file the file to read
+     * @param builder the builder used to create the document
+     * @param skippedTagName the local name of the children of the root element to skip, if any
+     * @return the document, or {@code null} if the file is not a blob of a supported version
+     * @throws IOException failed to read the file, or the file is corrupted
+     */
+    @Nullable
+    static Document read(
+            @NonNull File file,
+            @NonNull DocumentBuilder builder,
+            @Nullable String skippedTagName) throws IOException {
+        ByteBuffer buffer = readFile(file.toPath());
+        try {
+            if (!readHeader(buffer, MAGIC, FORMAT_VERSION)) {
+                return null;
+            }
+
+            Reader reader = new Reader(buffer, builder.newDocument());
+            Element root = reader.readElementHeader();
+            reader.mDocument.appendChild(root);
+            int childCount = readVarInt(buffer);
+            for (int i = 0; i < childCount; i++) {
+                int size = readVarInt(buffer);
+                int end = buffer.position() + size;
+                if (skippedTagName != null && reader.isElementNamed(skippedTagName)) {
+                    buffer.position(end);
+                    continue;
+                }
+                root.appendChild(reader.readNode());
+                if (buffer.position() != end) {
+                    throw new IOException("Corrupted merger blob: " + file);
+                }
+            }
+
+            return reader.mDocument;
+        } catch (BufferUnderflowException
+                | IndexOutOfBoundsException
+                | IllegalArgumentException
+                | DOMException e) {
+            throw new IOException("Corrupted merger blob: " + file, e);
+        }
+    }
+
+    private static final class Writer {
+
+        @NonNull private final StringTableWriter mStrings = new StringTableWriter();
+
+        /** Writes the index of a string, interning it, plus one; 0 is used for {@code null}. */
+        private void writeString(@NonNull DataOutputStream out, @Nullable String string)
+                throws IOException {
+            writeVarInt(out, string == null ? 0 : mStrings.indexOf(string) + 1);
+        }
+
+        private void writeElementHeader(@NonNull DataOutputStream out, @NonNull Node element)
+                throws IOException {
+            out.writeByte(KIND_ELEMENT);
+            writeString(out, element.getNamespaceURI());
+            writeString(out, element.getNodeName());
+
+            NamedNodeMap attributes = element.getAttributes();
+            writeVarInt(out, attributes.getLength());
+            for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                Node attribute = attributes.item(i);
+                writeString(out, attribute.getNamespaceURI());
+                writeString(out, attribute.getNodeName());
+                writeString(out, attribute.getNodeValue());
+            }
+        }
+
+        private void writeNode(@NonNull DataOutputStream out, @NonNull Node node)
+                throws IOException {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    writeElementHeader(out, node);
+                    NodeList children = node.getChildNodes();
+                    writeVarInt(out, children.getLength());
+                    for (int i = 0, n = children.getLength(); i < n; i++) {
+                        writeNode(out, children.item(i));
+                    }
+                    break;
+                case Node.TEXT_NODE:
+                    out.writeByte(KIND_TEXT);
+                    writeString(out, node.getNodeValue());
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    out.writeByte(KIND_CDATA);
+                    writeString(out, node.getNodeValue());
+                    break;
+                case Node.COMMENT_NODE:
+                    out.writeByte(KIND_COMMENT);
+                    writeString(out, node.getNodeValue());
+                    break;
+                default:
+                    throw new IOException("Unsupported node type: " + node.getNodeType());
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        @NonNull private final ByteBuffer mBuffer;
+        @NonNull private final Document mDocument;
+
+        @NonNull private final StringTable mStrings;
+
+        private Reader(@NonNull ByteBuffer buffer, @NonNull Document document) {
+            mBuffer = buffer;
+            mDocument = document;
+            mStrings = StringTable.read(buffer);
+        }
+
+        @Nullable
+        private String readString() {
+            int index = readVarInt(mBuffer) - 1;
+            return index < 0 ? null : mStrings.get(index);
+        }
+
+        /** Reads the name of an element or attribute, which can't be {@code null}. */
+        @NonNull
+        private String readName() throws IOException {
+            String name = readString();
+            if (name == null || name.isEmpty()) {
+                throw new IOException("Missing name");
+            }
+            return name;
+        }
+
+        /**
+         * Returns whether the node at the current position is an element with the given local
+         * name, without moving the current position.
+         */
+        private boolean isElementNamed(@NonNull String localName) {
+            int position = mBuffer.position();
+            try {
+                if (mBuffer.get() != KIND_ELEMENT) {
+                    return false;
+                }
+                readString();
+                String name = readString();
+                return name != null
+                        && localName.equals(name.substring(name.indexOf(':') + 1));
+            } finally {
+                mBuffer.position(position);
+            }
+        }
+
+        @NonNull
+        private Element readElementHeader() throws IOException {
+            if (mBuffer.get() != KIND_ELEMENT) {
+                throw new IOException("Expected an element");
+            }
+            return readElementAttributes();
+        }
+
+        @NonNull
+        private Element readElementAttributes() throws IOException {
+            String namespace = readString();
+            String name = readName();
+            Element element;
+            if (namespace == null && name.indexOf(':') >= 0) {
+                element = mDocument.createElement(name);
+            } else {
+                element = mDocument.createElementNS(namespace, name);
+            }
+
+            int attributeCount = readVarInt(mBuffer);
+            for (int i = 0; i < attributeCount; i++) {
+                String attributeNamespace = readString();
+                String attributeName = readName();
+                String value = readString();
+                boolean isNamespaceDeclaration =
+                        attributeName.equals(XMLNS) || attributeName.startsWith(XMLNS_PREFIX);
+                if (attributeNamespace == null && isNamespaceDeclaration) {
+                    // Namespace declarations added without a namespace, as parsing the XML would.
+                    element.setAttributeNS(XMLNS_ATTRIBUTE_NS_URI, attributeName, value);
+                } else if (attributeNamespace == null && attributeName.indexOf(':') >= 0) {
+                    element.setAttribute(attributeName, value);
+                } else {
+                    element.setAttributeNS(attributeNamespace, attributeName, value);
+                }
+            }
+            return element;
+        }
+
+        @NonNull
+        private Node readNode() throws IOException {
+            byte kind = mBuffer.get();
+            switch (kind) {
+                case KIND_ELEMENT:
+                    Element element = readElementAttributes();
+                    int childCount = readVarInt(mBuffer);
+                    for (int i = 0; i < childCount; i++) {
+                        element.appendChild(readNode());
+                    }
+                    return element;
+                case KIND_TEXT:
+                    return mDocument.createTextNode(readString());
+                case KIND_CDATA:
+                    return mDocument.createCDATASection(readString());
+                case KIND_COMMENT:
+                    return mDocument.createComment(readString());
+                default:
+                    throw new IOException("Unknown node kind: " + kind);
+            }
+        }
+    }
+}
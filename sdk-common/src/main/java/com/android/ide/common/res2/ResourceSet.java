@@ -24,6 +24,7 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ide.common.blame.Message;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.resources.FolderTypeRelationship;
 import com.android.resources.ResourceConstants;
@@ -42,6 +43,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -240,6 +243,113 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
         MergingException.throwIfNonEmpty(errors);
     }
 
+    /**
+     * Loads several sets from the files their source folders contain, like calling
+     * {@link #loadFromFiles(ILogger)} on each set in order, but parses the files of all the sets
+     * concurrently on the given executor.
+     *
+     * <p>The parsed files are then added to their set on the calling thread, in the order in
+     * which {@link #loadFromFiles(ILogger)} would add them, so that the content of the sets does
+     * not depend on how the parsing tasks were scheduled.
+     *
+     * @param resourceSets the sets to load
+     * @param logger a logger object
+     * @param executor the executor on which to parse the files
+     * @return the time spent parsing the files of each set, in milliseconds, by set name. As the
+     *     files are parsed concurrently, this adds up to more than the time spent loading the sets.
+     * @throws MergingException if something goes wrong
+     */
+    @NonNull
+    public static Map<String, Long> loadFromFilesInParallel(
+            @NonNull List<ResourceSet> resourceSets,
+            @NonNull ILogger logger,
+            @NonNull WaitableExecutor executor)
+            throws MergingException {
+        List<Message> errors = Lists.newArrayList();
+        List<List<PendingFile>> pendingFilesBySet = new ArrayList<>(resourceSets.size());
+        for (ResourceSet resourceSet : resourceSets) {
+            List<PendingFile> pendingFiles = new ArrayList<>();
+            pendingFilesBySet.add(pendingFiles);
+            if (resourceSet instanceof GeneratedResourceSet) {
+                // Generated sets are filled by their original set.
+                continue;
+            }
+            for (File sourceFolder : resourceSet.getSourceFiles()) {
+                if (sourceFolder.isDirectory()) {
+                    try {
+                        resourceSet.listSourceFolder(sourceFolder, logger, pendingFiles);
+                    } catch (MergingException e) {
+                        errors.addAll(e.getMessages());
+                    }
+                }
+            }
+            for (PendingFile pendingFile : pendingFiles) {
+                executor.execute(pendingFile);
+            }
+        }
+
+        try {
+            executor.waitForTasksWithQuickFail(true /*cancelRemaining*/);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw MergingException.wrapException(e).build();
+        }
+
+        Map<String, Long> parseTimes = Maps.newLinkedHashMap();
+        for (int i = 0; i < resourceSets.size(); i++) {
+            ResourceSet resourceSet = resourceSets.get(i);
+            long parseNanos = 0;
+            for (PendingFile pendingFile : pendingFilesBySet.get(i)) {
+                parseNanos += pendingFile.parseNanos;
+                if (pendingFile.exception != null) {
+                    errors.addAll(pendingFile.exception.getMessages());
+                } else if (errors.isEmpty()) {
+                    resourceSet.processNewResourceFile(
+                            pendingFile.sourceFolder, pendingFile.resourceFile);
+                }
+            }
+            parseTimes.put(resourceSet.getConfigName(), TimeUnit.NANOSECONDS.toMillis(parseNanos));
+        }
+        MergingException.throwIfNonEmpty(errors);
+
+        for (ResourceSet resourceSet : resourceSets) {
+            if (!(resourceSet instanceof GeneratedResourceSet)) {
+                resourceSet.checkItems();
+            }
+        }
+        return parseTimes;
+    }
+
+    /**
+     * Lists the files to parse in a source folder, in the order in which
+     * {@link #readSourceFolder(File, ILogger)} parses them.
+     */
+    private void listSourceFolder(
+            @NonNull File sourceFolder,
+            @NonNull ILogger logger,
+            @NonNull List<PendingFile> pendingFiles)
+            throws MergingException {
+        File[] folders = sourceFolder.listFiles();
+        if (folders == null) {
+            return;
+        }
+        for (File folder : folders) {
+            if (folder.isDirectory() && !isIgnored(folder)) {
+                FolderData folderData = getFolderData(folder);
+                File[] files = folderData != null ? folder.listFiles() : null;
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.isFile() && !isIgnored(file)) {
+                        pendingFiles.add(
+                                new PendingFile(this, sourceFolder, file, folderData, logger));
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     protected boolean isValidSourceFile(@NonNull File sourceFolder, @NonNull File file) {
         if (!super.isValidSourceFile(sourceFolder, file)) {
@@ -558,6 +668,46 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
         mIsFromDependency = fromDependency;
     }
 
+    /** A file of a set to parse, along with the result of parsing it. */
+    private static final class PendingFile implements Callable<Void> {
+        @NonNull private final ResourceSet resourceSet;
+        @NonNull private final File sourceFolder;
+        @NonNull private final File file;
+        @NonNull private final FolderData folderData;
+        @NonNull private final ILogger logger;
+
+        // Written by the parsing task, and read once the task is joined.
+        @Nullable private ResourceFile resourceFile;
+        @Nullable private MergingException exception;
+        private long parseNanos;
+
+        private PendingFile(
+                @NonNull ResourceSet resourceSet,
+                @NonNull File sourceFolder,
+                @NonNull File file,
+                @NonNull FolderData folderData,
+                @NonNull ILogger logger) {
+            this.resourceSet = resourceSet;
+            this.sourceFolder = sourceFolder;
+            this.file = file;
+            this.folderData = folderData;
+            this.logger = logger;
+        }
+
+        @Override
+        public Void call() {
+            long start = System.nanoTime();
+            try {
+                resourceFile = resourceSet.createResourceFile(file, folderData, logger);
+            } catch (MergingException e) {
+                exception = e;
+            } finally {
+                parseNanos = System.nanoTime() - start;
+            }
+            return null;
+        }
+    }
+
     /**
      * temp structure containing a qualifier string and a {@link com.android.resources.ResourceType}.
      */
@@ -16,9 +16,17 @@
 
 package com.android.ide.common.symbols;
 
+import static com.android.ide.common.util.CompactBinaryFormat.readFile;
+import static com.android.ide.common.util.CompactBinaryFormat.readHeader;
+import static com.android.ide.common.util.CompactBinaryFormat.readVarInt;
+import static com.android.ide.common.util.CompactBinaryFormat.writeHeader;
+import static com.android.ide.common.util.CompactBinaryFormat.writeVarInt;
+
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.ide.common.util.CompactBinaryFormat.StringTable;
+import com.android.ide.common.util.CompactBinaryFormat.StringTableWriter;
 import com.android.ide.common.xml.AndroidManifestParser;
 import com.android.resources.ResourceAccessibility;
 import com.android.resources.ResourceType;
@@ -27,16 +35,23 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
@@ -51,6 +66,17 @@ public final class SymbolIo {
 
     public static final String ANDROID_ATTR_PREFIX = "android_";
 
+    /** First bytes of a binary symbol file, which cannot start a text symbol file. */
+    private static final int BINARY_MAGIC = 0x0053594d;
+
+    private static final int BINARY_FORMAT_VERSION = 1;
+
+    /**
+     * Interner of the strings read from binary symbol files. The symbol file of a library contains
+     * the symbols of all its dependencies, so most of the names are repeated across libraries.
+     */
+    private static final Interner<String> STRING_INTERNER = Interners.newWeakInterner();
+
     private SymbolIo() {}
 
     /**
@@ -102,9 +128,19 @@ public final class SymbolIo {
             @NonNull Function<String, StyleableIndexHandler> handlerFunction,
             @NonNull LineReader lineReader)
             throws IOException {
-        List<String> lines = Files.readAllLines(file.toPath(), Charsets.UTF_8);
+        return read(file.toPath(), tablePackage, handlerFunction, lineReader);
+    }
 
-        SymbolTable.Builder table = readLines(lines, 1, file.toPath(), handlerFunction, lineReader);
+    @NonNull
+    private static SymbolTable read(
+            @NonNull Path file,
+            @Nullable String tablePackage,
+            @NonNull Function<String, StyleableIndexHandler> handlerFunction,
+            @NonNull LineReader lineReader)
+            throws IOException {
+        List<String> lines = Files.readAllLines(file, Charsets.UTF_8);
+
+        SymbolTable.Builder table = readLines(lines, 1, file, handlerFunction, lineReader);
 
         if (tablePackage != null) {
             table.tablePackage(tablePackage);
@@ -117,6 +153,7 @@ public final class SymbolIo {
      * Loads a symbol table from a synthetic namespaced symbol file.
      *
      * <p>This is just a symbol table, but with the addition of the table package as the first line.
+     * Files written by {@link #writeBinarySymbolTableWithPackage(Path, Path, Path)} are read too.
      *
      * @param file the symbol file
      * @return the table read
@@ -129,6 +166,9 @@ public final class SymbolIo {
 
     @NonNull
     public static SymbolTable readTableWithPackage(@NonNull Path file) throws IOException {
+        if (isBinarySymbolFile(file)) {
+            return readBinaryTableWithPackage(file);
+        }
 
         List<String> lines = Files.readAllLines(file, Charsets.UTF_8);
 
@@ -497,13 +537,16 @@ public final class SymbolIo {
     public static void writeSymbolTableWithPackage(
             @NonNull Path symbolTable, @NonNull Path manifest, @NonNull Path outputFile)
             throws IOException {
-        @Nullable String packageName;
+        writeSymbolTableWithPackage(symbolTable, getPackage(manifest), outputFile);
+    }
+
+    @Nullable
+    private static String getPackage(@NonNull Path manifest) throws IOException {
         try (InputStream is = new BufferedInputStream(Files.newInputStream(manifest))) {
-            packageName = AndroidManifestParser.parse(is).getPackage();
+            return AndroidManifestParser.parse(is).getPackage();
         } catch (SAXException | ParserConfigurationException e) {
             throw new IOException(e);
         }
-        writeSymbolTableWithPackage(symbolTable, packageName, outputFile);
     }
 
     /**
@@ -532,6 +575,148 @@ public final class SymbolIo {
         }
     }
 
+    /**
+     * Writes the symbol table with the package name in a binary file, that can be read with
+     * {@link #readTableWithPackage(Path)}.
+     *
+     * <p>Unlike the text symbol files, the binary file is read without parsing any line, and the
+     * strings it contains are interned with the ones of the other binary files read. This is used
+     * for the symbol tables of the libraries, which are written once but read in every build of
+     * every module depending on them, and which repeat the symbols of all their own dependencies.
+     *
+     * @param symbolTable The R.txt file. If it does not exist, the result will be an empty table
+     * @param manifest The AndroidManifest.xml file for this library. The package name is extracted
+     *     and used as the package of the table.
+     * @param outputFile The file to write the result to.
+     */
+    public static void writeBinarySymbolTableWithPackage(
+            @NonNull Path symbolTable, @NonNull Path manifest, @NonNull Path outputFile)
+            throws IOException {
+        String packageName = getPackage(manifest);
+        if (packageName == null) {
+            packageName = "";
+        }
+        SymbolTable table =
+                Files.exists(symbolTable)
+                        ? read(symbolTable, packageName, InOrderHandler::new, SymbolIo::readLine)
+                        : SymbolTable.builder().tablePackage(packageName).build();
+        writeBinaryTableWithPackage(table, outputFile);
+    }
+
+    /**
+     * Writes a symbol table, along with its package, in a binary file that can be read with
+     * {@link #readTableWithPackage(Path)}.
+     *
+     * @param table the table
+     * @param file the file where the table should be written
+     * @throws IOException failed to write the file
+     */
+    public static void writeBinaryTableWithPackage(@NonNull SymbolTable table, @NonNull Path file)
+            throws IOException {
+        StringTableWriter strings = new StringTableWriter();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+
+        writeString(bodyOut, strings, table.getTablePackage());
+        writeVarInt(bodyOut, table.getSymbols().size());
+        // loop on the resource types so that the order is always the same
+        for (ResourceType resType : ResourceType.values()) {
+            for (Symbol s : table.getSymbolByResourceType(resType)) {
+                writeString(bodyOut, strings, s.getResourceAccessibility().getName());
+                writeString(bodyOut, strings, s.getResourceType().getName());
+                writeString(bodyOut, strings, s.getJavaType().getTypeName());
+                writeString(bodyOut, strings, s.getName());
+                writeString(bodyOut, strings, s.getValue());
+                List<String> children = s.getChildren();
+                writeVarInt(bodyOut, children.size());
+                for (String child : children) {
+                    writeString(bodyOut, strings, child);
+                }
+            }
+        }
+
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            writeHeader(out, BINARY_MAGIC, BINARY_FORMAT_VERSION);
+            strings.writeTo(out);
+            body.writeTo(out);
+        }
+    }
+
+    private static boolean isBinarySymbolFile(@NonNull Path file) throws IOException {
+        byte[] header = new byte[Integer.BYTES];
+        try (InputStream is = Files.newInputStream(file)) {
+            return ByteStreams.read(is, header, 0, header.length) == header.length
+                    && Ints.fromByteArray(header) == BINARY_MAGIC;
+        }
+    }
+
+    @NonNull
+    private static SymbolTable readBinaryTableWithPackage(@NonNull Path file) throws IOException {
+        ByteBuffer buffer = readFile(file);
+        try {
+            if (!readHeader(buffer, BINARY_MAGIC, BINARY_FORMAT_VERSION)) {
+                throw new IOException("Unsupported symbol file format: " + file);
+            }
+
+            StringTable table = StringTable.read(buffer);
+            String[] strings = new String[table.size()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = STRING_INTERNER.intern(table.get(i));
+            }
+
+            SymbolTable.Builder symbols = SymbolTable.builder();
+            symbols.tablePackage(strings[readVarInt(buffer)]);
+            int symbolCount = readVarInt(buffer);
+            for (int i = 0; i < symbolCount; i++) {
+                String accessName = strings[readVarInt(buffer)];
+                ResourceAccessibility accessibility = ResourceAccessibility.getEnum(accessName);
+                if (accessibility == null) {
+                    throw new IOException("Invalid resource access qualifier " + accessName);
+                }
+                String className = strings[readVarInt(buffer)];
+                ResourceType resourceType = ResourceType.getEnum(className);
+                if (resourceType == null) {
+                    throw new IOException("Invalid resource type " + className);
+                }
+                String typeName = strings[readVarInt(buffer)];
+                SymbolJavaType javaType = SymbolJavaType.getEnum(typeName);
+                if (javaType == null) {
+                    throw new IOException("Invalid symbol type " + typeName);
+                }
+                String name = strings[readVarInt(buffer)];
+                String value = strings[readVarInt(buffer)];
+                ImmutableList.Builder<String> children = ImmutableList.builder();
+                for (int childCount = readVarInt(buffer); childCount > 0; childCount--) {
+                    children.add(strings[readVarInt(buffer)]);
+                }
+
+                symbols.add(
+                        Symbol.createSymbol(
+                                accessibility,
+                                resourceType,
+                                name,
+                                javaType,
+                                value,
+                                children.build()));
+            }
+            return symbols.build();
+        } catch (BufferUnderflowException
+                | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException("File format error reading " + file, e);
+        }
+    }
+
+    /** Writes the index of a string in the string table of a binary file, adding it if needed. */
+    private static void writeString(
+            @NonNull DataOutputStream out,
+            @NonNull StringTableWriter strings,
+            @NonNull String string)
+            throws IOException {
+        writeVarInt(out, strings.indexOf(string));
+    }
+
     /**
      * Exports a symbol table to a java {@code R} class source. This method will create the source
      * file and any necessary directories. For example, if the package is {@code a.b} and the class
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.util;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Maps;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Building blocks of the compact binary files used to persist build state, such as symbol tables
+ * and merger states.
+ *
+ * <p>A file starts with a magic number identifying its kind and a format version, checked with
+ * {@link #readHeader(ByteBuffer, int, int)}. Counts, lengths and indices are written as
+ * variable-length ints, 7 bits per byte. Strings are usually written once, in a {@link
+ * StringTableWriter string table}, and referred to by their index in the table.
+ *
+ * <p>Malformed content makes the read methods throw a {@link
+ * java.nio.BufferUnderflowException}, an {@link IndexOutOfBoundsException} or an {@link
+ * IllegalArgumentException}, which callers report as a corrupted file.
+ */
+public final class CompactBinaryFormat {
+
+    private CompactBinaryFormat() {}
+
+    /**
+     * Reads a whole file into a heap buffer.
+     *
+     * <p>The file is not memory-mapped: on Windows, a mapped file stays locked until the mapping
+     * is garbage collected, and these files are usually rewritten or deleted by the same build
+     * that read them.
+     *
+     * @param file the file to read
+     * @return a big-endian buffer backed by an array, positioned at the start of the file
+     * @throws IOException failed to read the file
+     */
+    @NonNull
+    public static ByteBuffer readFile(@NonNull Path file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file));
+    }
+
+    /** Writes the magic number and format version starting a file. */
+    public static void writeHeader(@NonNull DataOutput out, int magic, int version)
+            throws IOException {
+        out.writeInt(magic);
+        out.writeInt(version);
+    }
+
+    /**
+     * Reads the header of a file and returns whether it has the given magic number and version.
+     * Files too short to have a header are reported as not matching.
+     */
+    public static boolean readHeader(@NonNull ByteBuffer in, int magic, int version) {
+        return in.remaining() >= 2 * Integer.BYTES
+                && in.getInt() == magic
+                && in.getInt() == version;
+    }
+
+    /** Writes a non-negative int in 1 to 5 bytes. */
+    public static void writeVarInt(@NonNull DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /** Reads an int written by {@link #writeVarInt(DataOutput, int)}. */
+    public static int readVarInt(@NonNull ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid variable-length integer");
+    }
+
+    /**
+     * Writes strings in the layout of a string table: their count, then the length and the UTF-8
+     * bytes of each string. They can be read with {@link StringTable#read(ByteBuffer)}.
+     */
+    public static void writeStrings(@NonNull DataOutput out, @NonNull Collection<String> strings)
+            throws IOException {
+        writeVarInt(out, strings.size());
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Collects the distinct strings of a file and assigns them indices, in the order they are
+     * first seen. As the indices are only known once all strings have been seen, the part of the
+     * file referring to them is usually written to a separate buffer, and copied to the file
+     * after the table.
+     */
+    public static final class StringTableWriter {
+
+        @NonNull private final Map<String, Integer> mIndices = Maps.newLinkedHashMap();
+
+        /** Returns the index of a string in the table, adding it if needed. */
+        public int indexOf(@NonNull String string) {
+            Integer index = mIndices.get(string);
+            if (index == null) {
+                index = mIndices.size();
+                mIndices.put(string, index);
+            }
+            return index;
+        }
+
+        /** Returns the number of strings in the table. */
+        public int size() {
+            return mIndices.size();
+        }
+
+        /**
+         * Writes the table, in the layout of {@link CompactBinaryFormat#writeStrings(DataOutput,
+         * Collection)}.
+         */
+        public void writeTo(@NonNull DataOutput out) throws IOException {
+            writeStrings(out, mIndices.keySet());
+        }
+    }
+
+    /**
+     * A string table read from a buffer backed by an array. Strings are only decoded when first
+     * used, so that the tables of files that are only partially read stay cheap.
+     */
+    public static final class StringTable {
+
+        @NonNull private final byte[] mBytes;
+
+        /** Offsets of the strings in {@link #mBytes}. */
+        @NonNull private final int[] mOffsets;
+
+        /** Lengths in bytes of the strings. */
+        @NonNull private final int[] mLengths;
+
+        /** Strings already decoded. */
+        @NonNull private final String[] mStrings;
+
+        private StringTable(
+                @NonNull byte[] bytes, @NonNull int[] offsets, @NonNull int[] lengths) {
+            mBytes = bytes;
+            mOffsets = offsets;
+            mLengths = lengths;
+            mStrings = new String[offsets.length];
+        }
+
+        /**
+         * Reads a table written by {@link StringTableWriter#writeTo(DataOutput)} or {@link
+         * CompactBinaryFormat#writeStrings(DataOutput, Collection)}, and moves the buffer after
+         * it.
+         */
+        @NonNull
+        public static StringTable read(@NonNull ByteBuffer in) {
+            int count = readVarInt(in);
+            if (count < 0 || count > in.remaining()) {
+                throw new IllegalArgumentException("Invalid string count");
+            }
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = readVarInt(in);
+                offsets[i] = in.arrayOffset() + in.position();
+                in.position(in.position() + lengths[i]);
+            }
+            return new StringTable(in.array(), offsets, lengths);
+        }
+
+        /** Returns the number of strings in the table. */
+        public int size() {
+            return mStrings.length;
+        }
+
+        /**
+         * Returns the string at an index of the table.
+         *
+         * @throws IndexOutOfBoundsException if there is no such string
+         */
+        @NonNull
+        public String get(int index) {
+            String string = mStrings[index];
+            if (string == null) {
+                string =
+                        new String(
+                                mBytes, mOffsets[index], mLengths[index], StandardCharsets.UTF_8);
+                mStrings[index] = string;
+            }
+            return string;
+        }
+    }
+}
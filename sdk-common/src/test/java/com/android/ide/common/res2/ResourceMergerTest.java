@@ -52,6 +52,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -609,6 +610,49 @@ public class ResourceMergerTest extends BaseTestCase {
         checkLogger(logger);
     }
 
+    @Test
+    public void testBinaryBlobReplacesXmlBlob() throws Exception {
+        ResourceMerger merger = getResourceMerger();
+
+        File folder = TestUtils.createTempDirDeletedOnExit();
+        File xmlBlob = new File(folder, DataMerger.FN_MERGER_XML);
+        Files.write("<merger version=\"3\"/>", xmlBlob, Charsets.UTF_8);
+
+        merger.writeBlobTo(folder, getConsumer(), false);
+        assertFalse(xmlBlob.exists());
+        assertTrue(new File(folder, DataMerger.FN_MERGER_BLOB).isFile());
+
+        // Loading to feed a repository skips the merged items.
+        ResourceMerger loadedMerger = new ResourceMerger(0);
+        assertTrue(loadedMerger.loadFromBlob(folder, false /*incrementalState*/));
+        compareResourceMaps(merger, loadedMerger, true /*full compare*/);
+
+        merger.cleanBlob(folder);
+        assertFalse(new File(folder, DataMerger.FN_MERGER_BLOB).exists());
+        assertFalse(new ResourceMerger(0).loadFromBlob(folder, true /*incrementalState*/));
+    }
+
+    @Test
+    public void testCorruptedBinaryBlob() throws Exception {
+        ResourceMerger merger = getResourceMerger();
+
+        File folder = TestUtils.createTempDirDeletedOnExit();
+        merger.writeBlobTo(folder, getConsumer(), false);
+        File blob = new File(folder, DataMerger.FN_MERGER_BLOB);
+        byte[] bytes = Files.toByteArray(blob);
+
+        // A truncated blob is ignored, which makes the caller do a full merge.
+        Files.write(Arrays.copyOf(bytes, bytes.length / 2), blob);
+        assertFalse(new ResourceMerger(0).loadFromBlob(folder, true /*incrementalState*/));
+
+        // So is a root element without a name: the header, no strings, then an element with
+        // neither a namespace nor a name.
+        byte[] corrupted = Arrays.copyOf(bytes, 12);
+        System.arraycopy(new byte[] {0, 1, 0, 0}, 0, corrupted, 8, 4);
+        Files.write(corrupted, blob);
+        assertFalse(new ResourceMerger(0).loadFromBlob(folder, true /*incrementalState*/));
+    }
+
     @Test
     public void testWriteAndReadBlobWithTimestamps() throws Exception {
         ResourceMerger merger = getResourceMerger();
@@ -1890,7 +1934,7 @@ public class ResourceMergerTest extends BaseTestCase {
         try {
             merger.writeBlobTo(folder, getConsumer(), false);
         } catch (MergingException e) {
-            File file = new File(folder, "merger.xml");
+            File file = new File(folder, DataMerger.FN_MERGER_BLOB);
             assertEquals(file.getPath() + ": Error: (Permission denied)",
                     e.getMessage());
             return;
@@ -21,16 +21,21 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.android.ide.common.blame.SourceFilePosition;
 import com.android.ide.common.blame.SourcePosition;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.testutils.TestResources;
 import com.android.utils.XmlUtils;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import org.junit.Test;
 
 public class ResourceSetTest extends BaseTestCase {
@@ -281,6 +286,87 @@ public class ResourceSetTest extends BaseTestCase {
                      XmlUtils.getSourceFilePosition(resources.get(0).getValue()));
     }
 
+    @Test
+    public void testLoadFromFilesInParallel() throws Exception {
+        List<ResourceSet> expectedSets = getSetsToLoadInParallel();
+        RecordingLogger logger = new RecordingLogger();
+        for (ResourceSet resourceSet : expectedSets) {
+            resourceSet.loadFromFiles(logger);
+        }
+
+        List<ResourceSet> sets = getSetsToLoadInParallel();
+        Map<String, Long> parseTimes =
+                ResourceSet.loadFromFilesInParallel(
+                        sets, logger, WaitableExecutor.useNewFixedSizeThreadPool(4));
+        checkLogger(logger);
+
+        assertEquals(ImmutableList.of("main", "overlay", "styleables"),
+                ImmutableList.copyOf(parseTimes.keySet()));
+        for (int i = 0; i < sets.size(); i++) {
+            ListMultimap<String, ResourceItem> expected = expectedSets.get(i).getDataMap();
+            ListMultimap<String, ResourceItem> actual = sets.get(i).getDataMap();
+            assertEquals(ImmutableList.copyOf(expected.keySet()),
+                    ImmutableList.copyOf(actual.keySet()));
+            for (String key : expected.keySet()) {
+                List<ResourceItem> expectedItems = expected.get(key);
+                List<ResourceItem> actualItems = actual.get(key);
+                assertEquals(key, expectedItems.size(), actualItems.size());
+                for (int j = 0; j < expectedItems.size(); j++) {
+                    assertEquals(key, expectedItems.get(j).getSource().getFile(),
+                            actualItems.get(j).getSource().getFile());
+                    assertTrue(key, expectedItems.get(j).compareValueWith(actualItems.get(j)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLoadBrokenSetInParallel() throws Exception {
+        File root = TestResources.getDirectory(getClass(), "/testData/resources/brokenSet");
+
+        ResourceSet set = new ResourceSet("main", null, null, true);
+        set.addSource(root);
+
+        RecordingLogger logger = new RecordingLogger();
+        try {
+            ResourceSet.loadFromFilesInParallel(
+                    ImmutableList.of(set), logger, WaitableExecutor.useNewFixedSizeThreadPool(4));
+            fail("ResourceSet processing should have failed, but didn't");
+        } catch (MergingException e) {
+            assertEquals(new File(root, "values" + separator + "dimens.xml").getAbsolutePath() +
+                    ":1:1: Error: Content is not allowed in prolog.",
+                    e.getMessage());
+        }
+        assertFalse(logger.getErrorMsgs().isEmpty());
+        assertTrue(set.isEmpty());
+    }
+
+    @Test(expected = DuplicateDataException.class)
+    public void testLoadDupSetInParallel() throws Exception {
+        File root = TestResources.getDirectory(getClass(), "/testData/resources/dupSet");
+
+        ResourceSet set = new ResourceSet("main", null, null, true);
+        set.addSource(new File(root, "res1"));
+        set.addSource(new File(root, "res2"));
+        ResourceSet.loadFromFilesInParallel(
+                ImmutableList.of(set),
+                new RecordingLogger(),
+                WaitableExecutor.useNewFixedSizeThreadPool(4));
+    }
+
+    private List<ResourceSet> getSetsToLoadInParallel() {
+        ResourceSet main = new ResourceSet("main", null, null, true);
+        main.addSource(TestResources.getDirectory(getClass(), "/testData/resources/baseSet"));
+        ResourceSet overlay = new ResourceSet("overlay", null, null, true);
+        overlay.addSource(
+                TestResources.getDirectory(getClass(), "/testData/resources/baseMerge/overlay"));
+        ResourceSet styleables = new ResourceSet("styleables", null, null, true);
+        styleables.addSource(
+                TestResources.getDirectory(
+                        getClass(), "/testData/resources/declareStyleable/base"));
+        return ImmutableList.of(main, overlay, styleables);
+    }
+
     static ResourceSet getBaseResourceSet() throws MergingException, IOException {
         File root = TestResources
                 .getDirectory(ResourceSetTest.class, "/testData/resources/baseSet");
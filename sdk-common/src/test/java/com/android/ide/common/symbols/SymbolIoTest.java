@@ -37,6 +37,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Supplier;
 import org.junit.Rule;
@@ -701,6 +702,97 @@ public class SymbolIoTest {
         assertThat(SymbolIo.readTableWithPackage(mixedLineEndings)).isEqualTo(table);
     }
 
+    @Test
+    public void testBinaryPackageNameWriteAndRead() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem();
+
+        SymbolTable table =
+                SymbolTable.builder()
+                        .tablePackage("com.example.lib")
+                        .add(
+                                Symbol.createSymbol(
+                                        ResourceType.DRAWABLE,
+                                        "foobar",
+                                        SymbolJavaType.INT,
+                                        "0x7f02000 ",
+                                        Symbol.NO_CHILDREN))
+                        .add(
+                                Symbol.createSymbol(
+                                        ResourceType.STYLEABLE,
+                                        "LimitedSizeLinearLayout",
+                                        SymbolJavaType.INT_LIST,
+                                        "{ 0x7f010000, 0x7f010001 } ",
+                                        ImmutableList.of("android:max_width", "max_height")))
+                        .build();
+        Path rTxt = fs.getPath("r.txt");
+        SymbolIo.write(table, rTxt);
+
+        Path manifest = fs.getPath("AndroidManifest.xml");
+        java.nio.file.Files.write(
+                manifest,
+                ImmutableList.of("<manifest package=\"com.example.lib\"></manifest>"),
+                StandardCharsets.UTF_8);
+
+        Path output = fs.getPath("package-aware-r.bin");
+        SymbolIo.writeBinarySymbolTableWithPackage(rTxt, manifest, output);
+        SymbolTable read = SymbolIo.readTableWithPackage(output);
+        assertThat(read).isEqualTo(table);
+
+        // Strings are shared with the other tables read from binary files.
+        Path otherOutput = fs.getPath("other-package-aware-r.bin");
+        SymbolIo.writeBinaryTableWithPackage(table.rename("com.example.other"), otherOutput);
+        SymbolTable otherRead = SymbolIo.readTableWithPackage(otherOutput);
+        assertThat(otherRead.getTablePackage()).isEqualTo("com.example.other");
+        assertThat(otherRead.getSymbols()).isEqualTo(table.getSymbols());
+        assertThat(otherRead.getSymbols().get(ResourceType.DRAWABLE, "foobar").getName())
+                .isSameAs(read.getSymbols().get(ResourceType.DRAWABLE, "foobar").getName());
+    }
+
+    @Test
+    public void testBinaryPackageNameWithNoSymbolTableWrite() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem();
+
+        Path manifest = fs.getPath("AndroidManifest.xml");
+        java.nio.file.Files.write(
+                manifest,
+                ImmutableList.of("<manifest package=\"com.example.lib\"></manifest>"),
+                StandardCharsets.UTF_8);
+
+        Path output = fs.getPath("package-aware-r.bin");
+        SymbolIo.writeBinarySymbolTableWithPackage(fs.getPath("r.txt"), manifest, output);
+
+        assertThat(SymbolIo.readTableWithPackage(output))
+                .isEqualTo(SymbolTable.builder().tablePackage("com.example.lib").build());
+    }
+
+    @Test
+    public void testBinaryCorruptedRead() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem();
+
+        Path output = fs.getPath("package-aware-r.bin");
+        SymbolIo.writeBinaryTableWithPackage(
+                SymbolTable.builder()
+                        .tablePackage("com.example.lib")
+                        .add(
+                                Symbol.createSymbol(
+                                        ResourceType.STRING,
+                                        "foo",
+                                        SymbolJavaType.INT,
+                                        "0x7f030000",
+                                        Symbol.NO_CHILDREN))
+                        .build(),
+                output);
+        byte[] bytes = java.nio.file.Files.readAllBytes(output);
+        java.nio.file.Files.write(output, Arrays.copyOf(bytes, bytes.length - 2));
+
+        try {
+            SymbolIo.readTableWithPackage(output);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("package-aware-r.bin");
+        }
+    }
+
     @Test
     public void testPackageNameWithNoSymbolTableWrite() throws Exception {
         FileSystem fs = Jimfs.newFileSystem();
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.ide.common.util.CompactBinaryFormat.StringTable;
+import com.android.ide.common.util.CompactBinaryFormat.StringTableWriter;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class CompactBinaryFormatTest {
+
+    @Test
+    public void testVarInts() throws Exception {
+        int[] values = {0, 1, 0x7f, 0x80, 0x3fff, 0x4000, 123456789, Integer.MAX_VALUE, -1};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : values) {
+            CompactBinaryFormat.writeVarInt(out, value);
+        }
+        assertThat(bytes.size()).isEqualTo(1 + 1 + 1 + 2 + 2 + 3 + 4 + 5 + 5);
+
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        for (int value : values) {
+            assertThat(CompactBinaryFormat.readVarInt(in)).isEqualTo(value);
+        }
+        assertThat(in.hasRemaining()).isFalse();
+    }
+
+    @Test
+    public void testInvalidVarInt() {
+        byte[] bytes = new byte[6];
+        Arrays.fill(bytes, (byte) 0x80);
+        try {
+            CompactBinaryFormat.readVarInt(ByteBuffer.wrap(bytes));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactBinaryFormat.writeHeader(new DataOutputStream(bytes), 0x12345678, 2);
+
+        byte[] header = bytes.toByteArray();
+        assertThat(CompactBinaryFormat.readHeader(ByteBuffer.wrap(header), 0x1234, 2)).isFalse();
+        assertThat(CompactBinaryFormat.readHeader(ByteBuffer.wrap(header), 0x12345678, 1))
+                .isFalse();
+        assertThat(CompactBinaryFormat.readHeader(ByteBuffer.wrap(header), 0x12345678, 2))
+                .isTrue();
+        assertThat(CompactBinaryFormat.readHeader(ByteBuffer.wrap(new byte[4]), 0, 0)).isFalse();
+    }
+
+    @Test
+    public void testStringTable() throws Exception {
+        StringTableWriter writer = new StringTableWriter();
+        assertThat(writer.indexOf("foo")).isEqualTo(0);
+        assertThat(writer.indexOf("bär")).isEqualTo(1);
+        assertThat(writer.indexOf("foo")).isEqualTo(0);
+        assertThat(writer.indexOf("")).isEqualTo(2);
+        assertThat(writer.size()).isEqualTo(3);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writer.writeTo(out);
+        CompactBinaryFormat.writeStrings(out, ImmutableList.of("a", "b"));
+        out.writeByte(42);
+
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        StringTable table = StringTable.read(in);
+        assertThat(table.size()).isEqualTo(3);
+        assertThat(table.get(1)).isEqualTo("bär");
+        assertThat(table.get(0)).isEqualTo("foo");
+        assertThat(table.get(0)).isSameAs(table.get(0));
+        assertThat(table.get(2)).isEmpty();
+
+        StringTable other = StringTable.read(in);
+        assertThat(other.size()).isEqualTo(2);
+        assertThat(other.get(1)).isEqualTo("b");
+        assertThat(in.get()).isEqualTo((byte) 42);
+    }
+
+    @Test
+    public void testTruncatedStringTable() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactBinaryFormat.writeStrings(
+                new DataOutputStream(bytes), ImmutableList.of("foo", "bar"));
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        try {
+            StringTable.read(ByteBuffer.wrap(truncated));
+            fail("Expected an exception");
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}